@@ -27,11 +27,14 @@ block
 atom
     : PERMISSION_WORD (DOT PERMISSION_WORD)*  # realPermission
     | OPEN_PAR block CLOSE_PAR                # parenthesis
+    | NOT atom                                # negation
     ;
 
-AND: 'and';
+AND: 'and' | '&&';
 
-OR: 'or';
+OR: 'or' | '||';
+
+NOT: '!';
 
 OPEN_PAR: '(';
 
@@ -39,6 +42,6 @@ CLOSE_PAR: ')';
 
 DOT: '.';
 
-PERMISSION_WORD: ~[ \n\r ().]+;
+PERMISSION_WORD: ~[ \n\r ().!]+;
 
 SPACE: [ \n\r ]+ -> skip;
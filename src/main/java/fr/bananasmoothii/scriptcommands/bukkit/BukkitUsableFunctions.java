@@ -36,10 +36,6 @@ import static fr.bananasmoothii.scriptcommands.core.execution.ScriptValue.NONE;
 @SuppressWarnings("unused")
 public class BukkitUsableFunctions {
 
-    private static void runSync(Runnable runnable) {
-        Bukkit.getScheduler().runTask(ScriptCommandsPlugin.inst(), runnable);
-    }
-
     private static List<@Nullable Player> getPlayersFromList(ScriptValue<?> arg, @NotNull Context context) {
         List<Player> players = new ArrayList<>();
         Server server = Bukkit.getServer();
@@ -58,7 +54,8 @@ public class BukkitUsableFunctions {
 
     @ScriptFunctionMethod
     public static ScriptValue<NoneType> console_cmd(Args args) {
-        runSync(() -> Bukkit.getServer().dispatchCommand(Bukkit.getConsoleSender(), args.getSingleArg().asString()));
+        String cmd = args.getSingleArg().asString();
+        MainThreadDispatcher.execute(() -> Bukkit.getServer().dispatchCommand(Bukkit.getConsoleSender(), cmd));
         return NONE;
     }
 
@@ -74,10 +71,12 @@ public class BukkitUsableFunctions {
         List<@Nullable Player> players = getPlayersFromList(playersArg, args.context);
 
         CustomLogger.finer("making player " + Util.join(", ", players) + " run " + cmd);
-        for (@Nullable Player player : players) {
-            if (player != null)
-                player.performCommand(cmd);
-        }
+        MainThreadDispatcher.execute(() -> {
+            for (@Nullable Player player : players) {
+                if (player != null)
+                    player.performCommand(cmd);
+            }
+        });
         return NONE;
     }
 
@@ -92,11 +91,13 @@ public class BukkitUsableFunctions {
         if (playersArg == null) playersArg = new ScriptValue<>(args.context.getTriggeringPlayer());
         List<@Nullable Player> players = getPlayersFromList(playersArg, args.context);
 
-        CustomLogger.finer("making player " + Util.join(", ", players) + " run " + msg);
-        for (@Nullable Player player : players) {
-            if (player != null)
-                player.performCommand(msg);
-        }
+        CustomLogger.finer("sending \"" + msg + "\" to " + Util.join(", ", players));
+        MainThreadDispatcher.execute(() -> {
+            for (@Nullable Player player : players) {
+                if (player != null)
+                    player.sendMessage(msg);
+            }
+        });
         return NONE;
     }
 
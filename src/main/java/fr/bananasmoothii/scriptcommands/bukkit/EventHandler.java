@@ -16,9 +16,252 @@
 
 package fr.bananasmoothii.scriptcommands.bukkit;
 
-import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.CommandIndex;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Config;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.ContainingScripts;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Event;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.ScriptValueList;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.StringScriptValueMap;
+import fr.bananasmoothii.scriptcommands.core.execution.*;
+import org.bukkit.ChatColor;
+import org.bukkit.entity.Player;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.*;
+import org.bukkit.event.server.TabCompleteEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import javax.naming.InvalidNameException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Triggers event scripts. Event scripts run in the {@link #EVENTS_THREAD_GROUP} thread group and get a copy of the
+ * event information as variables (like {@code player} or {@code message}), so the server doesn't wait for them.
+ * <br/>
+ * Events with {@code sync: true} in the config run directly on the thread that fired the event instead, and can
+ * modify it by setting variables: {@code cancelled = true} cancels the event (if it can be cancelled), and the
+ * variables holding messages (like {@code message}) can be modified.
+ * <br/>
+ * This also runs the commands from the config and completes their names, using the {@link CommandIndex}.
+ */
 public class EventHandler implements Listener {
 
+    public static final String EVENTS_THREAD_GROUP = "ScriptCommands-events";
+
+    /**
+     * Time between the event and the end of its script, by event name
+     */
+    private static final ConcurrentMap<String, RunStatistics> latencies = new ConcurrentHashMap<>();
+
+    public EventHandler() {
+        if (ScriptThread.getThreadGroup(EVENTS_THREAD_GROUP) == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            try {
+                ScriptThread.initialiseThreadGroup(EVENTS_THREAD_GROUP, Executors.newFixedThreadPool(Config.eventThreads,
+                        r -> new Thread(ScriptThread.DEFAULT_SCRIPTCOMMANDS_THREAD_GROUP, r, EVENTS_THREAD_GROUP + "-" + threadNumber.incrementAndGet())));
+            } catch (InvalidNameException ignored) {
+                // it was created by someone else in the meantime, that's fine
+            }
+        }
+    }
+
+    /**
+     * Waits for the event scripts that are running, so they are done before the global variables are saved for the
+     * last time, and stops the threads of {@link #EVENTS_THREAD_GROUP}.
+     */
+    public static void close() {
+        if (! ScriptThread.closeThreadGroup(EVENTS_THREAD_GROUP, 10, TimeUnit.SECONDS))
+            CustomLogger.warning("Some event scripts were still running after being interrupted, what they modify now may not be saved");
+    }
+
+    /**
+     * @return the latency of each event that was triggered at least once, by name
+     */
+    public static @NotNull Map<String, RunStatistics> getLatencies() {
+        return Collections.unmodifiableMap(latencies);
+    }
+
+    @org.bukkit.event.EventHandler
+    public void onPlayerJoin(PlayerJoinEvent e) {
+        Event event = getEvent("player_join");
+        if (event == null) return;
+        StringScriptValueMap<Object> variables = playerVariables(e.getPlayer());
+        putText(variables, "join_message", e.getJoinMessage());
+        Context context = trigger(event, e.getPlayer(), variables);
+        if (context != null) e.setJoinMessage(getText(context, "join_message", e.getJoinMessage()));
+    }
+
+    @org.bukkit.event.EventHandler
+    public void onPlayerQuit(PlayerQuitEvent e) {
+        PermissionCache.invalidate(e.getPlayer());
+        Event event = getEvent("player_quit");
+        if (event == null) return;
+        StringScriptValueMap<Object> variables = playerVariables(e.getPlayer());
+        putText(variables, "quit_message", e.getQuitMessage());
+        Context context = trigger(event, e.getPlayer(), variables);
+        if (context != null) e.setQuitMessage(getText(context, "quit_message", e.getQuitMessage()));
+    }
+
+    @org.bukkit.event.EventHandler(ignoreCancelled = true)
+    public void onPlayerChat(AsyncPlayerChatEvent e) {
+        Event event = getEvent("player_chat");
+        if (event == null) return;
+        StringScriptValueMap<Object> variables = playerVariables(e.getPlayer());
+        putText(variables, "message", e.getMessage());
+        Context context = trigger(event, e.getPlayer(), variables);
+        if (context != null) {
+            e.setMessage(getText(context, "message", e.getMessage()));
+            e.setCancelled(isCancelled(context));
+        }
+    }
+
+    @org.bukkit.event.EventHandler(ignoreCancelled = true)
+    public void onPlayerCommand(PlayerCommandPreprocessEvent e) {
+        Event event = getEvent("player_command");
+        if (event != null) {
+            StringScriptValueMap<Object> variables = playerVariables(e.getPlayer());
+            putText(variables, "message", e.getMessage());
+            Context context = trigger(event, e.getPlayer(), variables);
+            if (context != null) {
+                e.setMessage(getText(context, "message", e.getMessage()));
+                e.setCancelled(isCancelled(context));
+                if (e.isCancelled()) return;
+            }
+        }
+        runCommand(e);
+    }
+
+    /**
+     * Runs the command from the config if there is one with that name or alias. The command gets an {@code args}
+     * variable with everything after the command name.
+     */
+    private static void runCommand(PlayerCommandPreprocessEvent e) {
+        String[] words = e.getMessage().substring(1).trim().split(" +");
+        CommandIndex.Entry entry = CommandIndex.getCurrent().get(words[0]);
+        if (entry == null || entry.command.doNotRegister) return;
+        e.setCancelled(true);
+        Player player = e.getPlayer();
+        int argCount = words.length - 1;
+        if (! entry.hasPermission(player)) {
+            CustomLogger.fine(player.getName() + " doesn't have the permission to use " + entry);
+            sendMessage(player, entry, "no-permission", argCount);
+            return;
+        }
+        if (! entry.acceptsArgCount(argCount)) {
+            CustomLogger.fine(player.getName() + " used " + entry + " with " + argCount + " arguments");
+            sendMessage(player, entry, "bad-args", argCount);
+            return;
+        }
+        ScriptValueList<Object> args = new ScriptValueList<>();
+        for (int i = 1; i < words.length; i++) {
+            args.add(new ScriptValue<>(words[i]));
+        }
+        StringScriptValueMap<Object> variables = playerVariables(player);
+        variables.put("args", new ScriptValue<>(args));
+        CustomLogger.finer("running " + ContainingScripts.Type.COMMAND.name() + " " + entry + "(" + Types.getPrettyArgs(null, variables) + ") ASYNCHRONOUSLY");
+        new ScriptThread(entry.parseTree, new Context(entry.command.name, ContainingScripts.Type.COMMAND, variables, player)).start();
+    }
+
+    /**
+     * Sends a message of the command (its {@code messages}, or the ones of the config) to the player, the
+     * {@code player_msg} at the start being optional. The placeholders about the arguments are filled in, and the
+     * colors with {@code &} are translated.
+     */
+    private static void sendMessage(Player player, CommandIndex.Entry entry, String name, int argCount) {
+        String message = entry.command.messages != null ? entry.command.messages.get(name) : null;
+        if (message == null) message = Config.messages.get(name);
+        if (message == null) return;
+        if (message.startsWith("player_msg ")) message = message.substring("player_msg ".length());
+        message = message.replace("{command.minArgs}", String.valueOf(entry.minArgs))
+                .replace("{maxArgs(command)}", entry.maxArgs == Integer.MAX_VALUE ? "\u221E" : String.valueOf(entry.maxArgs))
+                .replace("{args.count}", String.valueOf(argCount));
+        player.sendMessage(ChatColor.translateAlternateColorCodes('&', message));
+    }
+
+    @org.bukkit.event.EventHandler(ignoreCancelled = true)
+    public void onTabComplete(TabCompleteEvent e) {
+        String buffer = e.getBuffer();
+        // only the command name is completed, the arguments are up to the scripts
+        if (! buffer.startsWith("/") || buffer.indexOf(' ') != -1) return;
+        List<String> completions = new ArrayList<>(e.getCompletions());
+        for (String label : CommandIndex.getCurrent().complete(buffer.substring(1), e.getSender())) {
+            if (! completions.contains("/" + label)) completions.add("/" + label);
+        }
+        e.setCompletions(completions);
+    }
+
+    @org.bukkit.event.EventHandler
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent e) {
+        PermissionCache.invalidate(e.getPlayer()); // permissions can depend on the world
+        Event event = getEvent("player_changed_world");
+        if (event == null) return;
+        StringScriptValueMap<Object> variables = playerVariables(e.getPlayer());
+        putText(variables, "from_world", e.getFrom().getName());
+        trigger(event, e.getPlayer(), variables);
+    }
+
+    private static @Nullable Event getEvent(String name) {
+        return (Event) Config.getCorrespondingContainingScripts(ContainingScripts.Type.EVENT, name);
+    }
+
+    /**
+     * Runs the script of the event, directly if it is a sync event, or in the {@link #EVENTS_THREAD_GROUP} thread
+     * group.
+     * @return the context after the script ran, for sync events only (for reading the variables the script modified)
+     */
+    private static @Nullable Context trigger(Event event, @Nullable Player player, StringScriptValueMap<Object> variables) {
+        long start = System.nanoTime();
+        RunStatistics latency = latencies.computeIfAbsent(event.name, k -> new RunStatistics());
+        if (event.sync) {
+            CustomLogger.finer("running " + ContainingScripts.Type.EVENT.name() + " " + event.name + "(" + Types.getPrettyArgs(null, variables) + ")");
+            Context context = new Context(event.name, ContainingScripts.Type.EVENT, variables, player);
+            try {
+                new ScriptsExecutor(context).visit(event.parseTree);
+            } finally {
+                latency.record(System.nanoTime() - start);
+            }
+            return context;
+        }
+        Context.threadTrigger(ContainingScripts.Type.EVENT, event.name, variables, player, EVENTS_THREAD_GROUP)
+                .toCompletableFuture()
+                .whenComplete((value, throwable) -> latency.record(System.nanoTime() - start));
+        return null;
+    }
+
+    /**
+     * A new map for each event, holding only strings copied from the player, so the event script can read and modify
+     * it from any thread after the event is over.
+     */
+    private static StringScriptValueMap<Object> playerVariables(Player player) {
+        StringScriptValueMap<Object> variables = new StringScriptValueMap<>();
+        putText(variables, "player", player.getName());
+        putText(variables, "uuid", player.getUniqueId().toString());
+        putText(variables, "world", player.getWorld().getName());
+        return variables;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putText(StringScriptValueMap<Object> variables, String name, @Nullable String text) {
+        variables.put(name, text == null ? (ScriptValue<Object>) (ScriptValue<?>) ScriptValue.NONE : new ScriptValue<>(text));
+    }
+
+    private static @Nullable String getText(Context context, String name, @Nullable String defaultValue) {
+        ScriptValue<Object> value = context.normalVariables.get(name);
+        if (value == null || value.is(ScriptValue.ScriptValueType.NONE)) return defaultValue;
+        return value.toString();
+    }
+
+    private static boolean isCancelled(Context context) {
+        ScriptValue<Object> cancelled = context.normalVariables.get("cancelled");
+        return cancelled != null && cancelled.is(ScriptValue.ScriptValueType.BOOLEAN) && cancelled.asBoolean();
+    }
 }
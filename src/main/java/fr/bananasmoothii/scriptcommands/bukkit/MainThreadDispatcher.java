@@ -0,0 +1,111 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.bukkit;
+
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Config;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Runs things that have to be done on the main server thread. Instead of scheduling one Bukkit task per operation,
+ * everything goes in a single lock-free queue that is drained once per tick, during at most
+ * {@link Config#mainThreadBudget} milliseconds. What is left is done at the next tick, in the same order.
+ * <br/>
+ * Operations submitted from the main thread are run directly.
+ */
+public abstract class MainThreadDispatcher {
+
+    private static final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private static volatile @Nullable BukkitTask drainingTask;
+
+    /**
+     * Starts draining the queue every tick
+     */
+    public static synchronized void start(@NotNull Plugin plugin) {
+        if (drainingTask != null) return;
+        drainingTask = Bukkit.getScheduler().runTaskTimer(plugin, MainThreadDispatcher::drain, 1, 1);
+    }
+
+    /**
+     * Stops draining the queue every tick and runs everything that is left, regardless of the budget. Must be called
+     * from the main thread. After that, operations are run directly on the thread that submits them.
+     */
+    public static synchronized void stop() {
+        if (drainingTask == null) return;
+        drainingTask.cancel();
+        drainingTask = null;
+        Runnable runnable;
+        while ((runnable = queue.poll()) != null) {
+            runSafely(runnable);
+        }
+    }
+
+    /**
+     * Runs <strong>runnable</strong> on the main thread, in a future tick (or now if this is called from the main
+     * thread), and doesn't wait for it.
+     */
+    public static void execute(@NotNull Runnable runnable) {
+        if (drainingTask == null || Bukkit.isPrimaryThread()) {
+            runSafely(runnable);
+        } else {
+            queue.add(runnable);
+        }
+    }
+
+    /**
+     * Same as {@link #execute(Runnable)}, but gives the result.
+     * @return a {@link CompletableFuture} completed on the main thread
+     */
+    public static <T> @NotNull CompletableFuture<T> submit(@NotNull Supplier<T> supplier) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static void drain() {
+        long deadline = System.nanoTime() + (long) (Config.mainThreadBudget * 1_000_000);
+        Runnable runnable;
+        while ((runnable = queue.poll()) != null) {
+            runSafely(runnable);
+            if (System.nanoTime() - deadline >= 0) break;
+        }
+    }
+
+    private static void runSafely(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (Throwable e) {
+            CustomLogger.severe("Error while running something on the main thread: " + e);
+            e.printStackTrace();
+        }
+    }
+}
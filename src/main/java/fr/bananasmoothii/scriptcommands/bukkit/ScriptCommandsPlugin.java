@@ -20,12 +20,21 @@ import fr.bananasmoothii.scriptcommands.core.CustomLogger;
 import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Config;
 import fr.bananasmoothii.scriptcommands.core.configsAndStorage.ContainingScripts;
 import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Storage;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Schedule;
 import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.execution.ScheduleExecutor;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptThread;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 public final class ScriptCommandsPlugin extends JavaPlugin {
 
     private static ScriptCommandsPlugin inst;
+    private ExecutorService scheduleThreadPool;
+    private ScheduleExecutor scheduleExecutor;
 
     @Override
     public void onEnable() {
@@ -33,19 +42,49 @@ public final class ScriptCommandsPlugin extends JavaPlugin {
         CustomLogger.setLogger(getLogger());
         Config.load(this::saveDefaultConfig);
         Context.registerMethodsFromClass(BukkitUsableFunctions.class);
+        MainThreadDispatcher.start(this);
+        getServer().getPluginManager().registerEvents(new EventHandler(), this);
+
+        scheduleThreadPool = Executors.newFixedThreadPool(Config.scheduleThreads,
+                r -> new Thread(ScriptThread.DEFAULT_SCRIPTCOMMANDS_THREAD_GROUP, r, "ScriptCommands-schedules"));
+        scheduleExecutor = new ScheduleExecutor(scheduleThreadPool);
+        for (Schedule schedule : Config.schedules) {
+            scheduleExecutor.schedule(schedule);
+        }
+        getServer().getScheduler().runTaskTimer(this, scheduleExecutor::tick, 1, 1);
 
         Context.threadTrigger(ContainingScripts.Type.EVENT, "server_start", null);
 
     }
 
+    /**
+     * The scripts that are still running are waited for before saving the global variables, so what they modify is
+     * saved too. The {@link MainThreadDispatcher} is stopped before, so they don't wait for this thread meanwhile.
+     */
     @Override
     public void onDisable() {
+        if (scheduleExecutor != null) scheduleExecutor.cancelAll();
+        MainThreadDispatcher.stop();
+        if (scheduleThreadPool != null) {
+            scheduleThreadPool.shutdown();
+            try {
+                if (! scheduleThreadPool.awaitTermination(10, TimeUnit.SECONDS))
+                    CustomLogger.warning("Some schedules were still running, what they modify now may not be saved");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        EventHandler.close();
         Storage.saveAndClose();
     }
 
     public static ScriptCommandsPlugin inst() {
         return inst;
     }
+
+    public ScheduleExecutor getScheduleExecutor() {
+        return scheduleExecutor;
+    }
 }
 
 //TODO: make the default commands (reload...)
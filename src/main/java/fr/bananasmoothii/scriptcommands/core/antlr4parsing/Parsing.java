@@ -77,7 +77,7 @@ public class Parsing {
         CommonTokenStream tokens = new CommonTokenStream(lexer);
         PermissionParser parser = new PermissionParser(tokens);
         PermissionParser.StartContext context = parser.start();
-        if (context.exception == null) {
+        if (context.exception == null && parser.getNumberOfSyntaxErrors() == 0) { // else it was recovered and would mean something else
             return context;
         }
         throw new ScriptsParsingException("Parsing for permission of command " + commandName + " failed. See above message(s) for more info.");
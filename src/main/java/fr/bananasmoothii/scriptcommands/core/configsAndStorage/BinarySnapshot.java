@@ -0,0 +1,523 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue.ScriptValueType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A compact binary format for the storage file, an alternative to json (option {@code storage.json.format}).
+ * <br/>
+ * The file starts with {@link #MAGIC} and a version byte, then the journal generation (see {@link JsonJournal}), then
+ * the global variables as a dictionary, then a table of every text used in the file, and ends with the position of
+ * that table on 8 bytes. Each value starts with the {@link ScriptValueType#asByte byte of its type}:
+ * <ul>
+ *     <li>None: nothing else</li>
+ *     <li>Integer: a zigzag varint</li>
+ *     <li>Decimal: 8 bytes</li>
+ *     <li>Text: the varint index of the text in the table</li>
+ *     <li>Boolean: one byte, 0 or 1</li>
+ *     <li>List: the size in bytes of the rest of the list on 4 bytes, a varint count, then the elements</li>
+ *     <li>Dictionary: the same as a list, with keys and values one after the other</li>
+ * </ul>
+ * Thanks to the size of lists and dictionaries, a {@link Reader} can skip them without decoding them: it only decodes
+ * the names of the global variables, and each variable is decoded when it is first used.
+ */
+public abstract class BinarySnapshot {
+
+    public static final byte[] MAGIC = {'S', 'C', 'B', 'S'};
+    public static final byte VERSION = 1;
+
+    /**
+     * @return whether <strong>file</strong> starts with {@link #MAGIC}
+     */
+    public static boolean isBinary(@NotNull File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] start = new byte[MAGIC.length];
+            return in.read(start) == MAGIC.length && Arrays.equals(start, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes <strong>globals</strong> from the current position of <strong>channel</strong>, which must be at the
+     * beginning of an empty file. The channel is not synced nor closed.
+     * @param journalGeneration see {@link Storage#writeJsonSnapshot(int)}
+     */
+    public static void write(@NotNull FileChannel channel, @NotNull List<? extends Map.Entry<String, ? extends ScriptValue<?>>> globals,
+                             int journalGeneration) throws IOException {
+        Output out = new Output(channel);
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.writeVarint(journalGeneration);
+        out.write(ScriptValueType.DICTIONARY.asByte);
+        long sizePosition = out.reserveInt();
+        out.writeVarint(globals.size());
+        for (Map.Entry<String, ? extends ScriptValue<?>> entry : globals) {
+            out.write(ScriptValueType.TEXT.asByte);
+            out.writeVarint(out.indexOf(entry.getKey()));
+            writeValue(out, entry.getValue());
+        }
+        out.patchInt(sizePosition, (int) (out.position() - sizePosition - 4));
+        long stringTablePosition = out.position();
+        out.writeVarint(out.strings.size());
+        for (String string : out.strings.keySet()) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.writeVarint(bytes.length);
+            out.write(bytes);
+        }
+        out.writeLong(stringTablePosition);
+        out.flush();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(Output out, ScriptValue<?> value) throws IOException {
+        out.write(value.type.asByte);
+        switch (value.type) {
+            case NONE:
+                break;
+            case INTEGER:
+                int i = (Integer) value.v;
+                out.writeVarint((i << 1) ^ (i >> 31));
+                break;
+            case DECIMAL:
+                out.writeLong(Double.doubleToRawLongBits((Double) value.v));
+                break;
+            case TEXT:
+                out.writeVarint(out.indexOf((String) value.v));
+                break;
+            case BOOLEAN:
+                out.write((Boolean) value.v ? (byte) 1 : 0);
+                break;
+            case LIST: {
+                List<ScriptValue<Object>> elements = ((ScriptValueList<Object>) value.v).snapshot();
+                long sizePosition = out.reserveInt();
+                out.writeVarint(elements.size());
+                for (ScriptValue<Object> element : elements) {
+                    writeValue(out, element);
+                }
+                out.patchInt(sizePosition, (int) (out.position() - sizePosition - 4));
+                break;
+            }
+            case DICTIONARY: {
+                List<Map.Entry<ScriptValue<Object>, ScriptValue<Object>>> entries = ((ScriptValueMap<Object, Object>) value.v).snapshot();
+                long sizePosition = out.reserveInt();
+                out.writeVarint(entries.size());
+                for (Map.Entry<ScriptValue<Object>, ScriptValue<Object>> entry : entries) {
+                    writeValue(out, entry.getKey());
+                    writeValue(out, entry.getValue());
+                }
+                out.patchInt(sizePosition, (int) (out.position() - sizePosition - 4));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Converts a storage file from json to binary. The json file is not deleted.
+     */
+    @SuppressWarnings("unchecked")
+    public static void convertFromJson(@NotNull File jsonFile, @NotNull File binaryFile) throws IOException {
+        Map<String, Object> json;
+        try (InputStreamReader reader = new InputStreamReader(new FileInputStream(jsonFile), StandardCharsets.UTF_8)) {
+            json = Storage.gson.fromJson(reader, Map.class);
+        }
+        Map<String, Object> globals = json == null ? null : (Map<String, Object>) json.get("global_vars");
+        Object journalGeneration = json == null ? null : json.get("journal_generation");
+        List<Map.Entry<String, ScriptValue<?>>> entries = new ArrayList<>();
+        if (globals != null) {
+            for (Map.Entry<String, Object> entry : globals.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), ScriptValue.toScriptValue(entry.getValue(), true)));
+            }
+        }
+        try (FileChannel channel = FileChannel.open(binaryFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, entries, journalGeneration instanceof Number ? ((Number) journalGeneration).intValue() : 0);
+        }
+    }
+
+    /**
+     * Converts a storage file from binary to json. The binary file is not deleted.
+     */
+    public static void convertToJson(@NotNull File binaryFile, @NotNull File jsonFile) throws IOException {
+        Reader reader = new Reader(binaryFile);
+        List<Map.Entry<String, ScriptValue<?>>> entries = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : reader.readGlobals().entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), reader.decode(entry.getValue())));
+        }
+        try (OutputStream out = new FileOutputStream(jsonFile)) {
+            JsonSnapshotWriter.writeJson(out, entries, reader.getJournalGeneration());
+        }
+    }
+
+    /**
+     * Encodes a single value on its own, with the texts it uses before it: a varint count, then each text as a varint
+     * length and its UTF-8 bytes, then the value as in a storage file. Used for the records of {@link LogStorage}.
+     */
+    public static byte[] encodeValue(@NotNull ScriptValue<?> value) {
+        try {
+            Output valueOut = new Output();
+            writeValue(valueOut, value);
+            Output out = new Output();
+            out.writeVarint(valueOut.strings.size());
+            for (String string : valueOut.strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeVarint(bytes.length);
+                out.write(bytes);
+            }
+            out.write(valueOut.toByteArray());
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // there is no channel, so it can't happen
+        }
+    }
+
+    /**
+     * Decodes what {@link #encodeValue(ScriptValue)} wrote, from the position of <strong>in</strong>.
+     * @param sourceName for error messages
+     * @return a new {@link ScriptValue}, each call gives different lists and dictionaries.
+     */
+    public static @NotNull ScriptValue<?> decodeValue(@NotNull ByteBuffer in, @NotNull String sourceName) {
+        String[] strings = new String[readVarint(in)];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[readVarint(in)];
+            in.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new Decoder(sourceName) {
+            @Override
+            String getString(int index) {
+                return strings[index];
+            }
+        }.readValue(in);
+    }
+
+    /**
+     * Reads a binary storage file through a {@link MappedByteBuffer}, so only what is decoded is read from the disk.
+     * It can be used by multiple threads at the same time.
+     */
+    public static class Reader extends Decoder implements SnapshotReader {
+        private final File file;
+        private final long fileLength, fileLastModified;
+        private final MappedByteBuffer buffer;
+        private final int journalGeneration;
+        private final int globalsPosition;
+        private final int[] stringPositions;
+        private final String[] strings;
+
+        public Reader(@NotNull File file) throws IOException {
+            super(file.getName());
+            this.file = file;
+            fileLastModified = file.lastModified();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                fileLength = channel.size();
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException(file.getName() + " is too big to be read (more than 2GB)");
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // stays valid after closing the channel
+            }
+            ByteBuffer in = buffer.duplicate();
+            byte[] magic = new byte[MAGIC.length];
+            in.get(magic);
+            if (! Arrays.equals(magic, MAGIC)) throw new IOException(file.getName() + " is not a binary storage file");
+            byte version = in.get();
+            if (version != VERSION) throw new IOException("Unknown version of binary storage file: " + version);
+            journalGeneration = readVarint(in);
+            globalsPosition = in.position();
+
+            in.position((int) buffer.getLong(buffer.limit() - 8));
+            stringPositions = new int[readVarint(in)];
+            for (int i = 0; i < stringPositions.length; i++) {
+                stringPositions[i] = in.position();
+                int length = readVarint(in);
+                in.position(in.position() + length);
+            }
+            strings = new String[stringPositions.length];
+        }
+
+        @Override
+        public int getJournalGeneration() {
+            return journalGeneration;
+        }
+
+        @Override
+        public @NotNull File getFile() {
+            return file;
+        }
+
+        @Override
+        public boolean isOutdated() {
+            return file.length() != fileLength || file.lastModified() != fileLastModified;
+        }
+
+        /**
+         * @return the position of each global variable by name, to give to {@link #decode(int)}. Variables are not
+         * decoded.
+         */
+        @Override
+        public @NotNull LinkedHashMap<String, Integer> readGlobals() throws IOException {
+            ByteBuffer in = buffer.duplicate();
+            in.position(globalsPosition);
+            if (in.get() != ScriptValueType.DICTIONARY.asByte) throw new IOException("Corrupted binary storage file " + file.getName());
+            in.getInt();
+            int count = readVarint(in);
+            LinkedHashMap<String, Integer> globals = new LinkedHashMap<>((int) (count / 0.75f) + 1);
+            for (int i = 0; i < count; i++) {
+                if (in.get() != ScriptValueType.TEXT.asByte) throw new IOException("Corrupted binary storage file " + file.getName());
+                String name = getString(readVarint(in));
+                globals.put(name, in.position());
+                skipValue(in);
+            }
+            return globals;
+        }
+
+        /**
+         * @param position as given by {@link #readGlobals()}
+         * @return a new {@link ScriptValue}, each call gives different lists and dictionaries.
+         */
+        @Override
+        public @NotNull ScriptValue<?> decode(int position) {
+            ByteBuffer in = buffer.duplicate();
+            in.position(position);
+            return readValue(in);
+        }
+
+        @Override
+        String getString(int index) {
+            String string = strings[index];
+            if (string == null) {
+                ByteBuffer in = buffer.duplicate();
+                in.position(stringPositions[index]);
+                byte[] bytes = new byte[readVarint(in)];
+                in.get(bytes);
+                string = new String(bytes, StandardCharsets.UTF_8);
+                strings[index] = string; // if two threads do this in the same time, they just both decode it
+            }
+            return string;
+        }
+    }
+
+    /**
+     * Decodes values, with texts given by {@link #getString(int)}
+     */
+    private static abstract class Decoder {
+        /** for error messages */
+        final String sourceName;
+
+        Decoder(String sourceName) {
+            this.sourceName = sourceName;
+        }
+
+        abstract String getString(int index);
+
+        @SuppressWarnings("unchecked")
+        ScriptValue<?> readValue(ByteBuffer in) {
+            byte type = in.get();
+            switch (type) {
+                case 0: // None
+                    return ScriptValue.NONE;
+                case 1: { // Integer
+                    int i = readVarint(in);
+                    return new ScriptValue<>((i >>> 1) ^ -(i & 1));
+                }
+                case 2: // Decimal
+                    return new ScriptValue<>(Double.longBitsToDouble(in.getLong()));
+                case 3: // Text
+                    return new ScriptValue<>(getString(readVarint(in)));
+                case 4: // Boolean
+                    return new ScriptValue<>(in.get() != 0);
+                case 5: { // List
+                    in.getInt();
+                    int count = readVarint(in);
+                    ScriptValueList<Object> list = new ScriptValueList<>();
+                    for (int i = 0; i < count; i++) {
+                        list.add((ScriptValue<Object>) readValue(in), null);
+                    }
+                    Storage.ignoreModifications(count); // we don't want it to save anything here
+                    return new ScriptValue<>(list);
+                }
+                case 6: { // Dictionary
+                    in.getInt();
+                    int count = readVarint(in);
+                    ScriptValueMap<Object, Object> map = new ScriptValueMap<>();
+                    for (int i = 0; i < count; i++) {
+                        ScriptValue<Object> key = (ScriptValue<Object>) readValue(in);
+                        map.put(key, (ScriptValue<Object>) readValue(in), null);
+                    }
+                    Storage.ignoreModifications(count);
+                    return new ScriptValue<>(map);
+                }
+                default:
+                    throw new IllegalStateException("Corrupted binary storage file " + sourceName + ": unknown type " + type);
+            }
+        }
+
+        void skipValue(ByteBuffer in) {
+            byte type = in.get();
+            switch (type) {
+                case 0:
+                    break;
+                case 1:
+                case 3:
+                    readVarint(in);
+                    break;
+                case 2:
+                    in.position(in.position() + 8);
+                    break;
+                case 4:
+                    in.get();
+                    break;
+                case 5:
+                case 6:
+                    int size = in.getInt();
+                    in.position(in.position() + size);
+                    break;
+                default:
+                    throw new IllegalStateException("Corrupted binary storage file " + sourceName + ": unknown type " + type);
+            }
+        }
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    /**
+     * A buffered output to a {@link FileChannel} that can come back to write the size of a collection once it is
+     * known, and that gives an index to each different text. Without channel, everything stays in the buffer, which
+     * grows as needed.
+     */
+    private static class Output {
+        private final @Nullable FileChannel channel;
+        private ByteBuffer buffer;
+        /**
+         * The position in the file of the beginning of the buffer
+         */
+        private long bufferPosition;
+        private final LinkedHashMap<String, Integer> strings = new LinkedHashMap<>();
+
+        Output(@NotNull FileChannel channel) throws IOException {
+            this.channel = channel;
+            buffer = ByteBuffer.allocate(1 << 16);
+            bufferPosition = channel.position();
+        }
+
+        Output() {
+            channel = null;
+            buffer = ByteBuffer.allocate(256);
+        }
+
+        long position() {
+            return bufferPosition + buffer.position();
+        }
+
+        int indexOf(String string) {
+            Integer index = strings.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.put(string, index);
+            }
+            return index;
+        }
+
+        void write(byte b) throws IOException {
+            if (! buffer.hasRemaining()) flush();
+            buffer.put(b);
+        }
+
+        void write(byte[] bytes) throws IOException {
+            for (int offset = 0; offset < bytes.length; ) {
+                if (! buffer.hasRemaining()) flush();
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        /**
+         * @return what was written, without channel
+         */
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+
+        void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                write((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((byte) value);
+        }
+
+        void writeLong(long value) throws IOException {
+            if (buffer.remaining() < 8) flush();
+            buffer.putLong(value);
+        }
+
+        /**
+         * @return the position of 4 bytes to write later with {@link #patchInt(long, int)}
+         */
+        long reserveInt() throws IOException {
+            if (buffer.remaining() < 4) flush();
+            long position = position();
+            buffer.putInt(0);
+            return position;
+        }
+
+        void patchInt(long position, int value) throws IOException {
+            if (position >= bufferPosition) {
+                buffer.putInt((int) (position - bufferPosition), value);
+            } else {
+                ByteBuffer bytes = ByteBuffer.allocate(4).putInt(0, value);
+                //noinspection ConstantConditions // the position is always in the buffer without channel
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes, position + bytes.position());
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            if (channel == null) {
+                ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffer.flip();
+                buffer = bigger.put(buffer);
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            bufferPosition = channel.position();
+            buffer.clear();
+        }
+    }
+}
@@ -18,12 +18,18 @@ package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
 
 import fr.bananasmoothii.scriptcommands.core.antlr4parsing.Parsing;
 import fr.bananasmoothii.scriptcommands.core.antlr4parsing.PermissionParser;
+import fr.bananasmoothii.scriptcommands.core.execution.PermissionCache;
+import fr.bananasmoothii.scriptcommands.core.execution.PermissionPredicate;
 import fr.bananasmoothii.scriptcommands.core.execution.ScriptsParsingException;
+import org.bukkit.permissions.Permissible;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @SuppressWarnings("unchecked")
@@ -33,6 +39,12 @@ public class Command extends ContainingScripts {
     public String description;
     public @NotNull String usage;
     public @Nullable PermissionParser.StartContext permissionParseTree;
+    public @Nullable PermissionPredicate permission;
+    public @NotNull List<String> aliases;
+    /**
+     * {@link #maxArgs} is {@link Integer#MAX_VALUE} if there is no maximum
+     */
+    public int minArgs, maxArgs;
 
     public Command(String name, HashMap<String, Object> hashMap) throws IOException, ScriptsParsingException {
         super(name, hashMap, "commands");
@@ -49,6 +61,43 @@ public class Command extends ContainingScripts {
         description = hashMap.containsKey("description") ? (String) hashMap.get("description") : "Command from ScriptCommand";
         usage = hashMap.containsKey("usage") ? (String) hashMap.get("usage") : "/" + name;
         permissionParseTree = hashMap.containsKey("permission") ? Parsing.parsePermission(name, (String) hashMap.get("permission")) : null;
+        permission = permissionParseTree != null ? PermissionPredicate.compile(permissionParseTree) : null;
 
+        Config.missingThing = "commands." + name + ".aliases";
+        if (hashMap.containsKey("aliases")) {
+            assert hashMap.get("aliases") instanceof List : "aliases must be a list.";
+            aliases = new ArrayList<>();
+            for (Object alias : (List<Object>) hashMap.get("aliases")) {
+                aliases.add(alias.toString());
+            }
+        } else {
+            aliases = Collections.emptyList();
+        }
+
+        Config.missingThing = "commands." + name + ".args";
+        minArgs = 0;
+        maxArgs = Integer.MAX_VALUE;
+        if (hashMap.containsKey("args")) parseArgs(hashMap.get("args").toString().trim());
+    }
+
+    /**
+     * @param args like "3", "-10", "1-2" or "9-"
+     */
+    private void parseArgs(String args) {
+        int dash = args.indexOf('-');
+        if (dash == -1) {
+            minArgs = maxArgs = Integer.parseInt(args);
+        } else {
+            if (dash != 0) minArgs = Integer.parseInt(args.substring(0, dash).trim());
+            if (dash != args.length() - 1) maxArgs = Integer.parseInt(args.substring(dash + 1).trim());
+        }
+        assert minArgs >= 0 && minArgs <= maxArgs : "args must be like \"3\", \"-10\", \"1-2\" or \"9-\".";
+    }
+
+    /**
+     * @see PermissionCache
+     */
+    public boolean hasPermission(@NotNull Permissible permissible) {
+        return PermissionCache.test(permission, permissible);
     }
 }
@@ -0,0 +1,192 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.antlr4parsing.ScriptsParser;
+import fr.bananasmoothii.scriptcommands.core.execution.PermissionCache;
+import fr.bananasmoothii.scriptcommands.core.execution.PermissionPredicate;
+import org.bukkit.permissions.Permissible;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * A trie of every command name and alias, case-insensitive. It is built once when the config is loaded and never
+ * modified after, a reload just replaces the {@link #getCurrent() current} index, so it can be read from any thread
+ * without locking.
+ * <br/>
+ * Each name or alias leads to an {@link Entry} holding everything needed to run the command, so running a command
+ * only needs one lookup.
+ */
+public class CommandIndex {
+    private static volatile CommandIndex current = new CommandIndex();
+
+    private final Node root = new Node();
+    private int size;
+
+    private CommandIndex() {
+    }
+
+    /**
+     * If an alias is the same as the name of an other command, the name of the command wins. If two commands have the
+     * same alias, the first one wins.
+     */
+    public static @NotNull CommandIndex build(@NotNull Collection<Command> commands) {
+        CommandIndex index = new CommandIndex();
+        for (Command command : commands) {
+            index.add(command.name, command, false);
+        }
+        for (Command command : commands) {
+            for (String alias : command.aliases) {
+                index.add(alias, command, true);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of the last loaded config
+     */
+    public static @NotNull CommandIndex getCurrent() {
+        return current;
+    }
+
+    static void setCurrent(@NotNull CommandIndex index) {
+        current = Objects.requireNonNull(index);
+    }
+
+    private void add(String label, Command command, boolean alias) {
+        String key = fold(label);
+        Node node = root;
+        for (int i = 0; i < key.length(); i++) {
+            node = node.children.computeIfAbsent(key.charAt(i), c -> new Node());
+        }
+        if (node.entry != null) {
+            CustomLogger.warning((alias ? "Alias " : "Command ") + label + " of command " + command.name
+                    + " is ignored because it is already used by command " + node.entry.command.name);
+            return;
+        }
+        node.entry = new Entry(label, command, alias);
+        size++;
+    }
+
+    private static String fold(String label) {
+        return label.toLowerCase(Locale.ROOT);
+    }
+
+    private @Nullable Node getNode(String key) {
+        Node node = root;
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = node.children.get(key.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * @param label a command name or alias, without the slash. Case doesn't matter.
+     */
+    public @Nullable Entry get(@NotNull String label) {
+        Node node = getNode(fold(label));
+        return node == null ? null : node.entry;
+    }
+
+    /**
+     * @return every entry whose name or alias starts with <strong>prefix</strong> (case doesn't matter), in
+     * alphabetical order.
+     */
+    public @NotNull List<Entry> getStartingWith(@NotNull String prefix) {
+        Node node = getNode(fold(prefix));
+        if (node == null) return Collections.emptyList();
+        List<Entry> entries = new ArrayList<>();
+        node.collect(entries);
+        return entries;
+    }
+
+    /**
+     * For tab completion: every name or alias starting with <strong>prefix</strong> of a command
+     * <strong>permissible</strong> is allowed to use.
+     */
+    public @NotNull List<String> complete(@NotNull String prefix, @NotNull Permissible permissible) {
+        List<String> completions = new ArrayList<>();
+        for (Entry entry : getStartingWith(prefix)) {
+            if (entry.hasPermission(permissible)) completions.add(entry.label);
+        }
+        return completions;
+    }
+
+    /**
+     * @return the number of names and aliases
+     */
+    public int size() {
+        return size;
+    }
+
+    private static class Node {
+        private final TreeMap<Character, Node> children = new TreeMap<>();
+        private @Nullable Entry entry;
+
+        private void collect(List<Entry> entries) {
+            if (entry != null) entries.add(entry);
+            for (Node child : children.values()) {
+                child.collect(entries);
+            }
+        }
+    }
+
+    /**
+     * A command, found by its name or by one of its aliases
+     */
+    public static class Entry {
+        /**
+         * The name or alias, as it is written in the config
+         */
+        public final @NotNull String label;
+        public final @NotNull Command command;
+        public final boolean alias;
+        public final @NotNull ScriptsParser.StartContext parseTree;
+        public final @Nullable PermissionPredicate permission;
+        public final int minArgs, maxArgs;
+
+        private Entry(@NotNull String label, @NotNull Command command, boolean alias) {
+            this.label = label;
+            this.command = command;
+            this.alias = alias;
+            this.parseTree = command.parseTree;
+            this.permission = command.permission;
+            this.minArgs = command.minArgs;
+            this.maxArgs = command.maxArgs;
+        }
+
+        /**
+         * @see PermissionCache
+         */
+        public boolean hasPermission(@NotNull Permissible permissible) {
+            return PermissionCache.test(permission, permissible);
+        }
+
+        public boolean acceptsArgCount(int argCount) {
+            return argCount >= minArgs && argCount <= maxArgs;
+        }
+
+        @Override
+        public String toString() {
+            return alias ? label + " (alias of " + command.name + ")" : label;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
 
 import fr.bananasmoothii.scriptcommands.core.CustomLogger;
 import fr.bananasmoothii.scriptcommands.core.ProgressPrinter;
+import fr.bananasmoothii.scriptcommands.core.execution.PermissionCache;
 import fr.bananasmoothii.scriptcommands.core.execution.ScriptsParsingException;
 
 import org.jetbrains.annotations.NotNull;
@@ -35,6 +36,15 @@ public abstract class Config {
     public static UpdateMethod update;
     public static Level logLevel;
     public static boolean logThroughInfo, directScripts;
+    /**
+     * In milliseconds
+     */
+    public static double mainThreadBudget;
+    /**
+     * In seconds
+     */
+    public static double permissionCacheTime;
+    public static int eventThreads, scheduleThreads;
     public static HashMap<String, String> messages;
     public static HashMap<String, Object> rawData;
     public static ArrayList<Command> commands;
@@ -92,6 +102,27 @@ public abstract class Config {
             missingThing = "direct-scripts";
             logThroughInfo = (Boolean) rawData.get("direct-scripts");
 
+            rawData.putIfAbsent("main-thread-budget", 5);
+            missingThing = "main-thread-budget";
+            assert rawData.get("main-thread-budget") instanceof Number : "main-thread-budget must be a number.";
+            mainThreadBudget = ((Number) rawData.get("main-thread-budget")).doubleValue();
+
+            rawData.putIfAbsent("event-threads", 2);
+            missingThing = "event-threads";
+            assert rawData.get("event-threads") instanceof Integer && (int) rawData.get("event-threads") > 0 : "event-threads must be an integer greater than 0.";
+            eventThreads = (int) rawData.get("event-threads");
+
+            rawData.putIfAbsent("schedule-threads", 2);
+            missingThing = "schedule-threads";
+            assert rawData.get("schedule-threads") instanceof Integer && (int) rawData.get("schedule-threads") > 0 : "schedule-threads must be an integer greater than 0.";
+            scheduleThreads = (int) rawData.get("schedule-threads");
+
+            rawData.putIfAbsent("permission-cache-time", 5);
+            missingThing = "permission-cache-time";
+            assert rawData.get("permission-cache-time") instanceof Number : "permission-cache-time must be a number.";
+            permissionCacheTime = ((Number) rawData.get("permission-cache-time")).doubleValue();
+            PermissionCache.invalidateAll();
+
             missingThing = "storage";
             assert rawData.containsKey("storage");
             Storage.loadFromHashMap((HashMap<String, ?>) rawData.get("storage"));
@@ -128,6 +159,7 @@ public abstract class Config {
                     CustomLogger.severe("Errors where encountered while parsing command " + entry.getKey() + ". See above for more info.");
                 progressPrinter.setProgressPercent((double) ++actualScriptNumber / totalScriptNumber);
             }
+            CommandIndex.setCurrent(CommandIndex.build(commands));
             functions = new ArrayList<>();
             for (Map.Entry<String, HashMap<String, Object>> entry : ((HashMap<String, HashMap<String, Object>>) rawData.get("functions")).entrySet()) {
                 CustomLogger.config("Loading function " + entry.getKey());
@@ -179,6 +211,7 @@ public abstract class Config {
     /**
      * Used to get the corresponding {@link ContainingScripts}. <br>
      * For getting a schedule, <strong>name</strong> will be {@code "Schedule N° " + (i + 1)}, as schedules start at 1.
+     * Commands can also be found by their aliases, see {@link CommandIndex}.
      * @return {@code null} if it doesn't exist
      * @throws IllegalArgumentException if <strong>type</strong> is not "commands", "functions", "schedules" or "events".
      */
@@ -186,10 +219,8 @@ public abstract class Config {
     public static ContainingScripts getCorrespondingContainingScripts(ContainingScripts.Type type, String name) {
         switch (type) {
             case COMMAND:
-                for (Command command : commands) {
-                    if (command.name.equals(name)) return command;
-                }
-                return null;
+                CommandIndex.Entry entry = CommandIndex.getCurrent().get(name);
+                return entry == null ? null : entry.command;
             case FUNCTION:
                 for (Function function : functions) {
                     if (function.name.equals(name)) return function;
@@ -22,9 +22,15 @@ import java.io.IOException;
 import java.util.HashMap;
 
 public class Event extends ContainingScripts {
+    /**
+     * Whether the script has to run on the thread that fired the event, so it can cancel or modify the event.
+     * Otherwise it runs later in an other thread, and only gets a copy of the event information.
+     */
+    public boolean sync;
 
-    // same code as Function
     public Event(String name, HashMap<String, Object> hashMap) throws IOException, ScriptsParsingException {
         super(name, hashMap, "events");
+        Config.missingThing = "events." + name + ".sync";
+        sync = hashMap.containsKey("sync") && (boolean) hashMap.get("sync");
     }
 }
@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Where the modifications of the global variables are appended, instead of saving all of them each time one is
+ * modified. They are called by the global {@link StringScriptValueMap} in the same order as the modifications.
+ * @see Storage#getJournal()
+ */
+public interface Journal {
+
+    void put(@NotNull String name, @NotNull ScriptValue<?> value);
+
+    void remove(@NotNull String name);
+
+    void clear();
+
+    /**
+     * For modifications that can't be appended (like modifications of lists or dictionaries inside global variables):
+     * makes the background thread append again the variables holding lists or dictionaries that changed, at its next
+     * sync.
+     */
+    void collectionsModified();
+
+    /**
+     * Writes what is buffered, without syncing it to the disk.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Stops the background thread and syncs what was appended to the disk.
+     */
+    void close();
+}
@@ -0,0 +1,360 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import com.google.gson.JsonParseException;
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * An append-only file of the modifications of global variables, for not rewriting the whole json storage file each
+ * time a global variable is modified. Each line is a json object: {@code {"put":"name","value":...}},
+ * {@code {"remove":"name"}} or {@code {"clear":true}}.
+ * <br/>
+ * Lines are written directly to the file, but the file is only synced to the disk every {@code syncInterval}
+ * milliseconds, by a background thread. When the journal gets bigger than {@code maxSize} bytes, the same thread
+ * {@link #compact() compacts} it: it writes the whole storage file and deletes the journal.
+ * <br/>
+ * Modifications of lists and dictionaries inside global variables can't be written as lines, so when there are some,
+ * the same thread {@link #saveCollections() appends again} the variables holding them, as {@code put} lines.
+ * <br/>
+ * Journal files are named {@code <storage file>.journal.<generation>}. A compaction starts a new generation before
+ * saving, and the storage file remembers that generation, so the modifications that happen while saving are kept in
+ * the new journal. When loading, the journals of that generation and after are {@link #replay replayed} over the
+ * storage file.
+ */
+public class JsonJournal implements Journal {
+    private final File storageFile;
+    private final long maxSize;
+    private final ScheduledExecutorService executor;
+    private final Object compactionLock = new Object();
+
+    // these are guarded by "this"
+    private int generation;
+    private @NotNull File journalFile;
+    private @NotNull FileOutputStream outputStream;
+    private @NotNull Writer writer;
+    private long size;
+    private boolean modifiedSinceSync, compactionRequested, closed;
+    /** a hash of the last {@code put} line of the variables appended by {@link #saveCollections()} */
+    private final Map<String, byte[]> collectionHashes = new HashMap<>();
+    private volatile boolean collectionsModified;
+
+    /**
+     * @param storageFile the json storage file, journal files will be next to it.
+     * @param syncInterval in milliseconds
+     * @param maxSize in bytes, when the journal is bigger, a compaction is made
+     */
+    public JsonJournal(@NotNull File storageFile, long syncInterval, long maxSize) throws IOException {
+        this.storageFile = storageFile;
+        this.maxSize = maxSize;
+        List<File> existingJournals = getJournalFiles(storageFile);
+        generation = existingJournals.isEmpty() ? 0 : getGeneration(existingJournals.get(existingJournals.size() - 1)) + 1;
+        journalFile = getJournalFile(generation);
+        outputStream = new FileOutputStream(journalFile, true);
+        writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        size = journalFile.length();
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ScriptCommands-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::syncAndCompactIfNeeded, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        if (! existingJournals.isEmpty()) requestSnapshot(); // they were replayed, now they can be merged
+    }
+
+    @Override
+    public void put(@NotNull String name, @NotNull ScriptValue<?> value) {
+        String line = putLine(name, value);
+        synchronized (this) {
+            append(line);
+            collectionHashes.remove(name);
+        }
+    }
+
+    private static String putLine(String name, ScriptValue<?> value) {
+        Map<String, Object> line = new LinkedHashMap<>(2);
+        line.put("put", name);
+        line.put("value", value.toNormalClass(true));
+        return Storage.gson.toJson(line);
+    }
+
+    @Override
+    public synchronized void remove(@NotNull String name) {
+        append(Storage.gson.toJson(Collections.singletonMap("remove", name)));
+        collectionHashes.remove(name);
+    }
+
+    @Override
+    public synchronized void clear() {
+        append("{\"clear\":true}");
+        collectionHashes.clear();
+    }
+
+    private synchronized void append(String line) {
+        if (closed) throw new IllegalStateException("the journal is closed");
+        try {
+            writer.write(line);
+            writer.write('\n');
+            size += line.length() + 1;
+            modifiedSinceSync = true;
+        } catch (IOException e) {
+            CustomLogger.severe("Could not write in the journal " + journalFile.getName() + ", saving everything instead: " + e);
+            compactionRequested = true;
+        }
+    }
+
+    /**
+     * The modifications of lists and dictionaries inside global variables can't be written as lines, so this makes the
+     * background thread {@link #saveCollections() append again} the variables holding them at its next sync. Unlike
+     * {@link #requestSnapshot()}, it doesn't write the whole storage file.
+     */
+    @Override
+    public void collectionsModified() {
+        collectionsModified = true;
+    }
+
+    /**
+     * Makes the background thread save the whole storage file soon, see {@link #compact()}.
+     */
+    public synchronized void requestSnapshot() {
+        if (closed || compactionRequested) return;
+        compactionRequested = true;
+        executor.execute(this::syncAndCompactIfNeeded);
+    }
+
+    /**
+     * Appends again the global variables that are in memory and hold a list or a dictionary, if they changed since
+     * they were last appended by this.
+     * @return the number of variables appended
+     */
+    public int saveCollections() {
+        collectionsModified = false;
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // every JVM has it
+        }
+        int[] appended = {0};
+        StringScriptValueMap.getTheGlobal().forEachLoadedCollection((name, value) -> {
+            String line = putLine(name, value);
+            byte[] hash = sha256.digest(line.getBytes(StandardCharsets.UTF_8));
+            synchronized (this) {
+                if (closed || Arrays.equals(collectionHashes.get(name), hash)) return;
+                append(line);
+                collectionHashes.put(name, hash);
+            }
+            appended[0]++;
+        });
+        return appended[0];
+    }
+
+    /**
+     * Writes what is buffered to the file, without syncing it to the disk. Needed before {@link #replay replaying}
+     * the journal.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    private void syncAndCompactIfNeeded() {
+        boolean compact;
+        try {
+            if (collectionsModified) saveCollections();
+            synchronized (this) {
+                if (closed) return;
+                if (modifiedSinceSync) {
+                    writer.flush();
+                    outputStream.getFD().sync();
+                    modifiedSinceSync = false;
+                }
+                compact = compactionRequested || size > maxSize;
+            }
+            if (compact) compact();
+        } catch (IOException | RuntimeException e) {
+            CustomLogger.severe("Error with the journal " + journalFile.getName() + ": " + e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the whole storage file and deletes the journals it contains. This is what {@link Storage#jsonSave()}
+     * does when there is a journal.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            int snapshotGeneration;
+            synchronized (this) {
+                if (closed) return;
+                compactionRequested = false;
+                collectionHashes.clear(); // the snapshot may be newer than the last lines
+                try {
+                    startNewGeneration();
+                } catch (IOException e) {
+                    CustomLogger.severe("Could not create a new journal, saving without it: " + e);
+                }
+                snapshotGeneration = generation;
+            }
+            // everything that is in the old journals is already in the global variables, so it will be saved
+            if (Storage.writeJsonSnapshot(snapshotGeneration)) {
+                for (File journal : getJournalFiles(storageFile)) {
+                    if (getGeneration(journal) < snapshotGeneration && ! journal.delete())
+                        CustomLogger.warning("Could not delete the old journal " + journal.getName());
+                }
+            }
+        }
+    }
+
+    private void startNewGeneration() throws IOException {
+        writer.flush();
+        outputStream.getFD().sync();
+        modifiedSinceSync = false;
+        writer.close();
+        generation++;
+        journalFile = getJournalFile(generation);
+        outputStream = new FileOutputStream(journalFile, true);
+        writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        size = 0;
+    }
+
+    /**
+     * Stops the background thread, appends the variables with lists or dictionaries that were modified and syncs the
+     * journal to the disk. It doesn't save the storage file.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (collectionsModified) saveCollections();
+        synchronized (this) {
+            closed = true;
+            try {
+                writer.flush();
+                outputStream.getFD().sync();
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static boolean hasJournals(@NotNull File storageFile) {
+        return ! getJournalFiles(storageFile).isEmpty();
+    }
+
+    /**
+     * After the whole storage file was written without journal, the journals are not needed anymore.
+     */
+    public static void deleteJournals(@NotNull File storageFile) {
+        for (File journal : getJournalFiles(storageFile)) {
+            if (! journal.delete())
+                CustomLogger.warning("Could not delete the journal " + journal.getName());
+        }
+    }
+
+    /**
+     * Reads every journal next to <strong>storageFile</strong> from generation <strong>fromGeneration</strong>, oldest
+     * first, and gives each modification to <strong>put</strong>, <strong>remove</strong> or <strong>clear</strong>.
+     * If a line is incomplete (because the server crashed while writing it for example), the rest of that journal is
+     * ignored.
+     * @return the number of modifications that were replayed
+     */
+    public static int replay(@NotNull File storageFile, int fromGeneration, @NotNull BiConsumer<String, ScriptValue<?>> put,
+                             @NotNull Consumer<String> remove, @NotNull Runnable clear) {
+        int modifications = 0;
+        for (File journal : getJournalFiles(storageFile)) {
+            if (getGeneration(journal) < fromGeneration) continue;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.isEmpty()) continue;
+                    Map<String, Object> modification;
+                    try {
+                        modification = Storage.gson.fromJson(line, Map.class);
+                    } catch (JsonParseException e) {
+                        CustomLogger.warning("Line " + lineNumber + " of " + journal.getName() + " is not valid, ignoring the rest of that file: " + e.getMessage());
+                        break;
+                    }
+                    if (modification.containsKey("put")) {
+                        put.accept((String) modification.get("put"), ScriptValue.toScriptValue(modification.get("value"), true));
+                    } else if (modification.containsKey("remove")) {
+                        remove.accept((String) modification.get("remove"));
+                    } else {
+                        clear.run();
+                    }
+                    modifications++;
+                }
+            } catch (IOException e) {
+                CustomLogger.severe("Could not read the journal " + journal.getName() + ": " + e);
+            }
+        }
+        return modifications;
+    }
+
+    private File getJournalFile(int generation) {
+        return new File(storageFile.getPath() + ".journal." + generation);
+    }
+
+    /**
+     * @return the journal files, sorted by generation
+     */
+    private static List<File> getJournalFiles(File storageFile) {
+        File directory = storageFile.getAbsoluteFile().getParentFile();
+        String prefix = storageFile.getName() + ".journal.";
+        File[] files = directory == null ? null : directory.listFiles((dir, name) -> name.startsWith(prefix) && getGeneration(name, prefix) != -1);
+        if (files == null) return Collections.emptyList();
+        List<File> journals = new ArrayList<>(Arrays.asList(files));
+        journals.sort(Comparator.comparingInt(JsonJournal::getGeneration));
+        return journals;
+    }
+
+    private static int getGeneration(File journal) {
+        String name = journal.getName();
+        return getGeneration(name, name.substring(0, name.lastIndexOf('.') + 1));
+    }
+
+    private static int getGeneration(String name, String prefix) {
+        try {
+            return Integer.parseInt(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import com.google.gson.stream.JsonReader;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+
+/**
+ * Reads a json storage file like a {@link BinarySnapshot.Reader}: when it is opened, the file is only scanned to
+ * find where the value of each global variable starts, without making any object for them, and a variable is only
+ * parsed by {@link #decode(int)}, from its position. So loading the global variables doesn't depend on their size,
+ * only the variables that are used are in memory.
+ */
+public class JsonSnapshotReader implements SnapshotReader {
+    private static final JsonDeserializerFix ADAPTER = new JsonDeserializerFix();
+
+    private final File file;
+    private final long fileLength, fileLastModified;
+    private final MappedByteBuffer buffer;
+    private int journalGeneration;
+    private @Nullable LinkedHashMap<String, Integer> globals;
+
+    public JsonSnapshotReader(@NotNull File file) throws IOException {
+        this.file = file;
+        fileLastModified = file.lastModified();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            fileLength = channel.size();
+            if (fileLength > Integer.MAX_VALUE)
+                throw new IOException(file.getName() + " is too big to be read (more than 2GB)");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength); // stays valid after closing the channel
+        }
+        try {
+            readIndex(buffer.duplicate());
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IOException("Corrupted storage file " + file.getName(), e);
+        }
+    }
+
+    /**
+     * Reads {@code {"global_vars": {...}, "journal_generation": ...}}, the other keys are skipped. An empty file is
+     * read as {@code {}}.
+     */
+    private void readIndex(ByteBuffer in) throws IOException {
+        skipWhitespace(in);
+        if (! in.hasRemaining()) return;
+        expect(in, '{');
+        if (isEmpty(in, '}')) return;
+        do {
+            String name = readString(in);
+            skipWhitespace(in);
+            expect(in, ':');
+            skipWhitespace(in);
+            if (name.equals("global_vars") && in.get(in.position()) == '{') {
+                globals = readObjectIndex(in);
+            } else if (name.equals("journal_generation")) {
+                int start = in.position();
+                skipValue(in);
+                byte[] number = new byte[in.position() - start];
+                in.position(start);
+                in.get(number);
+                journalGeneration = (int) Double.parseDouble(new String(number, StandardCharsets.US_ASCII));
+            } else {
+                skipValue(in);
+            }
+        } while (next(in, '}'));
+    }
+
+    /**
+     * @return the position of the value of each key of the object starting at the position of <strong>in</strong>
+     */
+    private LinkedHashMap<String, Integer> readObjectIndex(ByteBuffer in) throws IOException {
+        LinkedHashMap<String, Integer> index = new LinkedHashMap<>();
+        expect(in, '{');
+        if (isEmpty(in, '}')) return index;
+        do {
+            String name = readString(in);
+            skipWhitespace(in);
+            expect(in, ':');
+            skipWhitespace(in);
+            index.put(name, in.position());
+            skipValue(in);
+        } while (next(in, '}'));
+        return index;
+    }
+
+    /**
+     * @return false if the file has no {@code global_vars}, like an empty file
+     */
+    public boolean hasGlobals() {
+        return globals != null;
+    }
+
+    @Override
+    public @NotNull File getFile() {
+        return file;
+    }
+
+    @Override
+    public int getJournalGeneration() {
+        return journalGeneration;
+    }
+
+    @Override
+    public @NotNull LinkedHashMap<String, Integer> readGlobals() {
+        return globals == null ? new LinkedHashMap<>() : new LinkedHashMap<>(globals);
+    }
+
+    @Override
+    public @NotNull ScriptValue<?> decode(int position) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(position);
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteBufferInputStream(in), StandardCharsets.UTF_8))) {
+            reader.setLenient(true); // what follows the value isn't read
+            return ScriptValue.toScriptValue(ADAPTER.read(reader), true);
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Corrupted storage file " + file.getName() + ": " + e, e);
+        }
+    }
+
+    @Override
+    public boolean isOutdated() {
+        return file.length() != fileLength || file.lastModified() != fileLastModified;
+    }
+
+    private void expect(ByteBuffer in, char expected) throws IOException {
+        byte b = in.get();
+        if (b != expected)
+            throw new IOException("Corrupted storage file " + file.getName() + ": expected '" + expected + "' at " + (in.position() - 1) + " but got '" + (char) b + '\'');
+    }
+
+    /**
+     * After the start of an object or an array, skips the end if it is empty
+     */
+    private static boolean isEmpty(ByteBuffer in, char end) {
+        skipWhitespace(in);
+        if (in.get(in.position()) != end) return false;
+        in.get();
+        return true;
+    }
+
+    /**
+     * After a value in an object or an array, skips the comma, or the end
+     * @return true if there is an other value
+     */
+    private boolean next(ByteBuffer in, char end) throws IOException {
+        skipWhitespace(in);
+        byte b = in.get();
+        if (b == ',') {
+            skipWhitespace(in);
+            return true;
+        }
+        if (b == end) return false;
+        throw new IOException("Corrupted storage file " + file.getName() + ": expected ',' or '" + end + "' at " + (in.position() - 1) + " but got '" + (char) b + '\'');
+    }
+
+    private String readString(ByteBuffer in) throws IOException {
+        int start = in.position();
+        expect(in, '"');
+        boolean escaped = skipStringEnd(in);
+        byte[] bytes = new byte[in.position() - start];
+        in.position(start);
+        in.get(bytes);
+        String string = new String(bytes, StandardCharsets.UTF_8);
+        if (! escaped) return string.substring(1, string.length() - 1);
+        try (JsonReader reader = new JsonReader(new StringReader(string))) {
+            reader.setLenient(true);
+            return reader.nextString();
+        }
+    }
+
+    /**
+     * Skips the rest of a string, after its opening quote
+     * @return whether it has escaped characters
+     */
+    private static boolean skipStringEnd(ByteBuffer in) {
+        boolean escaped = false;
+        while (true) {
+            byte b = in.get();
+            if (b == '"') return escaped;
+            if (b == '\\') {
+                escaped = true;
+                in.get(); // the escaped character can't end the string, \\uXXXX are only hexadecimal digits
+            }
+        }
+    }
+
+    private static void skipValue(ByteBuffer in) {
+        byte b = in.get(in.position());
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                b = in.get();
+                if (b == '"') skipStringEnd(in);
+                else if (b == '{' || b == '[') depth++;
+                else if (b == '}' || b == ']') depth--;
+            } while (depth != 0);
+        } else if (b == '"') {
+            in.get();
+            skipStringEnd(in);
+        } else { // numbers, true, false and null
+            while (in.hasRemaining()) {
+                b = in.get(in.position());
+                if (b == ',' || b == '}' || b == ']' || isWhitespace(b)) return;
+                in.get();
+            }
+        }
+    }
+
+    private static void skipWhitespace(ByteBuffer in) {
+        while (in.hasRemaining() && isWhitespace(in.get(in.position()))) {
+            in.get();
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (! buffer.hasRemaining()) return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+}
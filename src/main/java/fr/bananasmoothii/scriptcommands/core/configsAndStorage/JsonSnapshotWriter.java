@@ -0,0 +1,268 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import com.google.gson.stream.JsonWriter;
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.execution.RunStatistics;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Writes the json (or {@link BinarySnapshot binary}) storage file in its own thread, so the thread that wanted to
+ * save doesn't wait for the disk.
+ * <br/>
+ * The global variables are written directly to the file with a {@link JsonWriter}, without converting them to
+ * {@link ScriptValue#toNormalClass(boolean) normal classes} first. Each collection is {@code snapshot()}ed at once
+ * before being written, so it is written as it was at one moment even if scripts modify it in the same time.
+ * <br/>
+ * Everything is written in a temporary file that replaces the storage file only once it is completely written and
+ * synced to the disk, so a crash while saving leaves the previous file intact.
+ */
+public class JsonSnapshotWriter {
+    private final File file;
+    private final ExecutorService executor;
+    private volatile @Nullable Thread writerThread;
+    private final RunStatistics saveStatistics = new RunStatistics();
+
+    /**
+     * The save that is waiting to start, guarded by "this"
+     */
+    private @Nullable PendingSave pendingSave;
+
+    public JsonSnapshotWriter(@NotNull File file) {
+        this.file = file;
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "ScriptCommands-json-writer");
+            thread.setDaemon(true);
+            writerThread = thread;
+            return thread;
+        });
+    }
+
+    /**
+     * Saves the global variables later, in the writer thread. If a save is already waiting to start, no other save
+     * is made as that one will see the current global variables too.
+     * @param journalGeneration see {@link Storage#writeJsonSnapshot(int)}
+     * @return whether the file was written, once it is done
+     */
+    public synchronized @NotNull Future<Boolean> save(int journalGeneration) {
+        if (pendingSave != null) {
+            pendingSave.journalGeneration = Math.max(pendingSave.journalGeneration, journalGeneration);
+            return pendingSave.result;
+        }
+        PendingSave save = new PendingSave(journalGeneration);
+        pendingSave = save;
+        try {
+            executor.execute(() -> run(save));
+        } catch (RejectedExecutionException e) {
+            pendingSave = null;
+            throw new IllegalStateException("the json writer is closed", e);
+        }
+        return save.result;
+    }
+
+    /**
+     * Same as {@link #save(int)}, but waits until the file is written.
+     * @return whether the file was written
+     */
+    public boolean saveAndWait(int journalGeneration) {
+        if (Thread.currentThread() == writerThread) return write(file, journalGeneration);
+        try {
+            return save(journalGeneration).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void run(PendingSave save) {
+        synchronized (this) {
+            if (pendingSave == save) pendingSave = null; // the following saves will have to wait for an other one
+        }
+        long start = System.nanoTime();
+        boolean written = false;
+        try {
+            written = write(file, save.journalGeneration);
+        } finally { // or saveAndWait() would wait forever
+            saveStatistics.record(System.nanoTime() - start);
+            save.result.complete(written);
+        }
+    }
+
+    /**
+     * Waits for the saves that were asked before, and stops the writer thread.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return how many saves were made and how long they took
+     */
+    public @NotNull RunStatistics getSaveStatistics() {
+        return saveStatistics;
+    }
+
+    /**
+     * Writes the global variables to <strong>file</strong> in the current thread, through a temporary file. It is
+     * written in binary if {@link Storage#isBinaryFormat()}.
+     * @param journalGeneration if greater than 0, it is written as {@code journal_generation}
+     * @return whether the file was written. If not, the previous file is left as it was.
+     */
+    public static boolean write(@NotNull File file, int journalGeneration) {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        StringScriptValueMap<Object> globals = Context.globalVariables;
+        List<Map.Entry<String, ScriptValue<Object>>> entries;
+        if (globals != null) {
+            entries = globals.snapshot();
+        } else {
+            entries = Collections.emptyList();
+            CustomLogger.warning("Could not save global variables with json because BaseUsableFunction didn't got initialized with a json Storage. " +
+                    "This is probably because no script was run.");
+        }
+        try (FileOutputStream outputStream = new FileOutputStream(temporaryFile)) {
+            if (Storage.isBinaryFormat()) BinarySnapshot.write(outputStream.getChannel(), entries, journalGeneration);
+            else writeJson(outputStream, entries, journalGeneration);
+            outputStream.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            CustomLogger.severe("Could not save " + file.getName() + ", the previous file is kept: " + e);
+            e.printStackTrace();
+            //noinspection ResultOfMethodCallIgnored
+            temporaryFile.delete();
+            return false;
+        }
+        try {
+            try {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            CustomLogger.severe("Could not replace " + file.getName() + " by the new save: " + e);
+            return false;
+        }
+        syncDirectory(file);
+        return true;
+    }
+
+    /**
+     * Writes <strong>globals</strong> in json to <strong>outputStream</strong>, without closing it.
+     * @param journalGeneration if greater than 0, it is written as {@code journal_generation}
+     */
+    public static void writeJson(@NotNull OutputStream outputStream, @NotNull List<? extends Map.Entry<String, ? extends ScriptValue<?>>> globals,
+                                 int journalGeneration) throws IOException {
+        JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), 1 << 16));
+        out.beginObject();
+        out.name("global_vars");
+        out.beginObject();
+        for (Map.Entry<String, ? extends ScriptValue<?>> entry : globals) {
+            out.name(entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+        out.endObject();
+        if (journalGeneration > 0) out.name("journal_generation").value(journalGeneration);
+        out.endObject();
+        out.flush();
+    }
+
+    /**
+     * So that the rename itself is on the disk. This is not possible on every system, in that case nothing is done.
+     */
+    private static void syncDirectory(File file) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory == null) return;
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes the same thing as {@link ScriptValue#toNormalClass(boolean) toNormalClass(true)} would give to Gson.
+     */
+    @SuppressWarnings("unchecked")
+    private static void writeValue(JsonWriter out, ScriptValue<?> value) throws IOException {
+        Object v = value.v;
+        if (value.is(ScriptValue.ScriptValueType.NONE)) {
+            out.nullValue();
+        } else if (v instanceof ScriptValueList) {
+            out.beginArray();
+            for (ScriptValue<?> element : ((ScriptValueList<Object>) v).snapshot()) {
+                writeValue(out, element);
+            }
+            out.endArray();
+        } else if (v instanceof ScriptValueMap) {
+            out.beginObject();
+            for (Map.Entry<ScriptValue<Object>, ScriptValue<Object>> entry : ((ScriptValueMap<Object, Object>) v).snapshot()) {
+                out.name(toJsonKey(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+            out.endObject();
+        } else if (v instanceof ScriptValueCollection) {
+            Storage.gson.toJson(value.toNormalClass(true), Object.class, out);
+        } else if (v instanceof Number) {
+            out.value((Number) v);
+        } else if (v instanceof Boolean) {
+            out.value((boolean) (Boolean) v);
+        } else {
+            out.value(v.toString());
+        }
+    }
+
+    /**
+     * @see ScriptValueMap#toNormalClasses(boolean)
+     */
+    private static String toJsonKey(ScriptValue<?> key) {
+        Object normalKey = key.toNormalClass(true);
+        if (normalKey instanceof List || normalKey instanceof Map) return '_' + Storage.gson.toJson(normalKey);
+        if (normalKey instanceof String) return '-' + (String) normalKey;
+        if (normalKey != null) return '/' + normalKey.toString();
+        return "!";
+    }
+
+    private static class PendingSave {
+        volatile int journalGeneration;
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        PendingSave(int journalGeneration) {
+            this.journalGeneration = journalGeneration;
+        }
+    }
+}
@@ -0,0 +1,687 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The {@code log} storage method: the global variables are kept in a directory of segment files, where each
+ * modification of a global variable is appended as a record, so modifying a variable only writes that variable, at the
+ * end of the current segment.
+ * <br/>
+ * The current segment is mapped in memory with {@code segment-size} bytes, records are written in the mapping and it is
+ * synced to the disk every {@code syncInterval} milliseconds by a background thread. A record is:
+ * <ul>
+ *     <li>the CRC32 of the rest of the record, on 4 bytes</li>
+ *     <li>the size of the rest of the record after these 4 bytes, on 4 bytes</li>
+ *     <li>its type: {@link #PUT}, {@link #REMOVE} or {@link #CLEAR}</li>
+ *     <li>the name of the variable (not for {@link #CLEAR}): its size on 2 bytes and its UTF-8 bytes</li>
+ *     <li>with {@link #PUT}, the value, as {@link BinarySnapshot#encodeValue(ScriptValue)} writes it</li>
+ * </ul>
+ * An index in memory gives where the last record of each variable is. It is the {@link SnapshotReader} of the global
+ * {@link StringScriptValueMap}, so variables are only decoded when they are used. The positions it gives are slots of
+ * that index, they stay the same when records move. When loading, the segments are read in order and each one is read
+ * until its first record with a wrong CRC, as it was only partly written when the server stopped.
+ * <br/>
+ * When more than {@code compactionThreshold} percent of the segments are records that were replaced since, the
+ * background thread {@link #compact() compacts} them: it copies the last record of each variable in a new segment and
+ * deletes the older ones. Lists and dictionaries inside global variables can't be appended when they are modified, so
+ * when one is, the variables holding one are {@link #saveCollections() appended again} by the background thread.
+ * <br/>
+ * If a record can't be appended because a new segment can't be created, it is kept in memory with the ones that come
+ * after it, and the background thread tries to append them again at each sync. Until then, {@link #decode(int)} reads
+ * the variables from these records.
+ */
+public class LogStorage implements Journal, SnapshotReader {
+    public static final byte[] MAGIC = {'S', 'C', 'L', 'G'};
+    public static final byte VERSION = 1;
+    private static final int SEGMENT_HEADER = MAGIC.length + 1;
+    /** the CRC and the size */
+    private static final int RECORD_HEADER = 8;
+    private static final byte PUT = 1, REMOVE = 2, CLEAR = 3;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int compactionThreshold;
+    private final ScheduledExecutorService executor;
+    private final Object compactionLock = new Object();
+    private volatile boolean collectionsModified;
+
+    // these are guarded by "this"
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private @Nullable Segment current;
+    private final HashMap<String, Integer> slots = new HashMap<>();
+    private String[] names = new String[64];
+    /** by slot: the generation of the segment of the last record of that variable and its position, -1 if removed */
+    private long[] locations = new long[64];
+    private int[] recordSizes = new int[64];
+    private int slotCount;
+    /** the size of the records in {@link #locations}, and of all the records */
+    private long liveBytes, totalBytes;
+    private boolean modifiedSinceSync, closed;
+    /** the records that could not be appended yet, in order */
+    private final ArrayDeque<byte[]> unwritten = new ArrayDeque<>();
+
+    /**
+     * Reads the segments of <strong>directory</strong>, creating it if needed, and starts a new segment.
+     * @param syncInterval in milliseconds
+     * @param segmentSize in bytes
+     * @param compactionThreshold a percentage
+     */
+    public LogStorage(@NotNull File directory, long syncInterval, int segmentSize, int compactionThreshold) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        if (! directory.isDirectory() && ! directory.mkdirs())
+            throw new IOException("Could not create the directory " + directory.getPath());
+        long start = System.nanoTime();
+        int records = 0;
+        synchronized (this) {
+            for (File file : getSegmentFiles()) {
+                if (file.getName().endsWith(".tmp")) { // a compaction that was interrupted
+                    if (! file.delete()) CustomLogger.warning("Could not delete " + file.getName());
+                    continue;
+                }
+                Segment segment = Segment.open(file, getGeneration(file));
+                int read = read(segment);
+                if (read == -1) continue;
+                if (read == 0) {
+                    if (! file.delete()) CustomLogger.warning("Could not delete the empty segment " + file.getName());
+                    continue;
+                }
+                records += read;
+                segments.put(segment.generation, segment);
+            }
+            startNewSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1, 0);
+        }
+        CustomLogger.fine("Read " + records + " records of global variables from " + directory.getName() + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ScriptCommands-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::syncAndCompactIfNeeded, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the records of <strong>segment</strong> in the index, until the first one that is not complete.
+     * @return the number of records, -1 if it isn't a segment
+     */
+    private int read(Segment segment) {
+        ByteBuffer in = segment.buffer.duplicate();
+        if (in.remaining() < SEGMENT_HEADER) return 0; // stopped while creating it
+        byte[] magic = new byte[MAGIC.length];
+        in.get(magic);
+        if (! Arrays.equals(magic, MAGIC) || in.get() != VERSION) {
+            CustomLogger.warning(segment.file.getName() + " is not a segment of global variables, it is ignored");
+            return -1;
+        }
+        int records = 0;
+        CRC32 crc = new CRC32();
+        segment.end = in.position();
+        while (in.remaining() >= RECORD_HEADER) {
+            int position = in.position();
+            int expectedCrc = in.getInt();
+            int length = in.getInt();
+            if (expectedCrc == 0 && length == 0) break; // the end of what was written
+            if (length <= 0 || length > in.remaining()) {
+                warnCorrupted(segment, position);
+                break;
+            }
+            ByteBuffer checked = segment.buffer.duplicate();
+            checked.position(position + 4).limit(position + RECORD_HEADER + length);
+            crc.reset();
+            crc.update(checked);
+            if ((int) crc.getValue() != expectedCrc) {
+                warnCorrupted(segment, position);
+                break;
+            }
+            byte type = in.get();
+            String name = type == CLEAR ? null : readName(in);
+            apply(type, name, segment.generation, position, RECORD_HEADER + length);
+            segment.end = position + RECORD_HEADER + length;
+            in.position(segment.end);
+            records++;
+        }
+        return records;
+    }
+
+    private static void warnCorrupted(Segment segment, int position) {
+        CustomLogger.warning("The record at " + position + " in " + segment.file.getName() + " is incomplete or corrupted " +
+                "(the server probably stopped while writing it), it is ignored with the rest of that segment");
+    }
+
+    private static String readName(ByteBuffer in) {
+        byte[] name = new byte[in.getShort() & 0xFFFF];
+        in.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Updates the index with a record
+     * @param position the position of the record in the segment of that generation
+     */
+    private void apply(byte type, @Nullable String name, int generation, int position, int size) {
+        totalBytes += size;
+        switch (type) {
+            case PUT: {
+                Integer slot = slots.get(name);
+                if (slot == null) slot = newSlot(name);
+                else if (locations[slot] != -1) liveBytes -= recordSizes[slot];
+                locations[slot] = (long) generation << 32 | position;
+                recordSizes[slot] = size;
+                liveBytes += size;
+                break;
+            }
+            case REMOVE: {
+                Integer slot = slots.get(name);
+                if (slot != null && locations[slot] != -1) {
+                    liveBytes -= recordSizes[slot];
+                    locations[slot] = -1;
+                }
+                break;
+            }
+            case CLEAR:
+                Arrays.fill(locations, 0, slotCount, -1);
+                liveBytes = 0;
+                break;
+            default:
+                throw new IllegalStateException("Unknown type of record in " + directory.getName() + ": " + type);
+        }
+    }
+
+    private int newSlot(String name) {
+        if (slotCount == locations.length) {
+            names = Arrays.copyOf(names, slotCount * 2);
+            locations = Arrays.copyOf(locations, slotCount * 2);
+            recordSizes = Arrays.copyOf(recordSizes, slotCount * 2);
+        }
+        int slot = slotCount++;
+        names[slot] = name;
+        locations[slot] = -1;
+        slots.put(name, slot);
+        return slot;
+    }
+
+    @Override
+    public void put(@NotNull String name, @NotNull ScriptValue<?> value) {
+        append(record(PUT, name, BinarySnapshot.encodeValue(value)));
+    }
+
+    @Override
+    public void remove(@NotNull String name) {
+        append(record(REMOVE, name, null));
+    }
+
+    @Override
+    public void clear() {
+        append(record(CLEAR, null, null));
+    }
+
+    /**
+     * @param value null except for {@link #PUT}
+     */
+    private static byte[] record(byte type, @Nullable String name, @Nullable byte[] value) {
+        byte[] nameBytes = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + (nameBytes == null ? 0 : 2 + nameBytes.length) + (value == null ? 0 : value.length);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+        record.putInt(0).putInt(length).put(type);
+        if (nameBytes != null) record.putShort((short) nameBytes.length).put(nameBytes);
+        if (value != null) record.put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        return record.array();
+    }
+
+    private synchronized void append(byte[] record) {
+        if (closed) throw new IllegalStateException("the log storage is closed");
+        if (! unwritten.isEmpty()) { // it has to come after them
+            unwritten.add(record);
+            return;
+        }
+        try {
+            write(record);
+        } catch (IOException e) {
+            CustomLogger.severe("Could not start a new segment in " + directory.getName() + ", the modifications of " +
+                    "global variables are kept in memory until they can be written: " + e);
+            unwritten.add(record);
+        }
+    }
+
+    /**
+     * Appends the records that could not be appended before, in order, until one still can't be.
+     * @return whether they were all appended
+     */
+    private synchronized boolean writeUnwritten() {
+        try {
+            while (! unwritten.isEmpty()) {
+                write(unwritten.peek());
+                unwritten.poll();
+            }
+            return true;
+        } catch (IOException e) {
+            CustomLogger.severe("Could not start a new segment in " + directory.getName() + ", " + unwritten.size()
+                    + " modifications of global variables are still waiting to be written: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes <strong>record</strong> at the end of the current segment, or of a new one if it doesn't fit, and
+     * updates the index. Guarded by "this".
+     * @throws IOException if a new segment is needed and can't be created, nothing is written then
+     */
+    private void write(byte[] record) throws IOException {
+        //noinspection ConstantConditions // only null if the constructor failed
+        if (current.buffer.capacity() - current.end < record.length) startNewSegment(segments.lastKey() + 1, record.length);
+        ByteBuffer out = current.buffer.duplicate();
+        out.position(current.end);
+        out.put(record);
+        ByteBuffer in = ByteBuffer.wrap(record, RECORD_HEADER, record.length - RECORD_HEADER);
+        byte type = in.get();
+        apply(type, type == CLEAR ? null : readName(in), current.generation, current.end, record.length);
+        current.end += record.length;
+        modifiedSinceSync = true;
+    }
+
+    /**
+     * @param minCapacity the size of the record that has to fit in it
+     */
+    private void startNewSegment(int generation, int minCapacity) throws IOException {
+        if (current != null && modifiedSinceSync) current.buffer.force();
+        modifiedSinceSync = false;
+        Segment segment = Segment.create(getSegmentFile(generation), generation, Math.max(segmentSize, SEGMENT_HEADER + minCapacity));
+        segments.put(generation, segment);
+        current = segment;
+    }
+
+    /**
+     * The modifications of lists and dictionaries inside global variables can't be appended, so this makes the
+     * background thread {@link #saveCollections() append again} the variables holding them.
+     */
+    @Override
+    public void collectionsModified() {
+        collectionsModified = true;
+    }
+
+    /**
+     * Records are written directly in the mapped segment, so there is nothing to do.
+     */
+    @Override
+    public void flush() {
+    }
+
+    private void syncAndCompactIfNeeded() {
+        try {
+            if (collectionsModified) saveCollections();
+            boolean compact;
+            synchronized (this) {
+                if (closed) return;
+                boolean allWritten = writeUnwritten();
+                if (modifiedSinceSync) {
+                    //noinspection ConstantConditions
+                    current.buffer.force();
+                    modifiedSinceSync = false;
+                }
+                compact = allWritten && totalBytes >= segmentSize && (totalBytes - liveBytes) * 100 > totalBytes * compactionThreshold;
+            }
+            if (compact) compact();
+        } catch (RuntimeException e) {
+            CustomLogger.severe("Error with the log storage " + directory.getName() + ": " + e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Appends again the global variables that are in memory and hold a list or a dictionary, if they aren't the same
+     * as their last record anymore.
+     * @return the number of variables appended
+     */
+    public int saveCollections() {
+        collectionsModified = false;
+        int[] appended = {0};
+        StringScriptValueMap.getTheGlobal().forEachLoadedCollection((name, value) -> {
+            byte[] record = record(PUT, name, BinarySnapshot.encodeValue(value));
+            synchronized (this) {
+                if (closed || isLastRecord(name, record)) return;
+                append(record);
+            }
+            appended[0]++;
+        });
+        return appended[0];
+    }
+
+    private boolean isLastRecord(String name, byte[] record) {
+        if (! unwritten.isEmpty()) return false; // the last record may be one of them
+        Integer slot = slots.get(name);
+        if (slot == null || locations[slot] == -1 || recordSizes[slot] != record.length) return false;
+        ByteBuffer last = segments.get((int) (locations[slot] >>> 32)).buffer.duplicate();
+        last.position((int) locations[slot]).limit((int) locations[slot] + record.length);
+        return last.equals(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * Copies the last record of each variable in a new segment, starting with a {@link #CLEAR} record, and deletes the
+     * older segments. A new current segment is started before, so what is appended meanwhile comes after it.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            long start = System.nanoTime();
+            int generation;
+            List<Integer> copiedSlots = new ArrayList<>();
+            List<Long> copiedLocations = new ArrayList<>();
+            List<Integer> copiedSizes = new ArrayList<>();
+            Map<Integer, Segment> oldSegments;
+            synchronized (this) {
+                if (closed) return;
+                generation = segments.lastKey() + 1;
+                try {
+                    startNewSegment(generation + 1, 0);
+                } catch (IOException e) {
+                    CustomLogger.severe("Could not start a new segment in " + directory.getName() + " for compacting it: " + e);
+                    return;
+                }
+                oldSegments = new HashMap<>(segments.headMap(generation));
+                for (int slot = 0; slot < slotCount; slot++) {
+                    if (locations[slot] == -1) continue;
+                    copiedSlots.add(slot);
+                    copiedLocations.add(locations[slot]);
+                    copiedSizes.add(recordSizes[slot]);
+                }
+            }
+            File file = getSegmentFile(generation);
+            File temporaryFile = new File(file.getPath() + ".tmp");
+            int[] positions = new int[copiedSlots.size()];
+            try (FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer out = ByteBuffer.allocate(1 << 16);
+                out.put(MAGIC).put(VERSION).put(record(CLEAR, null, null));
+                long position = out.position();
+                for (int i = 0; i < positions.length; i++) {
+                    long location = copiedLocations.get(i);
+                    ByteBuffer record = oldSegments.get((int) (location >>> 32)).buffer.duplicate();
+                    record.position((int) location).limit((int) location + copiedSizes.get(i));
+                    if (position + record.remaining() > Integer.MAX_VALUE)
+                        throw new IOException("the global variables take more than 2GB");
+                    positions[i] = (int) position;
+                    position += record.remaining();
+                    while (record.hasRemaining()) {
+                        if (! out.hasRemaining()) write(channel, out);
+                        int limit = record.limit();
+                        record.limit(record.position() + Math.min(out.remaining(), record.remaining()));
+                        out.put(record);
+                        record.limit(limit);
+                    }
+                }
+                write(channel, out);
+                channel.force(true);
+            } catch (IOException | RuntimeException e) {
+                CustomLogger.severe("Could not compact " + directory.getName() + ", the old segments are kept: " + e);
+                //noinspection ResultOfMethodCallIgnored
+                temporaryFile.delete();
+                return;
+            }
+            Segment compacted;
+            try {
+                try {
+                    Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporaryFile.toPath(), file.toPath());
+                }
+                compacted = Segment.open(file, generation);
+                compacted.end = (int) file.length();
+            } catch (IOException e) {
+                CustomLogger.severe("Could not compact " + directory.getName() + ", the old segments are kept: " + e);
+                return;
+            }
+            long oldSize;
+            synchronized (this) {
+                for (int i = 0; i < positions.length; i++) {
+                    int slot = copiedSlots.get(i);
+                    // else it was modified meanwhile, its last record is in the current segment
+                    if (locations[slot] == copiedLocations.get(i)) locations[slot] = (long) generation << 32 | positions[i];
+                }
+                oldSize = totalBytes;
+                segments.keySet().removeAll(oldSegments.keySet());
+                segments.put(generation, compacted);
+                totalBytes = 0;
+                for (Segment segment : segments.values()) {
+                    totalBytes += segment.end - SEGMENT_HEADER;
+                }
+            }
+            for (Segment segment : oldSegments.values()) {
+                // still readable by the variables being decoded, as it stays mapped
+                if (! segment.file.delete()) CustomLogger.warning("Could not delete the old segment " + segment.file.getName());
+            }
+            CustomLogger.fine("Compacted " + directory.getName() + " from " + oldSize / 1024 + " KB to " + totalBytes / 1024
+                    + " KB in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Stops the background thread, appends again the variables holding lists or dictionaries if they were modified,
+     * and syncs the current segment to the disk.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (collectionsModified) saveCollections();
+        synchronized (this) {
+            if (! writeUnwritten()) {
+                CustomLogger.severe(unwritten.size() + " modifications of global variables could not be written in "
+                        + directory.getName() + ", they are lost");
+            }
+            closed = true;
+            //noinspection ConstantConditions
+            current.buffer.force();
+        }
+    }
+
+    /**
+     * @return the directory of the segments
+     */
+    @Override
+    public @NotNull File getFile() {
+        return directory;
+    }
+
+    /**
+     * @return {@link Integer#MAX_VALUE}, as there is no {@link JsonJournal} with this storage
+     */
+    @Override
+    public int getJournalGeneration() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the slot of each global variable by name, to give to {@link #decode(int)}
+     */
+    @Override
+    public synchronized @NotNull LinkedHashMap<String, Integer> readGlobals() {
+        LinkedHashMap<String, Integer> globals = new LinkedHashMap<>();
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (locations[slot] != -1) globals.put(names[slot], slot);
+        }
+        return globals;
+    }
+
+    /**
+     * @param slot as given by {@link #readGlobals()}
+     * @return the value of the last record of that variable, even if it could not be appended yet
+     */
+    @Override
+    public @NotNull ScriptValue<?> decode(int slot) {
+        Segment segment;
+        int position;
+        synchronized (this) {
+            if (! unwritten.isEmpty()) {
+                ByteBuffer record = lastUnwrittenRecord(names[slot]);
+                if (record != null) return BinarySnapshot.decodeValue(record, directory.getName());
+            }
+            long location = locations[slot];
+            if (location == -1) throw new IllegalStateException("the global variable " + names[slot] + " was removed from " + directory.getName());
+            segment = segments.get((int) (location >>> 32));
+            position = (int) location;
+        }
+        ByteBuffer in = segment.buffer.duplicate();
+        in.position(position + RECORD_HEADER + 1);
+        int nameLength = in.getShort() & 0xFFFF;
+        in.position(in.position() + nameLength);
+        return BinarySnapshot.decodeValue(in, segment.file.getName());
+    }
+
+    /**
+     * @return after the name, the value of the last {@link #unwritten} record of that variable if it is a
+     * {@link #PUT}, {@code null} if there is none
+     * @throws IllegalStateException if it is a {@link #REMOVE} or {@link #CLEAR}
+     */
+    private @Nullable ByteBuffer lastUnwrittenRecord(String name) {
+        Iterator<byte[]> iterator = unwritten.descendingIterator();
+        while (iterator.hasNext()) {
+            ByteBuffer in = ByteBuffer.wrap(iterator.next());
+            in.position(RECORD_HEADER);
+            byte type = in.get();
+            if (type != CLEAR && ! readName(in).equals(name)) continue;
+            if (type != PUT) throw new IllegalStateException("the global variable " + name + " was removed from " + directory.getName());
+            return in;
+        }
+        return null;
+    }
+
+    /**
+     * @return false, records are never moved without updating the index
+     */
+    @Override
+    public boolean isOutdated() {
+        return false;
+    }
+
+    /**
+     * @return the size of all the records, in bytes
+     */
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the size of the records that were replaced since, which a {@link #compact() compaction} removes
+     */
+    public synchronized long getGarbageSize() {
+        return totalBytes - liveBytes;
+    }
+
+    private File getSegmentFile(int generation) {
+        return new File(directory, "segment-" + generation + ".log");
+    }
+
+    /**
+     * @return the segment files and the temporary files of compactions, sorted by generation
+     */
+    private List<File> getSegmentFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && getGeneration(name) != -1);
+        if (files == null) return Collections.emptyList();
+        List<File> segmentFiles = new ArrayList<>(Arrays.asList(files));
+        segmentFiles.sort(Comparator.comparingInt(LogStorage::getGeneration));
+        return segmentFiles;
+    }
+
+    private static int getGeneration(File file) {
+        return getGeneration(file.getName());
+    }
+
+    private static int getGeneration(String name) {
+        int end = name.indexOf(".log");
+        if (end == -1) return -1;
+        try {
+            return Integer.parseInt(name.substring("segment-".length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class Segment {
+        final int generation;
+        final File file;
+        /** the whole file, it stays valid after the file is deleted */
+        final MappedByteBuffer buffer;
+        /** the position after the last record */
+        int end;
+
+        private Segment(int generation, File file, MappedByteBuffer buffer) {
+            this.generation = generation;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        static Segment open(File file, int generation) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException(file.getName() + " is too big to be read (more than 2GB)");
+                return new Segment(generation, file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        /**
+         * Makes a new segment of <strong>capacity</strong> bytes, mapped for writing in it
+         */
+        static Segment create(File file, int generation, int capacity) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Segment segment = new Segment(generation, file, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+                segment.buffer.put(MAGIC).put(VERSION);
+                segment.end = SEGMENT_HEADER;
+                return segment;
+            }
+        }
+    }
+}
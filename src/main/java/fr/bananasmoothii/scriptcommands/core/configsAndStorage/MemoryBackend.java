@@ -0,0 +1,345 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the collections in memory only, in an {@link ArrayList} or a {@link HashMap}: this is what the collections
+ * use with json and log storage, where they are saved with the global variables holding them, and when they don't
+ * use SQL. It is also the reference the other backends are compared to.
+ * <br/>
+ * The {@link #getShared() shared} backend doesn't keep its stores anywhere, so making a list or a dictionary costs
+ * nothing more than its {@link ArrayList} or {@link HashMap}: nothing looks for a collection in memory by its
+ * {@link StringID}. So it doesn't find any, {@link #getList(StringID)} and {@link #getMap(StringID)} throw a
+ * {@link NullPointerException}, {@link #exists(StringID, char)} gives false and {@link #drop(StringID, char, Context)}
+ * does nothing.
+ * <br/>
+ * A backend made with {@link #MemoryBackend()} does find them, like the other backends, while they are used: once no
+ * collection has a store anymore, it is garbage collected, as its elements can't be used anymore.
+ */
+@SuppressWarnings("unchecked")
+public class MemoryBackend implements StorageBackend {
+    private static final MemoryBackend shared = new MemoryBackend(false);
+
+    /** null if the stores aren't kept */
+    private final @Nullable ConcurrentMap<StringID, StoreReference> stores;
+    private final ReferenceQueue<Store> unreachableStores = new ReferenceQueue<>();
+
+    /**
+     * A backend that finds its stores by {@link StringID}, unlike the {@link #getShared() shared} one.
+     */
+    public MemoryBackend() {
+        this(true);
+    }
+
+    private MemoryBackend(boolean keepStores) {
+        stores = keepStores ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * @return the backend of the collections that don't use SQL
+     */
+    public static @NotNull MemoryBackend getShared() {
+        return shared;
+    }
+
+    @Override
+    public @NotNull String getName() {
+        return "memory";
+    }
+
+    @Override
+    public <E> @NotNull ListStore<E> createList(@NotNull StringID stringID, @Nullable Context context) {
+        return register(new MemoryListStore<>(stringID, this));
+    }
+
+    @Override
+    public <E> @NotNull ListStore<E> getList(@NotNull StringID stringID) {
+        return (ListStore<E>) get(stringID, ScriptValueList.typeChar);
+    }
+
+    @Override
+    public <K, V> @NotNull MapStore<K, V> createMap(@NotNull StringID stringID, @Nullable Context context) {
+        return register(new MemoryMapStore<>(stringID, this));
+    }
+
+    @Override
+    public <K, V> @NotNull MapStore<K, V> getMap(@NotNull StringID stringID) {
+        return (MapStore<K, V>) get(stringID, ScriptValueMap.typeChar);
+    }
+
+    @Override
+    public boolean exists(@NotNull StringID stringID, char typeChar) {
+        StoreReference reference = stores != null ? stores.get(stringID) : null;
+        Store store = reference != null ? reference.get() : null;
+        return store != null && store.typeChar == typeChar;
+    }
+
+    @Override
+    public int drop(@NotNull StringID stringID, char typeChar, @Nullable Context context) {
+        if (stores == null) return 0;
+        StoreReference reference = stores.get(stringID);
+        Store store = reference != null ? reference.get() : null;
+        if (store == null || store.typeChar != typeChar) return 0;
+        stores.remove(stringID, reference);
+        int size = store.size(context);
+        store.clear(context);
+        return size;
+    }
+
+    @Override
+    public void flush() {
+        // everything is already there
+    }
+
+    private <S extends Store> S register(S store) {
+        if (stores == null) return store;
+        forgetUnreachableStores();
+        stores.put(store.stringID, new StoreReference(store, unreachableStores));
+        return store;
+    }
+
+    private Store get(StringID stringID, char typeChar) {
+        StoreReference reference = stores != null ? stores.get(stringID) : null;
+        Store store = reference != null ? reference.get() : null;
+        if (store == null || store.typeChar != typeChar)
+            throw new NullPointerException("there is no collection " + typeChar + stringID + " in memory");
+        return store;
+    }
+
+    private void forgetUnreachableStores() {
+        Reference<? extends Store> reference;
+        while ((reference = unreachableStores.poll()) != null) {
+            //noinspection ConstantConditions // only called when they are kept
+            stores.remove(((StoreReference) reference).stringID, reference);
+        }
+    }
+
+    private static class StoreReference extends WeakReference<Store> {
+        final StringID stringID;
+
+        StoreReference(Store store, ReferenceQueue<Store> queue) {
+            super(store, queue);
+            stringID = store.stringID;
+        }
+    }
+
+    private static abstract class Store implements CollectionStore {
+        final StringID stringID;
+        final char typeChar;
+        private final MemoryBackend backend;
+
+        Store(StringID stringID, char typeChar, MemoryBackend backend) {
+            this.stringID = stringID;
+            this.typeChar = typeChar;
+            this.backend = backend;
+        }
+
+        @Override
+        public @NotNull StringID getStringID() {
+            return stringID;
+        }
+
+        @Override
+        public @NotNull StorageBackend getBackend() {
+            return backend;
+        }
+    }
+
+    private static class MemoryListStore<E> extends Store implements ListStore<E> {
+        private final ArrayList<ScriptValue<E>> elements = new ArrayList<>();
+
+        MemoryListStore(StringID stringID, MemoryBackend backend) {
+            super(stringID, ScriptValueList.typeChar, backend);
+        }
+
+        @Override
+        public int size(@Nullable Context context) {
+            return elements.size();
+        }
+
+        @Override
+        public @NotNull ScriptValue<E> get(int index, @Nullable Context context) {
+            if (index < 0 || index >= elements.size()) throw outOfBounds(index, context);
+            return elements.get(index);
+        }
+
+        @Override
+        public void set(int index, @NotNull ScriptValue<E> element, @Nullable Context context) {
+            if (index < 0 || index >= elements.size()) throw outOfBounds(index, context);
+            elements.set(index, element);
+        }
+
+        @Override
+        public void add(@NotNull ScriptValue<E> element, @Nullable Context context) {
+            elements.add(element);
+        }
+
+        @Override
+        public void add(int index, @NotNull ScriptValue<E> element, @Nullable Context context) {
+            elements.add(index, element);
+        }
+
+        @Override
+        public boolean addAll(@NotNull Collection<? extends ScriptValue<E>> elements, @Nullable Context context) {
+            return this.elements.addAll(elements);
+        }
+
+        @Override
+        public void remove(int index, @Nullable Context context) {
+            elements.remove(index);
+        }
+
+        @Override
+        public int indexOf(@NotNull ScriptValue<?> element, boolean last, @Nullable Context context) {
+            return last ? elements.lastIndexOf(element) : elements.indexOf(element);
+        }
+
+        @Override
+        public boolean contains(@NotNull ScriptValue<?> element, @Nullable Context context) {
+            return elements.contains(element);
+        }
+
+        @Override
+        public @NotNull List<ScriptValue<E>> getRange(int fromIndex, int toIndex, @Nullable Context context) {
+            List<ScriptValue<E>> range = new ArrayList<>(toIndex - fromIndex);
+            for (int i = fromIndex; i < toIndex; i++) {
+                range.add(elements.get(i).clone());
+            }
+            return range;
+        }
+
+        /**
+         * Goes through the indexes, so the list can be modified meanwhile.
+         */
+        @Override
+        public @NotNull Iterator<ScriptValue<E>> iterator(@Nullable Context context) {
+            int end = elements.size();
+            return new Iterator<ScriptValue<E>>() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < end && index < elements.size();
+                }
+
+                @Override
+                public ScriptValue<E> next() {
+                    if (! hasNext()) throw new NoSuchElementException();
+                    return elements.get(index++);
+                }
+            };
+        }
+
+        @Override
+        public @NotNull List<ScriptValue<E>> snapshot(@Nullable Context context) {
+            return new ArrayList<>(elements);
+        }
+
+        @Override
+        public void clear(@Nullable Context context) {
+            elements.clear();
+        }
+    }
+
+    private static class MemoryMapStore<K, V> extends Store implements MapStore<K, V> {
+        private final HashMap<ScriptValue<K>, ScriptValue<V>> entries = new HashMap<>();
+
+        MemoryMapStore(StringID stringID, MemoryBackend backend) {
+            super(stringID, ScriptValueMap.typeChar, backend);
+        }
+
+        @Override
+        public int size(@Nullable Context context) {
+            return entries.size();
+        }
+
+        @Override
+        public @Nullable ScriptValue<V> get(@NotNull ScriptValue<?> key, @Nullable Context context) {
+            //noinspection SuspiciousMethodCalls
+            return entries.get(key);
+        }
+
+        @Override
+        public boolean containsKey(@NotNull ScriptValue<?> key, @Nullable Context context) {
+            //noinspection SuspiciousMethodCalls
+            return entries.containsKey(key);
+        }
+
+        @Override
+        public boolean containsValue(@NotNull ScriptValue<?> value, @Nullable Context context) {
+            //noinspection SuspiciousMethodCalls
+            return entries.containsValue(value);
+        }
+
+        @Override
+        public void put(@NotNull ScriptValue<K> key, @NotNull ScriptValue<V> value, @Nullable Context context) {
+            entries.put(key, value);
+        }
+
+        @Override
+        public void putAll(@NotNull Map<? extends ScriptValue<K>, ? extends ScriptValue<V>> entries, @Nullable Context context) {
+            this.entries.putAll(entries);
+        }
+
+        @Override
+        public void remove(@NotNull ScriptValue<?> key, @Nullable Context context) {
+            //noinspection SuspiciousMethodCalls
+            entries.remove(key);
+        }
+
+        @Override
+        public @NotNull Iterator<ScriptValue<K>> keyIterator(@Nullable Context context) {
+            return entries.keySet().iterator();
+        }
+
+        @Override
+        public @NotNull Iterator<ScriptValue<V>> valueIterator(@Nullable Context context) {
+            return entries.values().iterator();
+        }
+
+        @Override
+        public @NotNull Iterator<Map.Entry<ScriptValue<K>, ScriptValue<V>>> iterator(@Nullable Context context) {
+            return entries.entrySet().iterator();
+        }
+
+        @Override
+        public @NotNull List<Map.Entry<ScriptValue<K>, ScriptValue<V>>> snapshot(@Nullable Context context) {
+            List<Map.Entry<ScriptValue<K>, ScriptValue<V>>> snapshot = new ArrayList<>(entries.size());
+            for (Map.Entry<ScriptValue<K>, ScriptValue<V>> entry : entries.entrySet()) {
+                snapshot.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+            return snapshot;
+        }
+
+        @Override
+        public void clear(@Nullable Context context) {
+            entries.clear();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Keeps the collections in the database of {@link Storage}, with SQLite or MySQL, in a table per collection or in
+ * the elements table of the {@link Storage#isSingleTableLayout() single-table layout}. See {@link SQLListStore} and
+ * {@link SQLMapStore} for how the elements are stored.
+ */
+public class SQLBackend implements StorageBackend {
+
+    @Override
+    public @NotNull String getName() {
+        return Storage.getMethod() == Storage.StorageMethod.MYSQL ? "MySQL" : "SQLite";
+    }
+
+    @Override
+    public <E> @NotNull ListStore<E> createList(@NotNull StringID stringID, @Nullable Context context) {
+        SQLListStore<E> store = new SQLListStore<>(stringID, this);
+        store.create(context);
+        return store;
+    }
+
+    @Override
+    public <E> @NotNull ListStore<E> getList(@NotNull StringID stringID) {
+        return checkExists(new SQLListStore<>(stringID, this));
+    }
+
+    @Override
+    public <K, V> @NotNull MapStore<K, V> createMap(@NotNull StringID stringID, @Nullable Context context) {
+        SQLMapStore<K, V> store = new SQLMapStore<>(stringID, this);
+        store.create(context);
+        return store;
+    }
+
+    @Override
+    public <K, V> @NotNull MapStore<K, V> getMap(@NotNull StringID stringID) {
+        return checkExists(new SQLMapStore<>(stringID, this));
+    }
+
+    private static <S extends SQLCollectionStore> S checkExists(S store) {
+        if (! Storage.sqlCollectionExists(store.getSQLTable(), store.getStringID()))
+            throw new NullPointerException("SQL table " + store.getSQLTable() + " does not exist");
+        return store;
+    }
+
+    @Override
+    public boolean exists(@NotNull StringID stringID, char typeChar) {
+        return Storage.sqlCollectionExists(getSQLTable(stringID), stringID);
+    }
+
+    @Override
+    public int drop(@NotNull StringID stringID, char typeChar, @Nullable Context context) {
+        try {
+            return drop(stringID);
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e).completeIfPossible(context);
+        }
+    }
+
+    /**
+     * Removes the table of the collection, or its rows in the elements table with the
+     * {@link Storage#isSingleTableLayout() single-table layout}, and forgets it in the {@link SQLCollectionCache}.
+     * @return the number of elements it had
+     */
+    static int drop(@NotNull StringID stringID) throws SQLException {
+        try {
+            if (Storage.isSingleTableLayout()) {
+                //noinspection ConstantConditions // SQL is used
+                return Storage.getConnectionPool().runInTransaction(connection -> {
+                    int deleted;
+                    try (PreparedStatement ps = Storage.prepareSQLStatement("DELETE FROM `" + Storage.getSQLElementsTable() + "` WHERE `collection` = ?")) {
+                        ps.setString(1, stringID.toString());
+                        deleted = ps.executeUpdate();
+                    }
+                    try (PreparedStatement ps = Storage.prepareSQLStatement("DELETE FROM `" + Storage.getSQLCollectionsTable() + "` WHERE `id` = ?")) {
+                        ps.setString(1, stringID.toString());
+                        ps.executeUpdate();
+                    }
+                    return deleted;
+                });
+            }
+            String table = getSQLTable(stringID);
+            int rows;
+            try (ResultSet rs = Storage.executeSQLQuery("SELECT COUNT(*) FROM `" + table + '`')) {
+                rs.next();
+                rows = rs.getInt(1);
+            }
+            Storage.executeSQLUpdate("DROP TABLE IF EXISTS `" + table + '`');
+            return rows;
+        } finally {
+            Storage.getCollectionCache().invalidate(stringID);
+        }
+    }
+
+    /**
+     * Waits until the {@link SQLWriteBehind} wrote everything, the collections are always written right away.
+     */
+    @Override
+    public void flush() {
+        Storage.flushWrites();
+    }
+
+    /**
+     * @return {@code table_prefix + stringID}, the name of the collection, see {@link ScriptValueCollection#getSQLTable()}
+     */
+    static String getSQLTable(StringID stringID) {
+        if (! Storage.isSQL) throw new NotUsingSQLException("Storage class is doesn't use SQL");
+        return Storage.getSQLTablePrefix() + stringID;
+    }
+}
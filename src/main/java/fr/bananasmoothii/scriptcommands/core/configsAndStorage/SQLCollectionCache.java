@@ -0,0 +1,294 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Keeps in memory what was read from the SQL collections, element by element, so reading the same element again
+ * (like a global variable used by every script) doesn't go to the database. Writes still go to the database, and
+ * update what is kept at the same time, so they don't make it stale.
+ * <br/>
+ * Elements are found by the {@link StringID} of their collection and by a key: the {@link SQLMapStore#getSQLKeyHash(String, byte)
+ * key hash} for dictionaries, the name for {@link StringScriptValueMap}s and the {@code index} in SQL for lists (that
+ * doesn't change when an element is added or removed at the start or the end, see {@link ScriptValueList}). As several
+ * collection objects may have the same {@link StringID}, this is shared by all of them. A collection can also have
+ * its {@link #SIZE} or its {@link #BOUNDS}, and {@link #ABSENT} is kept for the keys that aren't in it.
+ * <br/>
+ * The memory used is estimated for each element, and the ones that weren't used for the longest time are removed when
+ * it goes over the maximum. Only what was read is kept, iterating over a collection still reads it from the database.
+ * <br/>
+ * What is read from the database can only be kept if nothing was written in the same collection since the read
+ * started: take a {@link #stamp(StringID)} before reading, and give it to {@link #load(StringID, Object, Object, long)}.
+ * Writes of the same element must not be done at the same time by several threads, {@link #writeLock(StringID)} is for
+ * that. Only writes of this server are known, so this shouldn't be used if others can write in the same database.
+ */
+public class SQLCollectionCache {
+    /** kept for a key that isn't in its collection */
+    public static final Object ABSENT = new Marker("absent");
+    /** the key of the number of elements of a dictionary, as an {@link Integer} */
+    public static final Object SIZE = new Marker("size");
+    /** the key of the first and last {@code index} of a list in SQL, as an {@code int[2]} */
+    public static final Object BOUNDS = new Marker("bounds");
+
+    /** what a {@link HashMap} entry, the {@link Key} and its place in {@link #keysByCollection} cost, roughly */
+    private static final int ENTRY_OVERHEAD = 120;
+    private static final int STAMPS = 256;
+
+    private final long maxBytes;
+
+    // these are guarded by "this"
+    private final LinkedHashMap<Key, Object> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<StringID, Set<Key>> keysByCollection = new HashMap<>();
+    /** increased when a collection with a {@link StringID} having this hash is written, see {@link #stamp(StringID)} */
+    private final long[] stamps = new long[STAMPS];
+    private long usedBytes;
+    private long hits, misses, evictions;
+
+    private final Object[] writeLocks = new Object[64];
+
+    /**
+     * @param maxBytes the maximum memory used, roughly. With 0, nothing is kept.
+     */
+    public SQLCollectionCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < writeLocks.length; i++) {
+            writeLocks[i] = new Object();
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return what is kept for <strong>key</strong> ({@link #ABSENT} included), {@code null} if it has to be read from
+     * the database
+     */
+    public synchronized @Nullable Object get(@NotNull StringID collection, @NotNull Object key) {
+        if (! isEnabled()) return null;
+        Object value = entries.get(new Key(collection, key));
+        if (value != null) hits++;
+        else misses++;
+        return value;
+    }
+
+    /**
+     * @return what has to be given to {@link #load(StringID, Object, Object, long)} after reading from the database
+     */
+    public synchronized long stamp(@NotNull StringID collection) {
+        return stamps[stampIndex(collection)];
+    }
+
+    /**
+     * Keeps what was read from the database, if nothing was written in the collection since <strong>stamp</strong>
+     * was taken, as it may be older than what was written.
+     */
+    public synchronized void load(@NotNull StringID collection, @NotNull Object key, @NotNull Object value, long stamp) {
+        if (! isEnabled() || stamps[stampIndex(collection)] != stamp) return;
+        put(new Key(collection, key), value);
+    }
+
+    /**
+     * To call once <strong>value</strong> was written for <strong>key</strong> in the database ({@link #ABSENT} if it
+     * was removed). With a dictionary, the {@link #SIZE} is updated if it is known whether the key was there before,
+     * else it has to be read again.
+     */
+    public synchronized void written(@NotNull StringID collection, @NotNull Object key, @NotNull Object value) {
+        stamps[stampIndex(collection)]++;
+        if (! isEnabled()) return;
+        Key sizeKey = new Key(collection, SIZE);
+        Object previous = put(new Key(collection, key), value);
+        Integer size = (Integer) entries.get(sizeKey);
+        if (size == null) return;
+        if (previous == null) {
+            remove(sizeKey);
+        } else if ((previous == ABSENT) != (value == ABSENT)) {
+            entries.put(sizeKey, value == ABSENT ? size - 1 : size + 1);
+        }
+    }
+
+    /**
+     * To call once something that isn't an element (like the {@link #BOUNDS}) changed in the database. It is kept
+     * as it is, unless it is {@code null}.
+     */
+    public synchronized void update(@NotNull StringID collection, @NotNull Object key, @Nullable Object value) {
+        stamps[stampIndex(collection)]++;
+        if (! isEnabled()) return;
+        if (value != null) put(new Key(collection, key), value);
+        else remove(new Key(collection, key));
+    }
+
+    /**
+     * Forgets everything about a collection, for changes that move or remove a lot of its elements
+     */
+    public synchronized void invalidate(@NotNull StringID collection) {
+        stamps[stampIndex(collection)]++;
+        Set<Key> keys = keysByCollection.remove(collection);
+        if (keys == null) return;
+        for (Key key : keys) {
+            usedBytes -= estimateSize(key, entries.remove(key));
+        }
+    }
+
+    /**
+     * Forgets everything, for when an other connection wrote in the database
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < stamps.length; i++) {
+            stamps[i]++;
+        }
+        entries.clear();
+        keysByCollection.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * @return the lock to hold while writing in <strong>collection</strong> and calling {@link #written(StringID, Object, Object)},
+     * so two writes of the same element are kept in the same order as they are in the database. Nothing that may
+     * write in an other collection should be done while holding it.
+     */
+    public @NotNull Object writeLock(@NotNull StringID collection) {
+        return writeLocks[Math.floorMod(collection.hashCode(), writeLocks.length)];
+    }
+
+    private Object put(Key key, Object value) {
+        Object previous = entries.put(key, value);
+        if (previous != null) {
+            usedBytes += estimateSize(key, value) - estimateSize(key, previous);
+        } else {
+            usedBytes += estimateSize(key, value);
+            keysByCollection.computeIfAbsent(key.collection, k -> new HashSet<>()).add(key);
+        }
+        Iterator<Map.Entry<Key, Object>> iterator = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Key, Object> leastRecentlyUsed = iterator.next();
+            Key evicted = leastRecentlyUsed.getKey();
+            usedBytes -= estimateSize(evicted, leastRecentlyUsed.getValue());
+            iterator.remove();
+            forgetKey(evicted);
+            evictions++;
+        }
+        return previous;
+    }
+
+    private void remove(Key key) {
+        Object previous = entries.remove(key);
+        if (previous == null) return;
+        usedBytes -= estimateSize(key, previous);
+        forgetKey(key);
+    }
+
+    private void forgetKey(Key key) {
+        Set<Key> keys = keysByCollection.get(key.collection);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) keysByCollection.remove(key.collection);
+    }
+
+    private static int stampIndex(StringID collection) {
+        return Math.floorMod(collection.hashCode(), STAMPS);
+    }
+
+    private static long estimateSize(Key key, Object value) {
+        return ENTRY_OVERHEAD + estimateSize(key.key) + estimateSize(value);
+    }
+
+    private static long estimateSize(Object object) {
+        if (object instanceof ScriptValue) object = ((ScriptValue<?>) object).v;
+        if (object instanceof String) return 40 + 2L * ((String) object).length();
+        if (object instanceof int[]) return 16 + 4L * ((int[]) object).length;
+        if (object instanceof ScriptValueCollection) return 96;
+        return 16;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return how many elements were removed because there wasn't enough memory
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the memory used, as it is estimated
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (! isEnabled()) return "disabled";
+        return String.format("%d hits, %d misses (%.1f%% hit ratio), %d elements using %d/%d KB, %d evicted", hits,
+                misses, hits + misses == 0 ? 0d : hits * 100d / (hits + misses), entries.size(), usedBytes / 1024,
+                maxBytes / 1024, evictions);
+    }
+
+    private static class Key {
+        final StringID collection;
+        final Object key;
+
+        Key(StringID collection, Object key) {
+            this.collection = collection;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (! (o instanceof Key)) return false;
+            Key other = (Key) o;
+            return collection.equals(other.collection) && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * collection.hashCode() + key.hashCode();
+        }
+    }
+
+    private static class Marker {
+        private final String name;
+
+        Marker(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
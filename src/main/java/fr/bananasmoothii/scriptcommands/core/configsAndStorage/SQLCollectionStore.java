@@ -0,0 +1,100 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.SQLException;
+
+/**
+ * What the stores of the {@link SQLBackend} have in common: the name of their table, and the parts of the queries
+ * that depend on the {@link Storage#isSingleTableLayout() layout}.
+ */
+abstract class SQLCollectionStore implements StorageBackend.CollectionStore {
+    protected final @NotNull StringID stringID;
+    /** with prefix, see {@link ScriptValueCollection#getSQLTable()} */
+    protected final @NotNull String SQLTable;
+    private final @NotNull SQLBackend backend;
+
+    SQLCollectionStore(@NotNull StringID stringID, @NotNull SQLBackend backend) {
+        this.stringID = stringID;
+        this.backend = backend;
+        SQLTable = SQLBackend.getSQLTable(stringID);
+    }
+
+    /**
+     * @return the columns of the table of this collection, with the table-per-collection layout
+     */
+    protected abstract String columns();
+
+    protected abstract char typeChar();
+
+    /**
+     * Creates the table of this collection, or adds it to the collections table with the single-table layout
+     */
+    void create(@Nullable Context context) {
+        String query = Storage.getSQLCollectionCreation(SQLTable, stringID, typeChar(), columns());
+        try {
+            Storage.executeSQLUpdate(query);
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+    }
+
+    @Override
+    public @NotNull StringID getStringID() {
+        return stringID;
+    }
+
+    @Override
+    public @NotNull StorageBackend getBackend() {
+        return backend;
+    }
+
+    public @NotNull String getSQLTable() {
+        return SQLTable;
+    }
+
+    @Override
+    public void clear(@Nullable Context context) {
+        String query = "DELETE FROM " + table() + where(null);
+        try {
+            Storage.executeSQLUpdate(query);
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        } finally {
+            Storage.getCollectionCache().invalidate(stringID);
+        }
+    }
+
+    /**
+     * @return the table where the elements are, see {@link Storage#getSQLCollectionTable(String)}
+     */
+    protected String table() {
+        return Storage.getSQLCollectionTable(SQLTable);
+    }
+
+    /**
+     * @see Storage#getSQLWhere(StringID, String)
+     */
+    protected String where(@Nullable String condition) {
+        return Storage.getSQLWhere(stringID, condition);
+    }
+}
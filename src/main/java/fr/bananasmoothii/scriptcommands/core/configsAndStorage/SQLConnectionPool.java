@@ -0,0 +1,471 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The SQL connections used by {@link Storage}, so several threads can read at the same time instead of waiting for
+ * each other on a single connection. Each connection has its own {@link SQLStatementCache}.
+ * <br/>
+ * A thread keeps the same connection while it has statements or results that aren't closed, so nested queries and
+ * transactions ({@link #runInTransaction(SQLTask)}) all use the same connection. When everything is closed, the
+ * connection goes back to the pool.
+ * <br/>
+ * There are two kinds of pools:
+ * <ul>
+ *     <li>{@link #singleWriter(ConnectionFactory, int) single writer} (SQLite): only one connection writes, as SQLite
+ *     allows only one writer at a time anyway, and writes are done one after the other with a lock. Each thread
+ *     reads with its own read-only connection, that doesn't wait for the writer thanks to WAL. A thread that has a
+ *     cursor open on its reader while something was written reads with the writer instead, as its reader may still
+ *     see the database as it was before that write. So does a thread that found no free reader. These reads take
+ *     the lock of the writer too, so they never see the transaction of another thread.</li>
+ *     <li>{@link #pooled(ConnectionFactory, int, long) pooled} (MySQL): a limited number of connections, each used by
+ *     one thread at a time for reading and writing. A connection that wasn't used for
+ *     {@link #VALIDATION_INTERVAL} ms is checked before being used, and a connection that gave a connection error is
+ *     closed and replaced by a new one, for example when the server closed it.</li>
+ * </ul>
+ */
+public class SQLConnectionPool {
+    public static final long VALIDATION_INTERVAL = 30_000;
+
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        /**
+         * @param readOnly whether the connection will only be used for reading
+         */
+        @NotNull Connection open(boolean readOnly) throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface SQLTask<T> {
+        T run(@NotNull Connection connection) throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    /** the maximum number of readers with a single writer, or of connections */
+    private final int maxConnections;
+    /** how long to wait for a connection, in ms */
+    private final long timeout;
+
+    private final @Nullable PooledConnection writer;
+    private final ReentrantLock writerLock = new ReentrantLock();
+    /** incremented by each write, to know if a reader may be outdated */
+    private final AtomicLong writeVersion = new AtomicLong();
+
+    private final ThreadLocal<PooledConnection> pinned = new ThreadLocal<>();
+    // these are guarded by "this"
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    private final List<PooledConnection> all = new ArrayList<>();
+    /** connections opened or being opened, without the writer */
+    private int openCount;
+    private boolean closed;
+
+    private SQLConnectionPool(@NotNull ConnectionFactory factory, boolean singleWriter, int maxConnections, long timeout) throws SQLException {
+        this.factory = factory;
+        this.maxConnections = maxConnections;
+        this.timeout = timeout;
+        writer = singleWriter ? new PooledConnection(factory.open(false)) : null;
+    }
+
+    /**
+     * @param maxReaders the maximum number of read-only connections. With 0, the writer is used for everything, like
+     *                   with a single connection.
+     */
+    public static @NotNull SQLConnectionPool singleWriter(@NotNull ConnectionFactory factory, int maxReaders) throws SQLException {
+        return new SQLConnectionPool(factory, true, maxReaders, 0);
+    }
+
+    /**
+     * Opens a first connection, so an error is known right away.
+     * @param size the maximum number of connections
+     * @param timeout how long to wait for a connection when they are all used, in ms
+     */
+    public static @NotNull SQLConnectionPool pooled(@NotNull ConnectionFactory factory, int size, long timeout) throws SQLException {
+        if (size < 1) throw new IllegalArgumentException("size must be at least 1");
+        SQLConnectionPool pool = new SQLConnectionPool(factory, false, size, timeout);
+        PooledConnection first = new PooledConnection(factory.open(false));
+        synchronized (pool) {
+            pool.openCount++;
+            pool.all.add(first);
+            pool.idle.push(first);
+        }
+        return pool;
+    }
+
+    /**
+     * @return the number of rows modified
+     */
+    public int executeUpdate(@NotNull String sql) throws SQLException {
+        Lease lease = acquire(isWrite(sql));
+        try {
+            return lease.connection.statements.executeUpdate(sql);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * The {@link ResultSet} must be closed, it gives its connection back.
+     */
+    public @NotNull ResultSet executeQuery(@NotNull String sql) throws SQLException {
+        Lease lease = acquire(isWrite(sql));
+        return lease.connection.statements.executeQuery(sql, lease::release);
+    }
+
+    /**
+     * The statement must be closed, it gives its connection back.
+     */
+    public @NotNull PreparedStatement prepare(@NotNull String sql) throws SQLException {
+        Lease lease = acquire(isWrite(sql));
+        try {
+            return lease.connection.statements.prepare(sql, lease::release);
+        } catch (SQLException | RuntimeException e) {
+            lease.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs <strong>task</strong> with the connection used for writing, in one transaction that is committed at the
+     * end, or rolled back if there is an exception. Everything done by this thread during the task (with
+     * {@link #executeUpdate(String)} for example) is in that transaction. The task may also
+     * {@link Connection#commit() commit} by itself to make several transactions.
+     */
+    public <T> T runInTransaction(@NotNull SQLTask<T> task) throws SQLException {
+        Lease lease = acquire(true);
+        try {
+            Connection connection = lease.connection.connection;
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                T result = task.run(connection);
+                connection.commit();
+                return result;
+            } catch (SQLException e) {
+                lease.connection.failed(e);
+                rollback(connection, e);
+                throw e;
+            } catch (RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } finally {
+            lease.release();
+        }
+    }
+
+    private static void rollback(Connection connection, SQLException cause) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Runs <strong>task</strong> with a connection that can be used for reading, like for the
+     * {@link Connection#getMetaData() metadata}. The connection mustn't be kept after.
+     */
+    public <T> T withConnection(@NotNull SQLTask<T> task) throws SQLException {
+        Lease lease = acquire(false);
+        try {
+            return task.run(lease.connection.connection);
+        } finally {
+            lease.release();
+        }
+    }
+
+    private Lease acquire(boolean write) throws SQLException {
+        if (writer == null) return new Lease(pinnedOrTaken(true, false), false);
+        if (write) {
+            Lease lease = lockWriter();
+            writeVersion.incrementAndGet();
+            return lease;
+        }
+        if (closed) throw new SQLException("the connection pool is closed");
+        // during a write or a transaction of this thread, it has to read what it is writing
+        if (writerLock.isHeldByCurrentThread()) return new Lease(writer, false);
+        if (maxConnections == 0) return lockWriter();
+        PooledConnection reader = pinnedOrTaken(false, true);
+        if (reader == null) return lockWriter(); // all the readers are used by other threads
+        Lease lease = new Lease(reader, false);
+        long version = writeVersion.get();
+        boolean outdated;
+        synchronized (this) {
+            if (reader.leases == 1) {
+                reader.version = version;
+                outdated = false;
+            } else {
+                outdated = reader.version != version;
+            }
+        }
+        if (outdated) {
+            lease.release();
+            return lockWriter();
+        }
+        return lease;
+    }
+
+    /**
+     * Reads also take it, or they could see what another thread is writing before it is committed.
+     */
+    private Lease lockWriter() throws SQLException {
+        writerLock.lock();
+        if (closed) {
+            writerLock.unlock();
+            throw new SQLException("the connection pool is closed");
+        }
+        return new Lease(writer, true);
+    }
+
+    /**
+     * @param wait whether to wait for a connection if they are all used, or else return {@code null}
+     * @return the connection of this thread, or a connection that is now the connection of this thread, with one more
+     * lease
+     */
+    private @Nullable PooledConnection pinnedOrTaken(boolean wait, boolean readOnly) throws SQLException {
+        Thread current = Thread.currentThread();
+        PooledConnection connection = pinned.get();
+        synchronized (this) {
+            if (closed) throw new SQLException("the connection pool is closed");
+            if (connection != null && connection.owner == current) {
+                connection.leases++;
+                return connection;
+            }
+            long deadline = System.currentTimeMillis() + timeout;
+            connection = null;
+            while (connection == null) {
+                connection = idle.poll();
+                if (connection != null) break;
+                if (openCount < maxConnections) {
+                    openCount++;
+                    break; // opened below, without blocking the others
+                }
+                if (! wait) return null;
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    throw new SQLException("No SQL connection was available after " + timeout + "ms, they are all used (pool size: " + maxConnections + ')');
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException(e);
+                }
+                if (closed) throw new SQLException("the connection pool is closed");
+            }
+            if (connection != null) take(connection, current);
+        }
+
+        if (connection != null && System.currentTimeMillis() - connection.lastUsed > VALIDATION_INTERVAL
+                && ! connection.isValid()) {
+            CustomLogger.fine("An SQL connection isn't valid anymore, opening a new one");
+            synchronized (this) {
+                all.remove(connection);
+            }
+            connection.close();
+            connection = null; // its place is still counted in openCount
+        }
+        if (connection == null) {
+            try {
+                connection = new PooledConnection(factory.open(readOnly));
+            } catch (SQLException | RuntimeException e) {
+                synchronized (this) {
+                    openCount--;
+                    notifyAll();
+                }
+                throw e;
+            }
+            synchronized (this) {
+                all.add(connection);
+                take(connection, current);
+            }
+        }
+        pinned.set(connection);
+        return connection;
+    }
+
+    /** must be called with the lock of "this" */
+    private void take(PooledConnection connection, Thread owner) {
+        connection.owner = owner;
+        connection.leases = 1;
+    }
+
+    private void release(PooledConnection connection) {
+        boolean close = false;
+        synchronized (this) {
+            if (--connection.leases > 0) return;
+            connection.owner = null;
+            connection.lastUsed = System.currentTimeMillis();
+            if (connection.broken || closed) {
+                all.remove(connection);
+                openCount--;
+                close = true;
+            } else {
+                idle.push(connection);
+            }
+            notifyAll();
+        }
+        if (close) connection.close();
+    }
+
+    private static boolean isWrite(String sql) {
+        int start = 0;
+        while (start < sql.length() && Character.isWhitespace(sql.charAt(start))) start++;
+        return ! sql.substring(start, Math.min(sql.length(), start + 6)).toUpperCase(Locale.ROOT).equals("SELECT");
+    }
+
+    /**
+     * Closes every connection, even the ones that are used. Using this pool after gives an {@link SQLException}.
+     */
+    public void close() {
+        List<PooledConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<>(all);
+            all.clear();
+            idle.clear();
+            notifyAll();
+        }
+        if (writer != null) toClose.add(writer);
+        for (PooledConnection connection : toClose) {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return the number of connections that are open, with the writer
+     */
+    public synchronized int getConnectionCount() {
+        return all.size() + (writer != null ? 1 : 0);
+    }
+
+    /**
+     * @return how many times a statement was already prepared, on all the connections
+     */
+    public synchronized long getStatementHits() {
+        long hits = writer != null ? writer.statements.getHits() : 0;
+        for (PooledConnection connection : all) {
+            hits += connection.statements.getHits();
+        }
+        return hits;
+    }
+
+    /**
+     * @return how many times a statement had to be prepared, on all the connections
+     */
+    public synchronized long getStatementMisses() {
+        long misses = writer != null ? writer.statements.getMisses() : 0;
+        for (PooledConnection connection : all) {
+            misses += connection.statements.getMisses();
+        }
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long hits = getStatementHits(), misses = getStatementMisses();
+        return String.format("%d connections (%d idle%s), %d statements reused, %d prepared (%.1f%% hit ratio)",
+                all.size(), idle.size(), writer != null ? ", plus the writer" : "", hits, misses,
+                hits + misses == 0 ? 0d : hits * 100d / (hits + misses));
+    }
+
+    /**
+     * A connection of the pool is used by this until {@link #release()} is called once. With the writer, it may also
+     * hold the write lock.
+     */
+    private class Lease {
+        final PooledConnection connection;
+        private final boolean locked;
+        private boolean released;
+
+        Lease(PooledConnection connection, boolean locked) {
+            this.connection = connection;
+            this.locked = locked;
+        }
+
+        void release() {
+            synchronized (this) {
+                if (released) return;
+                released = true;
+            }
+            if (connection == writer) {
+                if (locked) writerLock.unlock();
+            } else {
+                SQLConnectionPool.this.release(connection);
+            }
+        }
+    }
+
+    private static class PooledConnection {
+        final Connection connection;
+        final SQLStatementCache statements;
+        volatile boolean broken;
+
+        // these are guarded by the pool
+        @Nullable Thread owner;
+        int leases;
+        long lastUsed = System.currentTimeMillis();
+        /** for readers, the write version when it started to be used */
+        long version;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+            statements = new SQLStatementCache(connection, this::failed);
+        }
+
+        /**
+         * Marks this as broken if it is a connection error (SQL states of the class 08), so it is replaced once
+         * released
+         */
+        void failed(SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith("08")) broken = true;
+        }
+
+        boolean isValid() {
+            try {
+                return connection.isValid(2);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            statements.close();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes the lists and dictionaries in SQL that can't be used anymore: the ones that can't be reached from the
+ * global variables by following the references to collections (the types 5 and 6, in values and in keys), and that
+ * have no object in memory. Without this, each collection put in a global variable stays in the database forever,
+ * even once the variable was replaced.
+ * <br/>
+ * It is a mark-and-sweep done in small {@link #step(long) steps}, so it never keeps the database for long:
+ * <ol>
+ *     <li>the collections that exist are listed, the ones made after that are never removed by this cycle;</li>
+ *     <li>marking: starting from the global variables, the other {@link StringScriptValueMap}s and the collections
+ *     having an object in memory (see
+ *     {@link #inUse(ScriptValueCollection)}), the collections they reference are marked, and then the ones these
+ *     reference, and so on. Each step reads some collections, but always whole ones;</li>
+ *     <li>sweeping: the listed collections that weren't marked are removed, with their table or with their rows in
+ *     the elements table.</li>
+ * </ol>
+ * Scripts keep running meanwhile. A script only gets a collection by reading it from an other collection, which makes
+ * an object for it, and each collection getting an object while marking is marked, with what it references. Copies
+ * done in the database, that don't make objects, read the collection they were copied to again (see
+ * {@link #copiedInSQL(ScriptValueCollection)}). So a collection that wasn't marked at the end can't be reached anymore.
+ * <br/>
+ * Only what this server does is known, so this mustn't run if other servers use the same database.
+ */
+public class SQLGarbageCollector {
+    /** the time between two steps, compared to the time of a step */
+    private static final int PAUSE_RATIO = 4;
+
+    private static final ReferenceQueue<ScriptValueCollection> unreachableObjects = new ReferenceQueue<>();
+    /** kept so they aren't garbage collected before their object */
+    private static final Set<InUseReference> inUseReferences = ConcurrentHashMap.newKeySet();
+    /** the collections in SQL having at least one object in memory, with their number of objects */
+    private static final ConcurrentMap<String, InUseCount> inUseCounts = new ConcurrentHashMap<>();
+
+    private static volatile @Nullable SQLGarbageCollector running;
+
+    private final long stepTime, cycleInterval;
+    private final @Nullable ScheduledExecutorService executor;
+    private final Object stepLock = new Object();
+    private long nextCycleTime;
+
+    private enum Phase { IDLE, MARKING, SWEEPING }
+
+    // these are guarded by "this"
+    private Phase phase = Phase.IDLE;
+    /** the collections listed at the start of the cycle, by ID, with their type char */
+    private Map<String, Character> listed = Collections.emptyMap();
+    private final Set<String> marked = new HashSet<>();
+    /** the collections that were marked but not read yet */
+    private final ArrayDeque<Collection> toRead = new ArrayDeque<>();
+    private @Nullable Iterator<Map.Entry<String, Character>> sweepIterator;
+    private @Nullable Report report, lastReport;
+
+    /**
+     * @param stepTime in milliseconds, how long a step should take, roughly
+     * @param cycleInterval in seconds, the time between the end of a cycle and the start of the next one in the
+     *                      background, 0 for never starting one in the background
+     */
+    public SQLGarbageCollector(long stepTime, long cycleInterval) {
+        this.stepTime = TimeUnit.MILLISECONDS.toNanos(stepTime);
+        this.cycleInterval = TimeUnit.SECONDS.toMillis(cycleInterval);
+        nextCycleTime = System.currentTimeMillis() + this.cycleInterval;
+        if (cycleInterval > 0) {
+            executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ScriptCommands-sql-gc");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long pause = Math.max(1, stepTime * PAUSE_RATIO);
+            executor.scheduleWithFixedDelay(this::backgroundStep, pause, pause, TimeUnit.MILLISECONDS);
+        } else {
+            executor = null;
+        }
+        running = this;
+    }
+
+    /**
+     * To call when an object is made for a collection using SQL, or when a collection starts using SQL. The collection
+     * is marked for as long as the object is in memory, as it may still be used, or put in a variable.
+     */
+    static void inUse(@NotNull ScriptValueCollection collection) {
+        inUse(collection, collection.getStringID());
+    }
+
+    /**
+     * Same as {@link #inUse(ScriptValueCollection)}, for a collection that will have that {@link StringID}, before it
+     * is made in the database.
+     */
+    static void inUse(@NotNull ScriptValueCollection collection, @NotNull StringID stringID) {
+        forgetUnreachableObjects();
+        String id = stringID.toString();
+        char type = collection.getTypeChar();
+        inUseReferences.add(new InUseReference(collection, id));
+        inUseCounts.compute(id, (k, count) -> {
+            if (count == null) count = new InUseCount(type);
+            count.count++;
+            return count;
+        });
+        SQLGarbageCollector collector = running;
+        if (collector != null) collector.reached(id, type, false);
+    }
+
+    private static void forgetUnreachableObjects() {
+        Reference<?> reference;
+        while ((reference = unreachableObjects.poll()) != null) {
+            InUseReference unreachable = (InUseReference) reference;
+            inUseReferences.remove(unreachable);
+            inUseCounts.computeIfPresent(unreachable.id, (id, count) -> --count.count == 0 ? null : count);
+        }
+    }
+
+    /**
+     * To call once elements were copied to a collection in the database, without making objects for the collections
+     * they reference, like with an {@code INSERT ... SELECT}. If it is marking, the collection is read again.
+     */
+    static void copiedInSQL(@NotNull ScriptValueCollection collection) {
+        SQLGarbageCollector collector = running;
+        if (collector != null) collector.reached(getID(collection), collection.getTypeChar(), true);
+    }
+
+    /**
+     * @see #copiedInSQL(ScriptValueCollection)
+     */
+    static void copiedInSQL(@NotNull StringID stringID, char type) {
+        SQLGarbageCollector collector = running;
+        if (collector != null) collector.reached(stringID.toString(), type, true);
+    }
+
+    /**
+     * {@link StringScriptValueMap}s always have their own table, and are found by its name: the global variables don't
+     * have their {@link StringID} in it.
+     */
+    private static String getID(ScriptValueCollection collection) {
+        if (collection instanceof StringScriptValueMap) //noinspection ConstantConditions // it uses SQL
+            return collection.getSQLTable().substring(Storage.getSQLTablePrefix().length());
+        return collection.getStringID().toString();
+    }
+
+    private synchronized void reached(String id, char type, boolean readAgain) {
+        if (phase == Phase.MARKING) {
+            if (marked.add(id) || readAgain) toRead.add(new Collection(id, type));
+        } else if (phase == Phase.SWEEPING) {
+            marked.add(id);
+        }
+    }
+
+    /**
+     * Does a part of the current cycle, or starts one. It stops once <strong>time</strong> is elapsed, after reading or
+     * removing a collection, so it may take longer with a big collection.
+     * @param time in nanoseconds
+     * @return whether the cycle ended
+     * @throws SQLException in that case, the cycle is stopped without removing anything else
+     */
+    public boolean step(long time) throws SQLException {
+        synchronized (stepLock) {
+            long start = System.nanoTime();
+            try {
+                if (phase() == Phase.IDLE) startCycle();
+                boolean ended;
+                do {
+                    ended = ! doNext();
+                } while (! ended && System.nanoTime() - start < time);
+                //noinspection ConstantConditions // there is a cycle
+                report.steps++;
+                report.workTime += System.nanoTime() - start;
+                if (ended) endCycle();
+                return ended;
+            } catch (SQLException | RuntimeException e) {
+                synchronized (this) {
+                    phase = Phase.IDLE;
+                    report = null;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Does a whole cycle now. If one was started in the background, it is ended before, as it can't remove the
+     * collections made after its start.
+     */
+    public @NotNull Report collect() throws SQLException {
+        synchronized (stepLock) {
+            //noinspection StatementWithEmptyBody
+            if (phase() != Phase.IDLE) while (! step(stepTime)) ;
+            //noinspection StatementWithEmptyBody
+            while (! step(stepTime)) ;
+            //noinspection ConstantConditions // a cycle just ended
+            return getLastReport();
+        }
+    }
+
+    private void backgroundStep() {
+        try {
+            if (phase() == Phase.IDLE && System.currentTimeMillis() < nextCycleTime) return;
+            if (! step(stepTime)) return;
+            Report report = getLastReport();
+            //noinspection ConstantConditions // a cycle just ended
+            if (report.getCollectionsRemoved() != 0) CustomLogger.info("Cleaned the database: " + report);
+            else CustomLogger.fine("Cleaned the database: " + report);
+        } catch (SQLException | RuntimeException e) {
+            CustomLogger.warning("Could not clean the database, trying again later: " + e);
+        }
+        nextCycleTime = System.currentTimeMillis() + cycleInterval;
+    }
+
+    private synchronized Phase phase() {
+        return phase;
+    }
+
+    private void startCycle() throws SQLException {
+        // the delayed writes may reference collections whose objects are gone, or write in collections to remove
+        Report report = new Report();
+        Storage.flushWrites();
+        Map<String, Character> collections = listCollections();
+        forgetUnreachableObjects();
+        synchronized (this) {
+            this.report = report;
+            listed = collections;
+            marked.clear();
+            toRead.clear();
+            phase = Phase.MARKING;
+            // the global variables, and the other tables of StringScriptValueMaps as nothing can reference them
+            marked.add("global_vars");
+            toRead.add(new Collection("global_vars", StringScriptValueMap.typeChar));
+            for (Map.Entry<String, Character> collection : collections.entrySet()) {
+                if (collection.getValue() == StringScriptValueMap.typeChar && marked.add(collection.getKey()))
+                    toRead.add(new Collection(collection.getKey(), collection.getValue()));
+            }
+            // a collection getting an object from now is marked by inUse()
+            for (Map.Entry<String, InUseCount> inUse : inUseCounts.entrySet()) {
+                if (marked.add(inUse.getKey())) toRead.add(new Collection(inUse.getKey(), inUse.getValue().type));
+            }
+        }
+    }
+
+    private void endCycle() {
+        synchronized (this) {
+            //noinspection ConstantConditions // there is a cycle
+            report.collectionsMarked = marked.size();
+            report.duration = System.nanoTime() - report.start;
+            lastReport = report;
+            report = null;
+            phase = Phase.IDLE;
+            listed = Collections.emptyMap();
+            marked.clear();
+            sweepIterator = null;
+        }
+    }
+
+    /**
+     * Reads or removes a collection
+     * @return false if there was nothing left to do
+     */
+    private boolean doNext() throws SQLException {
+        Collection next = null;
+        boolean marking;
+        synchronized (this) {
+            marking = phase == Phase.MARKING;
+            if (marking) {
+                next = toRead.poll();
+                if (next == null) {
+                    forgetUnreachableObjects();
+                    phase = Phase.SWEEPING;
+                    sweepIterator = listed.entrySet().iterator();
+                    return true;
+                }
+            } else {
+                //noinspection ConstantConditions // it is sweeping
+                while (sweepIterator.hasNext()) {
+                    Map.Entry<String, Character> candidate = sweepIterator.next();
+                    if (candidate.getValue() != StringScriptValueMap.typeChar && ! marked.contains(candidate.getKey())
+                            && ! inUseCounts.containsKey(candidate.getKey())) {
+                        next = new Collection(candidate.getKey(), candidate.getValue());
+                        break;
+                    }
+                }
+                if (next == null) return false;
+            }
+        }
+        if (marking) {
+            for (Collection referenced : read(next)) {
+                reached(referenced.id, referenced.type, false);
+            }
+        } else {
+            // nothing can reach it anymore, so nothing can mark it now
+            remove(next);
+        }
+        return true;
+    }
+
+    /**
+     * @return the collections that have a {@link StringID} and that exist: lists and dictionaries, and
+     * {@link StringScriptValueMap}s that aren't the global variables
+     */
+    private static Map<String, Character> listCollections() throws SQLException {
+        Map<String, Character> collections = new HashMap<>();
+        if (Storage.isSingleTableLayout()) {
+            try (ResultSet rs = Storage.executeSQLQuery("SELECT `id`, `type` FROM `" + Storage.getSQLCollectionsTable() + '`')) {
+                while (rs.next()) {
+                    collections.put(rs.getString(1), rs.getString(2).charAt(0));
+                }
+            }
+        }
+        // with the single-table layout, only StringScriptValueMaps still have their own table
+        for (Map.Entry<String, Character> table : Storage.getSQLCollectionTables().entrySet()) {
+            collections.put(table.getKey().substring(Storage.getSQLTablePrefix().length()), table.getValue());
+        }
+        return collections;
+    }
+
+    /**
+     * @return the collections that <strong>collection</strong> references
+     */
+    private List<Collection> read(Collection collection) throws SQLException {
+        // A collection made during the cycle only has elements put with an object, whose collections are marked, or
+        // copied from an other collection, that is read. It may also not exist anymore, if it couldn't be made.
+        if (! collection.id.equals("global_vars") && ! isListed(collection.id)) return Collections.emptyList();
+        String table = Storage.getSQLTablePrefix() + collection.id;
+        String query;
+        if (collection.type == StringScriptValueMap.typeChar) {
+            query = "SELECT NULL, NULL, `value_object`, `value_type` FROM `" + table + "` WHERE `value_type` IN (5, 6)";
+        } else if (Storage.isSingleTableLayout()) {
+            query = "SELECT `key_object`, `key_type`, `value_object`, `value_type` FROM `" + Storage.getSQLElementsTable()
+                    + "` WHERE `collection` = ? AND (`key_type` IN (5, 6) OR `value_type` IN (5, 6))";
+        } else {
+            if (collection.type == ScriptValueList.typeChar)
+                query = "SELECT NULL, NULL, `object`, `type` FROM `" + table + "` WHERE `type` IN (5, 6)";
+            else
+                query = "SELECT `key_object`, `key_type`, `value_object`, `value_type` FROM `" + table + "` WHERE `key_type` IN (5, 6) OR `value_type` IN (5, 6)";
+        }
+        List<Collection> referenced = new ArrayList<>();
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            if (Storage.isSingleTableLayout() && collection.type != StringScriptValueMap.typeChar) ps.setString(1, collection.id);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    addReference(referenced, rs.getString(1), rs.getByte(2));
+                    addReference(referenced, rs.getString(3), rs.getByte(4));
+                }
+            }
+        }
+        //noinspection ConstantConditions // there is a cycle
+        report.collectionsRead++;
+        return referenced;
+    }
+
+    private synchronized boolean isListed(String id) {
+        return listed.containsKey(id);
+    }
+
+    private static void addReference(List<Collection> referenced, @Nullable String object, byte type) {
+        if (object == null) return;
+        if (type == 5) referenced.add(new Collection(object, ScriptValueList.typeChar));
+        else if (type == 6) referenced.add(new Collection(object, ScriptValueMap.typeChar));
+    }
+
+    /**
+     * Removes a collection from the database, and from the {@link SQLCollectionCache}, see {@link SQLBackend#drop(StringID)}
+     */
+    private void remove(Collection collection) throws SQLException {
+        int rows = SQLBackend.drop(new StringID(collection.id));
+        //noinspection ConstantConditions // there is a cycle
+        report.rowsRemoved += rows;
+        if (collection.type == ScriptValueList.typeChar) report.listsRemoved++;
+        else report.dictionariesRemoved++;
+    }
+
+    /**
+     * @return what the last cycle did, {@code null} if none ended yet
+     */
+    public synchronized @Nullable Report getLastReport() {
+        return lastReport;
+    }
+
+    /**
+     * Stops the background cycles, the current one is left as it is.
+     */
+    public void close() {
+        if (running == this) running = null;
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * What a cycle did
+     */
+    public static class Report {
+        private final long start = System.nanoTime();
+        private int collectionsRead, collectionsMarked, listsRemoved, dictionariesRemoved, steps;
+        private long rowsRemoved, workTime, duration;
+
+        public int getCollectionsRemoved() {
+            return listsRemoved + dictionariesRemoved;
+        }
+
+        public int getListsRemoved() {
+            return listsRemoved;
+        }
+
+        public int getDictionariesRemoved() {
+            return dictionariesRemoved;
+        }
+
+        /**
+         * @return the number of elements that the removed collections had
+         */
+        public long getRowsRemoved() {
+            return rowsRemoved;
+        }
+
+        /**
+         * @return the number of collections that are kept, including the ones made during the cycle that have an
+         * object in memory
+         */
+        public int getCollectionsMarked() {
+            return collectionsMarked;
+        }
+
+        public int getCollectionsRead() {
+            return collectionsRead;
+        }
+
+        public int getSteps() {
+            return steps;
+        }
+
+        /**
+         * @return the time spent in the steps, in nanoseconds
+         */
+        public long getWorkTime() {
+            return workTime;
+        }
+
+        /**
+         * @return the time from the start to the end of the cycle, in nanoseconds
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("removed %d lists and %d dictionaries (%d elements), %d collections kept, %d read, in %d steps taking %d ms (%d ms in total)",
+                    listsRemoved, dictionariesRemoved, rowsRemoved, collectionsMarked, collectionsRead, steps,
+                    TimeUnit.NANOSECONDS.toMillis(workTime), TimeUnit.NANOSECONDS.toMillis(duration));
+        }
+    }
+
+    private static class Collection {
+        final String id;
+        final char type;
+
+        Collection(String id, char type) {
+            this.id = id;
+            this.type = type;
+        }
+    }
+
+    private static class InUseCount {
+        final char type;
+        int count;
+
+        InUseCount(char type) {
+            this.type = type;
+        }
+    }
+
+    private static class InUseReference extends WeakReference<ScriptValueCollection> {
+        final String id;
+
+        InUseReference(ScriptValueCollection collection, String id) {
+            super(collection, unreachableObjects);
+            this.id = id;
+        }
+    }
+}
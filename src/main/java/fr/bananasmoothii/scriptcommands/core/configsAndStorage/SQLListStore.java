@@ -0,0 +1,441 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptException;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The elements of a list in SQL, for the {@link SQLBackend}. An element is a row with its {@code index}, its object
+ * and its type (see {@link ScriptValueCollection#toSQLObject(ScriptValue, Context)}).
+ */
+@SuppressWarnings("unchecked")
+class SQLListStore<E> extends SQLCollectionStore implements StorageBackend.ListStore<E> {
+
+    /** The columns of the table of a list, with the table-per-collection layout */
+    private static final String COLUMNS = "`index` INT PRIMARY KEY, `object` TEXT, `type` TINYINT NOT NULL";
+
+    /**
+     * In SQL, the {@code index} column isn't exactly the index of the element: the elements have consecutive
+     * {@code index}es, but starting from any number, so the first element can be removed, or an element added
+     * before it, without changing all the others. An element added or removed in the middle only moves the elements
+     * on the shortest side. A list that was empty starts at this number, so there is room before it. It never goes
+     * under 0.
+     */
+    private static final int FIRST_SQL_INDEX = 1 << 20;
+
+    SQLListStore(@NotNull StringID stringID, @NotNull SQLBackend backend) {
+        super(stringID, backend);
+    }
+
+    @Override
+    protected String columns() {
+        return COLUMNS;
+    }
+
+    @Override
+    protected char typeChar() {
+        return ScriptValueList.typeChar;
+    }
+
+    @Override
+    public int size(@Nullable Context context) {
+        int[] bounds = getSQLBounds(context);
+        return bounds[1] - bounds[0] + 1;
+    }
+
+    /**
+     * As the {@code index}es are consecutive, this is only two lookups in the index of the table, unlike a
+     * {@code COUNT(*)}. They are in two subqueries because SQLite only does that with one {@code MIN} or {@code MAX}
+     * per query, else it reads the whole table.
+     * They are kept in the {@link SQLCollectionCache}.
+     * @return the smallest and the biggest {@code index} in SQL, {@link #FIRST_SQL_INDEX} and the one before it if
+     * this list is empty. It can be modified.
+     */
+    private int[] getSQLBounds(@Nullable Context context) {
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        int[] cached = (int[]) cache.get(stringID, SQLCollectionCache.BOUNDS);
+        if (cached != null) return cached.clone();
+        long stamp = cache.stamp(stringID);
+        String query = "SELECT " + firstSQLIndex() + ", (SELECT MAX(`index`) FROM " + table() + where(null) + ')';
+        try (ResultSet rs = Storage.executeSQLQuery(query)) {
+            rs.next();
+            int first = rs.getInt(1);
+            int[] bounds = rs.wasNull() ? new int[] {FIRST_SQL_INDEX, FIRST_SQL_INDEX - 1} : new int[] {first, rs.getInt(2)};
+            cache.load(stringID, SQLCollectionCache.BOUNDS, bounds.clone(), stamp);
+            return bounds;
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+    }
+
+    /**
+     * @return a subquery giving the {@code index} of the first element, for {@code SELECT}s only as MySQL doesn't
+     * allow it in an {@code UPDATE} or a {@code DELETE} of the same table
+     */
+    private String firstSQLIndex() {
+        return "(SELECT MIN(`index`) FROM " + table() + where(null) + ')';
+    }
+
+    /**
+     * Adds <strong>delta</strong> to the {@code index} of the elements matching <strong>condition</strong>, that has
+     * <strong>bound</strong> as parameter. In the table of a list (table-per-collection layout), the {@code index} is
+     * unique and the rows aren't updated in a known order, so they first go to negative {@code index}es, that aren't
+     * used, and then back.
+     */
+    private void shiftSQLIndexes(String condition, int bound, int delta, @Nullable Context context) {
+        String query = "UPDATE " + table() + " SET `index` = " + (Storage.isSingleTableLayout() ? "`index` + ?" : "-(`index` + ?) - 1") + where(condition);
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            ps.setInt(1, delta);
+            ps.setInt(2, bound);
+            ps.executeUpdate();
+            if (! Storage.isSingleTableLayout()) {
+                query = "UPDATE " + table() + " SET `index` = -`index` - 1" + where("`index` < 0");
+                Storage.executeSQLUpdate(query);
+            }
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        } finally {
+            Storage.getCollectionCache().invalidate(stringID);
+        }
+    }
+
+    /**
+     * @param boundsAfter what {@link #getSQLBounds(Context)} gives once the element is added
+     */
+    private void insertInSQL(int sqlIndex, ScriptValue<E> element, int[] boundsAfter, @Nullable Context context) {
+        ScriptValueCollection.prepareForSQL(element, context);
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        String query = insert();
+        synchronized (cache.writeLock(stringID)) {
+            try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+                ps.setInt(1, sqlIndex);
+                ScriptValueCollection.setScriptValueInPreparedStatement(ps, element, 2, 3, context);
+                query += " => " + ps;
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                cache.invalidate(stringID);
+                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+            }
+            cache.written(stringID, sqlIndex, element);
+            cache.update(stringID, SQLCollectionCache.BOUNDS, boundsAfter);
+        }
+    }
+
+    @Override
+    public void add(@NotNull ScriptValue<E> element, @Nullable Context context) {
+        int[] bounds = getSQLBoundsWithRoomFor(1, context);
+        insertInSQL(bounds[1] + 1, element, new int[] {bounds[0], bounds[1] + 1}, context);
+    }
+
+    /**
+     * The elements are inserted in one transaction, by batches (see {@link Storage#executeSQLBatch(String, Iterable)}),
+     * or copied in the database by a single {@code INSERT ... SELECT} if <strong>elements</strong> is a list using
+     * SQL too.
+     */
+    @Override
+    public boolean addAll(@NotNull Collection<? extends ScriptValue<E>> elements, @Nullable Context context) {
+        if (elements instanceof ScriptValueList && ((ScriptValueList<?>) elements).getStore() instanceof SQLListStore)
+            return addAllFromSQL((SQLListStore<?>) ((ScriptValueList<?>) elements).getStore(), context);
+        List<ScriptValue<E>> elementList = new ArrayList<>(elements);
+        if (elementList.isEmpty()) return false;
+        // before the transaction, as it may make collections use SQL
+        String[] objects = new String[elementList.size()];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = ScriptValueCollection.toSQLObject(elementList.get(i), context);
+        }
+        int[] bounds = getSQLBoundsWithRoomFor(elementList.size(), context);
+        List<SQLWriteBehind.Binder> rows = new ArrayList<>(elementList.size());
+        for (int i = 0; i < objects.length; i++) {
+            int sqlIndex = bounds[1] + 1 + i;
+            String object = objects[i];
+            ScriptValue<E> element = elementList.get(i);
+            rows.add(ps -> {
+                ps.setInt(1, sqlIndex);
+                ps.setString(2, object);
+                ps.setByte(3, element != null ? element.type.asByte : 0);
+            });
+        }
+        String query = insert();
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        try {
+            Storage.executeSQLBatch(query, rows);
+        } catch (SQLException e) {
+            cache.invalidate(stringID);
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+        cache.update(stringID, SQLCollectionCache.BOUNDS, new int[] {bounds[0], bounds[1] + elementList.size()});
+        return true;
+    }
+
+    /**
+     * Copies the elements of <strong>source</strong> after the last element of this list, in the database. Like when
+     * iterating over it, what is done to <strong>source</strong> by an other thread at the same time may not be
+     * copied.
+     */
+    private boolean addAllFromSQL(SQLListStore<?> source, @Nullable Context context) {
+        int[] sourceBounds = source.getSQLBounds(context);
+        int count = sourceBounds[1] - sourceBounds[0] + 1;
+        if (count == 0) return false;
+        int[] bounds = getSQLBoundsWithRoomFor(count, context);
+        if (source.stringID.equals(stringID)) sourceBounds = bounds; // it may have been moved
+        String query = Storage.getSQLCollectionCopy(SQLTable, stringID, insertColumns(),
+                "`index` + ?, " + objectColumn() + ", " + typeColumn(), source.SQLTable, source.stringID, "`index` BETWEEN ? AND ?");
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        int copied;
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            ps.setInt(1, bounds[1] + 1 - sourceBounds[0]);
+            ps.setInt(2, sourceBounds[0]);
+            ps.setInt(3, sourceBounds[0] + count - 1);
+            copied = ps.executeUpdate();
+        } catch (SQLException e) {
+            cache.invalidate(stringID);
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+        if (copied == count) cache.update(stringID, SQLCollectionCache.BOUNDS, new int[] {bounds[0], bounds[1] + count});
+        else cache.invalidate(stringID);
+        SQLGarbageCollector.copiedInSQL(stringID, ScriptValueList.typeChar);
+        return true;
+    }
+
+    /**
+     * @return {@link #getSQLBounds(Context)}, after moving the elements back to {@link #FIRST_SQL_INDEX} if adding
+     * <strong>count</strong> elements at the end would go over {@link Integer#MAX_VALUE}
+     */
+    private int[] getSQLBoundsWithRoomFor(int count, @Nullable Context context) {
+        int[] bounds = getSQLBounds(context);
+        if (bounds[1] > Integer.MAX_VALUE - count) { // only after billions of elements were added and removed, like in a queue
+            shiftSQLIndexes("`index` >= ?", bounds[0], FIRST_SQL_INDEX - bounds[0], context);
+            bounds[1] -= bounds[0] - FIRST_SQL_INDEX;
+            bounds[0] = FIRST_SQL_INDEX;
+        }
+        return bounds;
+    }
+
+    @Override
+    public void add(int index, @NotNull ScriptValue<E> element, @Nullable Context context) {
+        int[] bounds = getSQLBounds(context);
+        int size = bounds[1] - bounds[0] + 1;
+        int sqlIndex = bounds[0] + index;
+        if (index == size) {
+            insertInSQL(sqlIndex, element, new int[] {bounds[0], bounds[1] + 1}, context);
+        } else if (index < size - index && bounds[0] > 0) {
+            // the elements before move back
+            if (index != 0) shiftSQLIndexes("`index` < ?", sqlIndex, -1, context);
+            insertInSQL(sqlIndex - 1, element, new int[] {bounds[0] - 1, bounds[1]}, context);
+        } else {
+            shiftSQLIndexes("`index` >= ?", sqlIndex, 1, context);
+            insertInSQL(sqlIndex, element, new int[] {bounds[0], bounds[1] + 1}, context);
+        }
+    }
+
+    /**
+     * This is a single {@code UPDATE}
+     */
+    @Override
+    public void set(int index, @NotNull ScriptValue<E> element, @Nullable Context context) {
+        if (index < 0) // it would be an other element, or nothing
+            throw outOfBounds(index, context);
+        ScriptValueCollection.prepareForSQL(element, context);
+        int sqlIndex = getSQLBounds(context)[0] + index;
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        String query = "UPDATE " + table() + " SET " + objectColumn() + " = ?, " + typeColumn() + " = ?" + where("`index` = ?");
+        synchronized (cache.writeLock(stringID)) {
+            try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+                ps.setInt(3, sqlIndex);
+                ScriptValueCollection.setScriptValueInPreparedStatement(ps, element, 1, 2, context);
+                query += " => " + ps;
+                if (ps.executeUpdate() == 0) // there is no element at that index
+                    throw outOfBounds(index, context);
+            } catch (SQLException e) {
+                cache.invalidate(stringID);
+                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+            }
+            cache.written(stringID, sqlIndex, element);
+        }
+    }
+
+    @Override
+    public @NotNull ScriptValue<E> get(int index, @Nullable Context context) {
+        if (index < 0)
+            throw outOfBounds(index, context);
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        long stamp = cache.stamp(stringID);
+        int sqlIndex = index;
+        if (cache.isEnabled()) { // the bounds are probably in memory too, so this may not read anything
+            int[] bounds = getSQLBounds(context);
+            if (index > bounds[1] - bounds[0])
+                throw outOfBounds(index, context);
+            sqlIndex += bounds[0];
+            Object cached = cache.get(stringID, sqlIndex);
+            if (cached != null) return (ScriptValue<E>) cached;
+        }
+        String query = "SELECT " + objectColumn() + ", " + typeColumn() + " FROM " + table()
+                + where(cache.isEnabled() ? "`index` = ?" : "`index` = " + firstSQLIndex() + " + ?");
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            ps.setInt(1, sqlIndex);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (! rs.next()) // there is no element at that index
+                    throw outOfBounds(index, context);
+                ScriptValue<E> element = (ScriptValue<E>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2));
+                if (cache.isEnabled()) cache.load(stringID, sqlIndex, element, stamp);
+                return element;
+            }
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+    }
+
+    /**
+     * Only the elements on the shortest side of <strong>index</strong> move, and none when it is the first or the
+     * last one.
+     */
+    @Override
+    public void remove(int index, @Nullable Context context) {
+        int[] bounds = getSQLBounds(context);
+        int size = bounds[1] - bounds[0] + 1;
+        int sqlIndex = bounds[0] + index;
+        String query = "DELETE FROM " + table() + where("`index` = ?");
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        synchronized (cache.writeLock(stringID)) {
+            try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+                ps.setInt(1, sqlIndex);
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                cache.invalidate(stringID);
+                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+            }
+            cache.update(stringID, sqlIndex, null);
+        }
+        boolean fromStart = index < size - 1 - index;
+        if (fromStart) {
+            if (index != 0) shiftSQLIndexes("`index` < ?", sqlIndex, 1, context);
+        } else if (index != size - 1) {
+            shiftSQLIndexes("`index` > ?", sqlIndex, -1, context);
+        }
+        cache.update(stringID, SQLCollectionCache.BOUNDS, fromStart ? new int[] {bounds[0] + 1, bounds[1]} : new int[] {bounds[0], bounds[1] - 1});
+    }
+
+    @Override
+    public int indexOf(@NotNull ScriptValue<?> element, boolean last, @Nullable Context context) {
+        String query = "SELECT `index` - " + firstSQLIndex() + " FROM " + table() + where(objectColumn() + " = ? AND " + typeColumn() + " = ?")
+                + " ORDER BY `index` " + (last ? "DESC" : "ASC") + " LIMIT 1";
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            ScriptValueCollection.setScriptValueInPreparedStatement(ps, element, 1, 2, context);
+            query += " => " + ps;
+            try (ResultSet resultSet = ps.executeQuery()) {
+                if (! resultSet.next()) return -1;
+                return resultSet.getInt(1);
+            }
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+    }
+
+    @Override
+    public boolean contains(@NotNull ScriptValue<?> element, @Nullable Context context) {
+        String query = "SELECT 1 FROM " + table() + where(objectColumn() + " = ? AND " + typeColumn() + " = ?") + " LIMIT 1";
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            ScriptValueCollection.setScriptValueInPreparedStatement(ps, element, 1, 2, context);
+            query += " => " + ps;
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+    }
+
+    /**
+     * One {@code SELECT} of the rows between the two {@code index}es. The elements are new objects, read from the
+     * database.
+     */
+    @Override
+    public @NotNull List<ScriptValue<E>> getRange(int fromIndex, int toIndex, @Nullable Context context) {
+        List<ScriptValue<E>> range = new ArrayList<>(toIndex - fromIndex);
+        String query = "SELECT " + objectColumn() + ", " + typeColumn() + " FROM " + table()
+                + where("`index` BETWEEN " + firstSQLIndex() + " + ? AND " + firstSQLIndex() + " + ?") + " ORDER BY `index`";
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            ps.setInt(1, fromIndex);
+            ps.setInt(2, toIndex - 1);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    range.add((ScriptValue<E>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2)));
+                }
+            }
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+        return range;
+    }
+
+    /**
+     * The elements are read by pages in the order of their {@code index}, see {@link SQLResultIterator}. It stops at
+     * the last {@code index} there was when it started.
+     */
+    @Override
+    public @NotNull Iterator<ScriptValue<E>> iterator(@Nullable Context context) {
+        return new SQLResultIterator<ScriptValue<E>>(objectColumn() + ", " + typeColumn(), "`index`", table(),
+                condition -> where(condition == null ? "`index` <= ?" : condition + " AND `index` <= ?"), context, getSQLBounds(context)[1]) {
+            @Override
+            protected ScriptValue<E> read(ResultSet rs) throws SQLException {
+                return (ScriptValue<E>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2));
+            }
+        };
+    }
+
+    @Override
+    public @NotNull List<ScriptValue<E>> snapshot(@Nullable Context context) {
+        List<ScriptValue<E>> elements = new ArrayList<>();
+        iterator(context).forEachRemaining(elements::add);
+        return elements;
+    }
+
+    /**
+     * @return an {@code INSERT} with the index, the object and the type as parameters
+     */
+    private String insert() {
+        return Storage.getSQLInsert(SQLTable, stringID, insertColumns());
+    }
+
+    private static String[] insertColumns() {
+        return new String[] {"index", Storage.isSingleTableLayout() ? "value_object" : "object", Storage.isSingleTableLayout() ? "value_type" : "type"};
+    }
+
+    /**
+     * The elements table of the single-table layout is shared with dictionaries, so the element is in the columns of
+     * the value.
+     */
+    private static String objectColumn() {
+        return Storage.isSingleTableLayout() ? "`value_object`" : "`object`";
+    }
+
+    private static String typeColumn() {
+        return Storage.isSingleTableLayout() ? "`value_type`" : "`type`";
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptException;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * The entries of a dictionary in SQL, for the {@link SQLBackend}. An entry is a row with the hash of its key (see
+ * {@link #getSQLKeyHash(String, byte)}), its key and its value.
+ */
+@SuppressWarnings("unchecked")
+class SQLMapStore<K, V> extends SQLCollectionStore implements StorageBackend.MapStore<K, V> {
+
+    /** The columns of the table of a dictionary, with the table-per-collection layout */
+    private static final String COLUMNS = "`key_hash` CHAR(32) UNIQUE, `key_object` TEXT, `key_type` TINYINT NOT NULL, `value_object` TEXT, `value_type` TINYINT NOT NULL";
+    private static final String[] UPSERT_COLUMNS = {"key_hash", "key_object", "key_type", "value_object", "value_type"};
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    });
+
+    SQLMapStore(@NotNull StringID stringID, @NotNull SQLBackend backend) {
+        super(stringID, backend);
+    }
+
+    @Override
+    protected String columns() {
+        return COLUMNS;
+    }
+
+    @Override
+    protected char typeChar() {
+        return ScriptValueMap.typeChar;
+    }
+
+    @Override
+    public int size(@Nullable Context context) {
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        Integer cached = (Integer) cache.get(stringID, SQLCollectionCache.SIZE);
+        if (cached != null) return cached;
+        long stamp = cache.stamp(stringID);
+        String query = "SELECT COUNT(*) FROM " + table() + where(null);
+        try (ResultSet rs = Storage.executeSQLQuery(query)) {
+            rs.next();
+            int size = rs.getInt(1);
+            cache.load(stringID, SQLCollectionCache.SIZE, size, stamp);
+            return size;
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+    }
+
+    /**
+     * Values aren't indexed, but the database only gives the rows that may be equal. Collections are equal if they
+     * have the same elements, so all of them have to be compared.
+     */
+    @Override
+    public boolean containsValue(@NotNull ScriptValue<?> value, @Nullable Context context) {
+        boolean isCollection = value.v instanceof ScriptValueCollection;
+        String query = "SELECT `value_object`, `value_type` FROM " + table()
+                + where(isCollection ? "`value_type` = ?" : "`value_type` = ? AND `value_object` " + getSQLEqualsSign(value) + " ?");
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            ps.setByte(1, value.type.asByte);
+            if (! isCollection) ps.setString(2, ScriptValueCollection.toSQLObject(value, context));
+            query += " => " + ps;
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ScriptValue<?> objectTested = ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2));
+                    if (objectTested.equals(value)) return true;
+                }
+            }
+            return false;
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+    }
+
+    @Override
+    public boolean containsKey(@NotNull ScriptValue<?> key, @Nullable Context context) {
+        return getFromSQL(getSQLKeyHash(key, context), context) != SQLCollectionCache.ABSENT;
+    }
+
+    @Override
+    public @Nullable ScriptValue<V> get(@NotNull ScriptValue<?> key, @Nullable Context context) {
+        Object value = getFromSQL(getSQLKeyHash(key, context), context);
+        return value == SQLCollectionCache.ABSENT ? null : (ScriptValue<V>) value;
+    }
+
+    /**
+     * Reads the value of a key from the {@link SQLCollectionCache}, or from the database if it isn't there.
+     * @return the value, or {@link SQLCollectionCache#ABSENT} if the key isn't in this map
+     */
+    private Object getFromSQL(String keyHash, @Nullable Context context) {
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        Object cached = cache.get(stringID, keyHash);
+        if (cached != null) return cached;
+        long stamp = cache.stamp(stringID);
+        String query = "SELECT `value_object`, `value_type` FROM " + table() + where("`key_hash` = ?");
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            ps.setString(1, keyHash);
+            query += " => " + ps;
+            try (ResultSet rs = ps.executeQuery()) {
+                Object value = rs.next() ? ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2)) : SQLCollectionCache.ABSENT;
+                cache.load(stringID, keyHash, value, stamp);
+                return value;
+            }
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+    }
+
+    /**
+     * This is one upsert ({@code INSERT} that updates the value if the key is already there, see
+     * {@link Storage#getSQLCollectionUpsert(String, StringID, String[], String...)}). The value is also kept in the
+     * {@link SQLCollectionCache}.
+     */
+    @Override
+    public void put(@NotNull ScriptValue<K> key, @NotNull ScriptValue<V> value, @Nullable Context context) {
+        String keyHash = getSQLKeyHash(key, context); // also makes the key use SQL if it is a collection
+        ScriptValueCollection.prepareForSQL(value, context);
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        String query = Storage.getSQLCollectionUpsert(SQLTable, stringID, UPSERT_COLUMNS, "key_hash");
+        synchronized (cache.writeLock(stringID)) {
+            try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+                ps.setString(1, keyHash);
+                ScriptValueCollection.setScriptValueInPreparedStatement(ps, key, 2, 3, context);
+                ScriptValueCollection.setScriptValueInPreparedStatement(ps, value, 4, 5, context);
+                query += " => " + ps;
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                cache.invalidate(stringID);
+                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+            }
+            cache.written(stringID, keyHash, value);
+        }
+    }
+
+    /**
+     * The entries are upserted in one transaction, by batches (see {@link Storage#executeSQLBatch(String, Iterable)}),
+     * or copied in the database by a single upsert from a {@code SELECT} if <strong>entries</strong> is a dictionary
+     * using SQL too.
+     */
+    @Override
+    public void putAll(@NotNull Map<? extends ScriptValue<K>, ? extends ScriptValue<V>> entries, @Nullable Context context) {
+        if (entries instanceof ScriptValueMap && ((ScriptValueMap<?, ?>) entries).getStore() instanceof SQLMapStore) {
+            putAllFromSQL((SQLMapStore<?, ?>) ((ScriptValueMap<?, ?>) entries).getStore(), context);
+            return;
+        }
+        List<SQLWriteBehind.Binder> rows = new ArrayList<>(entries.size());
+        // before the transaction, as it may make collections use SQL
+        for (Map.Entry<? extends ScriptValue<K>, ? extends ScriptValue<V>> entry : entries.entrySet()) {
+            ScriptValue<K> key = entry.getKey();
+            ScriptValue<V> value = entry.getValue();
+            String keyObject = ScriptValueCollection.toSQLObject(key, context);
+            String keyHash = getSQLKeyHash(keyObject, key.type.asByte);
+            String valueObject = ScriptValueCollection.toSQLObject(value, context);
+            rows.add(ps -> {
+                ps.setString(1, keyHash);
+                ps.setString(2, keyObject);
+                ps.setByte(3, key.type.asByte);
+                ps.setString(4, valueObject);
+                ps.setByte(5, value != null ? value.type.asByte : 0);
+            });
+        }
+        if (rows.isEmpty()) return;
+        String query = Storage.getSQLCollectionUpsert(SQLTable, stringID, UPSERT_COLUMNS, "key_hash");
+        try {
+            Storage.executeSQLBatch(query, rows);
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        } finally {
+            Storage.getCollectionCache().invalidate(stringID);
+        }
+    }
+
+    /**
+     * Copies the entries of <strong>source</strong> in the database, replacing the values of the keys that are
+     * already in this map. The key hashes are the same in all the dictionaries, so they are copied too.
+     */
+    private void putAllFromSQL(SQLMapStore<?, ?> source, @Nullable Context context) {
+        String query = Storage.getSQLCollectionCopy(SQLTable, stringID, UPSERT_COLUMNS,
+                "`key_hash`, `key_object`, `key_type`, `value_object`, `value_type`", source.SQLTable, source.stringID,
+                null, "key_hash");
+        try {
+            Storage.executeSQLUpdate(query);
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        } finally {
+            Storage.getCollectionCache().invalidate(stringID);
+        }
+        SQLGarbageCollector.copiedInSQL(stringID, ScriptValueMap.typeChar);
+    }
+
+    @Override
+    public void remove(@NotNull ScriptValue<?> key, @Nullable Context context) {
+        String keyHash = getSQLKeyHash(key, context);
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        String query = "DELETE FROM " + table() + where("`key_hash` = ?");
+        synchronized (cache.writeLock(stringID)) {
+            try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+                ps.setString(1, keyHash);
+                query += " => " + ps;
+                ps.executeUpdate();
+            } catch (SQLException e) {
+                cache.invalidate(stringID);
+                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+            }
+            cache.written(stringID, keyHash, SQLCollectionCache.ABSENT);
+        }
+    }
+
+    /**
+     * The keys are read by pages, see {@link SQLResultIterator}
+     */
+    @Override
+    public @NotNull Iterator<ScriptValue<K>> keyIterator(@Nullable Context context) {
+        return new SQLResultIterator<ScriptValue<K>>("`key_object`, `key_type`", "`key_hash`", table(), this::where, context) {
+            @Override
+            protected ScriptValue<K> read(ResultSet rs) throws SQLException {
+                return (ScriptValue<K>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2));
+            }
+        };
+    }
+
+    /**
+     * The values are read by pages, see {@link SQLResultIterator}
+     */
+    @Override
+    public @NotNull Iterator<ScriptValue<V>> valueIterator(@Nullable Context context) {
+        return new SQLResultIterator<ScriptValue<V>>("`value_object`, `value_type`", "`key_hash`", table(), this::where, context) {
+            @Override
+            protected ScriptValue<V> read(ResultSet rs) throws SQLException {
+                return (ScriptValue<V>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2));
+            }
+        };
+    }
+
+    /**
+     * The entries are read by pages, see {@link SQLResultIterator}. Their key and their value are only made when they
+     * are asked.
+     */
+    @Override
+    public @NotNull Iterator<Map.Entry<ScriptValue<K>, ScriptValue<V>>> iterator(@Nullable Context context) {
+        return new SQLResultIterator<Map.Entry<ScriptValue<K>, ScriptValue<V>>>("`key_object`, `key_type`, `value_object`, `value_type`",
+                "`key_hash`", table(), this::where, context) {
+            @Override
+            protected Map.Entry<ScriptValue<K>, ScriptValue<V>> read(ResultSet rs) throws SQLException {
+                /*
+                 For some cloudy reason, when you do the "try return ResultSet.get... catch" block inside
+                 the getKey and getValue methods, the debugger can't look at what's inside the map,
+                 it gets an SQLException: ResultSet closed (wrapped in a ScriptException of course),
+                 although "map.toString()" does work, and this problem happens only in Intellij Idea's
+                 debugger, it works as a normal line of code.
+                */
+                String sqlKey = rs.getString(1);
+                byte sqlKeyType = rs.getByte(2);
+                String sqlValue = rs.getString(3);
+                byte sqlValueType = rs.getByte(4);
+
+                return new Map.Entry<ScriptValue<K>, ScriptValue<V>>() {
+
+                    @Override
+                    public ScriptValue<V> setValue(ScriptValue<V> value) {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    @Override
+                    public ScriptValue<K> getKey() {
+                        return (ScriptValue<K>) ScriptValueCollection.transformToScriptValue(sqlKey, sqlKeyType);
+                    }
+
+                    @Override
+                    public ScriptValue<V> getValue() {
+                        return (ScriptValue<V>) ScriptValueCollection.transformToScriptValue(sqlValue, sqlValueType);
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public @NotNull List<Map.Entry<ScriptValue<K>, ScriptValue<V>>> snapshot(@Nullable Context context) {
+        List<Map.Entry<ScriptValue<K>, ScriptValue<V>>> entries = new ArrayList<>();
+        iterator(context).forEachRemaining(entries::add);
+        return entries;
+    }
+
+    /**
+     * @return the key hash of <strong>key</strong>, see {@link #getSQLKeyHash(String, byte)}
+     */
+    private static String getSQLKeyHash(ScriptValue<?> key, @Nullable Context context) {
+        return getSQLKeyHash(ScriptValueCollection.toSQLObject(key, context), key.type.asByte);
+    }
+
+    /**
+     * Keys are found with their hash, stored in the {@code key_hash} column that has a unique index: the key itself is
+     * {@code TEXT}, that can't be in a unique index with MySQL, and can be {@code NULL}. The hash is the first 128 bits
+     * of the SHA-256 of the key as it is stored, in hexadecimal, so two different keys can't have the same hash, even
+     * if they are chosen for that.
+     * @param object the key as it is stored in the {@code key_object} column
+     * @param type the type of the key, as it is stored in the {@code key_type} column
+     */
+    static String getSQLKeyHash(@Nullable String object, byte type) {
+        MessageDigest digest = sha256.get();
+        digest.update(type);
+        if (object != null) { // so NULL and "" are different
+            digest.update((byte) 1);
+            digest.update(object.getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] hash = digest.digest();
+        char[] hex = new char[32];
+        for (int i = 0; i < 16; i++) {
+            hex[i * 2] = Character.forDigit((hash[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(hash[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * @return "IS" if the object is none or true, else "="
+     */
+    static String getSQLEqualsSign(ScriptValue<?> object) {
+        return object.is(ScriptValue.ScriptValueType.NONE) || (object.is(ScriptValue.ScriptValueType.BOOLEAN) && ! object.asBoolean()) ? "IS" : "=";
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Iterates over the elements of a collection in SQL, reading them by pages of {@link Storage#getSQLFetchSize()} rows.
+ * Each page is read with its own short query, starting after the key of the last row of the previous page (as
+ * {@code WHERE key > ? ORDER BY key LIMIT n}, so the key must be unique and indexed), and its cursor is closed right
+ * away. So the memory used doesn't depend on the size of the collection, and no cursor stays open (keeping a
+ * connection, and a read transaction with SQLite) while the elements are used, even if they aren't all read.
+ * <br/>
+ * The rows added, removed or moved while iterating may or may not be seen, but a row is never given twice.
+ * @param <T> what each row gives
+ */
+abstract class SQLResultIterator<T> implements Iterator<T> {
+    private final String firstPageQuery, nextPageQuery;
+    private final int fetchSize;
+    private final @Nullable Context context;
+    private final Object[] parameters;
+
+    private List<T> page = new ArrayList<>();
+    private int positionInPage;
+    private @Nullable Object lastKey;
+    private boolean lastPage;
+
+    /**
+     * @param columns the columns given to {@link #read(ResultSet)}, separated by commas
+     * @param keyColumn the column the rows are sorted by, that has to be unique
+     * @param table the table, with backquotes
+     * @param where gives the {@code WHERE} part of the query for a condition that may be {@code null}, like
+     *              {@link Storage#getSQLWhere(StringID, String)}
+     * @param parameters the values of the {@code ?} that <strong>where</strong> adds, after the condition it is given
+     */
+    SQLResultIterator(@NotNull String columns, @NotNull String keyColumn, @NotNull String table,
+                      @NotNull Function<String, String> where, @Nullable Context context, Object... parameters) {
+        this.context = context;
+        this.parameters = parameters;
+        fetchSize = Storage.getSQLFetchSize();
+        String end = " ORDER BY " + keyColumn + " LIMIT " + fetchSize;
+        firstPageQuery = "SELECT " + columns + ", " + keyColumn + " FROM " + table + where.apply(null) + end;
+        nextPageQuery = "SELECT " + columns + ", " + keyColumn + " FROM " + table + where.apply(keyColumn + " > ?") + end;
+    }
+
+    /**
+     * @return what the current row of <strong>rs</strong> gives. It shouldn't move the cursor.
+     */
+    protected abstract T read(ResultSet rs) throws SQLException;
+
+    @Override
+    public boolean hasNext() {
+        if (positionInPage < page.size()) return true;
+        if (lastPage) return false;
+        readNextPage();
+        return positionInPage < page.size();
+    }
+
+    @Override
+    public T next() {
+        if (! hasNext()) throw new NoSuchElementException();
+        return page.get(positionInPage++);
+    }
+
+    private void readNextPage() {
+        String query = lastKey == null ? firstPageQuery : nextPageQuery;
+        List<T> nextPage = new ArrayList<>(Math.min(fetchSize, 64));
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            int parameterIndex = 1;
+            if (lastKey != null) ps.setObject(parameterIndex++, lastKey);
+            for (Object parameter : parameters) {
+                ps.setObject(parameterIndex++, parameter);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                int keyIndex = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    nextPage.add(read(rs));
+                    lastKey = rs.getObject(keyIndex);
+                }
+            }
+        } catch (SQLException e) {
+            lastPage = true;
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        }
+        lastPage = nextPage.size() < fetchSize;
+        page = nextPage;
+        positionInPage = 0;
+    }
+}
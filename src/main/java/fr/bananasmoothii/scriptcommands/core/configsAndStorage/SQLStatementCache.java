@@ -0,0 +1,340 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the {@link PreparedStatement}s of a {@link Connection} once they were used, so running the same SQL again
+ * doesn't prepare it again. Statements are found by their SQL, which is the same each time for the same collection.
+ * <br/>
+ * A statement is only given to one user at a time: what {@link #prepare(String)} returns goes back to the cache when
+ * it is closed (so it has to be closed, with a try-with-resources for example), and the statement behind a
+ * {@link ResultSet} of {@link #executeQuery(String)} goes back when that {@link ResultSet} is closed. If the same SQL
+ * is needed while its statement is used, an other statement is prepared, so nested queries don't close each other's
+ * results.
+ * <br/>
+ * At most {@link #MAX_STATEMENTS} statements are kept, the ones that weren't used for the longest time are closed
+ * first. Statements that aren't {@code SELECT}, {@code INSERT}, {@code UPDATE} or {@code DELETE} (like
+ * {@code CREATE TABLE}) are never kept.
+ * <br/>
+ * Each connection of the {@link SQLConnectionPool} has its own cache, as a statement can only be used with the
+ * connection that prepared it.
+ */
+public class SQLStatementCache {
+    public static final int MAX_STATEMENTS = 256;
+
+    private final Connection connection;
+    private final @Nullable Consumer<SQLException> onError;
+
+    /** idle statements by SQL, the least recently used first. Guarded by "this". */
+    private final LinkedHashMap<String, ArrayDeque<PreparedStatement>> idleStatements = new LinkedHashMap<>(16, 0.75f, true);
+    /** guarded by "this" */
+    private int idleCount;
+    /** guarded by "this" */
+    private boolean closed;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    public SQLStatementCache(@NotNull Connection connection) {
+        this(connection, null);
+    }
+
+    /**
+     * @param onError called with each {@link SQLException} thrown by the statements and results of this cache, so the
+     *                connection can be known to be broken
+     */
+    public SQLStatementCache(@NotNull Connection connection, @Nullable Consumer<SQLException> onError) {
+        this.connection = connection;
+        this.onError = onError;
+    }
+
+    /**
+     * @return a statement for <strong>sql</strong>, that must be closed to go back to the cache
+     */
+    public @NotNull PreparedStatement prepare(@NotNull String sql) throws SQLException {
+        return prepare(sql, null);
+    }
+
+    /**
+     * @param onClose called once when the statement is closed
+     * @return a statement for <strong>sql</strong>, that must be closed to go back to the cache
+     */
+    public @NotNull PreparedStatement prepare(@NotNull String sql, @Nullable Runnable onClose) throws SQLException {
+        return lease(sql, borrow(sql), onClose);
+    }
+
+    /**
+     * @return the result of <strong>sql</strong>, closing it makes its statement go back to the cache
+     */
+    public @NotNull ResultSet executeQuery(@NotNull String sql) throws SQLException {
+        return executeQuery(sql, null);
+    }
+
+    /**
+     * @param onClose called once when the result is closed, or right away if the query fails
+     * @return the result of <strong>sql</strong>, closing it makes its statement go back to the cache
+     */
+    public @NotNull ResultSet executeQuery(@NotNull String sql, @Nullable Runnable onClose) throws SQLException {
+        PreparedStatement ps;
+        ResultSet rs;
+        try {
+            ps = borrow(sql);
+        } catch (SQLException | RuntimeException e) {
+            if (onClose != null) onClose.run();
+            throw e;
+        }
+        try {
+            rs = ps.executeQuery();
+        } catch (SQLException | RuntimeException e) {
+            release(sql, ps);
+            if (onClose != null) onClose.run();
+            failed(e);
+            throw e;
+        }
+        return closingAlsoReleases(rs, sql, ps, onClose);
+    }
+
+    /**
+     * @return the number of rows modified
+     */
+    public int executeUpdate(@NotNull String sql) throws SQLException {
+        if (! isCacheable(sql)) {
+            try (Statement statement = connection.createStatement()) {
+                return statement.executeUpdate(sql);
+            } catch (SQLException e) {
+                throw failed(e);
+            }
+        }
+        PreparedStatement ps = borrow(sql);
+        try {
+            return ps.executeUpdate();
+        } catch (SQLException e) {
+            throw failed(e);
+        } finally {
+            release(sql, ps);
+        }
+    }
+
+    private PreparedStatement borrow(String sql) throws SQLException {
+        synchronized (this) {
+            if (closed) throw new SQLException("the statement cache is closed");
+            ArrayDeque<PreparedStatement> idle = idleStatements.get(sql);
+            if (idle != null) {
+                PreparedStatement ps = idle.poll();
+                if (idle.isEmpty()) idleStatements.remove(sql);
+                idleCount--;
+                hits.incrementAndGet();
+                return ps;
+            }
+        }
+        misses.incrementAndGet();
+        try {
+            return connection.prepareStatement(sql);
+        } catch (SQLException e) {
+            throw failed(e);
+        }
+    }
+
+    private <E extends Throwable> E failed(E e) {
+        if (onError != null && e instanceof SQLException) onError.accept((SQLException) e);
+        return e;
+    }
+
+    private void release(String sql, PreparedStatement ps) {
+        try {
+            if (! isCacheable(sql) || ps.isClosed()) {
+                ps.close();
+                return;
+            }
+            ps.clearParameters();
+            ps.clearBatch(); // or rows added to a batch that failed would be sent by the next user
+        } catch (SQLException e) {
+            closeQuietly(ps);
+            return;
+        }
+        List<PreparedStatement> toClose = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                toClose.add(ps);
+            } else {
+                idleStatements.computeIfAbsent(sql, k -> new ArrayDeque<>(1)).add(ps);
+                idleCount++;
+                Iterator<ArrayDeque<PreparedStatement>> iterator = idleStatements.values().iterator();
+                while (idleCount > MAX_STATEMENTS) {
+                    ArrayDeque<PreparedStatement> leastRecentlyUsed = iterator.next();
+                    idleCount -= leastRecentlyUsed.size();
+                    toClose.addAll(leastRecentlyUsed);
+                    iterator.remove();
+                }
+            }
+        }
+        for (PreparedStatement statement : toClose) {
+            closeQuietly(statement);
+        }
+    }
+
+    /**
+     * Closes every statement kept, but not the connection. Statements that are used at that time are closed when
+     * they are given back, and results are closed with the connection.
+     */
+    public void close() {
+        List<PreparedStatement> toClose = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (ArrayDeque<PreparedStatement> statements : idleStatements.values()) {
+                toClose.addAll(statements);
+            }
+            idleStatements.clear();
+            idleCount = 0;
+        }
+        for (PreparedStatement statement : toClose) {
+            closeQuietly(statement);
+        }
+    }
+
+    /**
+     * @return how many times a statement was already prepared
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many times a statement had to be prepared
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getIdleStatementCount() {
+        return idleCount;
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits(), misses = getMisses();
+        return String.format("%d statements reused, %d prepared (%.1f%% hit ratio), %d kept", hits, misses,
+                hits + misses == 0 ? 0d : hits * 100d / (hits + misses), getIdleStatementCount());
+    }
+
+    private static boolean isCacheable(String sql) {
+        int start = 0;
+        while (start < sql.length() && Character.isWhitespace(sql.charAt(start))) start++;
+        String keyword = sql.substring(start, Math.min(sql.length(), start + 6)).toUpperCase(Locale.ROOT);
+        return keyword.equals("SELECT") || keyword.equals("INSERT") || keyword.equals("UPDATE") || keyword.equals("DELETE");
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * @return something that behaves like <strong>ps</strong>, except that closing it gives <strong>ps</strong> back to
+     * the cache.
+     */
+    private PreparedStatement lease(String sql, PreparedStatement ps, @Nullable Runnable onClose) {
+        return (PreparedStatement) Proxy.newProxyInstance(SQLStatementCache.class.getClassLoader(), new Class<?>[] {PreparedStatement.class},
+                new ReleasingHandler(ps) {
+                    @Override
+                    void onClose() {
+                        try {
+                            release(sql, ps);
+                        } finally {
+                            if (onClose != null) onClose.run();
+                        }
+                    }
+                });
+    }
+
+    private ResultSet closingAlsoReleases(ResultSet rs, String sql, PreparedStatement ps, @Nullable Runnable onClose) {
+        return (ResultSet) Proxy.newProxyInstance(SQLStatementCache.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                new ReleasingHandler(rs) {
+                    @Override
+                    void onClose() throws SQLException {
+                        try {
+                            rs.close();
+                        } finally {
+                            try {
+                                release(sql, ps);
+                            } finally {
+                                if (onClose != null) onClose.run();
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Forwards everything to the real object, except {@code close()} that is done once, with {@link #onClose()}
+     */
+    private abstract class ReleasingHandler implements java.lang.reflect.InvocationHandler {
+        private final Object target;
+        private boolean closed;
+
+        ReleasingHandler(Object target) {
+            this.target = target;
+        }
+
+        abstract void onClose() throws SQLException;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    synchronized (this) {
+                        if (closed) return null;
+                        closed = true;
+                    }
+                    onClose();
+                    return null;
+                case "isClosed":
+                    synchronized (this) {
+                        if (closed) return true;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return target.toString();
+            }
+            synchronized (this) {
+                // the real object may be used by someone else now
+                if (closed) throw new SQLException(method.getName() + "() called after close()");
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw failed(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.execution.RunStatistics;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes SQL statements later, in a single writer thread, so the threads doing the modifications don't wait for the
+ * database. Writes are done in the order they were {@link #enqueue enqueued}, in batches of at most {@code flushSize}
+ * statements, each batch in one transaction with a connection of the {@link SQLConnectionPool} (so a connection
+ * closed by the server is replaced).
+ * <br/>
+ * A batch that can't be written is tried again after a pause, longer after each failure, and stays at the head of the
+ * queue until it is written: nothing is lost while the database is unreachable, the later writes just wait. Only when
+ * this is {@link #close() closed} are the writes that still fail given up.
+ * <br/>
+ * If the writer thread stops anyway (because of an {@link Error}), {@link #enqueue enqueue()} and {@link #flush()}
+ * throw an {@link IllegalStateException} instead of accepting writes that would never be written.
+ * <br/>
+ * As writes are delayed, the collections using this have to remember the values that aren't written yet (see
+ * {@link StringScriptValueMap}), or call {@link #flush()} before reading the database.
+ */
+public class SQLWriteBehind {
+    private static final int MAX_ATTEMPTS = 3;
+    /** in milliseconds, doubled after each failure */
+    private static final long FIRST_RETRY_DELAY = 500, MAX_RETRY_DELAY = 30_000;
+
+    private final SQLConnectionPool pool;
+    private final long flushIntervalNanos;
+    private final int flushSize;
+    private final Thread writerThread;
+    private final RunStatistics flushStatistics = new RunStatistics();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition written = lock.newCondition();
+    // these are guarded by "lock"
+    private final ArrayDeque<Write> queue = new ArrayDeque<>();
+    private long enqueuedCount, writtenCount;
+    private boolean flushRequested, closed;
+    /** whether the writer thread stopped without being closed */
+    private boolean stopped;
+    /** failed attempts since the last batch that was written, only used by the writer thread */
+    private int failures;
+
+    /**
+     * @param pool where the connection of each transaction is taken, it isn't closed by {@link #close()}
+     * @param flushInterval in milliseconds, the maximum time a write waits before being written
+     * @param flushSize the maximum number of statements written in one transaction
+     */
+    public SQLWriteBehind(@NotNull SQLConnectionPool pool, long flushInterval, int flushSize) {
+        if (flushSize <= 0) throw new IllegalArgumentException("flushSize must be positive");
+        this.pool = pool;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+        this.flushSize = flushSize;
+        writerThread = new Thread(this::run, "ScriptCommands-SQL-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Sets the parameters of a {@link PreparedStatement}. It should only use values that won't change, as it is
+     * called later, in the writer thread.
+     */
+    @FunctionalInterface
+    public interface Binder {
+        void bind(PreparedStatement ps) throws SQLException;
+    }
+
+    /**
+     * @param sql the statement to execute, with {@code ?} for the parameters
+     * @param onWritten called in the writer thread after the transaction containing this write was committed, or when
+     *                  the write is given up because this is closed.
+     * @throws IllegalStateException if this was {@link #close() closed}, or if the writer thread stopped
+     */
+    public void enqueue(@NotNull String sql, @NotNull Binder binder, @Nullable Runnable onWritten) {
+        lock.lock();
+        try {
+            if (closed) throw new IllegalStateException("the SQL writer is closed");
+            if (stopped) throw new IllegalStateException("the SQL writer thread stopped, nothing can be written to the database anymore");
+            queue.add(new Write(sql, binder, onWritten));
+            enqueuedCount++;
+            if (queue.size() == 1 || queue.size() >= flushSize) notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until everything that was enqueued before this call is written.
+     * @throws IllegalStateException if the writer thread stopped before writing everything
+     */
+    public void flush() {
+        if (Thread.currentThread() == writerThread) return;
+        lock.lock();
+        try {
+            long target = enqueuedCount;
+            if (writtenCount >= target) return;
+            flushRequested = true;
+            notEmpty.signal();
+            while (writtenCount < target && ! stopped) {
+                written.await();
+            }
+            if (writtenCount < target) {
+                throw new IllegalStateException("the SQL writer thread stopped, " + (enqueuedCount - writtenCount) + " modifications won't be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes everything that is left, then stops the writer thread. The writes that still can't be written after
+     * {@link #MAX_ATTEMPTS} attempts are lost.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of writes that are not written yet
+     */
+    public int getPendingWrites() {
+        lock.lock();
+        try {
+            return (int) (enqueuedCount - writtenCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how many batches were written and how long it took
+     */
+    public @NotNull RunStatistics getFlushStatistics() {
+        return flushStatistics;
+    }
+
+    private void run() {
+        try {
+            writeUntilClosed();
+        } catch (Throwable e) {
+            CustomLogger.severe("The SQL writer thread stopped, the modifications that are not written yet are lost: " + e);
+            throw e;
+        } finally {
+            lock.lock();
+            try {
+                if (! closed || ! queue.isEmpty()) stopped = true;
+                written.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void writeUntilClosed() {
+        while (true) {
+            List<Write> batch;
+            lock.lock();
+            try {
+                while (queue.isEmpty() && ! closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (queue.isEmpty()) return; // closed
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (queue.size() < flushSize && ! flushRequested && ! closed) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    notEmpty.awaitNanos(remaining);
+                }
+                batch = new ArrayList<>(Math.min(queue.size(), flushSize));
+                while (batch.size() < flushSize && ! queue.isEmpty()) {
+                    batch.add(queue.poll());
+                }
+                if (queue.isEmpty()) flushRequested = false;
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean done = write(batch);
+
+            lock.lock();
+            try {
+                if (done) {
+                    writtenCount += batch.size();
+                    written.signalAll();
+                } else {
+                    // it stays first, so the writes are still in order
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        queue.addFirst(batch.get(i));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return whether the batch was written, or given up because this is closed. If not, it has to be written again.
+     */
+    private boolean write(List<Write> batch) {
+        long start = System.nanoTime();
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                pool.runInTransaction(connection -> {
+                    executeBatch(connection, batch);
+                    return null;
+                });
+                failures = 0;
+                break;
+            } catch (SQLException | RuntimeException e) {
+                long delay = Math.min(MAX_RETRY_DELAY, FIRST_RETRY_DELAY << Math.min(failures++, 16));
+                if (attempt < MAX_ATTEMPTS) {
+                    CustomLogger.warning("Error while writing to the database, trying again in " + delay + "ms: " + e);
+                } else if (isClosed()) {
+                    CustomLogger.severe("Could not write " + batch.size() + " modifications to the database, they are lost: " + e);
+                    e.printStackTrace();
+                    break;
+                } else {
+                    CustomLogger.severe("Could not write " + batch.size() + " modifications to the database, they will be tried again in " + delay + "ms: " + e);
+                    pause(delay);
+                    return false;
+                }
+                pause(delay);
+            }
+        }
+        flushStatistics.record(System.nanoTime() - start);
+        for (Write write : batch) {
+            if (write.onWritten == null) continue;
+            try {
+                write.onWritten.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    private boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for <strong>millis</strong> ms, or until this is closed
+     */
+    private void pause(long millis) {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(millis);
+            while (remaining > 0 && ! closed) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+        } catch (InterruptedException ignored) {
+            // trying again now
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Consecutive writes with the same statement are sent in one JDBC batch
+     */
+    private static void executeBatch(Connection connection, List<Write> batch) throws SQLException {
+        PreparedStatement ps = null;
+        String currentSql = null;
+        try {
+            for (Write write : batch) {
+                if (! write.sql.equals(currentSql)) {
+                    if (ps != null) {
+                        ps.executeBatch();
+                        ps.close();
+                    }
+                    ps = connection.prepareStatement(write.sql);
+                    currentSql = write.sql;
+                }
+                write.binder.bind(ps);
+                ps.addBatch();
+            }
+            if (ps != null) ps.executeBatch();
+        } finally {
+            if (ps != null) ps.close();
+        }
+    }
+
+    private static class Write {
+        final String sql;
+        final Binder binder;
+        final @Nullable Runnable onWritten;
+
+        Write(String sql, Binder binder, @Nullable Runnable onWritten) {
+            this.sql = sql;
+            this.binder = binder;
+            this.onWritten = onWritten;
+        }
+    }
+}
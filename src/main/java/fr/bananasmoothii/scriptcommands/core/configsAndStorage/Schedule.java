@@ -22,14 +22,58 @@ import java.io.IOException;
 import java.util.HashMap;
 
 public class Schedule extends ContainingScripts {
+    /**
+     * In seconds
+     */
     public int interval, startDelay;
+    /**
+     * In seconds. The first run is delayed by a random time between 0 and that, so schedules with the same interval
+     * don't all run at the same time.
+     */
+    public double jitter;
+    /**
+     * Whether the script runs in an other thread instead of the main server thread
+     */
+    public boolean async;
+    public MissedRunPolicy missedRunPolicy;
 
     public Schedule(String name, HashMap<String, Object> hashMap) throws IOException, ScriptsParsingException {
         super(name, hashMap, "schedules");
         Config.missingThing = "schedules." + name + ".interval";
         assert hashMap.containsKey("interval");
         interval = (int) hashMap.get("interval");
+        assert interval > 0 : "interval must be greater than 0.";
         startDelay = hashMap.containsKey("start-delay") ? (int) hashMap.get("start-delay") : 0;
 
+        Config.missingThing = "schedules." + name + ".jitter";
+        jitter = hashMap.containsKey("jitter") ? ((Number) hashMap.get("jitter")).doubleValue() : 0;
+        assert jitter >= 0 : "jitter cannot be negative.";
+
+        Config.missingThing = "schedules." + name + ".async";
+        async = hashMap.containsKey("async") && (boolean) hashMap.get("async");
+
+        Config.missingThing = "schedules." + name + ".missed-runs";
+        missedRunPolicy = hashMap.containsKey("missed-runs")
+                ? MissedRunPolicy.valueOf(hashMap.get("missed-runs").toString().toUpperCase().replace('-', '_'))
+                : MissedRunPolicy.COALESCE;
+    }
+
+    /**
+     * What to do when a schedule should have run but couldn't, because the server was lagging or because the last
+     * run isn't finished yet.
+     */
+    public enum MissedRunPolicy {
+        /**
+         * Missed runs are forgotten
+         */
+        SKIP,
+        /**
+         * All missed runs are done only once, as soon as possible
+         */
+        COALESCE,
+        /**
+         * Every missed run is done, one after the other
+         */
+        CATCH_UP
     }
 }
@@ -51,6 +51,8 @@ public interface ScriptValueCollection extends Cloneable {
      *     </li>
      *     <li>the {@link StringID}</li>
      * </ol>
+     * With the {@link Storage#isSingleTableLayout() single-table layout}, that table doesn't exist, this is only the
+     * name of the collection: its elements are in {@link Storage#getSQLElementsTable()}.
      * @see #getStringID()
      * @see #getTypeChar()
      * @return The SQL table used (its full name), {@code null} if the collection doesn't use SQL
@@ -104,20 +106,38 @@ public interface ScriptValueCollection extends Cloneable {
      */
     static void setScriptValueInPreparedStatement(PreparedStatement ps, ScriptValue<?> element, int objectIndex, int typeIndex, @Nullable Context context) throws SQLException {
         if (! Storage.isSQL) throw new NullPointerException("the storage class isn't using SQL");
+        ps.setString(objectIndex, toSQLObject(element, context));
+        ps.setByte(typeIndex, element != null ? element.type.asByte : 0);
+    }
+
+    /**
+     * @return what is stored in the "object" column for <strong>element</strong>, its type being stored separately.
+     * Collections are made using SQL as only their {@link StringID} is stored.
+     */
+    static @Nullable String toSQLObject(@Nullable ScriptValue<?> element, @Nullable Context context) {
         if (element == null || element.is(ScriptValue.ScriptValueType.NONE)) {
-            ps.setString(objectIndex, null);
+            return null;
         } else if (element.v instanceof ScriptValueCollection) {
-            ScriptValueCollection collection = (ScriptValueCollection) element.v;
-            if (! collection.isUsingSQLIfPossible()) {
-                collection.makeSQL(context);
-            }
-            ps.setString(objectIndex, collection.getStringID().toString());
+            prepareForSQL(element, context);
+            return ((ScriptValueCollection) element.v).getStringID().toString();
         } else if (element.is(ScriptValue.ScriptValueType.BOOLEAN)) {
-            ps.setString(objectIndex, element.asBoolean() ? "" : null);
+            return element.asBoolean() ? "" : null;
         } else {
-            ps.setString(objectIndex, element.toString());
+            return element.toString();
+        }
+    }
+
+    /**
+     * If <strong>element</strong> is a collection, makes it use SQL, as only its {@link StringID} can be stored.
+     * {@link #setScriptValueInPreparedStatement(PreparedStatement, ScriptValue, int, int, Context)} already does this,
+     * but it can be done before when the statement is executed later.
+     */
+    static void prepareForSQL(@Nullable ScriptValue<?> element, @Nullable Context context) {
+        if (element == null || ! (element.v instanceof ScriptValueCollection)) return;
+        ScriptValueCollection collection = (ScriptValueCollection) element.v;
+        if (! collection.isUsingSQLIfPossible()) {
+            collection.makeSQL(context);
         }
-        ps.setByte(typeIndex, element != null ? element.type.asByte : 0);
     }
 
     /**
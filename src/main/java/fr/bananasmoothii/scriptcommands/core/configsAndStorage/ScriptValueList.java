@@ -26,60 +26,50 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 
 @SuppressWarnings({"unchecked"})
 public class ScriptValueList<E> extends AbstractScriptValueList<E> {
 
-    /** with prefix, null if isSQL is false. */
-    private @Nullable String SQLTable;
-
     /** @see ScriptValueCollection#getSQLTable() */
     public static final char typeChar = 'l';
 
-    private int timesModifiedSinceLastSave = 1;
     /**
-     * Not null only with json, use {@code arrayList == null} to know if this list (class) is using SQL.
+     * Where the elements are, made by {@link Storage#getBackend()} if this list uses SQL, else by
+     * {@link MemoryBackend#getShared()}. It is only replaced by {@link #makeSQL(Context)}.
      */
-    private @Nullable List<ScriptValue<E>> internalList;
+    private @NotNull StorageBackend.ListStore<E> store;
 
     private final Object modificationLock = new Object();
 
-    private @NotNull StringID stringID;
-    
     private final boolean useSQLIfPossible;
 
-    private static StringID lastStringID;
+    /**
+     * The value of the unloaded global variable this is in, so that value stays in memory while this is used, see
+     * {@link StringScriptValueMap#unloadColdVariables()}
+     */
+    volatile @Nullable ScriptValue<?> unloadedVariable;
 
     public ScriptValueList() {
         this(false);
     }
 
     /**
-     * @param useSQLIfPossible if null, everything will be stored in a normal {@link ArrayList}
+     * @param useSQLIfPossible if false, everything will be stored in a normal {@link ArrayList}
      */
     public ScriptValueList(boolean useSQLIfPossible) {
         super();
         this.useSQLIfPossible = useSQLIfPossible;
-        // from here to the creation of the SQL table, "this" will throw an error in debuggers because the table doesn't exist, so size() or toString() won't work
-        stringID = getNewStringID();
         if (canUseSQL()) {
-            SQLTable = getFullSQLTableName();
-            String query = "CREATE TABLE " + SQLTable + " (`index` INT PRIMARY KEY, `object` TEXT, `type` TINYINT NOT NULL)";
-            try {
-                Storage.executeSQLUpdate(query);
-            } catch (SQLException e) {
-                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query);
-            }
+            StringID stringID = Storage.getIDAllocator().next();
+            SQLGarbageCollector.inUse(this, stringID);
+            store = Storage.getBackend().createList(stringID, null);
         } else {
-            internalList = new ArrayList<>();
+            store = MemoryBackend.getShared().createList(StringIDAllocator.nextLocal(), null);
         }
         modified();
     }
@@ -110,117 +100,65 @@ public class ScriptValueList<E> extends AbstractScriptValueList<E> {
         if (! Storage.isSQL)
             throw new NotUsingSQLException("the provided Storage class is not using SQL");
         useSQLIfPossible = true;
-        this.stringID = stringID;
-        SQLTable = getFullSQLTableName();
-        if (! Storage.sqlTableExists(SQLTable))
-            throw new NullPointerException("SQL table " + SQLTable + " does not exist");
+        SQLGarbageCollector.inUse(this, stringID);
+        store = Storage.getBackend().getList(stringID);
         modified();
     }
 
-    private static StringID getNewStringID() {
-        StringID currentID = lastStringID != null ? lastStringID.nextID() : new StringID(0);
-        if (Storage.isSQL) {
-            while (Storage.sqlTableExists(getFullSQLTableName(currentID))) {
-                currentID = currentID.nextID();
-            }
-        }
-        lastStringID = currentID;
-        return currentID;
-    }
-
-    private int lastSize = -1;
-
     @Override
     public int size(@Nullable Context context) {
-        if (internalList != null) return internalList.size();
-        if (lastSize != -1 && timesModifiedSinceLastSave == 0) return lastSize;
-        String query = "SELECT COUNT(*) FROM `" + SQLTable + '`';
-        try {
-            ResultSet rs = Storage.executeSQLQuery(query);
-            rs.next();
-            lastSize = rs.getInt(1);
-            return lastSize;
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+        return store.size(context);
     }
 
     @Override
     @Contract(value = "_, _->true", mutates = "this") // as in List#add(E)
     public boolean add(ScriptValue<E> element, @Nullable Context context) {
-        if (internalList != null) {
-            synchronized (modificationLock) {
-                internalList.add(element);
-            }
-            modified();
-            return true;
+        synchronized (modificationLock) {
+            store.add(element, context);
         }
-        String query = "INSERT INTO `" + SQLTable + "` VALUES(?, ?, ?)";
-        try {
-            PreparedStatement ps = Storage.prepareSQLStatement(query);
-            ps.setInt(1, size());
-            ScriptValueCollection.setScriptValueInPreparedStatement(ps, element, 2, 3, context);
-            query += " => " + ps;
-            ps.executeUpdate();
-            modified();
-            return true;
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        modified();
+        return true;
+    }
+
+    /**
+     * With SQL, the elements are inserted in one transaction, by batches (see {@link Storage#executeSQLBatch(String, Iterable)}),
+     * or copied in the database by a single {@code INSERT ... SELECT} if <strong>c</strong> is a list using SQL too.
+     */
+    @Override
+    public boolean addAll(Collection<? extends ScriptValue<E>> c, @Nullable Context context) {
+        boolean modified;
+        synchronized (modificationLock) {
+            modified = store.addAll(c, context);
         }
+        if (modified) modified();
+        return modified;
     }
 
     @Override
     public void add(int index, ScriptValue<E> element, @Nullable Context context) {
         rangeCheckForAdd(index, context);
-        if (internalList != null) {
-            synchronized (modificationLock) {
-                internalList.add(index, element);
-            }
-            modified();
-            return;
-        }
-        String query = "UPDATE `" + SQLTable + "` SET `index` = `index` + 1 WHERE `index` >= " + index;
-        try {
-            Storage.executeSQLUpdate(query);
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query);
-        }
-        query = "INSERT INTO `" + SQLTable + "` VALUES(?, ?, ?)";
-        try {
-            PreparedStatement ps = Storage.prepareSQLStatement(query);
-            ps.setInt(1, index);
-            ScriptValueCollection.setScriptValueInPreparedStatement(ps, element, 2, 3, context);
-            query += " => " + ps;
-            ps.executeUpdate();
-            modified();
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        synchronized (modificationLock) {
+            store.add(index, element, context);
         }
+        modified();
     }
 
     @Override
     public ScriptValue<E> set(int index, ScriptValue<E> element, @Nullable Context context) {
-        rangeCheck(index, context);
-        if (internalList != null) {
-            ScriptValue<E> ret;
-            synchronized (modificationLock) {
-                ret = internalList.set(index, element);
-            }
-            modified();
-            return ret;
-        }
-        ScriptValue<E> previousElement = get(index, context);
-        String query = "UPDATE `" + SQLTable + "` SET `object` = ?, `type` = ? WHERE `index` = ?";
-        try {
-            PreparedStatement ps = Storage.prepareSQLStatement(query);
-            ps.setInt(3, index);
-            ScriptValueCollection.setScriptValueInPreparedStatement(ps, element, 1, 2, context);
-            ps.executeUpdate();
-            query += " => " + ps;
-            modified();
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        return set(index, element, true, context);
+    }
+
+    /**
+     * With SQL, this is a single {@code UPDATE}, plus a {@code SELECT} if the previous element is needed.
+     * @param returnPrevious if false, this always returns {@code null}
+     */
+    public @Nullable ScriptValue<E> set(int index, ScriptValue<E> element, boolean returnPrevious, @Nullable Context context) {
+        ScriptValue<E> previousElement;
+        synchronized (modificationLock) {
+            previousElement = returnPrevious ? store.get(index, context) : null;
+            store.set(index, element, context);
         }
+        modified();
         return previousElement;
     }
 
@@ -230,18 +168,7 @@ public class ScriptValueList<E> extends AbstractScriptValueList<E> {
      */
     @Override
     public ScriptValue<E> get(int index, @Nullable Context context) {
-        rangeCheck(index, context);
-        if (internalList != null) {
-            return internalList.get(index);
-        }
-        String query = "SELECT `object`, `type` FROM `" + SQLTable + "` WHERE `index` = " + index;
-        try {
-            ResultSet rs = Storage.executeSQLQuery(query);
-            rs.next();
-            return (ScriptValue<E>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2));
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+        return store.get(index, context);
     }
 
     /**
@@ -257,121 +184,58 @@ public class ScriptValueList<E> extends AbstractScriptValueList<E> {
      */
     public ScriptValue<E> remove(int index, @Nullable Context context) {
         rangeCheck(index, context);
-        if (internalList != null) {
-            ScriptValue<E> ret;
-            synchronized (modificationLock) {
-                ret = internalList.remove(index);
-            }
-            modified();
-            return ret;
-        }
-        ScriptValue<E> previous = get(index, context);
-        String query = "DELETE FROM `" + SQLTable + "` WHERE `index` = " + index;
-        try {
-            Storage.executeSQLUpdate(query);
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query);
-        }
-        query = "UPDATE `" + SQLTable + "` SET `index` = `index` - 1 WHERE `index` > " + index;
-        try {
-            Storage.executeSQLUpdate(query);
-            modified();
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        ScriptValue<E> previous;
+        synchronized (modificationLock) {
+            previous = store.get(index, context);
+            store.remove(index, context);
         }
+        modified();
         return previous;
     }
 
     @Override
     public boolean remove(Object o, @Nullable Context context) {
         if (! (o instanceof ScriptValue)) return false;
-        if (internalList != null) {
-            boolean ret;
-            synchronized (modificationLock) {
-                ret = internalList.remove(o);
-            }
-            modified();
-            return ret;
+        synchronized (modificationLock) {
+            int index = store.indexOf((ScriptValue<?>) o, false, context);
+            if (index == -1) return false;
+            store.remove(index, context);
         }
-        int index = indexOf(o, context);
-        if (index == -1) return false;
-        remove(index, context);
+        modified();
         return true;
     }
 
     @Override
     public int indexOf(Object o, @Nullable Context context) {
         if (! (o instanceof ScriptValue)) return -1;
-        if (internalList != null) {
-            return internalList.indexOf(o);
-        }
-        return indexOf(o, "ASC", context);
+        return store.indexOf((ScriptValue<?>) o, false, context);
     }
 
     @Override
     public int lastIndexOf(Object o, @Nullable Context context) {
         if (! (o instanceof ScriptValue)) return -1;
-        if (internalList != null) {
-            return internalList.lastIndexOf(o);
-        }
-        return indexOf(o, "DESC", context);
-    }
-
-    private int indexOf(Object o, String order, @Nullable Context context) {
-        ScriptValue<?> element = (ScriptValue<?>) o;
-        String query = "SELECT `index` FROM `" + SQLTable + "` WHERE `object` = ? AND `type` = ? ORDER BY `index` " + order + " LIMIT 1";
-        try {
-            PreparedStatement ps = Storage.prepareSQLStatement(query);
-            ScriptValueCollection.setScriptValueInPreparedStatement(ps, element, 1, 2, context);
-            query += " => " + ps;
-            ResultSet resultSet = ps.executeQuery();
-            if (! resultSet.next()) return -1;
-            return resultSet.getInt(1);
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+        return store.indexOf((ScriptValue<?>) o, true, context);
     }
 
     @Override
     public void clear(@Nullable Context context) {
-        if (!isEmpty(context)) return;
-
-        if (internalList != null) {
-            synchronized (modificationLock) {
-                internalList.clear();
-            }
-            modified();
-            return;
-        }
-        String query = "DELETE FROM `" + SQLTable + '`';
-        try {
-            Storage.executeSQLUpdate(query);
-            modified();
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        if (isEmpty(context)) return;
+
+        synchronized (modificationLock) {
+            store.clear(context);
         }
+        modified();
     }
 
+    /**
+     * @return a new list not using SQL, with copies of the elements
+     */
     @Override
     public @NotNull ScriptValueList<E> subList(int fromIndex, int toIndex, @Nullable Context context) {
         rangeCheck(fromIndex, context);
         rangeCheck(toIndex - 1, context);
         ScriptValueList<E> newList = new ScriptValueList<>();
-        if (internalList != null) {
-            for (; fromIndex < toIndex; fromIndex++) {
-                newList.add(get(fromIndex, context).clone());
-            }
-            return newList;
-        }
-        String query = "SELECT `object`, `type` FROM `" + SQLTable + "` WHERE `index` BETWEEN " + fromIndex + " AND " + (toIndex - 1) + " ORDER BY `index`";
-        try {
-            ResultSet rs = Storage.executeSQLQuery(query);
-            while (rs.next()) {
-                newList.add((ScriptValue<E>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2)), context);
-            }
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+        newList.addAll(store.getRange(fromIndex, toIndex, context), context);
         return newList;
     }
 
@@ -380,67 +244,53 @@ public class ScriptValueList<E> extends AbstractScriptValueList<E> {
         return (ScriptValueList<E>) super.subList(fromIndex, toIndex);
     }
 
+    /**
+     * With SQL, the elements are read by pages in the order of their {@code index}, see {@link SQLResultIterator}.
+     * Like with {@link #listIterator(Context)}, the elements added at the end while iterating aren't given, so adding
+     * elements in a {@code for} loop doesn't make it endless.
+     */
+    @Override
+    public @NotNull Iterator<ScriptValue<E>> iterator(@Nullable Context context) {
+        return store.iterator(context);
+    }
+
     @Override
     public boolean contains(Object o, @Nullable Context context) {
         if (! (o instanceof ScriptValue)) return false;
-        if (internalList != null) return internalList.contains(o);
-        String query = "SELECT * FROM `" + SQLTable + "` WHERE `object` = ? AND `type` = ? LIMIT 1";
-        try {
-            PreparedStatement ps = Storage.prepareSQLStatement(query);
-            ScriptValueCollection.setScriptValueInPreparedStatement(ps, (ScriptValue<?>) o, 1, 2, context);
-            query += " => " + ps;
-            ResultSet rs = ps.executeQuery();
-            return rs.next();
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+        return store.contains((ScriptValue<?>) o, context);
     }
 
 
     /**
      * Provides a copy of this ScriptValueList, but not using SQL and with no {@link Storage}.
-     * The elements themselves are not copied over.
+     * The elements are copies too.
      * @see Object#clone()
      */
     @Override
     public ScriptValueList<E> clone() {
         synchronized (modificationLock) {
             ScriptValueList<E> clone = new ScriptValueList<>();
-            Storage.ignoreModifications(size()); // we don't want it to save anything here
-            if (internalList != null) {
-                for (ScriptValue<E> scriptValue : this) {
-                    clone.add(scriptValue.clone(), context);
-                }
-                return clone;
-            }
-            clone.addAll(this, context); // element are cloned since the come from a string in SQL
+            if (! isEmpty()) Storage.ignoreModifications(1); // we don't want it to save anything here, everything is added at once
+            clone.addAll(store.getRange(0, store.size(context), context), context);
             return clone;
         }
     }
 
     @Override
     public synchronized boolean makeSQL(@Nullable Context context) {
-        if (internalList == null) return false;
         if (! Storage.isSQL)
             throw new NotUsingSQLException("the provided Storage class is not using SQL");
-        List<ScriptValue<E>> copy = internalList;
-        StringID StringIDBeforeTry = stringID;
-
-        lastSize = -1;
-        internalList = null;
-        stringID = getNewStringID();
-        SQLTable = getFullSQLTableName();
-        String query = "CREATE TABLE " + SQLTable + " (`index` INT PRIMARY KEY, `object` TEXT, `type` TINYINT NOT NULL)";
-        try {
-            Storage.executeSQLUpdate(query);
-            addAll(copy, context);
-            return true;
-        } catch (SQLException e) {
-            internalList = copy;
-            stringID = StringIDBeforeTry;
-            SQLTable = null;
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        if (store.getBackend() == Storage.getBackend()) return false;
+        StringID stringID = Storage.getIDAllocator().next();
+        SQLGarbageCollector.inUse(this, stringID);
+        StorageBackend.ListStore<E> sqlStore = Storage.getBackend().createList(stringID, context);
+        synchronized (modificationLock) {
+            List<ScriptValue<E>> elements = store.snapshot(context);
+            store = sqlStore;
+            sqlStore.addAll(elements, context);
         }
+        modified();
+        return true;
     }
 
     /**
@@ -448,9 +298,24 @@ public class ScriptValueList<E> extends AbstractScriptValueList<E> {
      */
     private void modified() {
         synchronized (modificationLock) {
-            timesModifiedSinceLastSave++;
             Storage.modified(this);
-            lastSize = -1;
+        }
+    }
+
+    /**
+     * @return what the elements are stored in, see {@link StorageBackend}
+     */
+    @NotNull StorageBackend.ListStore<E> getStore() {
+        return store;
+    }
+
+    /**
+     * @return a copy of the elements, all taken at the same time, for reading them while this list may be modified.
+     * @see JsonSnapshotWriter
+     */
+    List<ScriptValue<E>> snapshot() {
+        synchronized (modificationLock) {
+            return store.snapshot(context);
         }
     }
 
@@ -458,10 +323,7 @@ public class ScriptValueList<E> extends AbstractScriptValueList<E> {
      * Contrary of {@link #toScriptValues(Object[], boolean)}
      */
     public List<ScriptValue<E>> toNormalList() {
-        if (internalList != null) return internalList; // could be if !isSQL() too, theoretically
-        List<ScriptValue<E>> a = new ArrayList<>(size());
-        a.addAll(this);
-        return a;
+        return store.snapshot(context);
     }
 
     /**
@@ -478,10 +340,12 @@ public class ScriptValueList<E> extends AbstractScriptValueList<E> {
      */
     public static <T> ScriptValueList<T> toScriptValues(T[] elements, boolean keysAreJson) {
         ScriptValueList<T> list = new ScriptValueList<>();
-        Storage.ignoreModifications(elements.length);
+        if (elements.length != 0) Storage.ignoreModifications(1); // everything is added at once
+        List<ScriptValue<T>> scriptValues = new ArrayList<>(elements.length);
         for (T element: elements) {
-            list.add((ScriptValue<T>) ScriptValue.toScriptValue(element, keysAreJson));
+            scriptValues.add((ScriptValue<T>) ScriptValue.toScriptValue(element, keysAreJson));
         }
+        list.addAll(scriptValues, null);
         return list;
     }
 
@@ -516,7 +380,7 @@ public class ScriptValueList<E> extends AbstractScriptValueList<E> {
 
     @Override
     public @Nullable String getSQLTable() {
-        return SQLTable;
+        return store instanceof SQLCollectionStore ? ((SQLCollectionStore) store).getSQLTable() : null;
     }
 
     @Override
@@ -531,23 +395,7 @@ public class ScriptValueList<E> extends AbstractScriptValueList<E> {
 
     @Override
     public @NotNull StringID getStringID() {
-        return stringID;
-    }
-
-    /**
-     * used just for preventing code duplication in the constructors, after you can just use {@link #getSQLTable()}
-     */
-    private String getFullSQLTableName() {
-        return getFullSQLTableName(stringID);
-    }
-
-    /**
-     * used just for preventing code duplication in the constructors, after you can just use {@link #getSQLTable()}
-     * @return {@code table_prefix + "l" + stringID}
-     */
-    private static String getFullSQLTableName(StringID stringID) {
-        if (! Storage.isSQL) throw new NotUsingSQLException("Storage class is doesn't use SQL");
-        return (String) ((Map<String, Object>) Storage.getRawMap().get("SQLite")).get("table-prefix") + stringID;
+        return store.getStringID();
     }
 
     @Override
@@ -26,9 +26,6 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.*;
 
 /**
@@ -38,26 +35,24 @@ import java.util.*;
 @SuppressWarnings({"unchecked"})
 public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
 
-    /** with prefix, null if isSQL is false. */
-    private @Nullable String SQLTable;
-
     /** @see ScriptValueCollection#getSQLTable() */
     public static final char typeChar = 'd';
 
-    private int timesModifiedSinceLastSave = 1;
-
     /**
-     * Not null only with json, use {@code hashMap == null} to know if this map (class) is using SQL.
+     * Where the entries are, made by {@link Storage#getBackend()} if this map uses SQL, else by
+     * {@link MemoryBackend#getShared()}. It is only replaced by {@link #makeSQL(Context)}.
      */
-    private @Nullable Map<ScriptValue<K>, ScriptValue<V>> internalMap;
+    private @NotNull StorageBackend.MapStore<K, V> store;
 
     private final Object modificationLock = new Object();
 
-    private @NotNull StringID stringID;
-
     private final boolean useSQLIfPossible;
 
-    private static StringID lastStringID;
+    /**
+     * The value of the unloaded global variable this is in, so that value stays in memory while this is used, see
+     * {@link StringScriptValueMap#unloadColdVariables()}
+     */
+    volatile @Nullable ScriptValue<?> unloadedVariable;
 
 
     public ScriptValueMap() {
@@ -70,18 +65,12 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
     public ScriptValueMap(boolean useSQLIfPossible) {
         super();
         this.useSQLIfPossible = useSQLIfPossible;
-        // from here to the creation of the SQL table, "this" will throw an error in debuggers because the table doesn't exist, so size() or toString() won't work
-        stringID = getNewStringID();
         if (canUseSQL()) {
-            SQLTable = getFullSQLTableName();
-            String query = "CREATE TABLE `" + SQLTable + "` (`key_object` TEXT, `key_type` TINYINT NOT NULL, `value_object` TEXT, `value_type` TINYINT NOT NULL)";
-            try {
-                Storage.executeSQLUpdate(query);
-            } catch (SQLException e) {
-                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query);
-            }
+            StringID stringID = Storage.getIDAllocator().next();
+            SQLGarbageCollector.inUse(this, stringID);
+            store = Storage.getBackend().createMap(stringID, null);
         } else {
-            internalMap = new HashMap<>();
+            store = MemoryBackend.getShared().createMap(StringIDAllocator.nextLocal(), null);
         }
         modified();
     }
@@ -113,80 +102,27 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
         if (! Storage.isSQL)
             throw new NotUsingSQLException("the provided Storage class is not using SQL");
         useSQLIfPossible = true;
-        this.stringID = stringID;
-        SQLTable = getFullSQLTableName();
-        if (! Storage.sqlTableExists(SQLTable))
-            throw new NullPointerException("SQL table " + SQLTable + " does not exist");
+        SQLGarbageCollector.inUse(this, stringID);
+        store = Storage.getBackend().getMap(stringID);
         modified();
     }
 
-    private static StringID getNewStringID() {
-        StringID currentID = lastStringID != null ? lastStringID.nextID() : new StringID(0);
-        if (Storage.isSQL) {
-            while (Storage.sqlTableExists(getFullSQLTableName(currentID))) {
-                currentID = currentID.nextID();
-            }
-        }
-        lastStringID = currentID;
-        return currentID;
-    }
-
-    private int lastSize = -1;
-
     @Override
     @Contract(pure = true)
     public int size(@Nullable Context context) {
-        if (internalMap != null) return internalMap.size();
-        if (lastSize != -1 && timesModifiedSinceLastSave == 0) return lastSize;
-        String query = "SELECT COUNT(*) FROM `" + SQLTable + '`';
-        try {
-            ResultSet rs = Storage.executeSQLQuery(query);
-            rs.next();
-            lastSize = rs.getInt(1);
-            return lastSize;
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+        return store.size(context);
     }
 
     @Override
     public boolean containsValue(Object value, @Nullable Context context) {
         if (! (value instanceof ScriptValue)) return false;
-        if (internalMap != null) return internalMap.containsValue(value);
-        String query = "SELECT `value_object`, `value_type` FROM `" + SQLTable + '`';
-        ScriptValue<?> value1 = (ScriptValue<?>) value;
-        try {
-            ResultSet rs = Storage.executeSQLQuery(query);
-            while (rs.next()) {
-                byte type = rs.getByte(2);
-                if (type != value1.type.asByte) continue;
-                ScriptValue<?> objectTested = ScriptValueCollection.transformToScriptValue(rs.getString(1), type);
-                if (objectTested.equals(value1)) return true;
-            }
-            return false;
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+        return store.containsValue((ScriptValue<?>) value, context);
     }
 
     @Override
     public boolean containsKey(Object key, @Nullable Context context) {
         if (! (key instanceof ScriptValue)) return false;
-        if (internalMap != null) return internalMap.containsKey(key);
-        String query = "SELECT `key_object`, `key_type` FROM `" + SQLTable + '`';
-        ScriptValue<?> key1 = (ScriptValue<?>) key;
-        try {
-            ResultSet rs = Storage.executeSQLQuery(query);
-            while (rs.next()) {
-                byte type = rs.getByte(2);
-                if (type != key1.type.asByte) continue;
-                ScriptValue<?> objectTested = ScriptValueCollection.transformToScriptValue(rs.getString(1), type);
-                if (objectTested.equals(key1)) return true;
-            }
-            return false;
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+        return store.containsKey((ScriptValue<?>) key, context);
     }
 
     /**
@@ -199,79 +135,52 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
     @Override
     public ScriptValue<V> get(Object key, @Nullable Context context) {
         if (! (key instanceof ScriptValue)) return null;
-        if (internalMap != null) return internalMap.get(key);
-        String query = "SELECT `value_object`, `value_type` FROM `" + SQLTable + "` WHERE `key_object` " + getSQLEqualsSign((ScriptValue<?>) key) + " ? AND `key_type` = ?";
-        try {
-            PreparedStatement ps = Storage.prepareSQLStatement(query);
-            ScriptValueCollection.setScriptValueInPreparedStatement(ps, (ScriptValue<V>) key, 1, 2, context);
-            query += " => " + ps;
-            ResultSet rs = ps.executeQuery();
-            if (!rs.next()) return (ScriptValue<V>) ScriptValue.NONE;
-            return (ScriptValue<V>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2));
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query);
-        }
+        ScriptValue<V> value = store.get((ScriptValue<?>) key, context);
+        return value != null ? value : (ScriptValue<V>) ScriptValue.NONE;
     }
 
     @Override
     public ScriptValue<V> put(ScriptValue<K> key, ScriptValue<V> value, @Nullable Context context) {
-        ScriptValue<V> previousElement;
-        if (internalMap != null) {
-            synchronized (modificationLock) {
-                previousElement = internalMap.put(key, value);
-            }
-        } else {
-            if (containsKey(key, context)) {
-                previousElement = get(key, context);
-            } else {
-                previousElement = (ScriptValue<V>) ScriptValue.NONE;
-            }
-            if (containsKey(key, context)) {
-                String query = "UPDATE `" + SQLTable + "` SET `value_object` = ?, `value_type` = ? WHERE `key_object` " + getSQLEqualsSign(key) + " ? AND `key_type` = ?";
-                try {
-                    PreparedStatement ps = Storage.prepareSQLStatement(query);
-                    ScriptValueCollection.setScriptValueInPreparedStatement(ps, value, 1, 2, context);
-                    ScriptValueCollection.setScriptValueInPreparedStatement(ps, key, 3, 4, context);
-                    query += " => " + ps;
-                    ps.executeUpdate();
-                } catch (SQLException e) {
-                    throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-                }
-            } else {
-                String query = "INSERT INTO `" + SQLTable + "` VALUES(?, ?, ?, ?)";
-                try {
-                    PreparedStatement ps = Storage.prepareSQLStatement(query);
-                    ScriptValueCollection.setScriptValueInPreparedStatement(ps, key, 1, 2, context);
-                    ScriptValueCollection.setScriptValueInPreparedStatement(ps, value, 3, 4, context);
-                    query += " => " + ps;
-                    ps.executeUpdate();
-                } catch (SQLException e) {
-                    throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-                }
-            }
+        return put(key, value, true, context);
+    }
+
+    /**
+     * With SQL, this is one upsert ({@code INSERT} that updates the value if the key is already there, see
+     * {@link Storage#getSQLCollectionUpsert(String, StringID, String[], String...)}), plus a {@code SELECT} if the
+     * previous value is needed. The value is also kept in the {@link SQLCollectionCache}.
+     * @param returnPrevious if false, this always returns {@code null}
+     */
+    public @Nullable ScriptValue<V> put(ScriptValue<K> key, ScriptValue<V> value, boolean returnPrevious, @Nullable Context context) {
+        ScriptValue<V> previousElement = null;
+        synchronized (modificationLock) {
+            if (returnPrevious) previousElement = get(key, context);
+            store.put(key, value, context);
         }
         modified();
         return previousElement;
     }
 
+    /**
+     * With SQL, the entries are upserted in one transaction, by batches (see {@link Storage#executeSQLBatch(String, Iterable)}),
+     * or copied in the database by a single upsert from a {@code SELECT} if <strong>m</strong> is a dictionary using
+     * SQL too.
+     */
+    @Override
+    public void putAll(Map<? extends ScriptValue<K>, ? extends ScriptValue<V>> m, @Nullable Context context) {
+        if (m == this || m.isEmpty()) return;
+        synchronized (modificationLock) {
+            store.putAll(m, context);
+        }
+        modified();
+    }
+
     @Override
     public ScriptValue<V> remove(Object key, @Nullable Context context) {
-        ScriptValue<V> previousElement = get(key, context);
-        if (internalMap != null) {
-            synchronized (modificationLock) {
-                //noinspection SuspiciousMethodCalls
-                previousElement = internalMap.remove(key);
-            }
-        } else {
-            String query = "DELETE FROM `" + SQLTable + "` WHERE `key_object` " + getSQLEqualsSign((ScriptValue<?>) key) + " ? AND `key_type` = ?";
-            try {
-                PreparedStatement ps = Storage.prepareSQLStatement(query);
-                ScriptValueCollection.setScriptValueInPreparedStatement(ps, (ScriptValue<K>) key, 1, 2, context);
-                query += " => " + ps;
-                ps.executeUpdate();
-            } catch (SQLException e) {
-                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-            }
+        if (! (key instanceof ScriptValue)) return null;
+        ScriptValue<V> previousElement;
+        synchronized (modificationLock) {
+            previousElement = get(key, context);
+            store.remove((ScriptValue<?>) key, context);
         }
         modified();
         return previousElement;
@@ -279,174 +188,88 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
 
     @Override
     public void clear(@Nullable Context context) {
-        if (!isEmpty(context)) return;
+        if (isEmpty(context)) return;
 
-        if (internalMap != null) {
-            synchronized (modificationLock) {
-                internalMap.clear();
-            }
-            modified();
-            return;
-        }
-        String query = "DELETE FROM `" + SQLTable + '`';
-        try {
-            Storage.executeSQLUpdate(query);
-            modified();
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        synchronized (modificationLock) {
+            store.clear(context);
         }
+        modified();
     }
 
+    /**
+     * With SQL, the keys are read when they are iterated over, see {@link SQLResultIterator}
+     */
     @NotNull
     @Override
     public Set<ScriptValue<K>> keySet(@Nullable Context context) {
-        if (internalMap != null) return internalMap.keySet();
-        String query = "SELECT `key_object`, `key_type` FROM `" + SQLTable + '`';
-        try {
-            ResultSet rs1 = Storage.executeSQLQuery(query);
-            int size1 = size(context);
-            return new AbstractSet<ScriptValue<K>>() {
-                final int size = size1;
-                final ResultSet rs = rs1;
-
-                @Override
-                public @NotNull Iterator<ScriptValue<K>> iterator() {
-                    return new Iterator<ScriptValue<K>>() {
-                        @Override
-                        public boolean hasNext() {
-                            try {
-                                return rs.next();
-                            } catch (SQLException e) {
-                                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-                            }
-                        }
-
-                        @Override
-                        public ScriptValue<K> next() {
-                            try {
-                                return (ScriptValue<K>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2));
-                            } catch (SQLException e) {
-                                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-                            }
-                        }
-                    };
-                }
+        return new AbstractSet<ScriptValue<K>>() {
+            @Override
+            public @NotNull Iterator<ScriptValue<K>> iterator() {
+                return store.keyIterator(context);
+            }
 
-                @Override
-                public int size() {
-                    return size;
-                }
-            };
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+            @Override
+            public int size() {
+                return ScriptValueMap.this.size(context);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o, context);
+            }
+        };
     }
 
+    /**
+     * With SQL, the values are read when they are iterated over, see {@link SQLResultIterator}
+     */
     @NotNull
     @Override
-    public ScriptValueList<V> values(@Nullable Context context) {
-        if (internalMap != null) new ScriptValueList<>(internalMap.values());
-        String query = "SELECT `value_object`, `value_type` FROM `" + SQLTable + '`';
-        try {
-            ResultSet rs = Storage.executeSQLQuery(query);
-            ScriptValueList<V> list = new ScriptValueList<>();
-            while (rs.next()) {
-                list.add((ScriptValue<V>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2)), context);
+    public Collection<ScriptValue<V>> values(@Nullable Context context) {
+        return new AbstractCollection<ScriptValue<V>>() {
+            @Override
+            public @NotNull Iterator<ScriptValue<V>> iterator() {
+                return store.valueIterator(context);
             }
-            return list;
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+
+            @Override
+            public int size() {
+                return ScriptValueMap.this.size(context);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsValue(o, context);
+            }
+        };
     }
 
+    /**
+     * With SQL, the entries are read when they are iterated over, see {@link SQLResultIterator}
+     */
     @NotNull
     @Override
     public Set<Entry<ScriptValue<K>, ScriptValue<V>>> entrySet(@Nullable Context context) {
-        if (internalMap != null) return internalMap.entrySet();
-        String query = "SELECT * FROM `" + SQLTable + '`';
-        try {
-            ResultSet rs1 = Storage.executeSQLQuery(query);
-            int size1 = size(context);
-            // sry for debugging, with all these nested lambdas xD
-            return new AbstractSet<Entry<ScriptValue<K>, ScriptValue<V>>>() {
-                final int size = size1;
-                final ResultSet rs = rs1;
-
-                @Override
-                public int size() {
-                    return size;
-                }
+        return new AbstractSet<Entry<ScriptValue<K>, ScriptValue<V>>>() {
+            @Override
+            public int size() {
+                return ScriptValueMap.this.size(context);
+            }
 
-                @Override
-                public @NotNull Iterator<Entry<ScriptValue<K>, ScriptValue<V>>> iterator() {
-                    return new Iterator<Entry<ScriptValue<K>, ScriptValue<V>>>() {
-                        @Override
-                        public boolean hasNext() {
-                            try {
-                                return rs.next();
-                            } catch (SQLException e) {
-                                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-                            }
-                        }
-
-                        @Override
-                        public Entry<ScriptValue<K>, ScriptValue<V>> next() {
-                            /*
-                             For some cloudy reason, when you do the "try return ResultSet.get... catch" block inside
-                             the getKey and getValue methods, the debugger can't look at what's inside the map,
-                             it gets an SQLException: ResultSet closed (wrapped in a ScriptException of course),
-                             although "map.toString()" does work, and this problem happens only in Intellij Idea's
-                             debugger, it works as a normal line of code.
-                            */
-                            String sqlKey;
-                            byte sqlKeyType;
-                            String sqlValue;
-                            byte sqlValueType;
-                            try {
-                                sqlKey = rs.getString(1);
-                                sqlKeyType = rs.getByte(2);
-                                sqlValue = rs.getString(3);
-                                sqlValueType = rs.getByte(4);
-                            } catch (SQLException e) {
-                                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-                            }
-
-                            return new Entry<ScriptValue<K>, ScriptValue<V>>() {
-
-                                @Override
-                                public ScriptValue<V> setValue(ScriptValue<V> value) {
-                                    throw new UnsupportedOperationException();
-                                }
-
-                                @Override
-                                public ScriptValue<K> getKey() {
-                                    return (ScriptValue<K>) ScriptValueCollection.transformToScriptValue(sqlKey, sqlKeyType);
-                                }
-
-                                @Override
-                                public ScriptValue<V> getValue() {
-                                    return (ScriptValue<V>) ScriptValueCollection.transformToScriptValue(sqlValue, sqlValueType);
-                                }
-                            };
-                        }              // what a beautiful stair xD
-                    };
-                }
-            };
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query);
-        }
+            @Override
+            public @NotNull Iterator<Entry<ScriptValue<K>, ScriptValue<V>>> iterator() {
+                return store.iterator(context);
+            }
+        };
     }
 
     @Nullable
     @Override
     public ScriptValue<V> putIfAbsent(ScriptValue<K> key, ScriptValue<V> value, @Nullable Context context) {
-        ScriptValue<V> previousElement = null;
-        if (internalMap != null) {
-            synchronized (modificationLock) {
-                previousElement = internalMap.putIfAbsent(key, value);
-            }
-        } else if (! containsKey(key, context)) {
-            previousElement = put(key, value, context);
+        ScriptValue<V> previousElement;
+        synchronized (modificationLock) {
+            previousElement = store.get(key, context);
+            if (previousElement == null) store.put(key, value, context);
         }
         modified();
         return previousElement;
@@ -461,41 +284,34 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
     public ScriptValueMap<K, V> clone() {
         synchronized (modificationLock) {
             ScriptValueMap<K, V> clone = new ScriptValueMap<>();
-            Storage.ignoreModifications(size(context)); // we don't want it to save anything here
-            if (internalMap != null) {
-                for (Entry<ScriptValue<K>, ScriptValue<V>> entry : internalMap.entrySet()) {
-                    clone.put(entry.getKey().clone(), entry.getValue().clone(), context);
-                }
-                return clone;
+            if (! isEmpty(context)) Storage.ignoreModifications(1); // we don't want it to save anything here, everything is put at once
+            Map<ScriptValue<K>, ScriptValue<V>> entries = new HashMap<>();
+            for (Entry<ScriptValue<K>, ScriptValue<V>> entry : store.snapshot(context)) {
+                entries.put(entry.getKey().clone(), entry.getValue().clone());
             }
-            clone.putAll(this); // element are cloned since the come from a string in SQL
+            clone.putAll(entries, context);
             return clone;
         }
     }
 
     @Override
     public synchronized boolean makeSQL(@Nullable Context context) {
-        if (internalMap == null) return false;
         if (! Storage.isSQL)
             throw new NotUsingSQLException("the provided Storage class is not using SQL");
-        Map<ScriptValue<K>, ScriptValue<V>> copy = internalMap;
-        StringID StringIDBeforeTry = stringID;
-
-        lastSize = -1;
-        internalMap = null;
-        stringID = getNewStringID();
-        SQLTable = getFullSQLTableName();
-        String query = "CREATE TABLE `" + SQLTable + "` (`key_object` TEXT, `key_type` TINYINT NOT NULL, `value_object` TEXT, `value_type` TINYINT NOT NULL)";
-        try {
-            Storage.executeSQLUpdate(query);
-            putAll(copy);
-            return true;
-        } catch (SQLException e) {
-            internalMap = copy;
-            stringID = StringIDBeforeTry;
-            SQLTable = null;
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        if (store.getBackend() == Storage.getBackend()) return false;
+        StringID stringID = Storage.getIDAllocator().next();
+        SQLGarbageCollector.inUse(this, stringID);
+        StorageBackend.MapStore<K, V> sqlStore = Storage.getBackend().createMap(stringID, context);
+        synchronized (modificationLock) {
+            Map<ScriptValue<K>, ScriptValue<V>> entries = new HashMap<>();
+            for (Entry<ScriptValue<K>, ScriptValue<V>> entry : store.snapshot(context)) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+            store = sqlStore;
+            sqlStore.putAll(entries, context);
         }
+        modified();
+        return true;
     }
     
     /**
@@ -503,9 +319,24 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
      */
     private void modified() {
         synchronized (modificationLock) {
-            timesModifiedSinceLastSave++;
             Storage.modified(this);
-            lastSize = -1;
+        }
+    }
+
+    /**
+     * @return what the entries are stored in, see {@link StorageBackend}
+     */
+    @NotNull StorageBackend.MapStore<K, V> getStore() {
+        return store;
+    }
+
+    /**
+     * @return a copy of the entries, all taken at the same time, for reading them while this map may be modified.
+     * @see JsonSnapshotWriter
+     */
+    List<Entry<ScriptValue<K>, ScriptValue<V>>> snapshot() {
+        synchronized (modificationLock) {
+            return store.snapshot(context);
         }
     }
 
@@ -517,7 +348,8 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
      */
     public static <K, V> ScriptValueMap<? extends K, ? extends V> toScriptValues(Map<K, V> map, boolean keysAreJson) {
         ScriptValueMap<K, V> finalMap = new ScriptValueMap<>();
-        Storage.ignoreModifications(map.size()); // we don't want it to save anything here
+        if (! map.isEmpty()) Storage.ignoreModifications(1); // we don't want it to save anything here, everything is put at once
+        Map<ScriptValue<K>, ScriptValue<V>> entries = new HashMap<>(map.size());
         for (Entry<K, V> entry: map.entrySet()) {
             K normalKey = entry.getKey();
             ScriptValue<K> key;
@@ -532,8 +364,10 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
                         key = (ScriptValue<K>) ScriptValue.notCollectionToScriptValue(normalKeyString.substring(1));
                         break;
                     case '_':
+                        // List or Map, and not Object, so that integers are read by JsonDeserializerFix
+                        String keyJson = normalKeyString.substring(1);
                         key = (ScriptValue<K>) ScriptValue.toScriptValue(
-                                gson.fromJson(normalKeyString.substring(1), Object.class), // class of T should be K.class, but that doesn't work...
+                                gson.fromJson(keyJson, keyJson.startsWith("[") ? List.class : Map.class),
                                 true);
                         break;
                     case '!':
@@ -546,8 +380,9 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
             } else {
                 key = (ScriptValue<K>) ScriptValue.toScriptValue(normalKey, false);
             }
-            finalMap.put(key, (ScriptValue<V>) ScriptValue.toScriptValue(entry.getValue(), keysAreJson));
+            entries.put(key, (ScriptValue<V>) ScriptValue.toScriptValue(entry.getValue(), keysAreJson));
         }
+        finalMap.putAll(entries, null);
         return finalMap;
     }
 
@@ -585,7 +420,7 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
 
     @Override
     public @Nullable String getSQLTable() {
-        return SQLTable;
+        return store instanceof SQLCollectionStore ? ((SQLCollectionStore) store).getSQLTable() : null;
     }
 
     @Override
@@ -600,23 +435,7 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
 
     @Override
     public @NotNull StringID getStringID() {
-        return stringID;
-    }
-
-    /**
-     * used just for preventing code duplication in the constructors, after you can just use {@link #getSQLTable()}
-     */
-    private String getFullSQLTableName() {
-        return getFullSQLTableName(stringID);
-    }
-
-    /**
-     * used just for preventing code duplication in the constructors, after you can just use {@link #getSQLTable()}
-     * @return {@code table_prefix + "d" + stringID}
-     */
-    private static String getFullSQLTableName(StringID stringID) {
-        if (! Storage.isSQL) throw new NotUsingSQLException("Storage class is doesn't use SQL");
-        return (String) ((Map<String, Object>) Storage.getRawMap().get("SQLite")).get("table-prefix") + stringID;
+        return store.getStringID();
     }
 
     @Override
@@ -628,11 +447,4 @@ public class ScriptValueMap<K, V> extends AbstractScriptValueMap<K, V> {
     public String toString() {
         return Types.getPrettyArg(new ScriptValue<>(this));
     }
-
-    /**
-     * @return "IS" if the object is none or true, else "="
-     */
-    public static String getSQLEqualsSign(ScriptValue<?> object) {
-        return object.is(ScriptValue.ScriptValueType.NONE) || (object.is(ScriptValue.ScriptValueType.BOOLEAN) && ! object.asBoolean()) ? "IS" : "=";
-    }
 }
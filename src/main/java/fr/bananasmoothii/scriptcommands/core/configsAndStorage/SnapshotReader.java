@@ -0,0 +1,64 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+/**
+ * Reads the global variables of a storage file one by one: only their position is read at first, and each one is
+ * decoded when it is needed. The file is mapped in memory, so it can be replaced by a new save while it is read.
+ * @see BinarySnapshot.Reader
+ * @see JsonSnapshotReader
+ */
+public interface SnapshotReader {
+
+    /**
+     * @return a {@link BinarySnapshot.Reader} or a {@link JsonSnapshotReader}, depending on the format of the file
+     */
+    static @NotNull SnapshotReader open(@NotNull File file) throws IOException {
+        return BinarySnapshot.isBinary(file) ? new BinarySnapshot.Reader(file) : new JsonSnapshotReader(file);
+    }
+
+    @NotNull File getFile();
+
+    /**
+     * @return the first generation of journal to replay after this file, see {@link JsonJournal}
+     */
+    int getJournalGeneration();
+
+    /**
+     * @return the position of each global variable by name, to give to {@link #decode(int)}. Variables are not
+     * decoded.
+     */
+    @NotNull LinkedHashMap<String, Integer> readGlobals() throws IOException;
+
+    /**
+     * @param position as given by {@link #readGlobals()}
+     * @return a new {@link ScriptValue}, each call gives different lists and dictionaries.
+     */
+    @NotNull ScriptValue<?> decode(int position);
+
+    /**
+     * @return whether the file was replaced since it was opened, by looking at its size and date
+     */
+    boolean isOutdated();
+}
@@ -20,16 +20,14 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import fr.bananasmoothii.scriptcommands.core.CustomLogger;
 import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.sql.*;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 import static fr.bananasmoothii.scriptcommands.core.configsAndStorage.Config.missingThing;
 
@@ -52,10 +50,63 @@ public abstract class Storage {
     private static int jsonSaveInterval = 1;
     private static int jsonSaveIntervalTime = 1200;
     private static int minJsonSaveIntervalTime = 1000;
-    private static  @Nullable Connection connection;
+    private static @Nullable SQLConnectionPool connectionPool;
+    private static int sqliteReadConnections = 4;
+    private static @NotNull String sqliteSynchronous = "NORMAL";
+    private static int sqliteCacheSize = 8192;
+    private static int mySQLPoolSize = 4;
+    private static int mySQLConnectionTimeout = 10000;
+    private static @NotNull SQLCollectionCache collectionCache = new SQLCollectionCache(0);
+    private static int sqlFetchSize = 500;
+    private static @Nullable SQLWriteBehind writeBehind;
+    private static @Nullable SQLGarbageCollector garbageCollector;
+    private static @NotNull StorageBackend backend = MemoryBackend.getShared();
+    private static int journalSyncInterval = 1000;
+    private static int journalMaxSize = 1024;
+    private static @Nullable JsonJournal journal;
+    private static @Nullable LogStorage logStorage;
+    private static int unloadAfter = 600;
+    private static @Nullable VariableUnloader unloader;
+    private static @Nullable JsonSnapshotWriter snapshotWriter;
+    private static boolean binaryFormat;
+    private static boolean singleTableLayout;
+    private static @NotNull StringIDAllocator idAllocator = new StringIDAllocator();
+    /** the number of rows sent at once by {@link #executeSQLBatch(String, Iterable)} */
+    public static final int SQL_BATCH_SIZE = 500;
+    /**
+     * The version of the SQL tables, saved in the {@link StringIDAllocator#getSQLSequencesTable() sequences table}, so
+     * upgrading them is only tried once.<br/>
+     * 1: dictionaries have a {@code key_hash} column with a unique index, see {@link SQLMapStore#getSQLKeyHash(String, byte)}
+     */
+    private static final int SQL_SCHEMA_VERSION = 1;
 
     public static void loadFromHashMap(@NotNull HashMap<String, ?> hashMap) {
+        if (garbageCollector != null) {
+            garbageCollector.close();
+            garbageCollector = null;
+        }
+        if (writeBehind != null) {
+            writeBehind.close();
+            writeBehind = null;
+        }
+        if (unloader != null) {
+            unloader.close();
+            unloader = null;
+        }
+        if (journal != null) {
+            journal.close(); // the journal files are kept, they will be replayed when loading the global variables
+            journal = null;
+        }
+        if (logStorage != null) {
+            logStorage.close();
+            logStorage = null;
+        }
+        if (snapshotWriter != null) {
+            snapshotWriter.close();
+            snapshotWriter = null;
+        }
         Storage.rawMap = hashMap;
+        collectionCache = new SQLCollectionCache(0);
 
         missingThing = "storage.method";
         assert hashMap.containsKey("method");
@@ -64,6 +115,7 @@ public abstract class Storage {
 
         sqlTablePrefix = (String) ((Map<String, Object>) hashMap.get(storageMethod)).get("table-prefix");
         isSQL = storageMethod.contains("SQL");
+        backend = isSQL ? new SQLBackend() : MemoryBackend.getShared();
 
         HashMap<String, Object> methodHashMap;
         switch (storageMethod) {
@@ -77,6 +129,8 @@ public abstract class Storage {
                 missingThing = "storage.json.file-location";
                 assert methodHashMap.containsKey("file-location");
                 file = new File((String) methodHashMap.get("file-location"));
+                snapshotWriter = new JsonSnapshotWriter(file);
+                idAllocator = new StringIDAllocator();
 
                 methodHashMap.putIfAbsent("save-interval", 1);
                 missingThing = "storage.json.save-interval";
@@ -93,6 +147,68 @@ public abstract class Storage {
                 assert methodHashMap.get("min-save-interval-time") instanceof Integer : "min-save-interval-time must be an integer.";
                 minJsonSaveIntervalTime = (int) methodHashMap.get("min-save-interval-time");
 
+                methodHashMap.putIfAbsent("journal-sync-interval", 1000);
+                missingThing = "storage.json.journal-sync-interval";
+                assert methodHashMap.get("journal-sync-interval") instanceof Integer : "journal-sync-interval must be an integer.";
+                journalSyncInterval = (int) methodHashMap.get("journal-sync-interval");
+
+                methodHashMap.putIfAbsent("journal-max-size", 1024);
+                missingThing = "storage.json.journal-max-size";
+                assert methodHashMap.get("journal-max-size") instanceof Integer && (int) methodHashMap.get("journal-max-size") > 0 : "journal-max-size must be an integer greater than 0.";
+                journalMaxSize = (int) methodHashMap.get("journal-max-size");
+
+                methodHashMap.putIfAbsent("format", "json");
+                missingThing = "storage.json.format";
+                assert methodHashMap.get("format").equals("json") || methodHashMap.get("format").equals("binary") : "format must be \"json\" or \"binary\".";
+                binaryFormat = methodHashMap.get("format").equals("binary");
+
+                methodHashMap.putIfAbsent("unload-after", 600);
+                missingThing = "storage.json.unload-after";
+                assert methodHashMap.get("unload-after") instanceof Integer && (int) methodHashMap.get("unload-after") >= 0 : "unload-after must be a positive integer or 0.";
+                unloadAfter = (int) methodHashMap.get("unload-after");
+
+                break;
+            case "log":
+                method = StorageMethod.LOG;
+
+                missingThing = "storage.log";
+                methodHashMap = (HashMap<String, Object>) hashMap.get("log");
+                assert methodHashMap != null;
+
+                missingThing = "storage.log.file-location";
+                assert methodHashMap.containsKey("file-location");
+                file = new File((String) methodHashMap.get("file-location"));
+                idAllocator = new StringIDAllocator();
+
+                methodHashMap.putIfAbsent("sync-interval", 1000);
+                missingThing = "storage.log.sync-interval";
+                assert methodHashMap.get("sync-interval") instanceof Integer && (int) methodHashMap.get("sync-interval") > 0 : "sync-interval must be an integer greater than 0.";
+                int syncInterval = (int) methodHashMap.get("sync-interval");
+
+                methodHashMap.putIfAbsent("segment-size", 16384);
+                missingThing = "storage.log.segment-size";
+                assert methodHashMap.get("segment-size") instanceof Integer && (int) methodHashMap.get("segment-size") > 0
+                        && (int) methodHashMap.get("segment-size") <= 1048576 : "segment-size must be an integer between 1 and 1048576.";
+                int segmentSize = (int) methodHashMap.get("segment-size");
+
+                methodHashMap.putIfAbsent("compaction-threshold", 50);
+                missingThing = "storage.log.compaction-threshold";
+                assert methodHashMap.get("compaction-threshold") instanceof Integer && (int) methodHashMap.get("compaction-threshold") >= 0
+                        && (int) methodHashMap.get("compaction-threshold") < 100 : "compaction-threshold must be an integer between 0 and 99.";
+                int compactionThreshold = (int) methodHashMap.get("compaction-threshold");
+
+                methodHashMap.putIfAbsent("unload-after", 600);
+                missingThing = "storage.log.unload-after";
+                assert methodHashMap.get("unload-after") instanceof Integer && (int) methodHashMap.get("unload-after") >= 0 : "unload-after must be a positive integer or 0.";
+                unloadAfter = (int) methodHashMap.get("unload-after");
+
+                try {
+                    logStorage = new LogStorage(file, syncInterval, segmentSize * 1024, compactionThreshold);
+                } catch (IOException e) {
+                    CustomLogger.severe("Could not open the global variables in " + file.getPath() + ": " + e);
+                    e.printStackTrace();
+                }
+
                 break;
             case "SQLite":
                 method = StorageMethod.SQLITE;
@@ -107,8 +223,30 @@ public abstract class Storage {
 
                 methodHashMap.putIfAbsent("table-prefix", "");
 
+                methodHashMap.putIfAbsent("read-connections", 4);
+                missingThing = "storage.SQLite.read-connections";
+                assert methodHashMap.get("read-connections") instanceof Integer && (int) methodHashMap.get("read-connections") >= 0 : "read-connections must be a positive integer or 0.";
+                sqliteReadConnections = (int) methodHashMap.get("read-connections");
+
+                methodHashMap.putIfAbsent("synchronous", "NORMAL");
+                missingThing = "storage.SQLite.synchronous";
+                assert Arrays.asList("OFF", "NORMAL", "FULL", "EXTRA").contains(methodHashMap.get("synchronous").toString()) : "synchronous must be OFF, NORMAL, FULL or EXTRA.";
+                sqliteSynchronous = methodHashMap.get("synchronous").toString();
+
+                methodHashMap.putIfAbsent("cache-size", 8192);
+                missingThing = "storage.SQLite.cache-size";
+                assert methodHashMap.get("cache-size") instanceof Integer && (int) methodHashMap.get("cache-size") > 0 : "cache-size must be an integer greater than 0.";
+                sqliteCacheSize = (int) methodHashMap.get("cache-size");
+
+                loadCollectionCache(methodHashMap, "storage.SQLite", 4096);
+                loadFetchSize(methodHashMap, "storage.SQLite");
+
                 try {
                     sqlConnect();
+                    loadLayout(methodHashMap, "storage.SQLite");
+                    idAllocator = StringIDAllocator.loadFromSQL();
+                    loadWriteBehind(methodHashMap, "storage.SQLite");
+                    loadGarbageCollector(methodHashMap, "storage.SQLite", 600);
                 } catch (SQLException e) {
                     e.printStackTrace();
                 }
@@ -140,8 +278,25 @@ public abstract class Storage {
 
                 methodHashMap.putIfAbsent("flags", "?useUnicode=true&useJDBCCompliantTimezoneShift=true&useLegacyDatetimeCode=false&serverTimezone=UTC");
 
+                methodHashMap.putIfAbsent("pool-size", 4);
+                missingThing = "storage.MySQL.pool-size";
+                assert methodHashMap.get("pool-size") instanceof Integer && (int) methodHashMap.get("pool-size") > 0 : "pool-size must be an integer greater than 0.";
+                mySQLPoolSize = (int) methodHashMap.get("pool-size");
+
+                methodHashMap.putIfAbsent("connection-timeout", 10000);
+                missingThing = "storage.MySQL.connection-timeout";
+                assert methodHashMap.get("connection-timeout") instanceof Integer && (int) methodHashMap.get("connection-timeout") > 0 : "connection-timeout must be an integer greater than 0.";
+                mySQLConnectionTimeout = (int) methodHashMap.get("connection-timeout");
+
+                loadCollectionCache(methodHashMap, "storage.MySQL", 0);
+                loadFetchSize(methodHashMap, "storage.MySQL");
+
                 try {
                     sqlConnect();
+                    loadLayout(methodHashMap, "storage.MySQL");
+                    idAllocator = StringIDAllocator.loadFromSQL();
+                    loadWriteBehind(methodHashMap, "storage.MySQL");
+                    loadGarbageCollector(methodHashMap, "storage.MySQL", 0);
                 } catch (SQLException e) {
                     e.printStackTrace();
                 }
@@ -152,26 +307,451 @@ public abstract class Storage {
         }
 
         Context.globalVariables = StringScriptValueMap.getTheGlobal(true);
+
+        if (method == StorageMethod.JSON) loadJournal();
+        if ((method == StorageMethod.JSON || method == StorageMethod.LOG) && unloadAfter > 0)
+            unloader = new VariableUnloader(StringScriptValueMap.getTheGlobal(), unloadAfter);
     }
 
     public enum StorageMethod {
         JSON,
         SQLITE,
-        MYSQL
+        MYSQL,
+        LOG
+    }
+
+    /**
+     * Reads the {@code collection-cache-size} option, in KB.
+     * @param defaultSize 0 with MySQL, as the database may be used by other servers, whose writes wouldn't be seen
+     */
+    private static void loadCollectionCache(HashMap<String, Object> methodHashMap, String path, int defaultSize) {
+        methodHashMap.putIfAbsent("collection-cache-size", defaultSize);
+        missingThing = path + ".collection-cache-size";
+        assert methodHashMap.get("collection-cache-size") instanceof Integer && (int) methodHashMap.get("collection-cache-size") >= 0 : "collection-cache-size must be a positive integer or 0.";
+        collectionCache = new SQLCollectionCache((int) methodHashMap.get("collection-cache-size") * 1024L);
+    }
+
+    /**
+     * Reads the {@code fetch-size} option, see {@link #getSQLFetchSize()}
+     */
+    private static void loadFetchSize(HashMap<String, Object> methodHashMap, String path) {
+        methodHashMap.putIfAbsent("fetch-size", 500);
+        missingThing = path + ".fetch-size";
+        assert methodHashMap.get("fetch-size") instanceof Integer && (int) methodHashMap.get("fetch-size") > 0 : "fetch-size must be an integer greater than 0.";
+        sqlFetchSize = (int) methodHashMap.get("fetch-size");
     }
 
+    /**
+     * Reads the {@code flush-interval} and {@code flush-size} options, and starts the {@link SQLWriteBehind} if
+     * {@code flush-interval} is greater than 0.
+     */
+    private static void loadWriteBehind(HashMap<String, Object> methodHashMap, String path) throws SQLException {
+        methodHashMap.putIfAbsent("flush-interval", 50);
+        missingThing = path + ".flush-interval";
+        assert methodHashMap.get("flush-interval") instanceof Integer : "flush-interval must be an integer.";
+        int flushInterval = (int) methodHashMap.get("flush-interval");
+
+        methodHashMap.putIfAbsent("flush-size", 500);
+        missingThing = path + ".flush-size";
+        assert methodHashMap.get("flush-size") instanceof Integer && (int) methodHashMap.get("flush-size") > 0 : "flush-size must be an integer greater than 0.";
+        int flushSize = (int) methodHashMap.get("flush-size");
+
+        //noinspection ConstantConditions // it is connected
+        if (flushInterval > 0) writeBehind = new SQLWriteBehind(connectionPool, flushInterval, flushSize);
+    }
+
+    /**
+     * Reads the {@code gc-interval} and {@code gc-step-time} options, see {@link SQLGarbageCollector}.
+     * @param defaultInterval 0 with MySQL, as the database may be used by other servers, whose collections would be
+     *                        seen as unreachable
+     */
+    private static void loadGarbageCollector(HashMap<String, Object> methodHashMap, String path, int defaultInterval) {
+        methodHashMap.putIfAbsent("gc-interval", defaultInterval);
+        missingThing = path + ".gc-interval";
+        assert methodHashMap.get("gc-interval") instanceof Integer && (int) methodHashMap.get("gc-interval") >= 0 : "gc-interval must be a positive integer or 0.";
+        int interval = (int) methodHashMap.get("gc-interval");
+
+        methodHashMap.putIfAbsent("gc-step-time", 20);
+        missingThing = path + ".gc-step-time";
+        assert methodHashMap.get("gc-step-time") instanceof Integer && (int) methodHashMap.get("gc-step-time") > 0 : "gc-step-time must be an integer greater than 0.";
+        int stepTime = (int) methodHashMap.get("gc-step-time");
+
+        garbageCollector = new SQLGarbageCollector(stepTime, interval);
+    }
+
+    /**
+     * Reads the {@code layout} option. With {@code single-table}, creates the {@link #getSQLElementsTable() elements}
+     * and {@link #getSQLCollectionsTable() collections} tables if needed, and moves the collections that still have
+     * their own table in them.
+     */
+    private static void loadLayout(HashMap<String, Object> methodHashMap, String path) throws SQLException {
+        methodHashMap.putIfAbsent("layout", "table-per-collection");
+        missingThing = path + ".layout";
+        assert methodHashMap.get("layout").equals("table-per-collection") || methodHashMap.get("layout").equals("single-table") : "layout must be \"table-per-collection\" or \"single-table\".";
+        singleTableLayout = methodHashMap.get("layout").equals("single-table");
+
+        if (singleTableLayout) createSingleTableLayout();
+        upgradeSQLSchema();
+        if (singleTableLayout) migrateToSingleTableLayout();
+    }
+
+    private static void createSingleTableLayout() throws SQLException {
+        executeSQLUpdate("CREATE TABLE IF NOT EXISTS `" + getSQLCollectionsTable() + "` (`id` VARCHAR(16) PRIMARY KEY, `type` CHAR(1) NOT NULL)");
+        boolean elementsTableExists = sqlTableExists(getSQLElementsTable());
+        executeSQLUpdate("CREATE TABLE IF NOT EXISTS `" + getSQLElementsTable() + "` (`collection` VARCHAR(16) NOT NULL, `index` INT, " +
+                "`key_hash` CHAR(32), `key_object` TEXT, `key_type` TINYINT, `value_object` TEXT, `value_type` TINYINT NOT NULL)");
+        if (! elementsTableExists) {
+            executeSQLUpdate("CREATE INDEX `" + getSQLElementsTable() + "_position` ON `" + getSQLElementsTable() + "` (`collection`, `index`)");
+            // key_hash is NULL for the elements of lists, so they don't conflict
+            executeSQLUpdate("CREATE UNIQUE INDEX `" + getSQLElementsTable() + "_key` ON `" + getSQLElementsTable() + "` (`collection`, `key_hash`)");
+        }
+    }
+
+    /**
+     * Brings the tables made by older versions to {@link #SQL_SCHEMA_VERSION}, if it wasn't done before. This reads
+     * the database metadata, so it is slow with lots of tables, but it is only done once.
+     */
+    private static void upgradeSQLSchema() throws SQLException {
+        String query = "SELECT `value` FROM `" + StringIDAllocator.getSQLSequencesTable() + "` WHERE `name` = 'schema'";
+        StringIDAllocator.createSQLSequencesTable();
+        try (ResultSet rs = executeSQLQuery(query)) {
+            if (rs.next() && rs.getInt(1) >= SQL_SCHEMA_VERSION) return;
+        }
+
+        List<String> tables = new ArrayList<>();
+        for (Map.Entry<String, Character> table : getSQLCollectionTables().entrySet()) {
+            if (table.getValue() == ScriptValueMap.typeChar) tables.add(table.getKey());
+        }
+        if (sqlTableExists(getSQLElementsTable())) tables.add(getSQLElementsTable());
+        int upgraded = 0;
+        for (String table : tables) {
+            if (addSQLKeyHashes(table, table.equals(getSQLElementsTable()))) upgraded++;
+        }
+        if (upgraded != 0) CustomLogger.info("Added key hashes to " + upgraded + " dictionary tables");
+
+        executeSQLUpdate("DELETE FROM `" + StringIDAllocator.getSQLSequencesTable() + "` WHERE `name` = 'schema'");
+        executeSQLUpdate("INSERT INTO `" + StringIDAllocator.getSQLSequencesTable() + "` (`name`, `value`) VALUES('schema', " + SQL_SCHEMA_VERSION + ')');
+    }
+
+    /**
+     * Adds the {@code key_hash} column and its unique index to a table with dictionary entries, if they aren't there.
+     * The entries are written again with their hash, and if a key was there twice (keys weren't unique before), only
+     * its last entry is kept.
+     * @param elementsTable whether it is the {@link #getSQLElementsTable() elements table}, where only the rows without
+     *                      {@code index} are entries of dictionaries
+     * @return whether something had to be done
+     */
+    private static boolean addSQLKeyHashes(String table, boolean elementsTable) throws SQLException {
+        boolean hasColumn = sqlColumnExists(table, "key_hash");
+        String entries = elementsTable ? "`index` IS NULL" : null;
+        if (hasColumn) {
+            try (ResultSet rs = executeSQLQuery("SELECT 1 FROM `" + table + "` WHERE `key_hash` IS NULL" + (elementsTable ? " AND " + entries : "") + " LIMIT 1")) {
+                hasColumn = ! rs.next(); // else it was interrupted before
+            }
+            if (hasColumn && sqlUniqueIndexExists(table, "key_hash")) return false;
+        } else {
+            executeSQLUpdate("ALTER TABLE `" + table + "` ADD COLUMN `key_hash` CHAR(32)");
+        }
+        String where = entries == null ? "" : " WHERE " + entries;
+        String collection = elementsTable ? "`collection`, " : "";
+        //noinspection ConstantConditions // sqlConnect() was called before
+        connectionPool.runInTransaction(connection -> {
+            Map<String, Object[]> rows = new LinkedHashMap<>();
+            try (ResultSet rs = executeSQLQuery("SELECT " + collection + "`key_object`, `key_type`, `value_object`, `value_type` FROM `" + table + '`' + where)) {
+                int offset = elementsTable ? 1 : 0;
+                while (rs.next()) {
+                    String id = elementsTable ? rs.getString(1) : "";
+                    String hash = SQLMapStore.getSQLKeyHash(rs.getString(offset + 1), rs.getByte(offset + 2));
+                    rows.put(id + ' ' + hash, new Object[] {id, hash, rs.getString(offset + 1), rs.getByte(offset + 2), rs.getString(offset + 3), rs.getByte(offset + 4)});
+                }
+            }
+            executeSQLUpdate("DELETE FROM `" + table + '`' + where);
+            String insert = "INSERT INTO `" + table + "` (" + collection + "`key_hash`, `key_object`, `key_type`, `value_object`, `value_type`) VALUES(" + (elementsTable ? "?, " : "") + "?, ?, ?, ?, ?)";
+            try (PreparedStatement ps = prepareSQLStatement(insert)) {
+                for (Object[] row : rows.values()) {
+                    int i = 1;
+                    if (elementsTable) ps.setString(i++, (String) row[0]);
+                    ps.setString(i++, (String) row[1]);
+                    ps.setString(i++, (String) row[2]);
+                    ps.setByte(i++, (byte) row[3]);
+                    ps.setString(i++, (String) row[4]);
+                    ps.setByte(i, (byte) row[5]);
+                    ps.executeUpdate();
+                }
+            }
+            return null;
+        });
+        if (! sqlUniqueIndexExists(table, "key_hash"))
+            executeSQLUpdate("CREATE UNIQUE INDEX `" + table + "_key` ON `" + table + "` (" + collection + "`key_hash`)");
+        return true;
+    }
+
+    /**
+     * Moves each list and dictionary that has its own table (made with the {@code table-per-collection} layout) to
+     * the elements table, keeping its {@link StringID} so references to it still work, and drops its table. Each
+     * collection is moved in its own transaction.
+     */
+    private static void migrateToSingleTableLayout() throws SQLException {
+        Map<String, Character> tablesToMove = getSQLCollectionTables();
+        tablesToMove.values().removeIf(typeChar -> typeChar == StringScriptValueMap.typeChar);
+        if (tablesToMove.isEmpty()) return;
+
+        CustomLogger.info("Moving " + tablesToMove.size() + " lists and dictionaries to the single-table layout...");
+        String[] query = new String[1];
+        try {
+            //noinspection ConstantConditions // sqlConnect() was called before
+            connectionPool.runInTransaction(connection -> {
+                for (Map.Entry<String, Character> entry : tablesToMove.entrySet()) {
+                    String table = entry.getKey();
+                    String id = table.substring(sqlTablePrefix.length());
+                    if (entry.getValue() == ScriptValueList.typeChar) {
+                        query[0] = "INSERT INTO `" + getSQLElementsTable() + "` (`collection`, `index`, `value_object`, `value_type`) " +
+                                "SELECT '" + id + "', `index`, `object`, `type` FROM `" + table + '`';
+                    } else {
+                        query[0] = "INSERT INTO `" + getSQLElementsTable() + "` (`collection`, `key_hash`, `key_object`, `key_type`, `value_object`, `value_type`) " +
+                                "SELECT '" + id + "', `key_hash`, `key_object`, `key_type`, `value_object`, `value_type` FROM `" + table + '`';
+                    }
+                    executeSQLUpdate(query[0]);
+                    query[0] = "INSERT INTO `" + getSQLCollectionsTable() + "` (`id`, `type`) VALUES('" + id + "', '" + entry.getValue() + "')";
+                    executeSQLUpdate(query[0]);
+                    query[0] = "DROP TABLE `" + table + '`';
+                    executeSQLUpdate(query[0]);
+                    connection.commit();
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            CustomLogger.severe("Could not move every collection to the single-table layout, the last query was " + query[0]);
+            throw e;
+        }
+        CustomLogger.info("Moved " + tablesToMove.size() + " lists and dictionaries to the single-table layout");
+    }
+
+    /**
+     * Finds the tables of the collections made with the {@code table-per-collection} layout, recognized by their
+     * name (the prefix followed by a {@link StringID}) and their columns. This uses the database metadata, so it is
+     * slow with lots of tables.
+     * @return each table with the {@link ScriptValueCollection#getTypeChar() type character} of its collection
+     */
+    static Map<String, Character> getSQLCollectionTables() throws SQLException {
+        if (connectionPool == null) throw new NotUsingSQLException();
+        return connectionPool.withConnection(Storage::getSQLCollectionTables);
+    }
+
+    private static Map<String, Character> getSQLCollectionTables(Connection connection) throws SQLException {
+        DatabaseMetaData dbm = connection.getMetaData();
+        List<String> tables = new ArrayList<>();
+        try (ResultSet rs = dbm.getTables(null, null, null, new String[] {"TABLE"})) {
+            while (rs.next()) {
+                String table = rs.getString("TABLE_NAME");
+                if (table.startsWith(sqlTablePrefix) && table.substring(sqlTablePrefix.length()).matches("[0-9a-z]+"))
+                    tables.add(table);
+            }
+        }
+        Map<String, Character> collectionTables = new LinkedHashMap<>();
+        for (String table : tables) {
+            Set<String> columns = new HashSet<>();
+            try (ResultSet rs = dbm.getColumns(null, null, table, null)) {
+                while (rs.next()) {
+                    columns.add(rs.getString("COLUMN_NAME").toLowerCase());
+                }
+            }
+            if (columns.equals(new HashSet<>(Arrays.asList("index", "object", "type"))))
+                collectionTables.put(table, ScriptValueList.typeChar);
+            else if (columns.equals(new HashSet<>(Arrays.asList("key_hash", "key_object", "key_type", "value_object", "value_type")))
+                    || columns.equals(new HashSet<>(Arrays.asList("key_object", "key_type", "value_object", "value_type")))) // before key hashes
+                collectionTables.put(table, ScriptValueMap.typeChar);
+            else if (columns.equals(new HashSet<>(Arrays.asList("name", "value_object", "value_type"))))
+                collectionTables.put(table, StringScriptValueMap.typeChar);
+            // else it isn't a collection, like the tables of the single-table layout themselves
+        }
+        return collectionTables;
+    }
+
+    /**
+     * @return whether lists and dictionaries stored in SQL are all in the {@link #getSQLElementsTable() elements table}
+     * (the {@code single-table} layout) instead of having their own table each.
+     */
+    public static boolean isSingleTableLayout() {
+        return singleTableLayout;
+    }
+
+    /**
+     * @return the table containing the elements of all lists and dictionaries, with the
+     * {@link #isSingleTableLayout() single-table layout}. A row is an element of a list if {@code index} isn't
+     * {@code NULL}, or else an entry of a dictionary.
+     */
+    public static String getSQLElementsTable() {
+        return sqlTablePrefix + "elements";
+    }
+
+    /**
+     * @return the table with one row per list or dictionary, with the {@link #isSingleTableLayout() single-table
+     * layout}: its {@link StringID} and its {@link ScriptValueCollection#getTypeChar() type character}.
+     */
+    public static String getSQLCollectionsTable() {
+        return sqlTablePrefix + "collections";
+    }
+
+    /**
+     * @param columns the definition of the columns of the collection's own table, not used with the
+     *                {@link #isSingleTableLayout() single-table layout}
+     * @return the statement creating the table of a new collection, or adding it to the
+     * {@link #getSQLCollectionsTable() collections table} with the single-table layout.
+     */
+    protected static String getSQLCollectionCreation(String sqlTable, StringID stringID, char typeChar, String columns) {
+        if (singleTableLayout)
+            return "INSERT INTO `" + getSQLCollectionsTable() + "` (`id`, `type`) VALUES('" + stringID + "', '" + typeChar + "')";
+        return "CREATE TABLE `" + sqlTable + "` (" + columns + ')';
+    }
+
+    protected static boolean sqlCollectionExists(String sqlTable, StringID stringID) {
+        if (! singleTableLayout) return sqlTableExists(sqlTable);
+        String query = "SELECT 1 FROM `" + getSQLCollectionsTable() + "` WHERE `id` = '" + stringID + '\'';
+        try (ResultSet rs = executeSQLQuery(query)) {
+            return rs.next();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * @return the table where the elements of a collection are, with backquotes
+     */
+    protected static String getSQLCollectionTable(String sqlTable) {
+        return '`' + (singleTableLayout ? getSQLElementsTable() : sqlTable) + '`';
+    }
+
+    /**
+     * @param condition may be {@code null} if every element of the collection is wanted
+     * @return {@code " WHERE "} followed by the condition and, with the {@link #isSingleTableLayout() single-table
+     * layout}, the condition selecting the elements of that collection. It is an empty string if there is no
+     * condition at all.
+     */
+    protected static String getSQLWhere(StringID stringID, @Nullable String condition) {
+        if (! singleTableLayout) return condition == null ? "" : " WHERE " + condition;
+        String collectionCondition = "`collection` = '" + stringID + '\'';
+        return " WHERE " + (condition == null ? collectionCondition : collectionCondition + " AND (" + condition + ')');
+    }
+
+    /**
+     * @return an {@code INSERT} statement for one element of a collection, with one {@code ?} for each of the
+     * <strong>columns</strong>, in the same order.
+     */
+    protected static String getSQLInsert(String sqlTable, StringID stringID, String... columns) {
+        StringBuilder sb = new StringBuilder("INSERT INTO ").append(getSQLCollectionTable(sqlTable)).append(" (");
+        if (singleTableLayout) sb.append("`collection`, ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i != 0) sb.append(", ");
+            sb.append('`').append(columns[i]).append('`');
+        }
+        sb.append(") VALUES(");
+        if (singleTableLayout) sb.append('\'').append(stringID).append("', ");
+        for (int i = 0; i < columns.length; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Starts the {@link JsonJournal} if {@code journal-sync-interval} is greater than 0. Must be called after the
+     * global variables are loaded, as they contain what is in the old journals.
+     */
+    private static void loadJournal() {
+        //noinspection ConstantConditions // because if the method is json, file won't be null
+        if (journalSyncInterval > 0) {
+            try {
+                journal = new JsonJournal(file, journalSyncInterval, journalMaxSize * 1024L);
+            } catch (IOException e) {
+                CustomLogger.severe("Could not open the journal of " + file.getName() + ", the whole file will be saved instead: " + e);
+            }
+        } else if (JsonJournal.hasJournals(file)) {
+            // journals of when it was enabled
+            jsonSave();
+            JsonJournal.deleteJournals(file);
+        }
+    }
+
+    /**
+     * @return the {@link JsonJournal} of the global variables, or the {@link LogStorage}. {@code null} if they are
+     * saved by rewriting the whole file (or if SQL is used).
+     */
+    public static @Nullable Journal getJournal() {
+        return journal != null ? journal : logStorage;
+    }
+
+    /**
+     * @return the {@link LogStorage} if the storage method is {@code log}, else {@code null}
+     */
+    public static @Nullable LogStorage getLogStorage() {
+        return logStorage;
+    }
+
+    /**
+     * @return whether the storage file is saved as a {@link BinarySnapshot} instead of json. It can be loaded from
+     * both formats anyway.
+     */
+    public static boolean isBinaryFormat() {
+        return binaryFormat;
+    }
+
+    /**
+     * @return the {@link JsonSnapshotWriter} saving the storage file, {@code null} if json isn't used.
+     */
+    public static @Nullable JsonSnapshotWriter getSnapshotWriter() {
+        return snapshotWriter;
+    }
+
+    /**
+     * @return what gives the {@link StringID} of new collections
+     */
+    public static @NotNull StringIDAllocator getIDAllocator() {
+        return idAllocator;
+    }
+
+    /**
+     * Opens the {@link SQLConnectionPool}: a single writer and up to {@code read-connections} readers with SQLite, or
+     * {@code pool-size} connections with MySQL.
+     */
     protected static void sqlConnect() throws SQLException {
+        if (connectionPool != null) connectionPool.close();
+        connectionPool = null;
+        if (method == StorageMethod.SQLITE)
+            connectionPool = SQLConnectionPool.singleWriter(Storage::openSQLConnection, sqliteReadConnections);
+        else
+            connectionPool = SQLConnectionPool.pooled(Storage::openSQLConnection, mySQLPoolSize, mySQLConnectionTimeout);
+    }
+
+    private static Connection openSQLConnection() throws SQLException {
+        return openSQLConnection(false);
+    }
+
+    /**
+     * @param readOnly with SQLite, the connection can't write (it is a reader of the {@link SQLConnectionPool})
+     */
+    private static Connection openSQLConnection(boolean readOnly) throws SQLException {
         switch (method) {
             case SQLITE:
                 try {
                     Class.forName("org.sqlite.JDBC");
                     //noinspection ConstantConditions // because if the method is SQLite, file won't be null
-                    connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
-                    CustomLogger.config("Successfully connected to " + file.getName());
+                    Connection sqliteConnection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+                    try (Statement statement = sqliteConnection.createStatement()) {
+                        // each connection is a writer or a reader: with WAL, readers don't wait for the writer, and
+                        // it doesn't wait for them. NORMAL synchronous is safe with WAL, only the last transactions
+                        // may be lost if the computer (not the server) stops.
+                        statement.executeUpdate("PRAGMA busy_timeout = 10000");
+                        statement.execute("PRAGMA journal_mode = WAL");
+                        statement.executeUpdate("PRAGMA synchronous = " + sqliteSynchronous);
+                        statement.executeUpdate("PRAGMA cache_size = -" + sqliteCacheSize); // negative means KiB
+                        if (readOnly) statement.executeUpdate("PRAGMA query_only = 1");
+                    }
+                    CustomLogger.fine("Successfully connected to " + file.getName() + (readOnly ? " (read-only)" : ""));
+                    return sqliteConnection;
                 } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
+                    throw new SQLException(e);
                 }
-                break;
             case MYSQL:
                 try {
                     Class.forName("com.mysql.cj.jdbc.Driver");
@@ -182,40 +762,249 @@ public abstract class Storage {
                     String user = (String) mySQLHashMap.get("user");
                     String password = (String) mySQLHashMap.get("password");
                     String flags = (String) mySQLHashMap.get("flags") ;
-                    connection = DriverManager.getConnection("jdbc:mysql://" + hostname + ':' + port + '/' + database + flags, user, password);
-                    CustomLogger.config("Successfully connected to the MySQl webserver");
+                    Connection mySQLConnection = DriverManager.getConnection("jdbc:mysql://" + hostname + ':' + port + '/' + database + flags, user, password);
+                    CustomLogger.fine("Successfully connected to the MySQl webserver");
+                    return mySQLConnection;
                 } catch (ClassNotFoundException e) {
-                    e.printStackTrace();
+                    throw new SQLException(e);
                 }
-                break;
             default:
                 throw new IllegalArgumentException("Not a valid storage method for SQL: " + method);
         }
     }
 
-    protected static void executeSQLUpdate(String query) throws SQLException {
-        if (connection == null) throw new NotUsingSQLException();
-        Statement statement = connection.createStatement();
-        statement.executeUpdate(query);
+    /**
+     * @return the {@link SQLWriteBehind} writing the global variables, {@code null} if they are written directly
+     * (or if SQL isn't used).
+     */
+    public static @Nullable SQLWriteBehind getWriteBehind() {
+        return writeBehind;
     }
 
+    /**
+     * Waits until every delayed write is in the database. Does nothing if there is no {@link SQLWriteBehind}.
+     */
+    public static void flushWrites() {
+        if (writeBehind != null) writeBehind.flush();
+    }
+
+    /**
+     * @return the number of rows modified
+     */
+    protected static int executeSQLUpdate(String query) throws SQLException {
+        if (connectionPool == null) throw new NotUsingSQLException();
+        return connectionPool.executeUpdate(query);
+    }
+
+    /**
+     * The {@link ResultSet} must be closed, so its statement and its connection can be used again.
+     */
     protected static ResultSet executeSQLQuery(String query) throws SQLException {
-        if (connection == null) throw new NotUsingSQLException();
-        Statement statement = connection.createStatement();
-        return statement.executeQuery(query);
+        if (connectionPool == null) throw new NotUsingSQLException();
+        return connectionPool.executeQuery(query);
     }
 
+    /**
+     * The statement must be closed, so it and its connection can be used again. A {@code SELECT} may be prepared on a
+     * read-only connection, other statements are prepared on the connection that writes.
+     * @see SQLStatementCache
+     */
     protected static PreparedStatement prepareSQLStatement(String sql) throws SQLException {
-        if (connection == null) throw new NotUsingSQLException();
-        return connection.prepareStatement(sql);
+        if (connectionPool == null) throw new NotUsingSQLException();
+        return connectionPool.prepare(sql);
+    }
+
+    /**
+     * Executes <strong>sql</strong> once for each of the <strong>rows</strong>, all in one transaction, sending them
+     * to the database by JDBC batches of {@link #SQL_BATCH_SIZE}, so there is one round-trip per batch instead of one
+     * per row. The rows must not do anything that may start an other transaction, like making a collection use SQL:
+     * that has to be done before (see {@link ScriptValueCollection#toSQLObject(ScriptValue, Context)}).
+     * @return the number of rows given
+     */
+    protected static int executeSQLBatch(String sql, Iterable<SQLWriteBehind.Binder> rows) throws SQLException {
+        if (connectionPool == null) throw new NotUsingSQLException();
+        return connectionPool.runInTransaction(connection -> {
+            int count = 0;
+            try (PreparedStatement ps = prepareSQLStatement(sql)) {
+                for (SQLWriteBehind.Binder row : rows) {
+                    row.bind(ps);
+                    ps.addBatch();
+                    if (++count % SQL_BATCH_SIZE == 0) ps.executeBatch();
+                }
+                if (count % SQL_BATCH_SIZE != 0) ps.executeBatch();
+            }
+            return count;
+        });
+    }
+
+    /**
+     * @return what is kept in memory of the SQL collections, never {@code null} but it may not be
+     * {@link SQLCollectionCache#isEnabled() enabled}
+     */
+    public static @NotNull SQLCollectionCache getCollectionCache() {
+        return collectionCache;
+    }
+
+    /**
+     * @return where the lists and dictionaries using SQL if possible are stored: an {@link SQLBackend} with SQLite and
+     * MySQL, else the {@link MemoryBackend#getShared() shared MemoryBackend}, as they are saved with the global variables.
+     */
+    public static @NotNull StorageBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @return how many elements of a collection are read at once when iterating over it, see {@link SQLResultIterator}
+     */
+    public static int getSQLFetchSize() {
+        return sqlFetchSize;
+    }
+
+    /**
+     * @return the SQL connections, with their statements that are kept for being used again, {@code null} if SQL
+     * isn't used
+     */
+    public static @Nullable SQLConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Makes an {@code INSERT} statement for all the <strong>columns</strong> (with one {@code ?} for each, in the same
+     * order) that updates the other columns instead if there is already a row with the same
+     * <strong>keyColumns</strong>, so there must be a unique index (or primary key) on these. This is only one
+     * statement, but its syntax depends on the SQL dialect.
+     */
+    protected static String getSQLUpsert(String sqlTable, String[] columns, String... keyColumns) {
+        return getSQLUpsert('`' + sqlTable + '`', null, columns, keyColumns, null);
+    }
+
+    /**
+     * Same as {@link #getSQLUpsert(String, String[], String...)} for an element of a collection. With the
+     * {@link #isSingleTableLayout() single-table layout}, it is in the elements table, and the {@code collection}
+     * column is set and is one of the key columns, like in {@link #getSQLInsert(String, StringID, String...)}.
+     */
+    protected static String getSQLCollectionUpsert(String sqlTable, StringID stringID, String[] columns, String... keyColumns) {
+        return getSQLUpsert(getSQLCollectionTable(sqlTable), singleTableLayout ? stringID : null, columns, keyColumns, null);
+    }
+
+    /**
+     * @param selected what is inserted in each of the <strong>columns</strong>, in the same order and separated by
+     *                 commas, that can use the columns of the source and have {@code ?} parameters
+     * @param sourceCondition may be {@code null}, its {@code ?} parameters are after the ones of
+     *                        <strong>selected</strong>
+     * @param keyColumns if there are some, the statement updates the rows that are already there instead, like
+     *                   {@link #getSQLCollectionUpsert(String, StringID, String[], String...)}
+     * @return an {@code INSERT ... SELECT} copying elements of the collection <strong>source</strong> to an other
+     * collection in the database, without reading them, like {@link #getSQLInsert(String, StringID, String...)}
+     * for each of them.
+     */
+    protected static String getSQLCollectionCopy(String sqlTable, StringID stringID, String[] columns, String selected,
+                                                 String sourceSQLTable, StringID source, @Nullable String sourceCondition,
+                                                 String... keyColumns) {
+        return getSQLUpsert(getSQLCollectionTable(sqlTable), singleTableLayout ? stringID : null, columns, keyColumns,
+                selected + " FROM " + getSQLCollectionTable(sourceSQLTable) + getSQLWhere(source, sourceCondition));
+    }
+
+    /**
+     * Same as {@link #getSQLCollectionCopy(String, StringID, String[], String, String, StringID, String, String...)}
+     * between two tables that aren't collections in the elements table, copying every row and every column.
+     */
+    protected static String getSQLTableCopy(String sqlTable, String[] columns, String sourceSQLTable, String... keyColumns) {
+        StringBuilder selected = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i != 0) selected.append(", ");
+            selected.append('`').append(columns[i]).append('`');
+        }
+        return getSQLUpsert('`' + sqlTable + '`', null, columns, keyColumns, selected + " FROM `" + sourceSQLTable + '`');
+    }
+
+    /**
+     * @param selectFrom if not {@code null}, the rows are the ones of {@code SELECT selectFrom} instead of the
+     *                   {@code ?} parameters
+     */
+    private static String getSQLUpsert(String quotedTable, @Nullable StringID collection, String[] columns, String[] keyColumns,
+                                       @Nullable String selectFrom) {
+        StringBuilder sb = new StringBuilder("INSERT INTO ").append(quotedTable).append(" (");
+        if (collection != null) sb.append("`collection`, ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i != 0) sb.append(", ");
+            sb.append('`').append(columns[i]).append('`');
+        }
+        if (selectFrom == null) {
+            sb.append(") VALUES(");
+            if (collection != null) sb.append('\'').append(collection).append("', ");
+            for (int i = 0; i < columns.length; i++) {
+                sb.append(i == 0 ? "?" : ", ?");
+            }
+            sb.append(')');
+        } else {
+            sb.append(") SELECT ");
+            if (collection != null) sb.append('\'').append(collection).append("', ");
+            sb.append(selectFrom);
+            // else SQLite would take the ON of ON CONFLICT for the one of a join
+            if (keyColumns.length != 0 && ! selectFrom.contains(" WHERE ")) sb.append(" WHERE true");
+        }
+        if (keyColumns.length == 0) return sb.toString();
+        switch (method) {
+            case SQLITE:
+                sb.append(" ON CONFLICT (");
+                if (collection != null) sb.append("`collection`, ");
+                for (int i = 0; i < keyColumns.length; i++) {
+                    if (i != 0) sb.append(", ");
+                    sb.append('`').append(keyColumns[i]).append('`');
+                }
+                sb.append(") DO UPDATE SET ");
+                break;
+            case MYSQL:
+                sb.append(" ON DUPLICATE KEY UPDATE ");
+                break;
+            default:
+                throw new NotUsingSQLException();
+        }
+        boolean first = true;
+        for (String column : columns) {
+            if (Arrays.asList(keyColumns).contains(column)) continue;
+            if (! first) sb.append(", ");
+            first = false;
+            sb.append('`').append(column).append("` = ");
+            if (method == StorageMethod.SQLITE) sb.append("excluded.`").append(column).append('`');
+            else sb.append("VALUES(`").append(column).append("`)");
+        }
+        return sb.toString();
+    }
+
+    private static boolean sqlColumnExists(String sqlTable, String column) throws SQLException {
+        if (connectionPool == null) throw new NotUsingSQLException();
+        return connectionPool.withConnection(connection -> {
+            try (ResultSet columns = connection.getMetaData().getColumns(null, null, sqlTable, column)) {
+                return columns.next();
+            }
+        });
+    }
+
+    /**
+     * @return whether there is a unique index on <strong>column</strong>, alone or after other columns
+     */
+    private static boolean sqlUniqueIndexExists(String sqlTable, String column) throws SQLException {
+        if (connectionPool == null) throw new NotUsingSQLException();
+        return connectionPool.withConnection(connection -> {
+            try (ResultSet indexes = connection.getMetaData().getIndexInfo(null, null, sqlTable, true, false)) {
+                while (indexes.next()) {
+                    if (column.equalsIgnoreCase(indexes.getString("COLUMN_NAME"))) return true;
+                }
+                return false;
+            }
+        });
     }
 
     protected static boolean sqlTableExists(String sqlTable) {
-        if (connection == null) throw new NotUsingSQLException();
+        if (connectionPool == null) throw new NotUsingSQLException();
         try {
-            DatabaseMetaData dbm = connection.getMetaData();
-            ResultSet tables = dbm.getTables(null, null, sqlTable, null);
-            return tables.next();
+            return connectionPool.withConnection(connection -> {
+                try (ResultSet tables = connection.getMetaData().getTables(null, null, sqlTable, null)) {
+                    return tables.next();
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -224,24 +1013,42 @@ public abstract class Storage {
 
     /**
      * Cleans the database by removing collections that have no reference, so not accessible from
-     * global variables.
+     * global variables. This is also done in the background, see {@link SQLGarbageCollector}.
+     * @return what was removed
      */
-    public static void cleanDatabase() {
-        if (connection == null) throw new NotUsingSQLException();
-        //TODO
+    public static SQLGarbageCollector.Report cleanDatabase() {
+        if (connectionPool == null || garbageCollector == null) throw new NotUsingSQLException();
+        try {
+            return garbageCollector.collect();
+        } catch (SQLException e) {
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(e);
+        }
     }
 
     private static int timesModifiedSinceLastSave;
     private static long lastSaveTime;
     private static final Object modificationLock = new Object();
 
+    /**
+     * With a {@link Journal}, modifications of the global variables themselves are already written in it, but
+     * modifications of other collections can't be, so they make the journal {@link Journal#collectionsModified()
+     * append again} the variables holding them, in the background at its next sync.
+     */
     public static void modified(@NotNull ScriptValueCollection what) {
         timesModifiedSinceLastSave++;
-        if (what.isUsingSQLIfPossible()) { // it means it is probably a global variable
+        if (! isSQL) StringScriptValueMap.unloadedPartModified(what);
+        Journal journal = getJournal();
+        if (journal != null) {
+            if (what instanceof StringScriptValueMap && ((StringScriptValueMap<?>) what).isTheGlobal()) return;
+            if (journal == logStorage || what.isUsingSQLIfPossible()
+                    || (jsonSaveIntervalTime != -1 && System.currentTimeMillis() - lastSaveTime >= jsonSaveIntervalTime)) {
+                journal.collectionsModified();
+            }
+        } else if (what.isUsingSQLIfPossible()) { // it means it is probably a global variable
             long interval = System.currentTimeMillis() - lastSaveTime;
             if ((jsonSaveInterval != -1 && timesModifiedSinceLastSave >= jsonSaveInterval && interval >= minJsonSaveIntervalTime)
                     || (jsonSaveIntervalTime != -1 && interval >= jsonSaveIntervalTime)) {
-                jsonSave();
+                requestJsonSave();
             }
         }
     }
@@ -258,43 +1065,95 @@ public abstract class Storage {
         return lastSaveTime;
     }
 
+    /**
+     * Writes the whole storage file, and waits until it is written. With a {@link JsonJournal}, it is a
+     * {@link JsonJournal#compact() compaction}. With {@link LogStorage}, it only appends the variables holding lists
+     * or dictionaries that were modified, see {@link LogStorage#saveCollections()}.
+     */
     public static void jsonSave() {
+        LogStorage logStorage = Storage.logStorage;
+        if (logStorage != null) logStorage.saveCollections();
         if (method != StorageMethod.JSON) return;
+        JsonJournal journal = Storage.journal;
+        if (journal != null) journal.compact();
+        else writeJsonSnapshot(0);
+    }
+
+    /**
+     * Same as {@link #jsonSave()} but without waiting, the file is written by the {@link JsonSnapshotWriter}.
+     */
+    public static void requestJsonSave() {
+        if (method != StorageMethod.JSON) return;
+        JsonJournal journal = Storage.journal;
+        JsonSnapshotWriter snapshotWriter = Storage.snapshotWriter;
+        if (journal != null) {
+            journal.requestSnapshot();
+        } else if (snapshotWriter != null) {
+            savedNow();
+            snapshotWriter.save(0);
+        } else {
+            writeJsonSnapshot(0);
+        }
+    }
+
+    /**
+     * @param journalGeneration the first generation of {@link JsonJournal} that isn't in the global variables yet
+     * @return whether the file was written
+     */
+    static boolean writeJsonSnapshot(int journalGeneration) {
+        savedNow();
+        JsonSnapshotWriter snapshotWriter = Storage.snapshotWriter;
+        //noinspection ConstantConditions // because if the method is json, file won't be null
+        return snapshotWriter != null ? snapshotWriter.saveAndWait(journalGeneration) : JsonSnapshotWriter.write(file, journalGeneration);
+    }
+
+    private static void savedNow() {
         synchronized (modificationLock) {
             timesModifiedSinceLastSave = 0;
             lastSaveTime = System.currentTimeMillis();
-            try {
-                //noinspection ResultOfMethodCallIgnored,ConstantConditions // because if the method is json, file won't be null
-                file.createNewFile();
-                FileWriter fileWriter = new FileWriter(file);
-                Map<String, Object> holeJsonMap = new HashMap<>();
-                //long start = System.nanoTime();
-                if (Context.globalVariables != null)
-                    holeJsonMap.put("global_vars", Context.globalVariables.toNormalClasses(true));
-                else {
-                    holeJsonMap.put("global_vars", new HashMap<>());
-                    CustomLogger.warning("Could not save global variables with json because BaseUsableFunction didn't got initialized with a json Storage. " +
-                            "This is probably because no script was run.");
-                }
-                if (gson != null) gson.toJson(holeJsonMap, fileWriter);
-                else throw new NullPointerException("This Storage class is not using JSON");
-                fileWriter.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
     }
 
     public static void saveAndClose() {
         if (isSQL) {
-            try {
-                //noinspection ConstantConditions
-                connection.close();
-            } catch (SQLException | NullPointerException e) {
-                e.printStackTrace();
+            if (garbageCollector != null) {
+                garbageCollector.close();
+                garbageCollector = null;
+            }
+            if (writeBehind != null) {
+                writeBehind.close(); // writes everything that is left
+                writeBehind = null;
+            }
+            if (connectionPool != null) {
+                CustomLogger.fine("SQL connections: " + connectionPool);
+                CustomLogger.fine("SQL collection cache: " + collectionCache);
+                connectionPool.close(); // kept, so using it now gives an SQLException
+            }
+        } else if (method == StorageMethod.LOG) {
+            if (unloader != null) {
+                unloader.close();
+                unloader = null;
+            }
+            if (logStorage != null) {
+                logStorage.close(); // writes the variables with lists or dictionaries that were modified
+                logStorage = null;
             }
         } else {
+            if (unloader != null) {
+                unloader.close();
+                unloader = null;
+            }
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
             jsonSave();
+            if (snapshotWriter != null) {
+                snapshotWriter.close();
+                snapshotWriter = null;
+            }
+            //noinspection ConstantConditions
+            JsonJournal.deleteJournals(file);
         }
     }
 
@@ -0,0 +1,201 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.AbstractScriptException;
+import fr.bananasmoothii.scriptcommands.core.execution.Context;
+import fr.bananasmoothii.scriptcommands.core.execution.ExceptionType;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptException;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the elements of the lists and dictionaries are kept. A {@link ScriptValueList} or a {@link ScriptValueMap}
+ * only has a {@link ListStore} or a {@link MapStore} made by a backend, and gives it everything it is asked:
+ * <ul>
+ *     <li>{@link MemoryBackend}: in an {@link java.util.ArrayList} or a {@link java.util.HashMap}, with json and log
+ *     storage, and for the collections that don't use SQL;</li>
+ *     <li>{@link SQLBackend}: in the database, with SQLite and MySQL.</li>
+ * </ul>
+ * Every backend must pass the tests of {@code StorageBackendTest}, and {@code StorageBackendBenchmark} compares them.
+ * <br/>
+ * The stores don't lock anything: a collection calls the methods modifying its store one at a time, with its own
+ * lock, but the methods reading it may be called meanwhile. Like everywhere in collections, errors are thrown as
+ * {@link ScriptException.Incomplete}s.
+ */
+public interface StorageBackend {
+
+    /**
+     * @return a short name, for the logs and the benchmarks
+     */
+    @NotNull String getName();
+
+    /**
+     * Creates an empty list
+     * @param stringID a new one, from {@link Storage#getIDAllocator()} (or {@link StringIDAllocator#nextLocal()} for the
+     *                 {@link MemoryBackend#getShared() shared MemoryBackend})
+     */
+    <E> @NotNull ListStore<E> createList(@NotNull StringID stringID, @Nullable Context context);
+
+    /**
+     * @return the list that was created with that {@link StringID}
+     * @throws NullPointerException if there is none
+     */
+    <E> @NotNull ListStore<E> getList(@NotNull StringID stringID);
+
+    /**
+     * Creates an empty dictionary
+     * @param stringID a new one, from {@link Storage#getIDAllocator()} (or {@link StringIDAllocator#nextLocal()} for the
+     *                 {@link MemoryBackend#getShared() shared MemoryBackend})
+     */
+    <K, V> @NotNull MapStore<K, V> createMap(@NotNull StringID stringID, @Nullable Context context);
+
+    /**
+     * @return the dictionary that was created with that {@link StringID}
+     * @throws NullPointerException if there is none
+     */
+    <K, V> @NotNull MapStore<K, V> getMap(@NotNull StringID stringID);
+
+    /**
+     * @param typeChar {@link ScriptValueList#typeChar} or {@link ScriptValueMap#typeChar}
+     */
+    boolean exists(@NotNull StringID stringID, char typeChar);
+
+    /**
+     * Removes a collection with its elements. Its store mustn't be used anymore.
+     * @param typeChar {@link ScriptValueList#typeChar} or {@link ScriptValueMap#typeChar}
+     * @return the number of elements removed
+     */
+    int drop(@NotNull StringID stringID, char typeChar, @Nullable Context context);
+
+    /**
+     * Waits until everything written before is stored, for being read by something else than the stores, like
+     * an other server or a copy of the database.
+     */
+    void flush();
+
+    interface CollectionStore {
+        @NotNull StringID getStringID();
+
+        @NotNull StorageBackend getBackend();
+
+        int size(@Nullable Context context);
+
+        void clear(@Nullable Context context);
+    }
+
+    /**
+     * The elements of a list. Except for {@link #get(int, Context)} and {@link #set(int, ScriptValue, Context)}, the
+     * indexes are checked by the list before.
+     */
+    interface ListStore<E> extends CollectionStore {
+        /**
+         * @throws ScriptException.Incomplete an {@link ExceptionType#OUT_OF_BOUNDS} if there is no element at that index
+         */
+        @NotNull ScriptValue<E> get(int index, @Nullable Context context);
+
+        /**
+         * @throws ScriptException.Incomplete an {@link ExceptionType#OUT_OF_BOUNDS} if there is no element at that index
+         */
+        void set(int index, @NotNull ScriptValue<E> element, @Nullable Context context);
+
+        /**
+         * Adds an element at the end
+         */
+        void add(@NotNull ScriptValue<E> element, @Nullable Context context);
+
+        void add(int index, @NotNull ScriptValue<E> element, @Nullable Context context);
+
+        /**
+         * Adds the elements at the end
+         * @return false if there was none
+         */
+        boolean addAll(@NotNull Collection<? extends ScriptValue<E>> elements, @Nullable Context context);
+
+        void remove(int index, @Nullable Context context);
+
+        /**
+         * @param last whether the last index is wanted instead of the first one
+         * @return -1 if the element isn't there
+         */
+        int indexOf(@NotNull ScriptValue<?> element, boolean last, @Nullable Context context);
+
+        boolean contains(@NotNull ScriptValue<?> element, @Nullable Context context);
+
+        /**
+         * @return copies of the elements from <strong>fromIndex</strong> (inclusive) to <strong>toIndex</strong>
+         * (exclusive), that can be modified without modifying this list
+         */
+        @NotNull List<ScriptValue<E>> getRange(int fromIndex, int toIndex, @Nullable Context context);
+
+        /**
+         * The elements added at the end while iterating aren't given, so adding elements in a loop doesn't make it
+         * endless.
+         */
+        @NotNull Iterator<ScriptValue<E>> iterator(@Nullable Context context);
+
+        /**
+         * @return the elements, all taken at the same time if the list isn't modified meanwhile
+         */
+        @NotNull List<ScriptValue<E>> snapshot(@Nullable Context context);
+
+        /**
+         * @return the exception to throw when there is no element at <strong>index</strong>
+         */
+        default AbstractScriptException outOfBounds(int index, @Nullable Context context) {
+            return new ScriptException.Incomplete(ExceptionType.OUT_OF_BOUNDS, "Index: " + index + ", Size: " + size(context))
+                    .completeIfPossible(context);
+        }
+    }
+
+    /**
+     * The entries of a dictionary
+     */
+    interface MapStore<K, V> extends CollectionStore {
+        /**
+         * @return {@code null} if the key isn't there
+         */
+        @Nullable ScriptValue<V> get(@NotNull ScriptValue<?> key, @Nullable Context context);
+
+        boolean containsKey(@NotNull ScriptValue<?> key, @Nullable Context context);
+
+        boolean containsValue(@NotNull ScriptValue<?> value, @Nullable Context context);
+
+        void put(@NotNull ScriptValue<K> key, @NotNull ScriptValue<V> value, @Nullable Context context);
+
+        void putAll(@NotNull Map<? extends ScriptValue<K>, ? extends ScriptValue<V>> entries, @Nullable Context context);
+
+        void remove(@NotNull ScriptValue<?> key, @Nullable Context context);
+
+        @NotNull Iterator<ScriptValue<K>> keyIterator(@Nullable Context context);
+
+        @NotNull Iterator<ScriptValue<V>> valueIterator(@Nullable Context context);
+
+        @NotNull Iterator<Map.Entry<ScriptValue<K>, ScriptValue<V>>> iterator(@Nullable Context context);
+
+        /**
+         * @return the entries, all taken at the same time if the dictionary isn't modified meanwhile
+         */
+        @NotNull List<Map.Entry<ScriptValue<K>, ScriptValue<V>>> snapshot(@Nullable Context context);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptException;
+import org.jetbrains.annotations.NotNull;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives a new {@link StringID} to each collection, lists, dictionaries and {@link StringScriptValueMap}s together, as
+ * their SQL tables share the same names. It can be used by several threads at once.
+ * <br/>
+ * With SQL, the first ID that was never given is saved in the {@code <table-prefix>sequences} table (the "high-water
+ * mark"), so IDs are never given twice, even after a restart, without having to look for free IDs in the database.
+ * The mark is moved by blocks of {@link #BLOCK_SIZE} IDs, so only one collection out of {@link #BLOCK_SIZE} has to
+ * write it. The rest of the block is lost when the server stops, but there are enough IDs for that.
+ * <br/>
+ * With json, IDs are never written to the storage file, so there is nothing to save.
+ * <br/>
+ * The collections that don't use SQL take their ID from {@link #nextLocal()} instead, which is never saved and doesn't
+ * lock anything, so the ones made by scripts all the time don't move the high-water mark.
+ */
+public class StringIDAllocator {
+    public static final int BLOCK_SIZE = 100;
+    private static final String SEQUENCE_NAME = "collections";
+    private static final AtomicInteger localIDs = new AtomicInteger();
+
+    private final boolean persisted;
+
+    // these are guarded by "this"
+    private int next;
+    /** the first ID that isn't in the current block */
+    private int blockEnd;
+
+    /**
+     * An allocator that isn't saved anywhere, starting from 0
+     */
+    public StringIDAllocator() {
+        persisted = false;
+    }
+
+    private StringIDAllocator(int highWaterMark) {
+        persisted = true;
+        next = highWaterMark;
+        blockEnd = highWaterMark;
+    }
+
+    /**
+     * Reads the high-water mark from the {@link #getSQLSequencesTable() sequences table}. If it isn't there (the
+     * first time SQL is used, or a database made before there was this table), it is computed once from the
+     * collections that already exist, in their own tables and in the {@link Storage#getSQLCollectionsTable()
+     * collections table}.
+     */
+    public static @NotNull StringIDAllocator loadFromSQL() throws SQLException {
+        createSQLSequencesTable();
+        try (ResultSet rs = Storage.executeSQLQuery("SELECT `value` FROM `" + getSQLSequencesTable() + "` WHERE `name` = '" + SEQUENCE_NAME + '\'')) {
+            if (rs.next()) return new StringIDAllocator(rs.getInt(1));
+        }
+
+        int highWaterMark = 0;
+        for (Map.Entry<String, Character> table : Storage.getSQLCollectionTables().entrySet()) {
+            StringID id = new StringID(table.getKey().substring(Storage.getSQLTablePrefix().length()));
+            highWaterMark = Math.max(highWaterMark, id.toInt() + 1);
+        }
+        if (Storage.sqlTableExists(Storage.getSQLCollectionsTable())) {
+            try (ResultSet rs = Storage.executeSQLQuery("SELECT `id` FROM `" + Storage.getSQLCollectionsTable() + '`')) {
+                while (rs.next()) {
+                    highWaterMark = Math.max(highWaterMark, new StringID(rs.getString(1)).toInt() + 1);
+                }
+            }
+        }
+        Storage.executeSQLUpdate("INSERT INTO `" + getSQLSequencesTable() + "` (`name`, `value`) VALUES('" + SEQUENCE_NAME + "', " + highWaterMark + ')');
+        CustomLogger.fine("Collection IDs will start from " + highWaterMark);
+        return new StringIDAllocator(highWaterMark);
+    }
+
+    /**
+     * For a collection that doesn't use SQL: its ID is never used as a table name, so it can be given again
+     * after a restart, or after all the IDs were given.
+     */
+    public static @NotNull StringID nextLocal() {
+        return new StringID(localIDs.getAndIncrement() & Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws ScriptException.Incomplete if a new block was needed and the high-water mark couldn't be saved, or if
+     * all the IDs were given
+     */
+    public synchronized @NotNull StringID next() {
+        if (next == Integer.MAX_VALUE) // a negative one would give a table name with a '-'
+            throw ScriptException.Incomplete.wrapInShouldNotHappen(new IllegalStateException("all the collection IDs were given"));
+        if (persisted && next >= blockEnd) {
+            int newBlockEnd = (int) Math.min((long) next + BLOCK_SIZE, Integer.MAX_VALUE);
+            String query = "UPDATE `" + getSQLSequencesTable() + "` SET `value` = " + newBlockEnd + " WHERE `name` = '" + SEQUENCE_NAME + '\'';
+            try {
+                Storage.executeSQLUpdate(query);
+            } catch (SQLException e) {
+                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query);
+            }
+            blockEnd = newBlockEnd;
+        }
+        return new StringID(next++);
+    }
+
+    /**
+     * @return the first ID that won't be given by this allocator, as saved in SQL (or the next ID if it isn't saved)
+     */
+    public synchronized int getHighWaterMark() {
+        return persisted ? blockEnd : next;
+    }
+
+    /**
+     * Creates the {@link #getSQLSequencesTable() sequences table} if it doesn't exist. It may also have other values
+     * than the high-water mark of collection IDs.
+     */
+    static void createSQLSequencesTable() throws SQLException {
+        Storage.executeSQLUpdate("CREATE TABLE IF NOT EXISTS `" + getSQLSequencesTable() + "` (`name` VARCHAR(32) PRIMARY KEY, `value` INT NOT NULL)");
+    }
+
+    public static String getSQLSequencesTable() {
+        return Storage.getSQLTablePrefix() + "sequences";
+    }
+}
@@ -26,13 +26,16 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
 
 /**
  * Similar to {@link ScriptValueMap} but for global variables, with names. <br>
@@ -49,6 +52,8 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
     /** @see ScriptValueCollection#getSQLTable() */
     public static final char typeChar = 's';
 
+    private static final String[] COLUMNS = {"name", "value_object", "value_type"};
+
     private boolean isTheGlobal;
 
     private static StringScriptValueMap<Object> theGlobal;
@@ -62,11 +67,36 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
 
     private final Object modificationLock = new Object();
 
+    /**
+     * With json or {@link LogStorage}, the position in {@link #lazySource} of the variables that aren't decoded yet, or
+     * that were unloaded, by name. They are not in {@link #internalMap}. Guarded by {@link #modificationLock}.
+     */
+    private final Map<String, Integer> notLoaded = new HashMap<>();
+    private @Nullable SnapshotReader lazySource;
+    /**
+     * The variables of {@link #notLoaded} that were unloaded by {@link #unloadColdVariables()}, whose value may still
+     * be used somewhere else. Guarded by {@link #modificationLock}.
+     */
+    private final Map<String, Unloaded<V>> unloaded = new HashMap<>();
+    /**
+     * The lists and dictionaries in the {@link #unloaded} variables, to know when one is modified
+     */
+    private static final ConcurrentMap<UnloadedPart, Unloaded<?>> unloadedParts = new ConcurrentHashMap<>();
+    /**
+     * The names of the variables used since the last {@link #unloadColdVariables()}, null if it isn't used
+     */
+    private volatile @Nullable Set<String> recentlyUsed;
+
+    /**
+     * With SQL, the values given to the {@link SQLWriteBehind} that may not be in the database yet, by name. A
+     * {@link PendingValue} with a {@code null} value means the variable was removed.
+     */
+    private final ConcurrentMap<String, PendingValue<V>> pendingValues = new ConcurrentHashMap<>();
+
     private @NotNull StringID stringID;
 
     private final boolean useSQLIfPossible;
 
-    private static StringID lastStringID;
 
     public StringScriptValueMap() {
         this(false, false);
@@ -90,7 +120,7 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
         this.isTheGlobal = isTheGlobal;
         if (isTheGlobal)
             theGlobal = (StringScriptValueMap<Object>) this;
-        stringID = getNewStringID();
+        stringID = canUseSQL() ? Storage.getIDAllocator().next() : StringIDAllocator.nextLocal();
         if (canUseSQL()) {
             SQLTable = getFullSQLTableName();
             boolean tableWasCreated = ! Storage.sqlTableExists(SQLTable);
@@ -140,22 +170,12 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
         useSQLIfPossible = true;
         this.stringID = stringID;
         SQLTable = getFullSQLTableName();
+        Storage.flushWrites(); // an other instance may have written in that table
         if (! Storage.sqlTableExists(SQLTable))
             throw new NullPointerException("SQL table " + SQLTable + " does not exist");
         modified();
     }
 
-    private static StringID getNewStringID() {
-        StringID currentID = lastStringID != null ? lastStringID.nextID() : new StringID(0);
-        if (Storage.isSQL) {
-            while (Storage.sqlTableExists(getFullSQLTableName(currentID, false))) {
-                currentID = currentID.nextID();
-            }
-        }
-        lastStringID = currentID;
-        return currentID;
-    }
-
     /**
      * @see #getTheGlobal(boolean)
      */
@@ -168,6 +188,8 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
      */
     public static StringScriptValueMap<Object> getTheGlobal(boolean hardReload) {
         if (!hardReload && theGlobal != null) return theGlobal;
+        if (theGlobal != null && theGlobal.internalMap == null && ! Storage.isSQL)
+            theGlobal = null; // it was in the database of the previous storage method, it can't be loaded from a file
         switch (Storage.getMethod()) {
             case JSON:
                 File file = Storage.getFile();
@@ -177,35 +199,401 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
                     new StringScriptValueMap<>(true, true);
                 }
                 else {
-                    try (FileReader reader = new FileReader(file)) {
-                        Map<String, Object> loadedGlobals;
+                    Journal journal = Storage.getJournal();
+                    if (journal != null) {
                         try {
-                            loadedGlobals = (Map<String, Object>) Storage.gson.fromJson(reader, Map.class).get("global_vars");
-                        } catch (NullPointerException e) {
+                            journal.flush(); // for replaying it
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    if (theGlobal == null)
+                        new StringScriptValueMap<>(true, true);
+                    try {
+                        SnapshotReader reader = SnapshotReader.open(file);
+                        if (reader instanceof JsonSnapshotReader && ! ((JsonSnapshotReader) reader).hasGlobals()) {
                             regenerateJson();
-                            loadedGlobals = new HashMap<>();
+                            theGlobal.loadJson(new HashMap<>(), reader.getJournalGeneration());
+                        } else {
+                            theGlobal.loadLazily(reader);
                         }
-                        if (theGlobal == null)
-                            new StringScriptValueMap<>(true, true);
-                        theGlobal.timesModifiedSinceLastSave = -loadedGlobals.size() - 1; // for not making it save because it will save the same
-                        theGlobal.clear(theGlobal.context);
-                        //noinspection OverlyStrongTypeCast
-                        theGlobal.putAll((StringScriptValueMap<Object>) StringScriptValueMap.toScriptValues(loadedGlobals, true));
                     } catch (IOException e) {
+                        CustomLogger.severe("Could not read the global variables in " + file.getName() + ": " + e);
                         e.printStackTrace();
                     }
                 }
                 break;
+            case LOG:
+                if (theGlobal == null)
+                    new StringScriptValueMap<>(true, true);
+                LogStorage logStorage = Storage.getLogStorage();
+                if (logStorage != null) {
+                    try {
+                        theGlobal.loadLazily(logStorage);
+                    } catch (IOException e) {
+                        e.printStackTrace(); // LogStorage.readGlobals() can't throw it
+                    }
+                }
+                break;
             case MYSQL:
             case SQLITE:
-                if (hardReload)
+                if (hardReload) {
                     theGlobal = null;
+                    Storage.flushWrites(); // the writes of the old global have to be in the database before reading it
+                }
                 if (theGlobal == null)
                     new StringScriptValueMap<>(true, true);
         }
         return theGlobal;
     }
 
+    /**
+     * Replaces the content of this json map by <strong>loadedGlobals</strong> and what is in the {@link JsonJournal}
+     * since the storage file was written. Nothing is written in the journal.
+     * @param journalGeneration the first generation of journal to replay
+     */
+    private void loadJson(Map<String, Object> loadedGlobals, int journalGeneration) {
+        synchronized (modificationLock) {
+            internalMap.clear();
+            clearNotLoaded();
+            lazySource = null;
+            for (Entry<String, Object> entry : loadedGlobals.entrySet()) {
+                internalMap.put(entry.getKey(), (ScriptValue<V>) ScriptValue.toScriptValue(entry.getValue(), true));
+            }
+            replayJournal(journalGeneration);
+        }
+    }
+
+    /**
+     * Same as {@link #loadJson(Map, int)} but the variables are only decoded from <strong>reader</strong> when they
+     * are used.
+     */
+    private void loadLazily(SnapshotReader reader) throws IOException {
+        synchronized (modificationLock) {
+            internalMap.clear();
+            clearNotLoaded();
+            notLoaded.putAll(reader.readGlobals());
+            lazySource = reader;
+            replayJournal(reader.getJournalGeneration());
+        }
+    }
+
+    private void replayJournal(int journalGeneration) {
+        int replayed = JsonJournal.replay(Storage.getFile(), journalGeneration,
+                (name, value) -> {
+                    forgetNotLoaded(name);
+                    internalMap.put(name, (ScriptValue<V>) value);
+                },
+                name -> {
+                    forgetNotLoaded(name);
+                    internalMap.remove(name);
+                },
+                () -> {
+                    clearNotLoaded();
+                    internalMap.clear();
+                });
+        if (replayed != 0) CustomLogger.fine("Replayed " + replayed + " modifications of global variables from the journal");
+        lastSize = -1;
+    }
+
+    /**
+     * @return the variable that wasn't decoded yet from the {@link #lazySource}, now in {@link #internalMap}, or
+     * {@code null} if it isn't there.
+     */
+    private @Nullable ScriptValue<V> load(Object key) {
+        synchronized (modificationLock) {
+            ScriptValue<V> value = takeNotLoaded(key);
+            if (value == null) return internalMap.get(key);
+            internalMap.put((String) key, value);
+            return value;
+        }
+    }
+
+    /**
+     * Decodes every variable that wasn't decoded yet from the {@link #lazySource}, for the methods needing all of
+     * them.
+     */
+    private void loadAll() {
+        if (notLoaded.isEmpty()) return;
+        synchronized (modificationLock) {
+            for (Entry<String, Integer> entry : notLoaded.entrySet()) {
+                internalMap.put(entry.getKey(), getNotLoaded(entry.getKey(), entry.getValue()));
+            }
+            clearNotLoaded();
+        }
+    }
+
+    /**
+     * @return the value of a variable of {@link #notLoaded}, the same object as before if it was unloaded but is still
+     * used somewhere else
+     */
+    private ScriptValue<V> getNotLoaded(String name, int position) {
+        Unloaded<V> unloadedVariable = unloaded.get(name);
+        if (unloadedVariable != null) {
+            ScriptValue<V> value = unloadedVariable.get();
+            if (value != null) return value;
+        }
+        return (ScriptValue<V>) lazySource.decode(position);
+    }
+
+    /**
+     * Removes a variable from {@link #notLoaded}
+     * @return its value, or {@code null} if it wasn't there
+     */
+    private @Nullable ScriptValue<V> takeNotLoaded(Object key) {
+        //noinspection SuspiciousMethodCalls
+        Integer position = notLoaded.get(key);
+        if (position == null) return null;
+        ScriptValue<V> value = getNotLoaded((String) key, position);
+        forgetNotLoaded(key);
+        return value;
+    }
+
+    /**
+     * Removes a variable from {@link #notLoaded} without decoding it
+     */
+    private void forgetNotLoaded(Object key) {
+        //noinspection SuspiciousMethodCalls
+        if (notLoaded.remove(key) == null) return;
+        //noinspection SuspiciousMethodCalls
+        Unloaded<V> unloadedVariable = unloaded.remove(key);
+        if (unloadedVariable != null) unloadedVariable.forgetParts();
+    }
+
+    private void clearNotLoaded() {
+        notLoaded.clear();
+        for (Unloaded<V> unloadedVariable : unloaded.values()) {
+            unloadedVariable.forgetParts();
+        }
+        unloaded.clear();
+    }
+
+    /**
+     * Removes from memory the variables that weren't used since the last call, if their value is the same as in the
+     * storage file: they are decoded again from it when they are used. The first call only starts looking at which
+     * variables are used. Each call also reopens the storage file if it was saved since the last call.
+     * <br/>
+     * The value of an unloaded variable may still be used, by a script or by an other variable. It is only kept with a
+     * {@link WeakReference}, so the same object is given again while it, or a list or dictionary in it, is used. If it
+     * (or a list or dictionary in it) is modified, it is kept in memory again, as it isn't the same as in the file
+     * anymore.
+     * @return the number of variables unloaded
+     * @see VariableUnloader
+     */
+    public int unloadColdVariables() {
+        if (internalMap == null) return 0;
+        Set<String> used = recentlyUsed;
+        recentlyUsed = ConcurrentHashMap.newKeySet();
+        SnapshotReader source = reopenLazySource();
+        if (used == null || source == null) return 0;
+        Map<String, Integer> positions;
+        try {
+            positions = source.readGlobals();
+        } catch (IOException e) {
+            CustomLogger.warning("Could not read " + source.getFile().getName() + " for unloading global variables: " + e);
+            return 0;
+        }
+        List<Entry<String, ScriptValue<V>>> candidates = new ArrayList<>();
+        synchronized (modificationLock) {
+            Iterator<Unloaded<V>> iterator = unloaded.values().iterator();
+            while (iterator.hasNext()) {
+                Unloaded<V> unloadedVariable = iterator.next();
+                ScriptValue<V> pinned = unloadedVariable.pinned;
+                if (pinned != null) { // modified since, it isn't the same as in the file anymore
+                    iterator.remove();
+                    unloadedVariable.forgetParts();
+                    notLoaded.remove(unloadedVariable.name);
+                    internalMap.put(unloadedVariable.name, pinned);
+                } else if (unloadedVariable.get() == null) { // not used anymore, only the position is needed
+                    iterator.remove();
+                    unloadedVariable.forgetParts();
+                }
+            }
+            for (Entry<String, ScriptValue<V>> entry : internalMap.entrySet()) {
+                if (! used.contains(entry.getKey()) && positions.containsKey(entry.getKey()))
+                    candidates.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+        }
+        int unloadedCount = 0;
+        for (Entry<String, ScriptValue<V>> candidate : candidates) {
+            String name = candidate.getKey();
+            ScriptValue<V> value = candidate.getValue();
+            int position = positions.get(name);
+            // watched before comparing, so a modification made while comparing isn't missed
+            Unloaded<V> unloadedVariable = new Unloaded<>(name, value);
+            try {
+                if (! value.equals(source.decode(position))) {
+                    unloadedVariable.forgetParts();
+                    continue;
+                }
+            } catch (RuntimeException e) { // modified while comparing
+                unloadedVariable.forgetParts();
+                continue;
+            }
+            synchronized (modificationLock) {
+                Set<String> usedNow = recentlyUsed;
+                if (unloadedVariable.modified || internalMap.get(name) != value || lazySource != source
+                        || (usedNow != null && usedNow.contains(name))) {
+                    unloadedVariable.forgetParts();
+                    continue;
+                }
+                internalMap.remove(name);
+                notLoaded.put(name, position);
+                unloaded.put(name, unloadedVariable);
+                unloadedCount++;
+            }
+        }
+        return unloadedCount;
+    }
+
+    /**
+     * Opens the storage file again if it was saved since {@link #lazySource} was opened, so the variables modified
+     * since can be unloaded. The variables that are still not loaded are the same in it.
+     * @return the new {@link #lazySource}, or {@code null} if there is none
+     */
+    private @Nullable SnapshotReader reopenLazySource() {
+        SnapshotReader source;
+        synchronized (modificationLock) {
+            source = lazySource;
+        }
+        if (source != null && ! source.isOutdated()) return source;
+        File file = Storage.getFile();
+        if (file == null || ! file.exists()) return source;
+        SnapshotReader newSource;
+        Map<String, Integer> positions;
+        try {
+            newSource = SnapshotReader.open(file);
+            positions = newSource.readGlobals();
+        } catch (IOException e) {
+            CustomLogger.warning("Could not read " + file.getName() + " for unloading global variables: " + e);
+            return source;
+        }
+        synchronized (modificationLock) {
+            if (lazySource != source) return lazySource; // loaded again meanwhile
+            Iterator<Entry<String, Integer>> iterator = notLoaded.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry<String, Integer> entry = iterator.next();
+                Integer position = positions.get(entry.getKey());
+                if (position != null) {
+                    entry.setValue(position);
+                } else { // the file was written before the variable was there, it stays in memory
+                    internalMap.put(entry.getKey(), getNotLoaded(entry.getKey(), entry.getValue()));
+                    iterator.remove();
+                    Unloaded<V> unloadedVariable = unloaded.remove(entry.getKey());
+                    if (unloadedVariable != null) unloadedVariable.forgetParts();
+                }
+            }
+            lazySource = newSource;
+        }
+        return newSource;
+    }
+
+    /**
+     * Stops looking at which variables are used, when {@link #unloadColdVariables()} isn't called anymore.
+     */
+    void stopUnloading() {
+        recentlyUsed = null;
+    }
+
+    /**
+     * To call when a list or dictionary is modified. If it is in a variable that was unloaded, that variable is kept in
+     * memory.
+     */
+    static void unloadedPartModified(@NotNull ScriptValueCollection collection) {
+        if (unloadedParts.isEmpty()) return;
+        Unloaded<?> unloadedVariable = unloadedParts.get(new UnloadedPart(collection));
+        if (unloadedVariable != null) unloadedVariable.pin();
+    }
+
+    /**
+     * A variable that was unloaded, or that is being unloaded
+     */
+    private static class Unloaded<V> extends WeakReference<ScriptValue<V>> {
+        final String name;
+        private final List<UnloadedPart> parts = new ArrayList<>();
+        volatile boolean modified;
+        /** the value, once it is modified */
+        volatile @Nullable ScriptValue<V> pinned;
+
+        Unloaded(String name, ScriptValue<V> value) {
+            super(value);
+            this.name = name;
+            addParts(value, value);
+        }
+
+        /**
+         * Each part references the value of the variable, so that value is only garbage collected with its parts: a
+         * part can't be modified after its variable is gone.
+         */
+        private void addParts(ScriptValue<?> value, ScriptValue<V> variable) {
+            if (value.v instanceof ScriptValueList) {
+                ScriptValueList<?> list = (ScriptValueList<?>) value.v;
+                UnloadedPart part = new UnloadedPart(list);
+                parts.add(part);
+                unloadedParts.put(part, this);
+                list.unloadedVariable = variable;
+                for (ScriptValue<?> element : list.snapshot()) {
+                    addParts(element, variable);
+                }
+            } else if (value.v instanceof ScriptValueMap) {
+                ScriptValueMap<?, ?> map = (ScriptValueMap<?, ?>) value.v;
+                UnloadedPart part = new UnloadedPart(map);
+                parts.add(part);
+                unloadedParts.put(part, this);
+                map.unloadedVariable = variable;
+                for (Entry<? extends ScriptValue<?>, ? extends ScriptValue<?>> entry : map.snapshot()) {
+                    addParts(entry.getKey(), variable);
+                    addParts(entry.getValue(), variable);
+                }
+            }
+        }
+
+        void pin() {
+            modified = true;
+            ScriptValue<V> value = get();
+            if (value != null) pinned = value;
+            else CustomLogger.warning("A list or dictionary of the global variable " + name + " was modified after the " +
+                    "variable was unloaded from memory, it will be read again from the storage file without that modification");
+        }
+
+        void forgetParts() {
+            ScriptValue<V> variable = get();
+            for (UnloadedPart part : parts) {
+                unloadedParts.remove(part, this);
+                ScriptValueCollection collection = part.get();
+                if (collection instanceof ScriptValueList && ((ScriptValueList<?>) collection).unloadedVariable == variable)
+                    ((ScriptValueList<?>) collection).unloadedVariable = null;
+                else if (collection instanceof ScriptValueMap && ((ScriptValueMap<?, ?>) collection).unloadedVariable == variable)
+                    ((ScriptValueMap<?, ?>) collection).unloadedVariable = null;
+            }
+        }
+    }
+
+    /**
+     * A list or dictionary compared by identity, as two different collections can be equal
+     */
+    private static class UnloadedPart extends WeakReference<ScriptValueCollection> {
+        private final int hashCode;
+
+        UnloadedPart(ScriptValueCollection collection) {
+            super(collection);
+            hashCode = System.identityHashCode(collection);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (! (o instanceof UnloadedPart)) return false;
+            ScriptValueCollection collection = get();
+            return collection != null && collection == ((UnloadedPart) o).get();
+        }
+    }
+
     public static void regenerateJson() {
         if (Storage.getMethod() != Storage.StorageMethod.JSON) throw new RuntimeException("Storage is not using Json");
         File file = Storage.getFile();
@@ -226,13 +614,22 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
     @Override
     @Contract(pure = true)
     public int size(@Nullable Context context) {
-        if (internalMap != null) return internalMap.size();
+        if (internalMap != null) {
+            synchronized (modificationLock) {
+                return internalMap.size() + notLoaded.size();
+            }
+        }
         if (lastSize != -1 && timesModifiedSinceLastSave == 0) return lastSize;
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        Integer cached = (Integer) cache.get(stringID, SQLCollectionCache.SIZE);
+        if (cached != null) return cached;
+        long stamp = cache.stamp(stringID);
+        flushPendingValues();
         String query = "SELECT COUNT(*) FROM `" + SQLTable + '`';
-        try {
-            ResultSet rs = Storage.executeSQLQuery(query);
+        try (ResultSet rs = Storage.executeSQLQuery(query)) {
             rs.next();
             lastSize = rs.getInt(1);
+            cache.load(stringID, SQLCollectionCache.SIZE, lastSize, stamp);
             return lastSize;
         } catch (SQLException e) {
             throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
@@ -242,11 +639,14 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
     @Override
     public boolean containsValue(Object value, @Nullable Context context) {
         if (! (value instanceof ScriptValue)) return false;
-        if (internalMap != null) return internalMap.containsValue(value);
+        if (internalMap != null) {
+            loadAll();
+            return internalMap.containsValue(value);
+        }
+        flushPendingValues();
         String query = "SELECT `value_object`, `value_type` FROM `" + SQLTable + '`';
         ScriptValue<?> value1 = (ScriptValue<?>) value;
-        try {
-            ResultSet rs = Storage.executeSQLQuery(query);
+        try (ResultSet rs = Storage.executeSQLQuery(query)) {
             while (rs.next()) {
                 byte type = rs.getByte(2);
                 if (type != value1.type.asByte) continue;
@@ -262,35 +662,48 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
     @Override
     public boolean containsKey(Object key, @Nullable Context context) {
         if (! (key instanceof String)) return false;
-        if (internalMap != null) return internalMap.containsKey(key);
-        String query = "SELECT 1 FROM `" + SQLTable + "` WHERE `name` = ?";
-        try {
-            PreparedStatement ps = Storage.prepareSQLStatement(query);
-            ps.setString(1, (String) key);
-            query += " => " + ps;
-            return ps.executeQuery().next();
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+        if (internalMap != null) return internalMap.containsKey(key) || notLoaded.containsKey(key);
+        return getFromSQL((String) key, context) != SQLCollectionCache.ABSENT;
     }
 
     /**
-     * If this returns {@code null}, it means there was an error or your key wasn't a {@link ScriptValue},
-     * because if this works, it should return a
-     * <code>{@link ScriptValue}<{@link fr.bananasmoothii.scriptcommands.core.execution.NoneType NoneType}></code>
+     * @return {@code null} if there is no variable with that name, like with a normal {@link Map}
      */
     @Override
-    public ScriptValue<V> get(Object key, @Nullable Context context) {
+    public @Nullable ScriptValue<V> get(Object key, @Nullable Context context) {
         if (! (key instanceof String)) return null;
-        if (internalMap != null) return internalMap.get(key);
+        if (internalMap != null) {
+            Set<String> used = recentlyUsed;
+            if (used != null) used.add((String) key);
+            ScriptValue<V> value = internalMap.get(key);
+            return value != null || notLoaded.isEmpty() ? value : load(key);
+        }
+        Object value = getFromSQL((String) key, context);
+        return value == SQLCollectionCache.ABSENT ? null : (ScriptValue<V>) value;
+    }
+
+    /**
+     * Reads a variable from the {@link #pendingValues}, the {@link SQLCollectionCache}, or the database if it is in
+     * none of them. The stamp of the cache is taken before looking at the {@link #pendingValues}, so a value that was
+     * written after can't be replaced by the older one of the database.
+     * @return the value, or {@link SQLCollectionCache#ABSENT} if there is no variable with that name
+     */
+    private Object getFromSQL(String key, @Nullable Context context) {
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        long stamp = cache.stamp(stringID);
+        PendingValue<V> pendingValue = pendingValues.get(key);
+        if (pendingValue != null) return pendingValue.value != null ? pendingValue.value : SQLCollectionCache.ABSENT;
+        Object cached = cache.get(stringID, key);
+        if (cached != null) return cached;
         String query = "SELECT `value_object`, `value_type` FROM `" + SQLTable + "` WHERE `name` = ?";
-        try {
-            PreparedStatement ps = Storage.prepareSQLStatement(query);
-            ps.setString(1, (String) key);
+        try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+            ps.setString(1, key);
             query += " => " + ps;
-            ResultSet rs = ps.executeQuery();
-            if (!rs.next()) return (ScriptValue<V>) ScriptValue.NONE;
-            return (ScriptValue<V>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2));
+            try (ResultSet rs = ps.executeQuery()) {
+                Object value = rs.next() ? ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2)) : SQLCollectionCache.ABSENT;
+                cache.load(stringID, key, value, stamp);
+                return value;
+            }
         } catch (SQLException e) {
             throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
         }
@@ -298,40 +711,119 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
 
     @Override
     public ScriptValue<V> put(String key, ScriptValue<V> value, @Nullable Context context) {
+        return put(key, value, true, context);
+    }
+
+    /**
+     * With SQL, this is a single upsert statement, plus a {@code SELECT} if the previous value is needed. If there is
+     * a {@link SQLWriteBehind}, the statement is only executed later. The value is also kept in the
+     * {@link SQLCollectionCache}.
+     * @param returnPrevious if false, this always returns {@code null}
+     * @return the previous value, or {@code null} if there was none
+     */
+    public @Nullable ScriptValue<V> put(String key, ScriptValue<V> value, boolean returnPrevious, @Nullable Context context) {
         if (key.length() > 100) throw new IllegalArgumentException("the key in longer than 100 characters");
-        ScriptValue<V> previousElement;
+        ScriptValue<V> previousElement = null;
         if (internalMap != null) {
+            Set<String> used = recentlyUsed;
+            if (used != null) used.add(key);
             synchronized (modificationLock) {
+                ScriptValue<V> notLoadedValue = returnPrevious ? takeNotLoaded(key) : null;
+                if (! returnPrevious) forgetNotLoaded(key);
                 previousElement = internalMap.put(key, value);
+                if (notLoadedValue != null) previousElement = notLoadedValue;
+                Journal journal;
+                if (isTheGlobal && (journal = Storage.getJournal()) != null) journal.put(key, value);
             }
         } else {
-            previousElement = get(key, context);
-            if (containsKey(key, context)) {
-                String query = "UPDATE `" + SQLTable + "` SET `value_object` = ?, `value_type` = ? WHERE `name` = ?";
-                try {
-                    PreparedStatement ps = Storage.prepareSQLStatement(query);
-                    ScriptValueCollection.setScriptValueInPreparedStatement(ps, value, 1, 2, context);
-                    ps.setString(3, key);
-                    query += " => " + ps;
-                    ps.executeUpdate();
-                } catch (SQLException e) {
-                    throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-                }
-            } else {
-                String query = "INSERT INTO `" + SQLTable + "` VALUES(?, ?, ?)";
-                try {
-                    PreparedStatement ps = Storage.prepareSQLStatement(query);
+            if (returnPrevious) previousElement = get(key, context);
+            ScriptValueCollection.prepareForSQL(value, context);
+            SQLCollectionCache cache = Storage.getCollectionCache();
+            String query = Storage.getSQLUpsert(SQLTable, COLUMNS, "name");
+            SQLWriteBehind writeBehind = Storage.getWriteBehind();
+            synchronized (cache.writeLock(stringID)) {
+                if (writeBehind != null) {
+                    writeLater(writeBehind, key, value, query, ps -> {
+                        ps.setString(1, key);
+                        ScriptValueCollection.setScriptValueInPreparedStatement(ps, value, 2, 3, null);
+                    });
+                } else try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
                     ps.setString(1, key);
                     ScriptValueCollection.setScriptValueInPreparedStatement(ps, value, 2, 3, context);
                     query += " => " + ps;
                     ps.executeUpdate();
                 } catch (SQLException e) {
+                    cache.invalidate(stringID);
                     throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
                 }
+                cache.written(stringID, key, value);
             }
         }
         modified();
-        return previousElement;
+        return returnPrevious ? previousElement : null;
+    }
+
+    /**
+     * With SQL, the variables are upserted in one transaction, by batches (see {@link Storage#executeSQLBatch(String, Iterable)}),
+     * or copied in the database by a single upsert from a {@code SELECT} if <strong>m</strong> is a
+     * {@link StringScriptValueMap} using SQL too. This doesn't go through the {@link SQLWriteBehind}: what it has to
+     * write is written before.
+     */
+    @Override
+    public void putAll(Map<? extends String, ? extends ScriptValue<V>> m, @Nullable Context context) {
+        if (m == this) return;
+        for (String key : m.keySet()) {
+            if (key.length() > 100) throw new IllegalArgumentException("the key " + key + " in longer than 100 characters");
+        }
+        if (internalMap != null) {
+            if (m.isEmpty()) return;
+            synchronized (modificationLock) {
+                Journal journal = isTheGlobal ? Storage.getJournal() : null;
+                for (Entry<? extends String, ? extends ScriptValue<V>> entry : m.entrySet()) {
+                    forgetNotLoaded(entry.getKey());
+                    internalMap.put(entry.getKey(), entry.getValue());
+                    if (journal != null) journal.put(entry.getKey(), entry.getValue());
+                }
+            }
+            modified();
+            return;
+        }
+        String query;
+        List<SQLWriteBehind.Binder> rows = null;
+        if (m instanceof StringScriptValueMap && ((StringScriptValueMap<?>) m).internalMap == null) {
+            ((StringScriptValueMap<?>) m).flushPendingValues();
+            query = Storage.getSQLTableCopy(SQLTable, COLUMNS, ((StringScriptValueMap<?>) m).SQLTable, "name");
+        } else {
+            rows = new ArrayList<>(m.size());
+            // before the transaction, as it may make collections use SQL
+            for (Entry<? extends String, ? extends ScriptValue<V>> entry : m.entrySet()) {
+                String key = entry.getKey();
+                ScriptValue<V> value = entry.getValue();
+                String valueObject = ScriptValueCollection.toSQLObject(value, context);
+                rows.add(ps -> {
+                    ps.setString(1, key);
+                    ps.setString(2, valueObject);
+                    ps.setByte(3, value != null ? value.type.asByte : 0);
+                });
+            }
+            if (rows.isEmpty()) return;
+            query = Storage.getSQLUpsert(SQLTable, COLUMNS, "name");
+        }
+        SQLCollectionCache cache = Storage.getCollectionCache();
+        // no write of this map can be given to the SQLWriteBehind meanwhile, so none is written after these ones
+        synchronized (cache.writeLock(stringID)) {
+            flushPendingValues();
+            try {
+                if (rows != null) Storage.executeSQLBatch(query, rows);
+                else Storage.executeSQLUpdate(query);
+            } catch (SQLException e) {
+                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+            } finally {
+                cache.invalidate(stringID);
+            }
+            if (rows == null) SQLGarbageCollector.copiedInSQL(this);
+        }
+        modified();
     }
 
     @Override
@@ -340,180 +832,206 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
         if (internalMap != null) {
             synchronized (modificationLock) {
                 //noinspection SuspiciousMethodCalls
-                previousElement = internalMap.remove(key);
+                previousElement = notLoaded.containsKey(key) ? takeNotLoaded(key) : internalMap.remove(key);
+                Journal journal;
+                if (isTheGlobal && previousElement != null && (journal = Storage.getJournal()) != null)
+                    journal.remove((String) key);
             }
         } else {
             previousElement = get(key, context);
+            if (! (key instanceof String)) return null;
+            SQLCollectionCache cache = Storage.getCollectionCache();
             String query = "DELETE FROM `" + SQLTable + "` WHERE `name` = ?";
-            try {
-                PreparedStatement ps = Storage.prepareSQLStatement(query);
-                ps.setString(1, (String) key);
-                query += " => " + ps;
-                ps.executeUpdate();
-            } catch (SQLException e) {
-                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+            SQLWriteBehind writeBehind = Storage.getWriteBehind();
+            synchronized (cache.writeLock(stringID)) {
+                if (writeBehind != null) {
+                    writeLater(writeBehind, (String) key, null, query, ps -> ps.setString(1, (String) key));
+                } else try (PreparedStatement ps = Storage.prepareSQLStatement(query)) {
+                    ps.setString(1, (String) key);
+                    query += " => " + ps;
+                    ps.executeUpdate();
+                } catch (SQLException e) {
+                    cache.invalidate(stringID);
+                    throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+                }
+                cache.written(stringID, (String) key, SQLCollectionCache.ABSENT);
             }
         }
         modified();
         return previousElement;
     }
 
+    /**
+     * Gives the statement to the {@link SQLWriteBehind}, and remembers <strong>value</strong> until it is written so
+     * it can be read before.
+     * @param value {@code null} if the variable is removed
+     */
+    private void writeLater(SQLWriteBehind writeBehind, String key, @Nullable ScriptValue<V> value, String query, SQLWriteBehind.Binder binder) {
+        PendingValue<V> pendingValue = new PendingValue<>(value);
+        // the order of pendingValues and of the writes must be the same
+        synchronized (modificationLock) {
+            pendingValues.put(key, pendingValue);
+            try {
+                writeBehind.enqueue(query, binder, () -> pendingValues.remove(key, pendingValue));
+            } catch (IllegalStateException e) {
+                pendingValues.remove(key, pendingValue);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * For reading the whole table, every pending value has to be written before
+     */
+    private void flushPendingValues() {
+        if (! pendingValues.isEmpty()) Storage.flushWrites();
+    }
+
+    private static class PendingValue<V> {
+        final @Nullable ScriptValue<V> value;
+
+        PendingValue(@Nullable ScriptValue<V> value) {
+            this.value = value;
+        }
+    }
+
     @Override
     public void clear(@Nullable Context context) {
-        if (!isEmpty(context)) return;
+        if (isEmpty(context)) return;
 
         if (internalMap != null) {
             synchronized (modificationLock) {
                 internalMap.clear();
+                clearNotLoaded();
+                Journal journal;
+                if (isTheGlobal && (journal = Storage.getJournal()) != null) journal.clear();
             }
             modified();
             return;
         }
+        flushPendingValues();
         String query = "DELETE FROM `" + SQLTable + '`';
         try {
             Storage.executeSQLUpdate(query);
             modified();
         } catch (SQLException e) {
             throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+        } finally {
+            Storage.getCollectionCache().invalidate(stringID);
         }
     }
 
     @NotNull
     @Override
     public Set<String> keySet(@Nullable Context context) {
-        if (internalMap != null) return internalMap.keySet();
-        String query = "SELECT `name` FROM `" + SQLTable + '`';
-        try {
-            ResultSet rs1 = Storage.executeSQLQuery(query);
-            int size1 = size(context);
-            return new AbstractSet<String>() {
-                final int size = size1;
-                final ResultSet rs = rs1;
-
-                @Override
-                public @NotNull Iterator<String> iterator() {
-                    return new Iterator<String>() {
-                        @Override
-                        public boolean hasNext() {
-                            try {
-                                return rs.next();
-                            } catch (SQLException e) {
-                                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-                            }
-                        }
+        if (internalMap != null) {
+            loadAll();
+            return internalMap.keySet();
+        }
+        return new AbstractSet<String>() {
+            @Override
+            public @NotNull Iterator<String> iterator() {
+                flushPendingValues();
+                return new SQLResultIterator<String>("`name`", "`name`", table(), StringScriptValueMap::where, context) {
+                    @Override
+                    protected String read(ResultSet rs) throws SQLException {
+                        return rs.getString(1);
+                    }
+                };
+            }
 
-                        @Override
-                        public String next() {
-                            try {
-                                return rs.getString(1);
-                            } catch (SQLException e) {
-                                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-                            }
-                        }
-                    };
-                }
+            @Override
+            public int size() {
+                return StringScriptValueMap.this.size(context);
+            }
 
-                @Override
-                public int size() {
-                    return size;
-                }
-            };
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
-        }
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o, context);
+            }
+        };
     }
 
+    /**
+     * With SQL, the values are read when they are iterated over, see {@link SQLResultIterator}
+     */
     @NotNull
     @Override
-    public ScriptValueList<V> values(@Nullable Context context) {
-        if (internalMap != null) new ScriptValueList<>(internalMap.values());
-        String query = "SELECT `value_object`, `value_type` FROM `" + SQLTable + '`';
-        try {
-            ResultSet rs = Storage.executeSQLQuery(query);
-            ScriptValueList<V> list = new ScriptValueList<>();
-            while (rs.next()) {
-                list.add((ScriptValue<V>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2)), context);
-            }
-            return list;
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+    public Collection<ScriptValue<V>> values(@Nullable Context context) {
+        if (internalMap != null) {
+            loadAll();
+            return internalMap.values();
         }
+        return new AbstractCollection<ScriptValue<V>>() {
+            @Override
+            public @NotNull Iterator<ScriptValue<V>> iterator() {
+                flushPendingValues();
+                return new SQLResultIterator<ScriptValue<V>>("`value_object`, `value_type`", "`name`", table(), StringScriptValueMap::where, context) {
+                    @Override
+                    protected ScriptValue<V> read(ResultSet rs) throws SQLException {
+                        return (ScriptValue<V>) ScriptValueCollection.transformToScriptValue(rs.getString(1), rs.getByte(2));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return StringScriptValueMap.this.size(context);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsValue(o, context);
+            }
+        };
     }
 
     @NotNull
     @Override
     public Set<Entry<String, ScriptValue<V>>> entrySet(@Nullable Context context) {
-        if (internalMap != null) return internalMap.entrySet();
-        String query = "SELECT * FROM `" + SQLTable + '`';
-        try {
-            ResultSet rs1 = Storage.executeSQLQuery(query);
-            int size1 = size(context);
-            // sry for debugging, with all these nested lambdas xD
-            return new AbstractSet<Entry<String, ScriptValue<V>>>() {
-                final int size = size1;
-                final ResultSet rs = rs1;
-
-                @Override
-                public int size() {
-                    return size;
-                }
+        if (internalMap != null) {
+            loadAll();
+            return internalMap.entrySet();
+        }
+        return new AbstractSet<Entry<String, ScriptValue<V>>>() {
+            @Override
+            public int size() {
+                return StringScriptValueMap.this.size(context);
+            }
+
+            @Override
+            public @NotNull Iterator<Entry<String, ScriptValue<V>>> iterator() {
+                flushPendingValues();
+                return new SQLResultIterator<Entry<String, ScriptValue<V>>>("`name`, `value_object`, `value_type`", "`name`", table(),
+                        StringScriptValueMap::where, context) {
+                    @Override
+                    protected Entry<String, ScriptValue<V>> read(ResultSet rs) throws SQLException {
+                        // see ScriptValueMap#entrySet(Context) for why the values are read here
+                        String key = rs.getString(1);
+                        String sqlValue = rs.getString(2);
+                        byte sqlValueType = rs.getByte(3);
+
+                        return new Entry<String, ScriptValue<V>>() {
 
-                @Override
-                public @NotNull Iterator<Entry<String, ScriptValue<V>>> iterator() {
-                    return new Iterator<Entry<String, ScriptValue<V>>>() {
-                        @Override
-                        public boolean hasNext() {
-                            try {
-                                return rs.next();
-                            } catch (SQLException e) {
-                                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+                            @Override
+                            public ScriptValue<V> setValue(ScriptValue<V> value) {
+                                throw new UnsupportedOperationException();
                             }
-                        }
 
-                        @Override
-                        public Entry<String, ScriptValue<V>> next() {
-                            /*
-                             For some cloudy reason, when you do the "try return ResultSet.get... catch" block inside
-                             the getKey and getValue methods, the debugger can't look at what's inside the map,
-                             it gets an SQLException: ResultSet closed (wrapped in a ScriptException of course),
-                             although "map.toString()" does work, and this problem happens only in Intellij Idea's
-                             debugger, it works as a normal line of code.
-                            */
-                            String key;
-                            String sqlValue;
-                            byte sqlValueType;
-                            try {
-                                key = rs.getString(1);
-                                sqlValue = rs.getString(2);
-                                sqlValueType = rs.getByte(3);
-                            } catch (SQLException e) {
-                                throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query).completeIfPossible(context);
+                            @Override
+                            public String getKey() {
+                                return key;
                             }
 
-                            return new Entry<String, ScriptValue<V>>() {
-
-                                @Override
-                                public ScriptValue<V> setValue(ScriptValue<V> value) {
-                                    throw new UnsupportedOperationException();
-                                }
-
-                                @Override
-                                public String getKey() {
-                                    return key;
-                                }
-
-                                @Override
-                                public ScriptValue<V> getValue() {
-                                    return (ScriptValue<V>) ScriptValueCollection.transformToScriptValue(sqlValue, sqlValueType);
-                                }
-                            };
-                        }              // what a beautiful stair xD
-                    };
-                }
-            };
-        } catch (SQLException e) {
-            throw ScriptException.Incomplete.wrapInShouldNotHappen(e, query);
-        }
+                            @Override
+                            public ScriptValue<V> getValue() {
+                                return (ScriptValue<V>) ScriptValueCollection.transformToScriptValue(sqlValue, sqlValueType);
+                            }
+                        };
+                    }
+                };
+            }
+        };
     }
 
     @Nullable
@@ -522,8 +1040,12 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
         if (key.length() > 100) throw new IllegalArgumentException("the key in longer than 100 characters");
         ScriptValue<V> previousElement = null;
         if (internalMap != null) {
+            if (! notLoaded.isEmpty()) load(key);
             synchronized (modificationLock) {
                 previousElement = internalMap.putIfAbsent(key, value);
+                Journal journal;
+                if (isTheGlobal && previousElement == null && (journal = Storage.getJournal()) != null)
+                    journal.put(key, value);
             }
         } else if (! containsKey(key, context)) {
             previousElement = put(key, value, context);
@@ -539,16 +1061,19 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
      */
     @Override
     public StringScriptValueMap<V> clone() {
+        loadAll();
         synchronized (modificationLock) {
             StringScriptValueMap<V> clone = new StringScriptValueMap<>();
-            Storage.ignoreModifications(size(context)); // we don't want it to save anything here
+            if (! isEmpty(context)) Storage.ignoreModifications(1); // we don't want it to save anything here, everything is put at once
             if (internalMap != null) {
+                Map<String, ScriptValue<V>> entries = new HashMap<>(internalMap.size());
                 for (Entry<String, ScriptValue<V>> entry : internalMap.entrySet()) {
-                    clone.put(entry.getKey(), entry.getValue().clone(), context);
+                    entries.put(entry.getKey(), entry.getValue().clone());
                 }
+                clone.putAll(entries, context);
                 return clone;
             }
-            clone.putAll(this); // element are cloned since the come from a string in SQL
+            clone.putAll(this, context); // element are cloned since the come from a string in SQL, read by pages
             return clone;
         }
     }
@@ -562,6 +1087,7 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
         if (internalMap == null) return false;
         if (! Storage.isSQL)
             throw new NotUsingSQLException("the provided Storage class is not using SQL");
+        loadAll();
         Map<String, ScriptValue<V>> copy = internalMap;
         boolean lastIsTheGlobal = this.isTheGlobal;
         StringID StringIDBeforeTry = stringID;
@@ -569,7 +1095,7 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
         lastSize = -1;
         this.internalMap = null;
         this.isTheGlobal = isTheGlobal;
-        stringID = getNewStringID();
+        stringID = Storage.getIDAllocator().next();
         SQLTable = getFullSQLTableName();
         String query = "CREATE TABLE `" + SQLTable + "` (`name` VARCHAR(100) PRIMARY KEY, `value_object` TEXT, `value_type` TINYINT NOT NULL)";
         try {
@@ -578,7 +1104,7 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
                 query = "CREATE UNIQUE INDEX PK_global_vars ON `" + SQLTable + "` (`name`)";
                 Storage.executeSQLUpdate(query);
             }
-            putAll(copy);
+            putAll(copy, context);
             return true;
         } catch (SQLException e) {
             internalMap = copy;
@@ -607,18 +1133,90 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
      */
     public static <V> StringScriptValueMap<? extends V> toScriptValues(Map<String, V> map, boolean keysAreJson) {
         StringScriptValueMap<V> finalMap = new StringScriptValueMap<>();
-        Storage.ignoreModifications(map.size()); // we don't want it to save anything here
+        if (! map.isEmpty()) Storage.ignoreModifications(1); // we don't want it to save anything here, everything is put at once
+        Map<String, ScriptValue<V>> entries = new HashMap<>(map.size());
         for (Entry<String, V> entry: map.entrySet()) {
-            finalMap.put(entry.getKey(), (ScriptValue<V>) ScriptValue.toScriptValue(entry.getValue(), keysAreJson));
+            entries.put(entry.getKey(), (ScriptValue<V>) ScriptValue.toScriptValue(entry.getValue(), keysAreJson));
         }
+        finalMap.putAll(entries, null);
         return finalMap;
     }
 
+    /**
+     * @return a copy of the entries, all taken at the same time, for reading them while this map may be modified.
+     * @see JsonSnapshotWriter
+     */
+    List<Entry<String, ScriptValue<V>>> snapshot() {
+        if (internalMap != null) {
+            List<Entry<String, ScriptValue<V>>> entries;
+            List<Entry<String, Integer>> notLoadedEntries = new ArrayList<>();
+            SnapshotReader lazySource;
+            synchronized (modificationLock) {
+                entries = new ArrayList<>(internalMap.size() + notLoaded.size());
+                for (Entry<String, ScriptValue<V>> entry : internalMap.entrySet()) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                }
+                for (Entry<String, Integer> entry : notLoaded.entrySet()) {
+                    Unloaded<V> unloadedVariable = unloaded.get(entry.getKey());
+                    ScriptValue<V> value = unloadedVariable != null ? unloadedVariable.get() : null;
+                    // an unloaded variable that is still used may have been modified
+                    if (value != null) entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), value));
+                    else notLoadedEntries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                }
+                lazySource = this.lazySource;
+            }
+            // variables that weren't used are decoded just for being written, they stay out of internalMap
+            for (Entry<String, Integer> entry : notLoadedEntries) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), (ScriptValue<V>) lazySource.decode(entry.getValue())));
+            }
+            return entries;
+        }
+        return new ArrayList<>(entrySet(context));
+    }
+
+    /**
+     * Gives to <strong>action</strong> each variable in memory that holds a list or a dictionary, as their
+     * modifications aren't written in the {@link Journal}. Each one is given while this map can't be modified, so
+     * what <strong>action</strong> writes in the journal isn't written after a newer modification.
+     * @see LogStorage#saveCollections()
+     */
+    public void forEachLoadedCollection(BiConsumer<String, ScriptValue<V>> action) {
+        if (internalMap == null) return;
+        List<String> names;
+        synchronized (modificationLock) {
+            names = new ArrayList<>(internalMap.keySet());
+            for (Unloaded<V> unloadedVariable : unloaded.values()) {
+                if (unloadedVariable.pinned != null) names.add(unloadedVariable.name);
+            }
+        }
+        for (String name : names) {
+            synchronized (modificationLock) {
+                ScriptValue<V> value = internalMap.get(name);
+                if (value == null) {
+                    Unloaded<V> unloadedVariable = unloaded.get(name);
+                    if (unloadedVariable != null) value = unloadedVariable.pinned;
+                }
+                if (value != null && value.v instanceof ScriptValueCollection) action.accept(name, value);
+            }
+        }
+    }
+
     /**
      * Contrary of {@link ScriptValueMap#toScriptValues(Map, boolean)}
      */
     @Override
     public HashMap<String, Object> toNormalClasses(boolean forJson) {
+        if (internalMap != null) {
+            loadAll();
+            // the global may be saved by the thread of the JsonJournal while it is modified
+            synchronized (modificationLock) {
+                HashMap<String, Object> finalMap = new HashMap<>(internalMap.size());
+                for (Entry<String, ScriptValue<V>> entry : internalMap.entrySet()) {
+                    finalMap.put(entry.getKey(), entry.getValue().toNormalClass(forJson));
+                }
+                return finalMap;
+            }
+        }
         HashMap<String, Object> finalMap = new HashMap<>(size(context));
         for (Entry<String, ScriptValue<V>> entry : entrySet(context)) {
             finalMap.put(entry.getKey(), entry.getValue().toNormalClass(forJson));
@@ -626,6 +1224,24 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
         return finalMap;
     }
 
+    /**
+     * @return the table, with backquotes
+     */
+    private String table() {
+        return '`' + SQLTable + '`';
+    }
+
+    /**
+     * @return the {@code WHERE} part of a query, as {@link StringScriptValueMap}s always have their own table
+     */
+    private static String where(@Nullable String condition) {
+        return condition == null ? "" : " WHERE " + condition;
+    }
+
+    public boolean isTheGlobal() {
+        return isTheGlobal;
+    }
+
     @Override
     public @Nullable String getSQLTable() {
         return SQLTable;
@@ -658,9 +1274,9 @@ public class StringScriptValueMap<V> extends AbstractStringScriptValueMap<V> {
      * @return {@code table_prefix + "d" + stringID}
      */
     private static String getFullSQLTableName(StringID stringID, boolean isTheGlobal) {
-        if (isTheGlobal) return ((HashMap<String, Object>) Storage.getRawMap().get("SQLite")).get("table-prefix") + "global_vars";
+        if (isTheGlobal) return Storage.getSQLTablePrefix() + "global_vars";
         if (! Storage.isSQL) throw new NotUsingSQLException("Storage class is doesn't use SQL");
-        return (String) ((Map<String, Object>) Storage.getRawMap().get("SQLite")).get("table-prefix") + stringID;
+        return Storage.getSQLTablePrefix() + stringID;
     }
 
     @Override
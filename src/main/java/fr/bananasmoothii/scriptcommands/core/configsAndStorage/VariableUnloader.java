@@ -0,0 +1,72 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * With json or {@link LogStorage}, removes from memory the global variables that aren't used, in the background
+ * (option {@code storage.json.unload-after} or {@code storage.log.unload-after}). A variable is unloaded when it wasn't used for between one and two intervals, see
+ * {@link StringScriptValueMap#unloadColdVariables()}.
+ */
+public class VariableUnloader {
+    private final StringScriptValueMap<Object> globals;
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param interval in seconds
+     */
+    public VariableUnloader(StringScriptValueMap<Object> globals, int interval) {
+        this.globals = globals;
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ScriptCommands-unloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::run); // starts looking at which variables are used
+        executor.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void run() {
+        try {
+            long start = System.nanoTime();
+            int unloaded = globals.unloadColdVariables();
+            if (unloaded != 0) CustomLogger.fine("Unloaded " + unloaded + " global variables that weren't used, in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (RuntimeException e) {
+            CustomLogger.warning("Could not unload the global variables that aren't used: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops unloading variables, the ones that are unloaded stay so until they are used.
+     */
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        globals.stopUnloading();
+    }
+}
@@ -130,6 +130,10 @@ public abstract class AbstractScriptValueList<E> extends AbstractList<ScriptValu
     public @NotNull Iterator<ScriptValue<E>> iterator(@Nullable Context context) {
         return new Itr(context);
     }
+    @Override @UseContext
+    public @NotNull Iterator<ScriptValue<E>> iterator() {
+        return iterator(context);
+    }
 
     public @NotNull ListIterator<ScriptValue<E>> listIterator(@Nullable Context context) {
         return new Itr(context);
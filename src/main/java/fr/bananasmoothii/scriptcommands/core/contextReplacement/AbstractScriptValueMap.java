@@ -27,6 +27,7 @@ import org.jetbrains.annotations.Nullable;
 import java.util.AbstractMap;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 public abstract class AbstractScriptValueMap<K, V> extends AbstractMap<ScriptValue<K>, ScriptValue<V>> implements ScriptValueCollection,
@@ -79,6 +80,15 @@ public abstract class AbstractScriptValueMap<K, V> extends AbstractMap<ScriptVal
         return super.putIfAbsent(key, value);
     }
 
+    @SuppressWarnings("unused")
+    public void putAll(Map<? extends ScriptValue<K>, ? extends ScriptValue<V>> m, @Nullable Context context) {
+        super.putAll(m);
+    }
+    @Override @UseContext
+    public void putAll(Map<? extends ScriptValue<K>, ? extends ScriptValue<V>> m) {
+        putAll(m, context);
+    }
+
     public abstract ScriptValue<V> remove(Object key, @Nullable Context context);
     @Override @UseContext
     public ScriptValue<V> remove(Object key) {
@@ -25,7 +25,9 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.AbstractMap;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -82,6 +84,15 @@ public abstract class AbstractStringScriptValueMap<V> extends AbstractMap<String
         return super.putIfAbsent(key, value);
     }
 
+    @SuppressWarnings("unused")
+    public void putAll(Map<? extends String, ? extends ScriptValue<V>> m, @Nullable Context context) {
+        super.putAll(m);
+    }
+    @Override @UseContext
+    public void putAll(Map<? extends String, ? extends ScriptValue<V>> m) {
+        putAll(m, context);
+    }
+
     public abstract ScriptValue<V> remove(Object key, @Nullable Context context);
     @Override @UseContext
     public ScriptValue<V> remove(Object key) {
@@ -100,9 +111,9 @@ public abstract class AbstractStringScriptValueMap<V> extends AbstractMap<String
         return keySet(context);
     }
 
-    public abstract @NotNull ScriptValueList<V> values(@Nullable Context context);
+    public abstract @NotNull Collection<ScriptValue<V>> values(@Nullable Context context);
     @Override @UseContext
-    public @NotNull ScriptValueList<V> values() {
+    public @NotNull Collection<ScriptValue<V>> values() {
         return values(context);
     }
 
@@ -176,7 +176,7 @@ public class Args {
      */
     public @NotNull ScriptValue<Object> getSingleArg() {
         if (argsList.size() == 1 && argsMap.isEmpty()) return argsList.get(0);
-        if (argsMap.size() == 1 && argsList.isEmpty()) return argsMap.values().get(0);
+        if (argsMap.size() == 1 && argsList.isEmpty()) return argsMap.values().iterator().next();
         throw new ScriptException(INVALID_ARGUMENTS, context, "There should be only one argument to this function.");
     }
 
@@ -276,7 +276,7 @@ public class Context implements Cloneable {
 					"You tried to create/modify \"" + key + "\", but that name is already taken by a global variable.",
 					new ContextStackTraceElement(this, "ASSIGNMENT TO " + key + " = " + value, lineNumber, columnNumber));
 		} if (global || globalVariables.containsKey(key, this)) {
-			globalVariables.put(key, (ScriptValue<Object>) value, this);
+			globalVariables.put(key, (ScriptValue<Object>) value, false, this);
 		} else {
 			normalVariables.put(key, (ScriptValue<Object>) value, this);
 		}
@@ -311,6 +311,21 @@ public class Context implements Cloneable {
 		return scriptThread;
 	}
 
+	/**
+	 * Same as {@link #threadTrigger(Type, String, StringScriptValueMap, Player)}, but the script runs in a thread group
+	 * @see ScriptThread#initialiseThreadGroup(String, java.util.concurrent.ExecutorService)
+	 */
+	public static ScriptThread threadTrigger(Type scriptType, String scriptName, @Nullable StringScriptValueMap<Object> baseVariables, @Nullable Player triggeringPlayer,
+											 @NotNull String threadGroup) {
+		CustomLogger.finer("running " + scriptType.name() + " " + scriptName + "(" + Types.getPrettyArgs(null, baseVariables) + ") ASYNCHRONOUSLY in " + threadGroup);
+		ScriptsParser.StartContext parseTree = Objects.requireNonNull(
+				Config.getCorrespondingContainingScripts(scriptType, scriptName), scriptName + " doesn't exist as " + scriptType.name())
+				.parseTree;
+		ScriptThread scriptThread = new ScriptThread(parseTree, new Context(scriptName, scriptType, baseVariables, triggeringPlayer), threadGroup);
+		scriptThread.start();
+		return scriptThread;
+	}
+
 	private static final WeakHashMap<Integer, ScriptsParser.ExpressionContext> evalCache = new WeakHashMap<>();
 
 	public ScriptValue<?> eval(String expression) {
@@ -378,6 +393,7 @@ public class Context implements Cloneable {
 		for (;;) {
 			if (ctx.parent != null) stack.add(ctx.parent.lastCall != null ? ctx.parent.lastCall : ScriptStackTraceElement.UNKNOWN);
 			else break;
+			ctx = ctx.parent;
 		}
 		return stack.toArray(new ScriptStackTraceElement[0]);
 	}
@@ -219,6 +219,19 @@ public abstract class ExceptionType {
         }
     };
 
+    public static final ExceptionType TIMEOUT = new ExceptionType() {
+        @Override public String getName() {
+            return "TIMEOUT";
+        }
+        @Override public String getDescription() {
+            return "A timeout error happens when you waited for something for longer than the time you allowed, " +
+                    "like `await(\"my_thread\", 5)` when \"my_thread\" takes more than 5 seconds to finish.";
+        }
+        @Override public String[] getDocumentationLinks() {
+            return new String[] {};
+        }
+    };
+
     public static final ExceptionType UNAVAILABLE_THREAD_NAME = new ExceptionType() {
         @Override public String getName() {
             return "UNAVAILABLE_THREAD_NAME";
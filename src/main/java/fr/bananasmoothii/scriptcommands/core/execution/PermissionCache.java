@@ -0,0 +1,66 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.execution;
+
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Config;
+import org.bukkit.permissions.Permissible;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which permissions each player has, so that commands spammed by a player don't look them up again and
+ * again. Bukkit doesn't say when permissions change, so the results of a player are forgotten after
+ * {@link Config#permissionCacheTime} seconds, and when {@link #invalidate(Permissible)} is called (when the player quits
+ * or changes world, for example). Everything is forgotten when the config is reloaded.
+ */
+public abstract class PermissionCache {
+
+    private static final ConcurrentMap<Permissible, CachedPermissions> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Tests the predicate using the cached permissions of <strong>permissible</strong>.
+     * @param predicate if null, the result is always {@code true}
+     */
+    public static boolean test(@Nullable PermissionPredicate predicate, @NotNull Permissible permissible) {
+        if (predicate == null) return true;
+        if (Config.permissionCacheTime <= 0) return predicate.test(permissible);
+        CachedPermissions cachedPermissions = cache.compute(permissible,
+                (k, old) -> old == null || old.isExpired() ? new CachedPermissions() : old);
+        return predicate.evaluate(permission -> cachedPermissions.results.computeIfAbsent(permission, permissible::hasPermission));
+    }
+
+    public static void invalidate(@NotNull Permissible permissible) {
+        cache.remove(permissible);
+    }
+
+    public static void invalidateAll() {
+        cache.clear();
+    }
+
+    private static class CachedPermissions {
+        private final long creationNanos = System.nanoTime();
+        private final ConcurrentMap<String, Boolean> results = new ConcurrentHashMap<>();
+
+        boolean isExpired() {
+            return System.nanoTime() - creationNanos > TimeUnit.MILLISECONDS.toNanos((long) (Config.permissionCacheTime * 1000));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.execution;
+
+import fr.bananasmoothii.scriptcommands.core.antlr4parsing.PermissionParser;
+import org.antlr.v4.runtime.misc.Interval;
+import org.bukkit.permissions.Permissible;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * A permission expression like {@code a.b or (c and !d.e)}, compiled once from its parse tree. Each different
+ * permission in it is only looked up once per test, and {@code and}/{@code or} stop as soon as the result is known.
+ * Like in the parse tree, {@code and} and {@code or} (or {@code &&} and {@code ||}) don't have any priority, they are
+ * read from left to right: {@code a or b and c} is {@code (a or b) and c}. {@code !} only applies to what directly
+ * follows it.
+ * @see PermissionCache
+ */
+public class PermissionPredicate implements Predicate<Permissible> {
+    private final String expression;
+    /**
+     * Every different permission in the expression
+     */
+    private final String[] permissions;
+    private final Node root;
+
+    private PermissionPredicate(String expression, String[] permissions, Node root) {
+        this.expression = expression;
+        this.permissions = permissions;
+        this.root = root;
+    }
+
+    public static @NotNull PermissionPredicate compile(@NotNull PermissionParser.StartContext parseTree) {
+        Map<String, Integer> permissionIndexes = new LinkedHashMap<>();
+        Node root = compile(parseTree.block(), permissionIndexes);
+        String expression = parseTree.start.getInputStream().getText(Interval.of(parseTree.start.getStartIndex(), parseTree.stop.getStopIndex()));
+        return new PermissionPredicate(expression, permissionIndexes.keySet().toArray(new String[0]), root);
+    }
+
+    private static Node compile(PermissionParser.BlockContext block, Map<String, Integer> permissionIndexes) {
+        Node node = compile(block.atom(0), permissionIndexes);
+        for (int i = 1; i < block.atom().size(); i++) {
+            Node right = compile(block.atom(i), permissionIndexes);
+            node = block.operator.get(i - 1).getType() == PermissionParser.AND ? new And(node, right) : new Or(node, right);
+        }
+        return node;
+    }
+
+    private static Node compile(PermissionParser.AtomContext atom, Map<String, Integer> permissionIndexes) {
+        if (atom instanceof PermissionParser.ParenthesisContext)
+            return compile(((PermissionParser.ParenthesisContext) atom).block(), permissionIndexes);
+        if (atom instanceof PermissionParser.NegationContext)
+            return new Not(compile(((PermissionParser.NegationContext) atom).atom(), permissionIndexes));
+        String permission = atom.getText();
+        Integer index = permissionIndexes.get(permission);
+        if (index == null) {
+            index = permissionIndexes.size();
+            permissionIndexes.put(permission, index);
+        }
+        return new Leaf(index);
+    }
+
+    /**
+     * Tests directly with {@link Permissible#hasPermission(String)}, without any cache.
+     */
+    @Override
+    public boolean test(@NotNull Permissible permissible) {
+        return evaluate(permissible::hasPermission);
+    }
+
+    /**
+     * @param hasPermission gives whether a permission is granted, it will be called at most once for each different
+     *                      permission.
+     */
+    public boolean evaluate(@NotNull Predicate<String> hasPermission) {
+        return root.test(new Evaluation(hasPermission));
+    }
+
+    /**
+     * @return every different permission used in the expression
+     */
+    public @NotNull List<String> getPermissions() {
+        return Collections.unmodifiableList(Arrays.asList(permissions));
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private class Evaluation {
+        private final Predicate<String> hasPermission;
+        /**
+         * 0 if not looked up yet, 1 if granted, 2 if not
+         */
+        private final byte[] results = new byte[permissions.length];
+
+        Evaluation(Predicate<String> hasPermission) {
+            this.hasPermission = hasPermission;
+        }
+
+        boolean get(int index) {
+            if (results[index] == 0)
+                results[index] = hasPermission.test(permissions[index]) ? (byte) 1 : 2;
+            return results[index] == 1;
+        }
+    }
+
+    private interface Node {
+        boolean test(PermissionPredicate.Evaluation evaluation);
+    }
+
+    private static class Leaf implements Node {
+        private final int index;
+
+        Leaf(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public boolean test(PermissionPredicate.Evaluation evaluation) {
+            return evaluation.get(index);
+        }
+    }
+
+    private static class And implements Node {
+        private final Node left, right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(PermissionPredicate.Evaluation evaluation) {
+            return left.test(evaluation) && right.test(evaluation);
+        }
+    }
+
+    private static class Or implements Node {
+        private final Node left, right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(PermissionPredicate.Evaluation evaluation) {
+            return left.test(evaluation) || right.test(evaluation);
+        }
+    }
+
+    private static class Not implements Node {
+        private final Node node;
+
+        Not(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        public boolean test(PermissionPredicate.Evaluation evaluation) {
+            return ! node.test(evaluation);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.execution;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how many times something ran and how long it took. Thread-safe and cheap to update.
+ */
+public class RunStatistics {
+    private final LongAdder runs = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private volatile long lastNanos;
+
+    public void record(long durationNanos) {
+        runs.increment();
+        totalNanos.add(durationNanos);
+        lastNanos = durationNanos;
+        maxNanos.accumulateAndGet(durationNanos, Math::max);
+    }
+
+    public long getRuns() {
+        return runs.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    public double getAverageNanos() {
+        long runs = getRuns();
+        return runs == 0 ? 0 : (double) getTotalNanos() / runs;
+    }
+
+    @Override
+    public String toString() {
+        return getRuns() + " runs, average " + toMillis(getAverageNanos()) + "ms, max " + toMillis(getMaxNanos())
+                + "ms, last " + toMillis(getLastNanos()) + "ms";
+    }
+
+    private static String toMillis(double nanos) {
+        return String.format("%.3f", nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
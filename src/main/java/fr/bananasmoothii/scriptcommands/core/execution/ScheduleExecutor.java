@@ -0,0 +1,261 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package fr.bananasmoothii.scriptcommands.core.execution;
+
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.ContainingScripts;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Schedule;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Schedule.MissedRunPolicy;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs {@link Schedule}s (or anything else periodic) using a hashed timing wheel: tasks are put in one of
+ * {@link #WHEEL_SIZE} slots depending on their next run tick, and each tick only looks at one slot, so the cost of a
+ * tick doesn't depend on how many tasks are scheduled.
+ * <br/>
+ * {@link #tick()} has to be called by the main server thread each tick. Tasks that are not async run directly in it,
+ * async tasks run in the {@link Executor} given in the constructor.
+ * <br/>
+ * Ticks are based on the real time, so if the server lags, the runs that should have happened are "missed runs",
+ * handled depending on the {@link MissedRunPolicy} of each task.
+ */
+public class ScheduleExecutor {
+    public static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    public static final int TICKS_PER_SECOND = 20;
+    private static final int WHEEL_SIZE = 512; // must be a power of 2
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    @SuppressWarnings("unchecked")
+    private final List<ScheduledTask>[] wheel = new List[WHEEL_SIZE];
+    private final ConcurrentMap<String, ScheduledTask> tasksByName = new ConcurrentHashMap<>();
+    private final Executor asyncExecutor;
+    private final long startNanos = System.nanoTime();
+    /**
+     * The last tick that was processed
+     */
+    private long currentTick;
+
+    public ScheduleExecutor(@NotNull Executor asyncExecutor) {
+        this.asyncExecutor = Objects.requireNonNull(asyncExecutor);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Schedules a {@link Schedule} from the config, the script will be triggered with
+     * {@link Context#trigger(ContainingScripts.Type, String, fr.bananasmoothii.scriptcommands.core.configsAndStorage.StringScriptValueMap, org.bukkit.entity.Player)}.
+     */
+    public ScheduledTask schedule(@NotNull Schedule schedule) {
+        return schedule(schedule.name, (long) schedule.interval * TICKS_PER_SECOND, (long) schedule.startDelay * TICKS_PER_SECOND,
+                (long) (schedule.jitter * TICKS_PER_SECOND), schedule.missedRunPolicy, schedule.async,
+                () -> Context.trigger(ContainingScripts.Type.SCHEDULE, schedule.name, null, null));
+    }
+
+    /**
+     * @param interval in ticks
+     * @param startDelay in ticks
+     * @param jitter in ticks, the first run will be delayed by a random number of ticks between 0 and that.
+     * @throws IllegalArgumentException if there is already a task with that name, or if the interval is not positive
+     */
+    public synchronized ScheduledTask schedule(@NotNull String name, long interval, long startDelay, long jitter,
+                                               @NotNull MissedRunPolicy missedRunPolicy, boolean async, @NotNull Runnable action) {
+        if (interval <= 0) throw new IllegalArgumentException("interval must be positive");
+        ScheduledTask task = new ScheduledTask(name, interval, missedRunPolicy, async, action);
+        if (tasksByName.putIfAbsent(name, task) != null)
+            throw new IllegalArgumentException("There is already a task named " + name);
+        task.nextRunTick = currentTick + Math.max(1, startDelay) + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        addToWheel(task);
+        return task;
+    }
+
+    /**
+     * The task won't run anymore, but if it is running, it will finish normally.
+     */
+    public synchronized void cancel(@NotNull String name) {
+        ScheduledTask task = tasksByName.remove(name);
+        if (task == null) return;
+        task.cancelled = true;
+        wheel[slot(task.nextRunTick)].remove(task);
+    }
+
+    public synchronized void cancelAll() {
+        for (String name : new ArrayList<>(tasksByName.keySet())) {
+            cancel(name);
+        }
+    }
+
+    public @Nullable ScheduledTask getTask(String name) {
+        return tasksByName.get(name);
+    }
+
+    public @NotNull Collection<ScheduledTask> getTasks() {
+        return Collections.unmodifiableCollection(tasksByName.values());
+    }
+
+    /**
+     * Runs everything that should have run until now.
+     */
+    public void tick() {
+        advanceTo((System.nanoTime() - startNanos) / TICK_NANOS);
+    }
+
+    /**
+     * Runs everything that should run until <strong>targetTick</strong> (inclusive). Ticks start at 0 when this
+     * executor is created, {@link #tick()} uses the real time.
+     */
+    public synchronized void advanceTo(long targetTick) {
+        if (targetTick <= currentTick) return;
+        // if more than a whole turn of the wheel has to be done, each slot only needs to be looked at once.
+        long firstTick = Math.max(currentTick + 1, targetTick - WHEEL_SIZE + 1);
+        currentTick = targetTick;
+        for (long tick = firstTick; tick <= targetTick; tick++) {
+            List<ScheduledTask> slot = wheel[slot(tick)];
+            if (slot.isEmpty()) continue;
+            List<ScheduledTask> dueTasks = null;
+            for (Iterator<ScheduledTask> iterator = slot.iterator(); iterator.hasNext(); ) {
+                ScheduledTask task = iterator.next();
+                if (task.nextRunTick <= targetTick) {
+                    iterator.remove();
+                    if (dueTasks == null) dueTasks = new ArrayList<>();
+                    dueTasks.add(task);
+                }
+            }
+            if (dueTasks == null) continue;
+            for (ScheduledTask task : dueTasks) {
+                int dueRuns = (int) Math.min(Integer.MAX_VALUE, 1 + (targetTick - task.nextRunTick) / task.interval);
+                task.nextRunTick += dueRuns * task.interval;
+                addToWheel(task);
+                onDue(task, dueRuns);
+            }
+        }
+    }
+
+    private static int slot(long tick) {
+        return (int) (tick & WHEEL_MASK);
+    }
+
+    private void addToWheel(ScheduledTask task) {
+        wheel[slot(task.nextRunTick)].add(task);
+    }
+
+    /**
+     * @param dueRuns the number of runs that should have happened, all of them except one are missed runs.
+     */
+    private void onDue(ScheduledTask task, int dueRuns) {
+        synchronized (task) {
+            switch (task.missedRunPolicy) {
+                case SKIP:
+                    if (task.running) {
+                        task.missedRuns.add(dueRuns);
+                        return;
+                    }
+                    task.missedRuns.add(dueRuns - 1);
+                    task.pendingRuns = 1;
+                    break;
+                case COALESCE:
+                    task.missedRuns.add(dueRuns - 1 + task.pendingRuns);
+                    task.pendingRuns = 1;
+                    break;
+                case CATCH_UP:
+                    task.pendingRuns += dueRuns;
+                    break;
+            }
+            if (task.running) return; // it will do the pending runs after the current one
+            task.running = true;
+        }
+        if (task.async) asyncExecutor.execute(() -> runPending(task));
+        else runPending(task);
+    }
+
+    private void runPending(ScheduledTask task) {
+        while (true) {
+            synchronized (task) {
+                if (task.pendingRuns == 0 || task.cancelled) {
+                    task.pendingRuns = 0;
+                    task.running = false;
+                    return;
+                }
+                task.pendingRuns--;
+            }
+            long start = System.nanoTime();
+            try {
+                task.action.run();
+            } catch (Throwable e) {
+                CustomLogger.severe("Error while running " + task.name + ": " + e);
+                e.printStackTrace();
+            } finally {
+                task.statistics.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    public static class ScheduledTask {
+        public final @NotNull String name;
+        /**
+         * In ticks
+         */
+        public final long interval;
+        public final @NotNull MissedRunPolicy missedRunPolicy;
+        public final boolean async;
+        private final @NotNull Runnable action;
+        private final RunStatistics statistics = new RunStatistics();
+        private final LongAdder missedRuns = new LongAdder();
+        private long nextRunTick;
+        // these are guarded by "this"
+        private boolean running;
+        private int pendingRuns;
+        private volatile boolean cancelled;
+
+        private ScheduledTask(@NotNull String name, long interval, @NotNull MissedRunPolicy missedRunPolicy, boolean async, @NotNull Runnable action) {
+            this.name = name;
+            this.interval = interval;
+            this.missedRunPolicy = missedRunPolicy;
+            this.async = async;
+            this.action = action;
+        }
+
+        /**
+         * @return the number of runs and their duration
+         */
+        public @NotNull RunStatistics getStatistics() {
+            return statistics;
+        }
+
+        /**
+         * @return the number of runs that were skipped or merged with an other run because of the
+         * {@link MissedRunPolicy}
+         */
+        public long getMissedRuns() {
+            return missedRuns.sum();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + statistics + ", " + getMissedRuns() + " missed runs";
+        }
+    }
+}
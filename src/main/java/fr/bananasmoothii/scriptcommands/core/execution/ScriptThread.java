@@ -16,6 +16,7 @@
 
 package fr.bananasmoothii.scriptcommands.core.execution;
 
+import fr.bananasmoothii.scriptcommands.core.antlr4parsing.ScriptsParser;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
@@ -24,20 +25,54 @@ import org.jetbrains.annotations.Nullable;
 import javax.naming.InvalidNameException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ScriptThread implements Future<ScriptValue<?>> {
     private final @NotNull Context context;
     private final @NotNull ParserRuleContext ctxToExecute;
     private final @NotNull String threadName;
     private final @Nullable String group;
-    private ScriptsExecutor scriptsExecutor;
-    private @Nullable Thread thread;
-    private @Nullable Future<Void> futureFromExecutorService;
-    private boolean isCancelled;
+    private volatile ScriptsExecutor scriptsExecutor;
+    private volatile @Nullable Thread thread;
+    private volatile @Nullable Future<Void> futureFromExecutorService;
+    private volatile boolean isCancelled;
+    /**
+     * Set by the first one running the script: the thread (or the executor) it was given to, or an other thread
+     * waiting for it, see {@link #runHereIfNotStarted()}. Also set by {@link #cancel(boolean)} or when it can't be
+     * started, so it is never run after that.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
+    /**
+     * Completed with the value of the {@code return} statement, or with the value of the expression for
+     * {@code thread <expression>}, or with {@link ScriptValue#NONE} if the thread finished without returning anything
+     * or was cancelled. Completed exceptionally if the script threw an exception.
+     */
+    private final CompletableFuture<ScriptValue<?>> result = new CompletableFuture<>();
 
     public static final ThreadGroup DEFAULT_SCRIPTCOMMANDS_THREAD_GROUP = new ThreadGroup("ScriptCommand-Threads");
-    private static final List<ScriptThread> threads = new ArrayList<>();
-    private static final Map<String, ExecutorService> threadGroupExecutors = new HashMap<>();
+    /**
+     * All threads that were created and are not finished yet, by name. A thread is removed from here as soon as it
+     * finishes (or is cancelled before being started), so names can be reused and this doesn't grow over time.
+     */
+    private static final ConcurrentMap<String, ScriptThread> threadsByName = new ConcurrentHashMap<>();
+    /**
+     * Same as {@link #threadsByName}, but indexed by thread group. Threads without a group are not in here.
+     */
+    private static final ConcurrentMap<String, Set<ScriptThread>> threadsByGroup = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, ExecutorService> threadGroupExecutors = new ConcurrentHashMap<>();
+    private static final AtomicLong threadCounter = new AtomicLong();
+    /**
+     * The last finished threads, so that their result can still be retrieved by name (with {@code await} for example)
+     * a bit after they finished.
+     */
+    private static final int FINISHED_THREADS_TO_KEEP = 256;
+    private static final Map<String, ScriptThread> recentlyFinishedThreads = new LinkedHashMap<String, ScriptThread>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ScriptThread> eldest) {
+            return size() > FINISHED_THREADS_TO_KEEP;
+        }
+    };
 
     /**
      * New instance specifying a group
@@ -53,9 +88,9 @@ public class ScriptThread implements Future<ScriptValue<?>> {
         this.ctxToExecute = Objects.requireNonNull(ctxToExecute, "ctxToExecute was null in ScriptThread instantiation");
         // if it wouldn't be cloned, it would force the user to make separate variables if two thread are doing the same thing...
         this.context = Objects.requireNonNull(context, "context was null in ScriptThread instantiation").clone();
-        threadName = getNextThreadName();
         this.group = group;
-        threads.add(this);
+        threadName = reserveNextThreadName();
+        threadsByGroup.computeIfAbsent(group, k -> ConcurrentHashMap.newKeySet()).add(this);
     }
 
     /**
@@ -77,21 +112,49 @@ public class ScriptThread implements Future<ScriptValue<?>> {
      * @throws ScriptException if the name is not available
      */
     public ScriptThread(@Nullable String threadName, @NotNull ParserRuleContext ctxToExecute, @NotNull Context context) {
-        if (threadName == null)
-            this.threadName = getNextThreadName();
-        else if (isAvailableName(threadName)) this.threadName = threadName;
-        else
-            throw new ScriptException(ExceptionType.UNAVAILABLE_THREAD_NAME, context, "Thread name \"" + threadName + "\" is already used.");
         this.ctxToExecute = Objects.requireNonNull(ctxToExecute, "ctxToExecute was null in ScriptThread instantiation");
         // if it wouldn't be cloned, it would force the user to make separate variables if two thread are doing the same thing...
         this.context = Objects.requireNonNull(context, "context was null in ScriptThread instantiation").clone();
         group = null;
-        threads.add(this);
+        if (threadName == null)
+            this.threadName = reserveNextThreadName();
+        else if (threadsByName.putIfAbsent(threadName, this) == null) this.threadName = threadName;
+        else
+            throw new ScriptException(ExceptionType.UNAVAILABLE_THREAD_NAME, context, "Thread name \"" + threadName + "\" is already used.");
     }
 
+    /**
+     * Atomically takes the next free "SC-Thread-N" name for this thread.
+     */
+    private @NotNull String reserveNextThreadName() {
+        String name;
+        do {
+            name = "SC-Thread-" + threadCounter.incrementAndGet();
+        } while (threadsByName.putIfAbsent(name, this) != null);
+        return name;
+    }
+
+    /**
+     * Removes this thread from the registry, its name will be available again.
+     */
+    private void unregister() {
+        synchronized (recentlyFinishedThreads) {
+            recentlyFinishedThreads.put(threadName, this);
+        }
+        threadsByName.remove(threadName, this);
+        if (group != null) {
+            Set<ScriptThread> groupThreads = threadsByGroup.get(group);
+            if (groupThreads != null) groupThreads.remove(this);
+        }
+    }
+
+    /**
+     * Keep in mind that the answer may already be wrong when you use it if other threads are created at the same time,
+     * the only way to be sure to get a name is to try to create the thread.
+     */
     public static boolean isAvailableName(String threadName) {
         if (threadName == null) throw new NullPointerException("threadName is null");
-        return threads.stream().noneMatch(sc -> sc.threadName.equals(threadName));
+        return ! threadsByName.containsKey(threadName);
     }
 
     public ScriptsExecutor getScriptsExecutor() {
@@ -102,47 +165,127 @@ public class ScriptThread implements Future<ScriptValue<?>> {
         return threadName;
     }
 
+    /**
+     * @return the running (or not started yet) thread with that name, or if there is none, the thread that finished
+     * recently with that name, or {@code null}.
+     */
     @Contract(pure = true)
     public static @Nullable ScriptThread getFromName(String threadName) {
-        for (ScriptThread thread : threads) {
-            if (thread.threadName.equals(threadName)) return thread;
+        ScriptThread thread = threadsByName.get(threadName);
+        if (thread != null) return thread;
+        synchronized (recentlyFinishedThreads) {
+            return recentlyFinishedThreads.get(threadName);
         }
-        return null;
     }
 
+    /**
+     * @return all running (or not started yet) threads of that group. The returned set is a read-only view, it will
+     * change when threads start or finish.
+     */
+    @Contract(pure = true)
+    public static @NotNull Set<ScriptThread> getFromGroup(String group) {
+        Set<ScriptThread> groupThreads = threadsByGroup.get(group);
+        return groupThreads == null ? Collections.emptySet() : Collections.unmodifiableSet(groupThreads);
+    }
+
+    /**
+     * @return a name that is likely to be the one of the next thread created without a specified name.
+     * @see #isAvailableName(String)
+     */
     @Contract(pure = true)
     public static @NotNull String getNextThreadName() {
-        return "SC-Thread-" + (threads.size() + 1);
+        return "SC-Thread-" + (threadCounter.get() + 1);
     }
 
+    /**
+     * @throws ScriptException if the thread group was {@link #closeThreadGroup(String, long, TimeUnit) closed} since
+     * this was created, or doesn't accept threads anymore. If it can't be started, it is removed like a finished thread.
+     */
     public void start() {
         if (isCancelled) return;
         if (group != null) {
-            //noinspection unchecked
-            futureFromExecutorService = (Future<Void>) threadGroupExecutors.get(group).submit(() -> {
-                scriptsExecutor = new ScriptsExecutor(context);
-                scriptsExecutor.visit(ctxToExecute);
-            });
+            ExecutorService executor = threadGroupExecutors.get(group);
+            try {
+                if (executor == null) throw new RejectedExecutionException("the thread group was closed");
+                //noinspection unchecked
+                futureFromExecutorService = (Future<Void>) executor.submit(this::run);
+            } catch (RejectedExecutionException e) {
+                notStarted(e);
+                throw new ScriptException(ExceptionType.THREAD_GROUP_ERROR, context, "Thread group \"" + group + "\" doesn't accept threads anymore.");
+            }
         } else {
-            thread = new Thread(DEFAULT_SCRIPTCOMMANDS_THREAD_GROUP, () -> {
-                scriptsExecutor = new ScriptsExecutor(context);
-                scriptsExecutor.visit(ctxToExecute);
-            }, threadName);
-            thread.start();
+            Thread newThread = new Thread(DEFAULT_SCRIPTCOMMANDS_THREAD_GROUP, this::run, threadName);
+            thread = newThread;
+            try {
+                newThread.start();
+            } catch (RuntimeException | Error e) { // like an OutOfMemoryError if there are too many threads
+                notStarted(e);
+                throw e;
+            }
+        }
+    }
+
+    private void notStarted(Throwable cause) {
+        if (started.compareAndSet(false, true)) {
+            result.completeExceptionally(cause);
+            unregister();
+        }
+    }
+
+    private void run() {
+        if (started.compareAndSet(false, true)) execute(); // else it was run by a thread waiting for it
+    }
+
+    /**
+     * For a thread that waits for this one: if it didn't start yet (because it is waiting in the queue of its thread
+     * group), it is run right away in the current thread, so the current thread doesn't wait for a thread of a pool
+     * that may be busy with threads waiting too, like the current one. Errors of the script are not thrown, they are
+     * in the result like when it runs in its own thread.
+     * @return whether it was run here
+     */
+    public boolean runHereIfNotStarted() {
+        if (isCancelled || ! started.compareAndSet(false, true)) return false;
+        try {
+            execute();
+        } catch (RuntimeException ignored) {
+            // it is in the result
+        }
+        return true;
+    }
+
+    private void execute() {
+        try {
+            scriptsExecutor = new ScriptsExecutor(context);
+            ScriptValue<?> value = scriptsExecutor.visit(ctxToExecute);
+            if (scriptsExecutor.hasReturned())
+                result.complete(scriptsExecutor.getReturned());
+            else if (value != null && ctxToExecute instanceof ScriptsParser.ExpressionContext)
+                result.complete(value);
+            else
+                result.complete(ScriptValue.NONE);
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+            throw e;
+        } finally {
+            unregister();
         }
     }
 
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
         isCancelled = true;
+        if (started.compareAndSet(false, true)) unregister(); // it will never run
+        result.complete(ScriptValue.NONE);
         if (mayInterruptIfRunning) {
+            Future<Void> futureFromExecutorService = this.futureFromExecutorService;
             if (futureFromExecutorService != null) return futureFromExecutorService.cancel(true);
+            Thread thread = this.thread;
             if (thread != null) thread.interrupt();
             // if the two above are false it means the thread wasn't run
             return true;
-        } else {
-            scriptsExecutor.forceReturn();
         }
+        ScriptsExecutor scriptsExecutor = this.scriptsExecutor;
+        if (scriptsExecutor != null) scriptsExecutor.forceReturn();
         return false;
     }
 
@@ -153,33 +296,30 @@ public class ScriptThread implements Future<ScriptValue<?>> {
 
     @Override
     public boolean isDone() {
-        return isCancelled || scriptsExecutor.hasReturned();
+        return result.isDone();
     }
 
+    /**
+     * @return the return value of the thread, or {@link ScriptValue#NONE} if it was cancelled
+     * @see #result
+     */
     @Override
     public @NotNull ScriptValue<?> get() throws InterruptedException, ExecutionException {
-        if (isCancelled) return ScriptValue.NONE;
-        scriptsExecutor.onReturn(ignored -> ScriptThread.this.notifyAll());
-        while (! scriptsExecutor.hasReturned()) {
-            wait();
-        }
-        return scriptsExecutor.getReturned();
+        return result.get();
     }
 
     @Override
-    public ScriptValue<?> get(long timeout, @NotNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        long callDateNano = System.nanoTime();
-        if (isCancelled) return ScriptValue.NONE;
-        long timeoutNano = unit.toNanos(timeout);
-        long maxDateNano = callDateNano + timeoutNano;
-        scriptsExecutor.onReturn(ignored -> ScriptThread.this.notifyAll());
-        while (! scriptsExecutor.hasReturned()) {
-            if (System.nanoTime() >= maxDateNano) throw new TimeoutException();
-            long waitTimeNano = maxDateNano - timeoutNano;
-            long waitTimeMilli = TimeUnit.NANOSECONDS.toMillis(waitTimeNano);
-            wait(waitTimeMilli, (int) (TimeUnit.MILLISECONDS.toNanos(waitTimeNano) - waitTimeMilli));
-        }
-        return scriptsExecutor.getReturned();
+    public @NotNull ScriptValue<?> get(long timeout, @NotNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return result.get(timeout, unit);
+    }
+
+    /**
+     * @return a {@link CompletableFuture} completed when this thread finishes, useful for waiting for multiple threads
+     * without blocking anything. Completing it yourself doesn't do anything to the thread.
+     * @see #result
+     */
+    public @NotNull CompletableFuture<ScriptValue<?>> toCompletableFuture() {
+        return result.thenApply(v -> v);
     }
 
     /**
@@ -189,8 +329,7 @@ public class ScriptThread implements Future<ScriptValue<?>> {
      * @throws InvalidNameException if the name provided already exists
      */
     public static void initialiseThreadGroup(String name, ExecutorService executor) throws InvalidNameException {
-        if (threadGroupExecutors.containsKey(name)) throw new InvalidNameException("That thread group already exists");
-        threadGroupExecutors.put(name, executor);
+        if (threadGroupExecutors.putIfAbsent(name, executor) != null) throw new InvalidNameException("That thread group already exists");
     }
 
     /**
@@ -199,4 +338,24 @@ public class ScriptThread implements Future<ScriptValue<?>> {
     public static @Nullable ExecutorService getThreadGroup(String name) {
         return threadGroupExecutors.get(name);
     }
+
+    /**
+     * Removes a thread group and waits for the threads it was running. The ones still running after
+     * <strong>timeout</strong> are interrupted, and waited for as long again.
+     * @return whether they all finished, {@code true} if there is no such group
+     * @see #initialiseThreadGroup(String, ExecutorService)
+     */
+    public static boolean closeThreadGroup(String name, long timeout, @NotNull TimeUnit unit) {
+        ExecutorService executor = threadGroupExecutors.remove(name);
+        if (executor == null) return true;
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(timeout, unit)) return true;
+            executor.shutdownNow();
+            return executor.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 }
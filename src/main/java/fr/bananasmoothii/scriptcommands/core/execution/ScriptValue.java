@@ -177,8 +177,8 @@ public class ScriptValue<T> implements Cloneable, Iterable<ScriptValue<?>> {
 		else return v;
 	}
 
-	private static final Pattern integerPattern = Pattern.compile("\\d+");
-	private static final Pattern decimalPattern = Pattern.compile("\\d+\\.\\d+");
+	private static final Pattern integerPattern = Pattern.compile("-?\\d+");
+	private static final Pattern decimalPattern = Pattern.compile("-?\\d+\\.\\d+");
 
 	/**
 	 * This method is used for converting simple {@link ScriptValue}s that you got as {@link String} to a real ScriptValue,
@@ -234,7 +234,7 @@ public class ScriptValue<T> implements Cloneable, Iterable<ScriptValue<?>> {
 	 */
 	public Iterator<ScriptValue<?>> iterator(@Nullable Context context, @Nullable ScriptStackTraceElement where) {
 		if (is(ScriptValueType.LIST)) {
-			return ((ScriptValueList) v).iterator(); // idk what to do about this raw type
+			return ((ScriptValueList) v).iterator(context); // idk what to do about this raw type
 		}
 		if (is(ScriptValueType.TEXT)) {
 			return new Iterator<ScriptValue<?>>() {
@@ -23,8 +23,9 @@ import fr.bananasmoothii.scriptcommands.core.execution.Args.NamingPattern;
 
 import javax.naming.InvalidNameException;
 import java.util.ArrayList;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
 
 import static fr.bananasmoothii.scriptcommands.core.execution.ScriptValue.NONE;
 
@@ -219,6 +220,130 @@ public class BaseUsableFunctions {
 		return NONE;
 	}
 
+	@NamingPatternProvider
+	public static final NamingPattern await = new NamingPattern()
+			.setNamingPattern("thread", "timeout")
+			.setDefaultValue("timeout", -1);
+
+	/**
+	 * Waits for a thread to finish and returns its return value. The timeout is in seconds, -1 means no timeout.
+	 * @see #awaitFuture(CompletableFuture, List, ScriptValue, Context)
+	 */
+	@ScriptFunctionMethod
+	public static ScriptValue<?> await(Args args) {
+		ScriptThread thread = getThreadFromArg(args.getArg("thread"), args.context);
+		return awaitFuture(thread.toCompletableFuture(), Collections.singletonList(thread), args.getArg("timeout"), args.context);
+	}
+
+	@NamingPatternProvider
+	public static final NamingPattern await_all = new NamingPattern()
+			.setNamingPattern("threads", "timeout")
+			.setDefaultValue("timeout", -1);
+
+	/**
+	 * Waits for all threads to finish and returns the list of their return values, in the same order.
+	 * The timeout is for all threads together.
+	 */
+	@ScriptFunctionMethod
+	public static ScriptValue<ScriptValueList<Object>> await_all(Args args) {
+		List<ScriptThread> threads = getThreads(args.getArg("threads"), args.context);
+		List<CompletableFuture<ScriptValue<?>>> futures = getFutures(threads);
+		awaitFuture(CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])), threads, args.getArg("timeout"), args.context);
+		ScriptValueList<Object> results = new ScriptValueList<>();
+		for (CompletableFuture<ScriptValue<?>> future : futures) {
+			results.add((ScriptValue<Object>) future.join(), args.context);
+		}
+		return new ScriptValue<>(results);
+	}
+
+	@NamingPatternProvider
+	public static final NamingPattern await_any = new NamingPattern()
+			.setNamingPattern("threads", "timeout")
+			.setDefaultValue("timeout", -1);
+
+	/**
+	 * Waits for the first thread to finish and returns a list made of its name and its return value.
+	 */
+	@ScriptFunctionMethod
+	public static ScriptValue<ScriptValueList<Object>> await_any(Args args) {
+		ScriptValueList<Object> threadNames = args.getArg("threads").asList();
+		List<ScriptThread> threads = getThreads(args.getArg("threads"), args.context);
+		List<CompletableFuture<ScriptValue<?>>> futures = getFutures(threads);
+		if (futures.isEmpty())
+			throw new ScriptException(ExceptionType.INVALID_ARGUMENTS, args.context, "Cannot wait for any thread in an empty list.");
+		CompletableFuture<ScriptValueList<Object>> first = new CompletableFuture<>();
+		for (int i = 0; i < futures.size(); i++) {
+			ScriptValue<Object> threadName = threadNames.get(i, args.context);
+			futures.get(i).whenComplete((value, throwable) -> {
+				if (throwable != null) {
+					first.completeExceptionally(throwable);
+				} else {
+					ScriptValueList<Object> nameAndResult = new ScriptValueList<>();
+					nameAndResult.add(threadName, args.context);
+					nameAndResult.add((ScriptValue<Object>) value, args.context);
+					first.complete(nameAndResult);
+				}
+			});
+		}
+		return new ScriptValue<>((ScriptValueList<Object>) awaitFuture(first, threads, args.getArg("timeout"), args.context));
+	}
+
+	private static ScriptThread getThreadFromArg(ScriptValue<?> threadName, Context context) {
+		ScriptThread thread = ScriptThread.getFromName(threadName.asString());
+		if (thread == null)
+			throw new ScriptException(ExceptionType.NOT_DEFINED, context, "There is no thread named \"" + threadName.asString()
+					+ "\", or it finished too long ago.");
+		return thread;
+	}
+
+	private static List<ScriptThread> getThreads(ScriptValue<?> threadNames, Context context) {
+		List<ScriptThread> threads = new ArrayList<>();
+		for (ScriptValue<?> threadName : threadNames.asList()) {
+			threads.add(getThreadFromArg(threadName, context));
+		}
+		return threads;
+	}
+
+	private static List<CompletableFuture<ScriptValue<?>>> getFutures(List<ScriptThread> threads) {
+		List<CompletableFuture<ScriptValue<?>>> futures = new ArrayList<>(threads.size());
+		for (ScriptThread thread : threads) {
+			futures.add(thread.toCompletableFuture());
+		}
+		return futures;
+	}
+
+	/**
+	 * Blocks the current thread until the future completes. Without a timeout, the awaited threads that didn't start
+	 * yet are {@link ScriptThread#runHereIfNotStarted() run} in the current thread first: if the current thread is in
+	 * the same fixed pool as them (like two event scripts with two event threads), waiting for them to be started by
+	 * that pool could wait forever. With a timeout, they are only waited for, and if the pool is busy the
+	 * {@link ExceptionType#TIMEOUT TIMEOUT} is thrown.
+	 * @param threads the threads the future depends on
+	 * @param timeout in seconds, -1 for no timeout
+	 */
+	private static <T> T awaitFuture(CompletableFuture<T> future, List<ScriptThread> threads, ScriptValue<?> timeout, Context context) {
+		double timeoutSeconds = timeout.asDouble();
+		try {
+			if (timeoutSeconds < 0) {
+				for (ScriptThread thread : threads) {
+					if (future.isDone()) break;
+					thread.runHereIfNotStarted();
+				}
+				return future.get();
+			}
+			return future.get((long) (timeoutSeconds * 1_000_000_000L), TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			throw new ScriptException(ExceptionType.TIMEOUT, context, "Waited for more than " + timeoutSeconds + " seconds.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw ScriptException.Incomplete.wrapInShouldNotHappen(e).complete(context);
+		} catch (ExecutionException e) {
+			// errors in the awaited thread are thrown as they are, so the script stack trace stays the one of that thread
+			if (e.getCause() instanceof AbstractScriptException) throw (AbstractScriptException) e.getCause();
+			throw ScriptException.Incomplete.wrapInShouldNotHappen(e.getCause()).complete(context);
+		}
+	}
+
 	//TODO: do more functions:
 	// - eval and exec
 	// - remove, insert, size, clear, subList, merge
@@ -0,0 +1,170 @@
+import fr.bananasmoothii.scriptcommands.TestStorage;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.*;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static fr.bananasmoothii.scriptcommands.TestStorage.v;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * What is written by {@link BinarySnapshot} must be read back the same, and converting to json and back must not change
+ * anything.
+ */
+@SuppressWarnings("unchecked")
+public class BinarySnapshotTest {
+
+    static final File directory = new File("plugins/ScriptCommands/binary-test");
+
+    static final String yamlString = "\n" +
+            "  method: json\n" +
+            "  json:\n" +
+            "    file-location: " + new File(directory, "storage.json").getPath() + "\n" +
+            "    unload-after: 0\n";
+
+    @BeforeAll
+    static void load() throws IOException {
+        TestStorage.newJsonFile(new File(directory, "storage.json"));
+        TestStorage.load(yamlString);
+    }
+
+    private static ScriptValue<Object> list(ScriptValue<?>... elements) {
+        ScriptValueList<Object> list = new ScriptValueList<>();
+        for (ScriptValue<?> element : elements) {
+            list.add((ScriptValue<Object>) element, null);
+        }
+        return v(list);
+    }
+
+    private static ScriptValue<Object> dict(ScriptValue<?>... keysAndValues) {
+        ScriptValueMap<Object, Object> map = new ScriptValueMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((ScriptValue<Object>) keysAndValues[i], (ScriptValue<Object>) keysAndValues[i + 1], null);
+        }
+        return v(map);
+    }
+
+    /**
+     * Every type, with integers whose zigzag varint takes from 1 to 5 bytes
+     */
+    private static LinkedHashMap<String, ScriptValue<?>> globals() {
+        LinkedHashMap<String, ScriptValue<?>> globals = new LinkedHashMap<>();
+        globals.put("none", ScriptValue.NONE);
+        globals.put("zero", v(0));
+        globals.put("minusOne", v(-1));
+        globals.put("small", v(63));
+        globals.put("negative", v(-300));
+        globals.put("big", v(123456789));
+        globals.put("max", v(Integer.MAX_VALUE));
+        globals.put("min", v(Integer.MIN_VALUE));
+        globals.put("decimal", v(-2.5));
+        globals.put("text", v("héllo ✓"));
+        globals.put("emptyText", v(""));
+        globals.put("true", v(true));
+        globals.put("false", v(false));
+        globals.put("emptyList", list());
+        globals.put("emptyDict", dict());
+        globals.put("list", list(v(1), v("héllo ✓"), list(v(true), ScriptValue.NONE, list(v(-7))), dict(v("a"), v(2.0))));
+        globals.put("dict", dict(
+                v("text"), v("value"),
+                v(-42), v("negative key"),
+                v(1.5), list(v(1), v(2)),
+                v(false), dict(v(0), dict(v("deep"), v(Integer.MIN_VALUE))),
+                ScriptValue.NONE, v(true),
+                list(v(1), v("a")), v("list key")));
+        return globals;
+    }
+
+    private static void write(File file, Map<String, ScriptValue<?>> globals, int journalGeneration) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            BinarySnapshot.write(channel, new ArrayList<>(globals.entrySet()), journalGeneration);
+        }
+    }
+
+    /**
+     * @return every variable of the file decoded as normal classes, to be compared with {@link #normal(Map)}
+     */
+    private static Map<String, Object> read(File file) throws IOException {
+        BinarySnapshot.Reader reader = new BinarySnapshot.Reader(file);
+        Map<String, Object> read = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry : reader.readGlobals().entrySet()) {
+            read.put(entry.getKey(), reader.decode(entry.getValue()).toNormalClass(false));
+        }
+        return read;
+    }
+
+    private static Map<String, Object> normal(Map<String, ScriptValue<?>> globals) {
+        Map<String, Object> normal = new LinkedHashMap<>();
+        for (Map.Entry<String, ScriptValue<?>> entry : globals.entrySet()) {
+            normal.put(entry.getKey(), entry.getValue().toNormalClass(false));
+        }
+        return normal;
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        File file = new File(directory, "roundTrip.bin");
+        LinkedHashMap<String, ScriptValue<?>> globals = globals();
+        write(file, globals, 7);
+        assertTrue(BinarySnapshot.isBinary(file));
+
+        BinarySnapshot.Reader reader = new BinarySnapshot.Reader(file);
+        assertEquals(7, reader.getJournalGeneration());
+        assertFalse(reader.isOutdated());
+        assertEquals(new ArrayList<>(globals.keySet()), new ArrayList<>(reader.readGlobals().keySet()), "the order is kept");
+        assertEquals(normal(globals), read(file));
+
+        int position = reader.readGlobals().get("list");
+        assertNotSame(reader.decode(position).v, reader.decode(position).v, "each call gives a different list");
+    }
+
+    @Test
+    void encodeValue() {
+        for (ScriptValue<?> value : globals().values()) {
+            ByteBuffer buffer = ByteBuffer.wrap(BinarySnapshot.encodeValue(value));
+            assertEquals(value.toNormalClass(false), BinarySnapshot.decodeValue(buffer, "test").toNormalClass(false));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    void jsonConversions() throws IOException {
+        File binary = new File(directory, "conversion.bin");
+        File json = new File(directory, "conversion.json");
+        File binaryAgain = new File(directory, "conversion-again.bin");
+        File jsonAgain = new File(directory, "conversion-again.json");
+        LinkedHashMap<String, ScriptValue<?>> globals = globals();
+        globals.remove("decimal"); // json can't tell apart 2 and 2.0, so keep integers
+        ((ScriptValueList<Object>) globals.get("list").v).remove(3, null);
+        write(binary, globals, 3);
+
+        BinarySnapshot.convertToJson(binary, json);
+        assertFalse(BinarySnapshot.isBinary(json));
+        BinarySnapshot.convertFromJson(json, binaryAgain);
+        assertEquals(3, new BinarySnapshot.Reader(binaryAgain).getJournalGeneration());
+        assertEquals(read(binary), read(binaryAgain));
+
+        BinarySnapshot.convertToJson(binaryAgain, jsonAgain);
+        assertEquals(parseJson(json), parseJson(jsonAgain));
+    }
+
+    private static Object parseJson(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return Storage.gson.fromJson(reader, Map.class);
+        }
+    }
+
+    @AfterAll
+    static void finish() {
+        Storage.saveAndClose();
+    }
+}
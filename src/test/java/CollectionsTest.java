@@ -27,7 +27,7 @@ public class CollectionsTest {
     }
 
     static final String yamlString = "\n" +
-            "  # can be \"json\", \"SQLite\" or \"MySQL\"\n" +
+            "  # can be \"json\", \"log\", \"SQLite\" or \"MySQL\"\n" +
             "  method: json" +
             "\n" +
             "  json:\n" +
@@ -37,6 +37,8 @@ public class CollectionsTest {
             "    # if your scripts aren't touching global variables a lot, I would recommend letting that on 1 (saveAndClose each 1 modification, so each time) so you won't lose anything if the server crash,\n" +
             "    # but if you're constantly modifying these variables, it can unnecessarily take lots of resources by generating a new file each time.\n" +
             "    save-interval: 5\n" +
+            "  log:\n" +
+            "    file-location: plugins/ScriptCommands/storage-log\n" +
             "  SQLite:\n" +
             "    file-location: plugins/ScriptCommands/storage.db\n" +
             "    table-prefix: 'SC_'\n" +
@@ -62,6 +64,16 @@ public class CollectionsTest {
 
         waitThreads();
 
+        CustomLogger.info("\n\n========= LOG ===========");
+        storageHashMap.put("method", "log");
+        Storage.loadFromHashMap(storageHashMap);
+        n = 0;
+        map = null;
+        list = null;
+        testEverything();
+
+        waitThreads();
+
         CustomLogger.info("\n\n========= SQLITE ===========");
         storageHashMap.put("method", "SQLite");
         Storage.loadFromHashMap(storageHashMap);
@@ -71,6 +83,17 @@ public class CollectionsTest {
         testEverything();
 
 
+        waitThreads();
+
+        CustomLogger.info("\n\n========= SQLITE (single table) ===========");
+        // the tables made just before are moved to the single table
+        ((Map<String, Object>) storageHashMap.get("SQLite")).put("layout", "single-table");
+        Storage.loadFromHashMap(storageHashMap);
+        n = 0;
+        map = null;
+        list = null;
+        testEverything();
+
         waitThreads();
     }
 
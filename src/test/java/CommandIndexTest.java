@@ -0,0 +1,68 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Command;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.CommandIndex;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Config;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CommandIndexTest {
+
+    @Test
+    void lookups() throws Exception {
+        Config.messages = new HashMap<>();
+        Command home = command("home", "1-2", "h", "Maison");
+        Command help = command("help", "-3", "?");
+        Command hello = command("hello", "2-", "h"); // "h" is already an alias of home
+        CommandIndex index = CommandIndex.build(Arrays.asList(home, help, hello));
+
+        assertEquals(6, index.size());
+        assertSame(home, index.get("HOME").command);
+        assertSame(home, index.get("maison").command);
+        assertTrue(index.get("Maison").alias);
+        assertSame(home, index.get("h").command);
+        assertNull(index.get("hel"));
+        assertNull(index.get(""));
+
+        List<String> labels = new ArrayList<>();
+        for (CommandIndex.Entry entry : index.getStartingWith("HE")) labels.add(entry.label);
+        assertEquals(Arrays.asList("hello", "help"), labels);
+        assertEquals(4, index.getStartingWith("h").size());
+        assertTrue(index.getStartingWith("x").isEmpty());
+
+        CommandIndex.Entry entry = index.get("home");
+        assertFalse(entry.acceptsArgCount(0));
+        assertTrue(entry.acceptsArgCount(2));
+        assertFalse(entry.acceptsArgCount(3));
+        assertTrue(index.get("?").acceptsArgCount(0));
+        assertFalse(index.get("?").acceptsArgCount(4));
+        assertTrue(index.get("hello").acceptsArgCount(1000));
+        assertFalse(index.get("hello").acceptsArgCount(1));
+    }
+
+    private static Command command(String name, String args, String... aliases) throws Exception {
+        HashMap<String, Object> hashMap = new HashMap<>();
+        hashMap.put("direct-scripts", false);
+        hashMap.put("script", new ArrayList<>(Collections.singletonList("script a = 1")));
+        hashMap.put("args", args);
+        hashMap.put("aliases", Arrays.asList(aliases));
+        return new Command(name, hashMap);
+    }
+}
@@ -0,0 +1,136 @@
+import fr.bananasmoothii.scriptcommands.TestStorage;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.*;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The {@link JsonJournal}: what is written in it must be there after reloading, over the storage file.
+ */
+public class JsonJournalTest {
+
+    static final File directory = new File("plugins/ScriptCommands/journal-test");
+    static final File file = new File(directory, "storage.json");
+
+    static final String yamlString = "\n" +
+            "  method: json\n" +
+            "  json:\n" +
+            "    file-location: " + file.getPath() + "\n" +
+            "    journal-sync-interval: 60000\n" + // it is synced by hand here
+            "    unload-after: 0\n";
+
+    @BeforeEach
+    void load() throws IOException {
+        Storage.saveAndClose(); // or the journal of the last test would be written again after being deleted
+        TestStorage.newJsonFile(file); // no global variables
+        reload();
+    }
+
+    private static StringScriptValueMap<Object> reload() {
+        return TestStorage.load(yamlString);
+    }
+
+    private static List<String> journalFiles() {
+        String[] names = directory.list((dir, name) -> name.startsWith("storage.json.journal."));
+        assertNotNull(names);
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    @Test
+    void replayOverSnapshot() {
+        StringScriptValueMap<Object> globals = StringScriptValueMap.getTheGlobal();
+        globals.put("kept", new ScriptValue<>("snapshot"));
+        globals.put("removed", new ScriptValue<>(1));
+        globals.put("replaced", new ScriptValue<>(2));
+        Storage.jsonSave();
+
+        globals.put("replaced", new ScriptValue<>("journal"));
+        globals.remove("removed");
+        globals.put("added", new ScriptValue<>(3.5));
+
+        // closing the journal keeps it, so it is replayed
+        globals = reload();
+        assertEquals(new ScriptValue<>("snapshot"), globals.get("kept"));
+        assertEquals(new ScriptValue<>("journal"), globals.get("replaced"));
+        assertEquals(new ScriptValue<>(3.5), globals.get("added"));
+        assertFalse(globals.containsKey("removed"));
+
+        globals.clear();
+        globals.put("afterClear", new ScriptValue<>(true));
+        globals = reload();
+        assertEquals(Collections.singleton("afterClear"), globals.keySet());
+    }
+
+    @Test
+    void nestedCollections() {
+        StringScriptValueMap<Object> globals = StringScriptValueMap.getTheGlobal();
+        ScriptValueList<Object> list = new ScriptValueList<>(true);
+        list.add(new ScriptValue<>("first"));
+        globals.put("list", new ScriptValue<>(list));
+        Storage.jsonSave();
+
+        list.add(new ScriptValue<>("second"));
+        JsonJournal journal = (JsonJournal) Storage.getJournal();
+        assertNotNull(journal);
+        assertEquals(1, journal.saveCollections());
+        assertEquals(0, journal.saveCollections(), "it didn't change since");
+        list.add(new ScriptValue<>("third")); // appended when the journal is closed
+
+        globals = reload();
+        ScriptValueList<Object> reloaded = (ScriptValueList<Object>) globals.get("list").v;
+        assertEquals(Arrays.asList(new ScriptValue<>("first"), new ScriptValue<>("second"), new ScriptValue<>("third")),
+                reloaded.toNormalList());
+    }
+
+    @Test
+    void truncatedLastLine() throws IOException {
+        File storageFile = new File(directory, "truncated.json");
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(new File(directory, "truncated.json.journal.3").toPath()), StandardCharsets.UTF_8)) {
+            writer.write("{\"put\":\"a\",\"value\":1}\n");
+            writer.write("{\"remove\":\"b\"}\n");
+            writer.write("{\"put\":\"c\",\"val"); // the server crashed while writing it
+        }
+        Map<String, ScriptValue<?>> put = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        int replayed = JsonJournal.replay(storageFile, 0, put::put, removed::add, () -> fail("nothing was cleared"));
+        assertEquals(2, replayed);
+        assertEquals(Collections.singletonMap("a", new ScriptValue<>(1)), put);
+        assertEquals(Collections.singletonList("b"), removed);
+        assertEquals(0, JsonJournal.replay(storageFile, 4, put::put, removed::add, () -> { }), "older generations are skipped");
+    }
+
+    @Test
+    void compactionRemovesOldGenerations() {
+        StringScriptValueMap<Object> globals = StringScriptValueMap.getTheGlobal();
+        globals.put("a", new ScriptValue<>(1));
+        List<String> before = journalFiles();
+        assertEquals(1, before.size(), before.toString());
+
+        Storage.jsonSave();
+        globals.put("b", new ScriptValue<>(2));
+        List<String> after = journalFiles();
+        assertEquals(1, after.size(), after.toString());
+        assertNotEquals(before, after, "a compaction starts a new generation");
+
+        globals = reload();
+        assertEquals(new ScriptValue<>(1), globals.get("a"));
+        assertEquals(new ScriptValue<>(2), globals.get("b"));
+    }
+
+    @AfterAll
+    static void finish() {
+        Storage.saveAndClose();
+    }
+}
@@ -0,0 +1,134 @@
+import fr.bananasmoothii.scriptcommands.TestStorage;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.*;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static fr.bananasmoothii.scriptcommands.TestStorage.v;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Global variables of a json or binary storage file are decoded when they are first used, and unloaded by
+ * {@link StringScriptValueMap#unloadColdVariables()} when they aren't used.
+ */
+@SuppressWarnings("unchecked")
+public class LazyGlobalsTest {
+
+    static final File file = new File("plugins/ScriptCommands/lazy-test/storage.json");
+
+    private static StringScriptValueMap<Object> load(String format) {
+        return TestStorage.load("\n" +
+                "  method: json\n" +
+                "  json:\n" +
+                "    file-location: " + file.getPath() + "\n" +
+                "    format: " + format + "\n" +
+                "    unload-after: 0\n"); // unloaded by hand here
+    }
+
+    /**
+     * Writes a storage file with a list, a dictionary holding a list, and an integer, and loads it again
+     */
+    private static StringScriptValueMap<Object> reloaded(String format) throws IOException {
+        Storage.saveAndClose();
+        TestStorage.newJsonFile(file);
+        StringScriptValueMap<Object> globals = load(format);
+
+        ScriptValueList<Object> list = new ScriptValueList<>(true);
+        list.add(v(1));
+        list.add(v(2));
+        globals.put("list", v(list));
+        ScriptValueList<Object> nested = new ScriptValueList<>(true);
+        nested.add(v(3));
+        ScriptValueMap<Object, Object> map = new ScriptValueMap<>(true);
+        map.put(v("a"), v(nested));
+        globals.put("map", v(map));
+        globals.put("number", v(5));
+        Storage.jsonSave();
+        assertEquals(format.equals("binary"), BinarySnapshot.isBinary(file));
+
+        Storage.saveAndClose();
+        return load(format);
+    }
+
+    private static Set<String> loadedCollections(StringScriptValueMap<Object> globals) {
+        Set<String> names = new HashSet<>();
+        globals.forEachLoadedCollection((name, value) -> names.add(name));
+        return names;
+    }
+
+    private static ScriptValueList<Object> nestedList(ScriptValue<Object> map) {
+        return (ScriptValueList<Object>) ((ScriptValueMap<Object, Object>) map.v).get(v("a")).v;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"json", "binary"})
+    void decodedOnFirstUse(String format) throws IOException {
+        StringScriptValueMap<Object> globals = reloaded(format);
+        assertEquals(Collections.emptySet(), loadedCollections(globals), "nothing is decoded when loading");
+        assertTrue(globals.containsKey("map"));
+        assertEquals(Collections.emptySet(), loadedCollections(globals), "containsKey() doesn't decode");
+
+        ScriptValue<Object> list = globals.get("list");
+        assertEquals(Collections.singleton("list"), loadedCollections(globals));
+        assertSame(list, globals.get("list"), "it is decoded once");
+        assertEquals(Arrays.asList(1, 2), list.toNormalClass(false));
+        assertEquals(Collections.singletonList(3), nestedList(globals.get("map")).toNormalClasses(false));
+        assertEquals(new HashSet<>(Arrays.asList("list", "map")), loadedCollections(globals));
+        assertEquals(v(5), globals.get("number"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"json", "binary"})
+    void unloadKeepsModifiedVariables(String format) throws IOException {
+        StringScriptValueMap<Object> globals = reloaded(format);
+        ScriptValue<Object> map = globals.get("map");
+        globals.get("list");
+        assertEquals(0, globals.unloadColdVariables(), "the first call only starts looking at the used variables");
+        assertEquals(2, globals.unloadColdVariables());
+        assertEquals(Collections.emptySet(), loadedCollections(globals));
+
+        nestedList(map).add(v(4)); // the variable isn't the same as in the file anymore
+        assertEquals(Collections.singleton("map"), loadedCollections(globals));
+        assertEquals(0, globals.unloadColdVariables(), "it is kept in memory");
+        assertEquals(Collections.singleton("map"), loadedCollections(globals));
+        assertSame(map, globals.get("map"));
+        assertEquals(Arrays.asList(3, 4), nestedList(globals.get("map")).toNormalClasses(false));
+    }
+
+    /**
+     * @return only a list in the variable, so nothing else references the variable
+     */
+    private static ScriptValueList<Object> onlyNestedList(StringScriptValueMap<Object> globals) {
+        return nestedList(globals.get("map"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"json", "binary"})
+    void sameObjectWhileUsed(String format) throws IOException, InterruptedException {
+        StringScriptValueMap<Object> globals = reloaded(format);
+        ScriptValue<Object> list = globals.get("list");
+        ScriptValueList<Object> nested = onlyNestedList(globals);
+        globals.unloadColdVariables();
+        assertEquals(2, globals.unloadColdVariables());
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertSame(list, globals.get("list"), "it is still used here");
+        // the variable is only referenced by its list, it must not be gone before it
+        nested.add(v(4));
+        assertSame(nested, nestedList(globals.get("map")));
+        assertEquals(Arrays.asList(3, 4), nested.toNormalClasses(false));
+    }
+
+    @AfterAll
+    static void close() {
+        Storage.saveAndClose();
+    }
+}
@@ -0,0 +1,63 @@
+import fr.bananasmoothii.scriptcommands.TestStorage;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.LogStorage;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link LogStorage} without the rest of the storage: a record that can't be appended is kept until it can be.
+ */
+public class LogStorageTest {
+
+    static final File directory = new File("plugins/ScriptCommands/log-test");
+
+    /**
+     * @return a string too long to fit in a segment of 64 bytes with something else, so each one starts a new segment
+     */
+    private static ScriptValue<Object> longValue(int i) {
+        StringBuilder builder = new StringBuilder();
+        for (int j = 0; j < 10; j++) {
+            builder.append("value ").append(i);
+        }
+        return new ScriptValue<>(builder.toString());
+    }
+
+    private static ScriptValue<?> decode(LogStorage log, String name) {
+        Integer slot = log.readGlobals().get(name);
+        assertNotNull(slot, name + " is not in the log");
+        return log.decode(slot);
+    }
+
+    @Test
+    void keptUntilWritten() throws IOException, InterruptedException {
+        TestStorage.deleteDirectory(directory);
+        LogStorage log = new LogStorage(directory, 20, 64, 50);
+        log.put("a", longValue(1));
+        log.put("b", longValue(2));
+        assertEquals(longValue(1), decode(log, "a"));
+
+        TestStorage.deleteDirectory(directory); // no new segment can be created
+        log.put("a", longValue(3));
+        log.remove("b");
+        log.put("a", longValue(4));
+        assertEquals(longValue(4), decode(log, "a"), "it is read from the record that isn't written");
+        assertThrows(IllegalStateException.class, () -> decode(log, "b"));
+        Thread.sleep(100); // tried again, without success
+        assertEquals(longValue(4), decode(log, "a"));
+
+        assertTrue(directory.mkdirs());
+        for (int i = 0; i < 100 && directory.list().length < 3; i++) {
+            Thread.sleep(20);
+        }
+        log.close();
+
+        LogStorage reopened = new LogStorage(directory, 20, 64, 50);
+        assertEquals(longValue(4), decode(reopened, "a"));
+        assertFalse(reopened.readGlobals().containsKey("b"), "the remove record was written in order too");
+        reopened.close();
+    }
+}
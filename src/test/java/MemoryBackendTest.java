@@ -0,0 +1,23 @@
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.MemoryBackend;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.StorageBackend;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.StringID;
+
+public class MemoryBackendTest extends StorageBackendTest {
+    private final MemoryBackend backend = new MemoryBackend();
+    private int ids;
+
+    @Override
+    protected StorageBackend backend() {
+        return backend;
+    }
+
+    @Override
+    protected StringID nextID() {
+        return new StringID(ids++);
+    }
+
+    @Override
+    protected boolean collectionsUseBackend() {
+        return false;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import fr.bananasmoothii.scriptcommands.core.antlr4parsing.Parsing;
+import fr.bananasmoothii.scriptcommands.core.execution.PermissionPredicate;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptsParsingException;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PermissionPredicateTest {
+
+    private static PermissionPredicate compile(String expression) throws Exception {
+        return PermissionPredicate.compile(Parsing.parsePermission("test", expression));
+    }
+
+    private static boolean evaluate(String expression, String... granted) throws Exception {
+        Set<String> grantedSet = new HashSet<>(Arrays.asList(granted));
+        return compile(expression).evaluate(grantedSet::contains);
+    }
+
+    @Test
+    void operators() throws Exception {
+        assertTrue(evaluate("a.b", "a.b"));
+        assertFalse(evaluate("a.b", "a"));
+
+        assertTrue(evaluate("a and b.c", "a", "b.c"));
+        assertFalse(evaluate("a && b.c", "a"));
+        assertTrue(evaluate("a && b.c", "a", "b.c"));
+
+        assertTrue(evaluate("a or b", "b"));
+        assertTrue(evaluate("a || b", "a"));
+        assertFalse(evaluate("a || b"));
+
+        assertTrue(evaluate("!a"));
+        assertFalse(evaluate("!a", "a"));
+        assertTrue(evaluate("!!a", "a"));
+        assertTrue(evaluate("a && !b", "a"));
+        assertFalse(evaluate("a && !b", "a", "b"));
+    }
+
+    @Test
+    void precedence() throws Exception {
+        // read from left to right: (a or b) and c
+        assertFalse(evaluate("a or b and c", "a"));
+        assertTrue(evaluate("a or b and c", "a", "c"));
+        assertTrue(evaluate("a or (b and c)", "a"));
+        // (a and b) or c
+        assertTrue(evaluate("a && b || c", "c"));
+        assertFalse(evaluate("a && (b || c)", "c"));
+
+        // ! only applies to what directly follows it
+        assertTrue(evaluate("!a and b", "b"));
+        assertFalse(evaluate("!(a and b)", "a", "b"));
+        assertTrue(evaluate("!(a and b)", "b"));
+        assertTrue(evaluate("my-commands.some.tests and (totally.custom or CaSe.SeSiTiVe) or just.do.it", "just.do.it"));
+        assertFalse(evaluate("my-commands.some.tests and (totally.custom or CaSe.SeSiTiVe)", "my-commands.some.tests", "case.sesitive"));
+    }
+
+    @Test
+    void permissionsAreLookedUpOnce() throws Exception {
+        PermissionPredicate predicate = compile("(a or b) and !a or (b and c)");
+        assertEquals(Arrays.asList("a", "b", "c"), predicate.getPermissions());
+        List<String> lookups = new ArrayList<>();
+        assertTrue(predicate.evaluate(permission -> {
+            lookups.add(permission);
+            return ! permission.equals("a");
+        }));
+        assertEquals(Arrays.asList("a", "b"), lookups, "\"b and c\" is not needed");
+        assertEquals("(a or b) and !a or (b and c)", predicate.toString());
+    }
+
+    @Test
+    void malformed() {
+        for (String expression : new String[] {"", "a and", "and a", "a b", "(a", "a)", "()", "a or or b", "a.", "a !"}) {
+            assertThrows(ScriptsParsingException.class, () -> compile(expression), expression);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+import fr.bananasmoothii.scriptcommands.TestStorage;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.*;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+import static fr.bananasmoothii.scriptcommands.TestStorage.v;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link SQLGarbageCollector} on a local SQLite file: only the collections that nothing can reach anymore are removed.
+ */
+@SuppressWarnings("unchecked")
+public class SQLGarbageCollectorTest {
+
+    static final String yamlString = "\n" +
+            "  method: SQLite\n" +
+            "  SQLite:\n" +
+            "    file-location: plugins/ScriptCommands/gc-test.db\n" +
+            "    table-prefix: 'GC_'\n" +
+            "    gc-interval: 0\n" + // only collected by hand
+            "    flush-interval: 0\n" + // no write waiting in memory
+            "    collection-cache-size: 0\n"; // no collection kept in memory by the cache
+
+    /** the collections whose object must be gone before collecting, so only the database can keep them */
+    static final List<WeakReference<ScriptValueCollection>> dropped = new ArrayList<>();
+
+    @BeforeAll
+    static void load() {
+        TestStorage.deleteSQLite("plugins/ScriptCommands/gc-test.db");
+        TestStorage.load(yamlString);
+        assertEquals("GC_", Storage.getSQLTablePrefix());
+    }
+
+    private static ScriptValueList<Object> list(Object... elements) {
+        ScriptValueList<Object> list = new ScriptValueList<>(true);
+        for (Object element : elements) {
+            list.add(v(element));
+        }
+        dropped.add(new WeakReference<>(list));
+        return list;
+    }
+
+    private static ScriptValueMap<Object, Object> map(Object key, Object value) {
+        ScriptValueMap<Object, Object> map = new ScriptValueMap<>(true);
+        map.put(v(key), v(value));
+        dropped.add(new WeakReference<>(map));
+        return map;
+    }
+
+    /**
+     * @return the collections that must be removed and the ones that must be kept, by ID, in that order
+     */
+    private static List<Map<StringID, Character>> fill(StringScriptValueMap<Object> globals, ScriptValueList<Object> local) {
+        Map<StringID, Character> removed = new HashMap<>(), kept = new HashMap<>();
+
+        ScriptValueList<Object> deep = list("deep");
+        ScriptValueMap<Object, Object> nested = map("deep", deep);
+        ScriptValueList<Object> reachable = list(nested, "x");
+        globals.put("reachable", v(reachable));
+        kept.put(reachable.getStringID(), ScriptValueList.typeChar);
+        kept.put(nested.getStringID(), ScriptValueMap.typeChar);
+        kept.put(deep.getStringID(), ScriptValueList.typeChar);
+
+        ScriptValueMap<Object, Object> onlyInLocal = map(1, "local");
+        local.add(v(onlyInLocal));
+        kept.put(local.getStringID(), ScriptValueList.typeChar);
+        kept.put(onlyInLocal.getStringID(), ScriptValueMap.typeChar);
+
+        // copied with an INSERT ... SELECT, so "copied" gets a reference to "inCopy" without an object for it
+        ScriptValueMap<Object, Object> inCopy = map("m", 1);
+        ScriptValueList<Object> source = list(inCopy);
+        ScriptValueList<Object> copy = list();
+        globals.put("copy", v(copy));
+        copy.addAll(source);
+        kept.put(copy.getStringID(), ScriptValueList.typeChar);
+        kept.put(inCopy.getStringID(), ScriptValueMap.typeChar);
+        removed.put(source.getStringID(), ScriptValueList.typeChar);
+
+        ScriptValueMap<Object, Object> unreachableMap = map("v", 1);
+        ScriptValueList<Object> unreachable = list(unreachableMap, "u");
+        removed.put(unreachable.getStringID(), ScriptValueList.typeChar);
+        removed.put(unreachableMap.getStringID(), ScriptValueMap.typeChar);
+
+        ScriptValueList<Object> replaced = list(1, 2);
+        globals.put("replaced", v(replaced));
+        globals.put("replaced", v(3));
+        removed.put(replaced.getStringID(), ScriptValueList.typeChar);
+
+        return Arrays.asList(removed, kept);
+    }
+
+    private static void waitForDroppedObjects() throws InterruptedException {
+        for (int i = 0; i < 100 && dropped.stream().anyMatch(reference -> reference.get() != null); i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue(dropped.stream().allMatch(reference -> reference.get() == null), "the objects are still in memory");
+        Thread.sleep(50); // for the references to be enqueued
+    }
+
+    @Test
+    void collect() throws InterruptedException {
+        StringScriptValueMap<Object> globals = StringScriptValueMap.getTheGlobal();
+        assertEquals("GC_global_vars", globals.getSQLTable());
+        ScriptValueList<Object> local = new ScriptValueList<>(true);
+        List<Map<StringID, Character>> fill = fill(globals, local);
+        Map<StringID, Character> removed = fill.get(0), kept = fill.get(1);
+        waitForDroppedObjects();
+
+        SQLGarbageCollector.Report report = Storage.cleanDatabase();
+        StorageBackend backend = Storage.getBackend();
+        for (Map.Entry<StringID, Character> collection : removed.entrySet()) {
+            assertFalse(backend.exists(collection.getKey(), collection.getValue()), collection.getKey() + " wasn't removed");
+        }
+        for (Map.Entry<StringID, Character> collection : kept.entrySet()) {
+            assertTrue(backend.exists(collection.getKey(), collection.getValue()), collection.getKey() + " was removed");
+        }
+        assertEquals(3, report.getListsRemoved(), report.toString());
+        assertEquals(1, report.getDictionariesRemoved(), report.toString());
+        assertEquals(6, report.getRowsRemoved(), report.toString()); // 1 in source, 2 in unreachable, 1 in its map, 2 in replaced
+        assertEquals(kept.size() + 1, report.getCollectionsRead(), report.toString()); // and the global variables
+        assertEquals(1, local.size());
+
+        report = Storage.cleanDatabase();
+        assertEquals(0, report.getCollectionsRemoved(), "nothing else to remove: " + report);
+        assertEquals(2, ((ScriptValueList<Object>) globals.get("copy").v).size() + local.size());
+    }
+
+    @AfterAll
+    static void close() {
+        Storage.saveAndClose();
+    }
+}
@@ -0,0 +1,79 @@
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.ScriptValueMap;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Storage;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.StringID;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the two SQL layouts with SQLite, with lots of small dictionaries (like one per player). This isn't a
+ * test, run it by hand: {@code SQLLayoutBenchmark [number of dictionaries]}
+ */
+public class SQLLayoutBenchmark {
+
+    static final String yamlString = "\n" +
+            "  method: SQLite\n" +
+            "  SQLite:\n" +
+            "    file-location: plugins/ScriptCommands/layout-benchmark.db\n" +
+            "    table-prefix: 'SC_'\n" +
+            "    flush-interval: 0\n";
+
+    public static void main(String[] args) {
+        int collections = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        //noinspection ResultOfMethodCallIgnored
+        new File("plugins/ScriptCommands").mkdirs();
+        for (String layout : new String[] {"table-per-collection", "single-table"}) {
+            run(layout, collections);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static void run(String layout, int collections) {
+        HashMap<String, Object> storageHashMap = new Yaml().load(yamlString);
+        ((Map<String, Object>) storageHashMap.get("SQLite")).put("layout", layout);
+        File file = new File("plugins/ScriptCommands/layout-benchmark.db");
+        for (String suffix : new String[] {"", "-wal", "-shm"}) {
+            //noinspection ResultOfMethodCallIgnored
+            new File(file.getPath() + suffix).delete();
+        }
+        Storage.loadFromHashMap(storageHashMap);
+
+        List<StringID> ids = new ArrayList<>(collections);
+        long start = System.nanoTime();
+        for (int i = 0; i < collections; i++) {
+            ScriptValueMap<Object, Object> map = new ScriptValueMap<>(true);
+            map.put(new ScriptValue<>("name"), new ScriptValue<>("player" + i), false, null);
+            map.put(new ScriptValue<>("money"), new ScriptValue<>(i), false, null);
+            map.put(new ScriptValue<>("level"), new ScriptValue<>(i % 100), false, null);
+            ids.add(map.getStringID());
+        }
+        double createTime = (System.nanoTime() - start) * 1E-9d;
+
+        Storage.saveAndClose();
+        start = System.nanoTime();
+        Storage.loadFromHashMap(storageHashMap);
+        double loadTime = (System.nanoTime() - start) * 1E-9d;
+
+        Random random = new Random(0);
+        int reads = Math.min(collections, 10_000);
+        start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            ScriptValueMap<Object, Object> map = new ScriptValueMap<>(ids.get(random.nextInt(collections)));
+            map.get(new ScriptValue<>("money"));
+        }
+        double readTime = (System.nanoTime() - start) * 1E-9d;
+        Storage.saveAndClose();
+
+        CustomLogger.info(String.format("%s, %d dictionaries: created in %.2fs (%.3fms each), loaded in %.2fs, " +
+                        "%d random reads in %.2fs (%.3fms each), file size %.1f MB", layout, collections,
+                createTime, createTime * 1000 / collections, loadTime, reads, readTime, readTime * 1000 / reads,
+                file.length() / 1E6d));
+    }
+}
@@ -0,0 +1,71 @@
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.SQLStatementCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link SQLStatementCache} on an SQLite database in memory: a statement given back is reused, and is the same as
+ * a new one.
+ */
+public class SQLStatementCacheTest {
+
+    static final String insert = "INSERT INTO t VALUES (?)";
+
+    Connection connection;
+    SQLStatementCache cache;
+
+    @BeforeEach
+    void open() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        cache = new SQLStatementCache(connection);
+        cache.executeUpdate("CREATE TABLE t (v INTEGER)");
+    }
+
+    private int count() throws SQLException {
+        try (ResultSet result = cache.executeQuery("SELECT COUNT(*) FROM t")) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    @Test
+    void reused() throws SQLException {
+        for (int i = 0; i < 3; i++) {
+            try (PreparedStatement ps = cache.prepare(insert)) {
+                ps.setInt(1, i);
+                ps.executeUpdate();
+            }
+        }
+        assertEquals(3, count());
+        assertEquals(2, cache.getMisses(), "one for the insert, one for the count");
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    void batchOfAFailedUserIsForgotten() throws SQLException {
+        try (PreparedStatement ps = cache.prepare(insert)) {
+            ps.setInt(1, 1);
+            ps.addBatch();
+            ps.setInt(1, 2);
+            ps.addBatch();
+            // closed without executing the batch, like when something fails in the middle
+        }
+        try (PreparedStatement ps = cache.prepare(insert)) {
+            ps.setInt(1, 3);
+            ps.addBatch();
+            assertArrayEquals(new int[] {1}, ps.executeBatch());
+        }
+        assertEquals(1, count());
+        assertEquals(1, cache.getHits(), "the same statement was used");
+    }
+
+    @AfterEach
+    void close() throws SQLException {
+        cache.close();
+        connection.close();
+    }
+}
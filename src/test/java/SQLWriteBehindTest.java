@@ -0,0 +1,75 @@
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.SQLConnectionPool;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.SQLWriteBehind;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link SQLWriteBehind} on an SQLite database in memory: a write that fails is tried again, and nothing is accepted
+ * anymore once the writer thread stopped.
+ */
+public class SQLWriteBehindTest {
+
+    static final String insert = "INSERT INTO t VALUES (?)";
+
+    SQLConnectionPool pool;
+    SQLWriteBehind writeBehind;
+
+    @BeforeEach
+    void open() throws SQLException {
+        pool = SQLConnectionPool.singleWriter(readOnly -> DriverManager.getConnection("jdbc:sqlite::memory:"), 0);
+        pool.executeUpdate("CREATE TABLE t (v INTEGER)");
+        writeBehind = new SQLWriteBehind(pool, 10_000, 100);
+    }
+
+    private int count() throws SQLException {
+        try (ResultSet result = pool.executeQuery("SELECT COUNT(*) FROM t")) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+    @Test
+    void runtimeExceptionIsTriedAgain() throws SQLException {
+        AtomicInteger calls = new AtomicInteger();
+        AtomicBoolean written = new AtomicBoolean();
+        writeBehind.enqueue(insert, ps -> ps.setInt(1, 1), null);
+        writeBehind.enqueue(insert, ps -> {
+            if (calls.incrementAndGet() == 1) throw new IllegalArgumentException("only the first time");
+            ps.setInt(1, 2);
+        }, () -> written.set(true));
+        writeBehind.flush();
+        assertEquals(2, calls.get());
+        assertTrue(written.get());
+        assertEquals(2, count(), "the whole batch is written once, after the failed attempt");
+
+        writeBehind.enqueue(insert, ps -> ps.setInt(1, 3), null);
+        writeBehind.flush();
+        assertEquals(3, count(), "the writer thread is still there");
+        assertEquals(0, writeBehind.getPendingWrites());
+    }
+
+    @Test
+    void stoppedWriterThread() {
+        writeBehind.enqueue(insert, ps -> {
+            throw new StackOverflowError("the writer thread stops");
+        }, null);
+        assertThrows(IllegalStateException.class, writeBehind::flush);
+        assertThrows(IllegalStateException.class, () -> writeBehind.enqueue(insert, ps -> ps.setInt(1, 1), null));
+        assertEquals(1, writeBehind.getPendingWrites());
+    }
+
+    @AfterEach
+    void close() {
+        writeBehind.close();
+        pool.close();
+    }
+}
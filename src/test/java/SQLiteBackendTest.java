@@ -0,0 +1,64 @@
+import fr.bananasmoothii.scriptcommands.TestStorage;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.SQLBackend;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.ScriptValueList;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.ScriptValueMap;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Storage;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.StorageBackend;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.StringID;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs {@link StorageBackendTest} on an {@link SQLBackend} with a local SQLite file, in a new file each time.
+ */
+public class SQLiteBackendTest extends StorageBackendTest {
+
+    static final String yamlString = "\n" +
+            "  method: SQLite\n" +
+            "  SQLite:\n" +
+            "    file-location: plugins/ScriptCommands/backend-test.db\n" +
+            "    table-prefix: 'SC_'\n";
+
+    @BeforeAll
+    static void load() {
+        TestStorage.deleteSQLite("plugins/ScriptCommands/backend-test.db");
+        TestStorage.load(yamlString);
+        assertTrue(Storage.getBackend() instanceof SQLBackend);
+    }
+
+    @Override
+    protected StorageBackend backend() {
+        return Storage.getBackend();
+    }
+
+    @Override
+    protected StringID nextID() {
+        return Storage.getIDAllocator().next();
+    }
+
+    @Override
+    protected boolean collectionsUseBackend() {
+        return true;
+    }
+
+    @Test
+    void localCollectionsDontTakeIDs() {
+        StringID next = Storage.getIDAllocator().next();
+        int highWaterMark = Storage.getIDAllocator().getHighWaterMark();
+        for (int i = 0; i < 1000; i++) {
+            new ScriptValueList<>(false);
+            new ScriptValueMap<>(false);
+        }
+        assertEquals(highWaterMark, Storage.getIDAllocator().getHighWaterMark());
+        assertEquals(next.toInt() + 1, Storage.getIDAllocator().next().toInt());
+    }
+
+    @AfterAll
+    static void close() {
+        Storage.saveAndClose();
+    }
+}
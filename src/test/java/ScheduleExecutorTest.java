@@ -0,0 +1,80 @@
+/*
+ *    Copyright 2020 ScriptCommands
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+import fr.bananasmoothii.scriptcommands.core.CustomLogger;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Schedule.MissedRunPolicy;
+import fr.bananasmoothii.scriptcommands.core.execution.ScheduleExecutor;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ScheduleExecutorTest {
+
+    @Test
+    void runsAtTheRightTicks() {
+        ScheduleExecutor executor = new ScheduleExecutor(Runnable::run);
+        List<Long> runTicks = new ArrayList<>();
+        long[] currentTick = new long[1];
+        executor.schedule("every 3 ticks", 3, 2, 0, MissedRunPolicy.COALESCE, false, () -> runTicks.add(currentTick[0]));
+        // more than the size of the wheel, so some tasks need more than one turn
+        AtomicInteger longRuns = new AtomicInteger();
+        executor.schedule("every 1000 ticks", 1000, 1000, 0, MissedRunPolicy.COALESCE, false, longRuns::incrementAndGet);
+        for (currentTick[0] = 1; currentTick[0] <= 2500; currentTick[0]++) {
+            executor.advanceTo(currentTick[0]);
+        }
+        CustomLogger.info(executor.getTasks());
+        assert runTicks.get(0) == 2 && runTicks.get(1) == 5 && runTicks.get(2) == 8;
+        assert runTicks.size() == 833;
+        assert longRuns.get() == 2;
+        assert executor.getTask("every 3 ticks").getStatistics().getRuns() == 833;
+    }
+
+    @Test
+    void missedRuns() {
+        ScheduleExecutor executor = new ScheduleExecutor(Runnable::run);
+        AtomicInteger skip = new AtomicInteger(), coalesce = new AtomicInteger(), catchUp = new AtomicInteger();
+        executor.schedule("skip", 10, 10, 0, MissedRunPolicy.SKIP, false, skip::incrementAndGet);
+        executor.schedule("coalesce", 10, 10, 0, MissedRunPolicy.COALESCE, false, coalesce::incrementAndGet);
+        executor.schedule("catch up", 10, 10, 0, MissedRunPolicy.CATCH_UP, false, catchUp::incrementAndGet);
+        executor.advanceTo(10);
+        assert skip.get() == 1 && coalesce.get() == 1 && catchUp.get() == 1;
+        // the server "lagged" for 5 runs
+        executor.advanceTo(60);
+        assert skip.get() == 2 && coalesce.get() == 2 && catchUp.get() == 6;
+        assert executor.getTask("coalesce").getMissedRuns() == 4;
+        // it still runs normally after that
+        executor.advanceTo(70);
+        assert skip.get() == 3 && coalesce.get() == 3 && catchUp.get() == 7;
+    }
+
+    @Test
+    void jitter() {
+        ScheduleExecutor executor = new ScheduleExecutor(Runnable::run);
+        List<Long> firstRuns = new ArrayList<>();
+        long[] currentTick = new long[1];
+        for (int i = 0; i < 100; i++) {
+            executor.schedule("schedule " + i, 200, 20, 100, MissedRunPolicy.COALESCE, false, () -> firstRuns.add(currentTick[0]));
+        }
+        for (currentTick[0] = 1; currentTick[0] <= 120; currentTick[0]++) {
+            executor.advanceTo(currentTick[0]);
+        }
+        assert firstRuns.size() == 100;
+        assert firstRuns.stream().allMatch(tick -> tick >= 20 && tick <= 120);
+        assert firstRuns.stream().distinct().count() > 10 : "schedules with jitter should not all run at the same tick";
+    }
+}
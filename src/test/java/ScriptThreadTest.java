@@ -0,0 +1,61 @@
+import fr.bananasmoothii.scriptcommands.core.antlr4parsing.Parsing;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.ContainingScripts;
+import fr.bananasmoothii.scriptcommands.core.execution.*;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A {@link ScriptThread} that never runs doesn't stay in the threads by name and by group.
+ */
+public class ScriptThreadTest {
+
+    static final Context context = new Context("ScriptThreadTest", ContainingScripts.Type.FUNCTION);
+
+    private static ParserRuleContext expression() throws Exception {
+        return Parsing.parseExpression("ScriptThreadTest", "1 + 1");
+    }
+
+    @Test
+    void closedGroup() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ScriptThread.initialiseThreadGroup("closed-group", executor);
+        ScriptThread thread = new ScriptThread(expression(), context, "closed-group");
+        assertEquals(1, ScriptThread.getFromGroup("closed-group").size());
+        assertTrue(ScriptThread.closeThreadGroup("closed-group", 1, TimeUnit.SECONDS));
+
+        AbstractScriptException e = assertThrows(AbstractScriptException.class, thread::start);
+        assertEquals(ExceptionType.THREAD_GROUP_ERROR.getName(), e.getStringType());
+        assertTrue(ScriptThread.getFromGroup("closed-group").isEmpty());
+        assertTrue(ScriptThread.isAvailableName(thread.getThreadName()));
+        assertTrue(thread.isDone());
+        assertThrows(ExecutionException.class, thread::get);
+    }
+
+    @Test
+    void cancelledBeforeStart() throws Exception {
+        ScriptThread thread = new ScriptThread("cancelled-thread", expression(), context);
+        assertFalse(ScriptThread.isAvailableName("cancelled-thread"));
+        thread.cancel(false);
+        assertTrue(ScriptThread.isAvailableName("cancelled-thread"));
+        assertEquals(ScriptValue.NONE, thread.get());
+
+        thread.start();
+        assertFalse(thread.runHereIfNotStarted(), "it is never run");
+    }
+
+    @Test
+    void runOnce() throws Exception {
+        ScriptThread thread = new ScriptThread(expression(), context);
+        assertTrue(thread.runHereIfNotStarted());
+        assertEquals(2, thread.get(1, TimeUnit.SECONDS).v);
+        assertTrue(ScriptThread.isAvailableName(thread.getThreadName()));
+        assertFalse(thread.runHereIfNotStarted());
+    }
+}
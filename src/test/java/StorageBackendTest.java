@@ -0,0 +1,239 @@
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.ScriptValueList;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.ScriptValueMap;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.StorageBackend;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.StringID;
+import fr.bananasmoothii.scriptcommands.core.execution.AbstractScriptException;
+import fr.bananasmoothii.scriptcommands.core.execution.ExceptionType;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static fr.bananasmoothii.scriptcommands.TestStorage.v;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * What every {@link StorageBackend} has to do, a backend is tested by extending this class (see {@link MemoryBackendTest}
+ * and {@link SQLiteBackendTest}).
+ */
+@SuppressWarnings({"MethodMayBeStatic", "unchecked"})
+public abstract class StorageBackendTest {
+
+    /**
+     * @return the backend to test, it is called once per test
+     */
+    protected abstract StorageBackend backend();
+
+    /**
+     * @return a {@link StringID} that no collection of {@link #backend()} has
+     */
+    protected abstract StringID nextID();
+
+    /**
+     * @return whether {@link ScriptValueList}s and {@link ScriptValueMap}s made with {@code useSQLIfPossible} use
+     * {@link #backend()}, instead of the shared {@link fr.bananasmoothii.scriptcommands.core.configsAndStorage.MemoryBackend}
+     */
+    protected abstract boolean collectionsUseBackend();
+
+    private StorageBackend.ListStore<Object> newList(StorageBackend backend) {
+        return backend.createList(nextID(), null);
+    }
+
+    private StorageBackend.MapStore<Object, Object> newMap(StorageBackend backend) {
+        return backend.createMap(nextID(), null);
+    }
+
+    @Test
+    void createAndGet() {
+        StorageBackend backend = backend();
+        StorageBackend.ListStore<Object> list = newList(backend);
+        StorageBackend.MapStore<Object, Object> map = newMap(backend);
+        assertSame(backend, list.getBackend());
+        assertEquals(0, list.size(null));
+        assertEquals(0, map.size(null));
+        assertTrue(backend.exists(list.getStringID(), ScriptValueList.typeChar));
+        assertTrue(backend.exists(map.getStringID(), ScriptValueMap.typeChar));
+
+        list.add(v("a"), null);
+        map.put(v("k"), v(1), null);
+        StorageBackend.ListStore<Object> sameList = backend.getList(list.getStringID());
+        StorageBackend.MapStore<Object, Object> sameMap = backend.getMap(map.getStringID());
+        assertEquals(list.getStringID(), sameList.getStringID());
+        assertEquals(v("a"), sameList.get(0, null));
+        assertEquals(v(1), sameMap.get(v("k"), null));
+        assertThrows(NullPointerException.class, () -> backend.getList(nextID()));
+    }
+
+    @Test
+    void listWrites() {
+        StorageBackend.ListStore<Object> list = newList(backend());
+        list.add(v("a"), null);
+        list.add(v("c"), null);
+        list.add(1, v("b"), null);
+        list.add(0, v("start"), null);
+        assertEquals(Arrays.asList(v("start"), v("a"), v("b"), v("c")), list.snapshot(null));
+
+        list.set(0, v(0), null);
+        assertEquals(v(0), list.get(0, null));
+        list.remove(0, null);
+        list.remove(2, null);
+        assertEquals(Arrays.asList(v("a"), v("b")), list.snapshot(null));
+
+        assertTrue(list.addAll(Arrays.asList(v(1), v(2.5), v(true)), null));
+        assertFalse(list.addAll(Collections.emptyList(), null));
+        assertEquals(5, list.size(null));
+        assertEquals(v(2.5), list.get(3, null));
+
+        list.clear(null);
+        assertEquals(0, list.size(null));
+        assertTrue(list.snapshot(null).isEmpty());
+    }
+
+    @Test
+    void listOutOfBounds() {
+        StorageBackend.ListStore<Object> list = newList(backend());
+        list.add(v("a"), null);
+        assertOutOfBounds(() -> list.get(1, null));
+        assertOutOfBounds(() -> list.get(-1, null));
+        assertOutOfBounds(() -> list.set(1, v("b"), null));
+        assertEquals(Collections.singletonList(v("a")), list.snapshot(null));
+    }
+
+    private static void assertOutOfBounds(Runnable runnable) {
+        AbstractScriptException e = assertThrows(AbstractScriptException.class, runnable::run);
+        assertEquals(ExceptionType.OUT_OF_BOUNDS.getName(), e.getStringType());
+    }
+
+    @Test
+    void listSearches() {
+        StorageBackend.ListStore<Object> list = newList(backend());
+        list.addAll(Arrays.asList(v("a"), v(1), v("a"), v(2)), null);
+        assertEquals(0, list.indexOf(v("a"), false, null));
+        assertEquals(2, list.indexOf(v("a"), true, null));
+        assertEquals(3, list.indexOf(v(2), false, null));
+        assertEquals(-1, list.indexOf(v("z"), false, null));
+        assertTrue(list.contains(v(1), null));
+        assertFalse(list.contains(v("1"), null));
+        assertEquals(Arrays.asList(v(1), v("a")), list.getRange(1, 3, null));
+        assertTrue(list.getRange(2, 2, null).isEmpty());
+    }
+
+    @Test
+    void listIteration() {
+        StorageBackend.ListStore<Object> list = newList(backend());
+        List<ScriptValue<Object>> expected = new ArrayList<>();
+        for (int i = 0; i < 1234; i++) {
+            expected.add(v(i));
+        }
+        list.addAll(expected, null);
+        List<ScriptValue<Object>> iterated = new ArrayList<>();
+        list.iterator(null).forEachRemaining(iterated::add);
+        assertEquals(expected, iterated);
+
+        List<ScriptValue<Object>> snapshot = list.snapshot(null);
+        list.add(v("after"), null);
+        assertEquals(expected, snapshot);
+        assertEquals(1235, list.size(null));
+        assertFalse(newList(backend()).iterator(null).hasNext());
+    }
+
+    @Test
+    void mapWrites() {
+        StorageBackend.MapStore<Object, Object> map = newMap(backend());
+        assertNull(map.get(v("k"), null));
+        map.put(v("k"), v(1), null);
+        map.put(v(2), v("two"), null);
+        map.put(v("k"), v(3), null);
+        assertEquals(2, map.size(null));
+        assertEquals(v(3), map.get(v("k"), null));
+        assertEquals(v("two"), map.get(v(2), null));
+        assertTrue(map.containsKey(v(2), null));
+        assertFalse(map.containsKey(v("2"), null));
+        assertTrue(map.containsValue(v(3), null));
+        assertFalse(map.containsValue(v(1), null));
+
+        map.remove(v("k"), null);
+        map.remove(v("absent"), null);
+        assertNull(map.get(v("k"), null));
+        assertEquals(1, map.size(null));
+
+        Map<ScriptValue<Object>, ScriptValue<Object>> entries = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            entries.put(v("key" + i), v(i));
+        }
+        map.putAll(entries, null);
+        assertEquals(301, map.size(null));
+        assertEquals(v(299), map.get(v("key299"), null));
+
+        map.clear(null);
+        assertEquals(0, map.size(null));
+        assertNull(map.get(v(2), null));
+    }
+
+    @Test
+    void mapIteration() {
+        StorageBackend.MapStore<Object, Object> map = newMap(backend());
+        Map<ScriptValue<Object>, ScriptValue<Object>> expected = new HashMap<>();
+        for (int i = 0; i < 1234; i++) {
+            expected.put(v("key" + i), v(i));
+        }
+        map.putAll(expected, null);
+
+        Map<ScriptValue<Object>, ScriptValue<Object>> iterated = new HashMap<>();
+        map.iterator(null).forEachRemaining(entry -> iterated.put(entry.getKey(), entry.getValue()));
+        assertEquals(expected, iterated);
+        Set<ScriptValue<Object>> keys = new HashSet<>();
+        map.keyIterator(null).forEachRemaining(keys::add);
+        assertEquals(expected.keySet(), keys);
+        List<ScriptValue<Object>> values = new ArrayList<>();
+        map.valueIterator(null).forEachRemaining(values::add);
+        assertEquals(1234, values.size());
+        assertTrue(expected.values().containsAll(values));
+
+        List<Map.Entry<ScriptValue<Object>, ScriptValue<Object>>> snapshot = map.snapshot(null);
+        map.put(v("after"), v(0), null);
+        assertEquals(1234, snapshot.size());
+        assertEquals(1235, map.size(null));
+    }
+
+    /**
+     * Through {@link ScriptValueList#clear()} and {@link ScriptValueMap#clear()}, which only call the store when they
+     * aren't empty
+     */
+    @Test
+    void collectionClear() {
+        ScriptValueList<Object> list = new ScriptValueList<>(collectionsUseBackend());
+        list.add(v(1));
+        list.add(v(2));
+        list.clear();
+        assertTrue(list.isEmpty());
+        assertEquals(0, list.size());
+        list.clear();
+        list.add(v(3));
+        assertEquals(Collections.singletonList(v(3)), list);
+
+        ScriptValueMap<Object, Object> map = new ScriptValueMap<>(collectionsUseBackend());
+        map.put(v("k"), v(1));
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(v("k")));
+        map.clear();
+    }
+
+    @Test
+    void dropAndFlush() {
+        StorageBackend backend = backend();
+        StorageBackend.ListStore<Object> list = newList(backend);
+        StorageBackend.MapStore<Object, Object> map = newMap(backend);
+        list.addAll(Arrays.asList(v(1), v(2), v(3)), null);
+        map.put(v("k"), v("v"), null);
+        backend.flush();
+
+        assertEquals(3, backend.drop(list.getStringID(), ScriptValueList.typeChar, null));
+        assertEquals(1, backend.drop(map.getStringID(), ScriptValueMap.typeChar, null));
+        assertFalse(backend.exists(list.getStringID(), ScriptValueList.typeChar));
+        assertFalse(backend.exists(map.getStringID(), ScriptValueMap.typeChar));
+        assertFalse(backend.exists(nextID(), ScriptValueList.typeChar));
+        backend.flush();
+    }
+}
@@ -0,0 +1,66 @@
+package fr.bananasmoothii.scriptcommands;
+
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.Storage;
+import fr.bananasmoothii.scriptcommands.core.configsAndStorage.StringScriptValueMap;
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * What the tests of the storage share: loading it from a configuration, and starting from new files. It is in a
+ * package so the tests can import {@link #v(Object)} statically.
+ */
+public final class TestStorage {
+
+    private TestStorage() {
+    }
+
+    public static ScriptValue<Object> v(Object o) {
+        return new ScriptValue<>(o);
+    }
+
+    /**
+     * @param yaml the storage section of the configuration
+     * @return the global variables
+     */
+    public static StringScriptValueMap<Object> load(String yaml) {
+        Storage.loadFromHashMap(new Yaml().load(yaml));
+        return StringScriptValueMap.getTheGlobal();
+    }
+
+    /**
+     * Deletes <strong>directory</strong> and the files in it, if it exists
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    /**
+     * Writes a json storage file without any global variable, alone in its directory
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static void newJsonFile(File file) throws IOException {
+        deleteDirectory(file.getParentFile());
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Deletes an SQLite database and its {@code -wal} and {@code -shm} files
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static void deleteSQLite(String path) {
+        File file = new File(path);
+        file.getParentFile().mkdirs();
+        for (String suffix : new String[] {"", "-wal", "-shm"}) {
+            new File(path + suffix).delete();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package fr.bananasmoothii.scriptcommands.core.configsAndStorage;
+
+import fr.bananasmoothii.scriptcommands.core.execution.ScriptValue;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link StorageBackend}s with the same operations on their lists and dictionaries, the ones passing
+ * {@code StorageBackendTest} (it is in a package because JMH needs one). This isn't a test, run it by hand:
+ * {@code StorageBackendBenchmark [JMH options]}, for example {@code -p backend=SQLite -p size=10000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressWarnings("unchecked")
+public class StorageBackendBenchmark {
+
+    static final String yamlString = "\n" +
+            "  method: SQLite\n" +
+            "  SQLite:\n" +
+            "    file-location: plugins/ScriptCommands/backend-benchmark.db\n" +
+            "    table-prefix: 'SC_'\n";
+
+    /** "memory" for the {@link MemoryBackend#getShared() shared MemoryBackend}, "SQLite" for a local SQLite file */
+    @Param({"memory", "SQLite"})
+    public String backend;
+
+    /** number of elements in the list and in the dictionary that are read */
+    @Param({"1000"})
+    public int size;
+
+    private StorageBackend storageBackend;
+    private int ids;
+    private StorageBackend.ListStore<Object> list;
+    private StorageBackend.MapStore<Object, Object> map;
+    private List<ScriptValue<Object>> keys;
+    private StorageBackend.ListStore<Object> addedList;
+    private int next;
+    private int added;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (backend.equals("SQLite")) {
+            File file = new File("plugins/ScriptCommands/backend-benchmark.db");
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            for (String suffix : new String[] {"", "-wal", "-shm"}) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(file.getPath() + suffix).delete();
+            }
+            HashMap<String, Object> storageHashMap = new Yaml().load(yamlString);
+            Storage.loadFromHashMap(storageHashMap);
+            storageBackend = Storage.getBackend();
+        } else if (backend.equals("memory")) {
+            storageBackend = MemoryBackend.getShared();
+        } else {
+            throw new IllegalArgumentException("unknown backend: " + backend);
+        }
+
+        list = storageBackend.createList(nextID(), null);
+        map = storageBackend.createMap(nextID(), null);
+        List<ScriptValue<Object>> elements = new ArrayList<>(size);
+        Map<ScriptValue<Object>, ScriptValue<Object>> entries = new HashMap<>(size);
+        keys = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            elements.add(new ScriptValue<>(i));
+            ScriptValue<Object> key = new ScriptValue<>("key" + i);
+            keys.add(key);
+            entries.put(key, new ScriptValue<>("value" + i));
+        }
+        list.addAll(elements, null);
+        map.putAll(entries, null);
+        storageBackend.flush();
+    }
+
+    /**
+     * The list that {@link #listAdd()} adds to is new at each iteration, so it doesn't get too big
+     */
+    @Setup(Level.Iteration)
+    public void newAddedList() {
+        addedList = storageBackend.createList(nextID(), null);
+    }
+
+    @TearDown(Level.Iteration)
+    public void dropAddedList() {
+        storageBackend.drop(addedList.getStringID(), ScriptValueList.typeChar, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        storageBackend.flush();
+        if (backend.equals("SQLite")) Storage.saveAndClose();
+    }
+
+    private StringID nextID() {
+        return backend.equals("SQLite") ? Storage.getIDAllocator().next() : new StringID(ids++);
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = index + 1 == size ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public void listAdd() {
+        addedList.add(new ScriptValue<>(added++), null);
+    }
+
+    @Benchmark
+    public ScriptValue<Object> listGet() {
+        return list.get(nextIndex(), null);
+    }
+
+    @Benchmark
+    public void listIterate(Blackhole blackhole) {
+        Iterator<ScriptValue<Object>> iterator = list.iterator(null);
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+
+    @Benchmark
+    public void mapPut() {
+        int index = nextIndex();
+        map.put(keys.get(index), new ScriptValue<>("value" + index), null);
+    }
+
+    @Benchmark
+    public ScriptValue<Object> mapGet() {
+        return map.get(keys.get(nextIndex()), null);
+    }
+
+    @Benchmark
+    public void mapIterate(Blackhole blackhole) {
+        Iterator<Map.Entry<ScriptValue<Object>, ScriptValue<Object>>> iterator = map.iterator(null);
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(StorageBackendBenchmark.class.getSimpleName())
+                .build()
+        ).run();
+    }
+}